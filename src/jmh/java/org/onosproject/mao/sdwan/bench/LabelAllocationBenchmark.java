@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.bench;
+
+import org.onosproject.mao.sdwan.mgr.DeviceLabelSpaces;
+import org.onosproject.net.DeviceId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.MAX_LABEL;
+import static org.onosproject.mao.sdwan.mgr.DeviceLabelSpaces.MAX_RESERVED_LABEL;
+
+/**
+ * Cost of handing out one label of a device whose label space is partly in use.
+ *
+ * Labels in use are the lowest ones, as they are handed out, so a fuller
+ * label space means more blocks passed before a free label is found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LabelAllocationBenchmark {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+
+    @Param({"0", "50", "90", "99"})
+    public int occupancyPercent;
+
+    private DeviceLabelSpaces labelSpaces;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        labelSpaces = new DeviceLabelSpaces();
+        long usable = MAX_LABEL - MAX_RESERVED_LABEL;
+        long inUse = usable * occupancyPercent / 100;
+        for (long i = 0; i < inUse; i++) {
+            labelSpaces.allocate(DEVICE);
+        }
+    }
+
+    @Benchmark
+    public int allocateAndRelease() {
+        int label = labelSpaces.allocate(DEVICE);
+        labelSpaces.release(DEVICE, label);
+        return label;
+    }
+}
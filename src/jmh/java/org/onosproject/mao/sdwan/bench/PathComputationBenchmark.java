@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.bench;
+
+import org.onlab.graph.DijkstraGraphSearch;
+import org.onlab.graph.Graph;
+import org.onlab.graph.GraphPathSearch;
+import org.onlab.graph.Path;
+import org.onosproject.mao.sdwan.mgr.BandwidthLedger;
+import org.onosproject.mao.sdwan.mgr.BandwidthLinkWeigher;
+import org.onosproject.mao.sdwan.mgr.SyntheticTopology;
+import org.onosproject.net.Link;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the bandwidth-constrained path computation of one tunnel.
+ *
+ * Runs the search topology service runs for a tunnel given a link weigher,
+ * Dijkstra over a graph of the whole topology, with the weigher of the
+ * manager. A tenth of the links have too little bandwidth left for any
+ * demand above zero, picked the same way on every run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PathComputationBenchmark {
+
+    private static final long SEED = 17;
+    private static final int PAIRS = 1024; // power of two
+    private static final double CAPACITY_BPS = 10e9;
+
+    @Param({"RING", "FAT_TREE", "WAN_MESH"})
+    public SyntheticTopology.Shape shape;
+
+    @Param({"10", "100", "1000", "5000"})
+    public int nodes;
+
+    @Param({"0", "1000000000"})
+    public double demandBps;
+
+    private final DijkstraGraphSearch<TopologyVertex, TopologyEdge> search = new DijkstraGraphSearch<>();
+
+    private Graph<TopologyVertex, TopologyEdge> graph;
+    private TopologyVertex[] vertexes;
+    private int[][] pairs;
+    private BandwidthLinkWeigher weigher;
+    private int next;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticTopology topology = SyntheticTopology.create(shape, nodes, SEED);
+        graph = topology.graph();
+        vertexes = topology.devices().stream().map(DefaultTopologyVertex::new).toArray(TopologyVertex[]::new);
+        pairs = topology.pairs(PAIRS, SEED);
+
+        BandwidthLedger ledger = new BandwidthLedger(link -> CAPACITY_BPS);
+        Random random = new Random(SEED);
+        long tunnelId = 1;
+        for (Link link : topology.links()) {
+            if (random.nextInt(10) == 0) {
+                ledger.forceReserve(tunnelId++, Collections.singleton(link), CAPACITY_BPS);
+            }
+        }
+        weigher = new BandwidthLinkWeigher(ledger, demandBps, topology::reverse);
+    }
+
+    @Benchmark
+    public Set<Path<TopologyVertex, TopologyEdge>> shortestPaths() {
+        int[] pair = pairs[next++ & (PAIRS - 1)];
+        return search.search(graph, vertexes[pair[0]], vertexes[pair[1]], weigher,
+                GraphPathSearch.ALL_PATHS).paths();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.bench;
+
+import org.onosproject.mao.sdwan.api.VpnRequest;
+import org.onosproject.mao.sdwan.api.VpnResult;
+import org.onosproject.mao.sdwan.mgr.SdwanHarness;
+import org.onosproject.mao.sdwan.mgr.SdwanManager;
+import org.onosproject.mao.sdwan.mgr.SyntheticTopology;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Cost of provisioning a batch of tunnels end to end, from the request to the
+ * confirmation of their rules.
+ *
+ * Drives the manager of a harness, so path computation, label allocation,
+ * rule compilation, the tunnel store and the batches to the flow rule service
+ * are all measured together. Tunnels of a batch are deleted after each call,
+ * every call provisions onto the same empty network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProvisioningBenchmark {
+
+    private static final long SEED = 17;
+    private static final int IPV4 = 0x0800;
+    private static final int TENANTS = 100;
+    // ports of sites start above any port of a link, each tunnel of a batch gets its own
+    private static final long FIRST_SITE_PORT = 1000;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    @Param({"RING", "FAT_TREE", "WAN_MESH"})
+    public SyntheticTopology.Shape shape;
+
+    @Param({"100", "1000"})
+    public int nodes;
+
+    @Param({"1", "100", "1000"})
+    public int batch;
+
+    private SdwanHarness harness;
+    private SdwanManager manager;
+    private List<VpnRequest> requests;
+    private List<VpnResult> results;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = new SdwanHarness(SyntheticTopology.create(shape, nodes, SEED));
+        manager = harness.start();
+
+        int[][] pairs = harness.topology().pairs(batch, SEED);
+        requests = new ArrayList<>(batch);
+        for (int i = 0; i < batch; i++) {
+            long port = FIRST_SITE_PORT + i;
+            requests.add(new VpnRequest("tenant" + (i % TENANTS),
+                    harness.site(pairs[i][0], port), harness.site(pairs[i][1], port), IPV4));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteBatch() {
+        if (results != null) {
+            manager.deleteVPNs(results.stream()
+                    .filter(VpnResult::isSuccess)
+                    .map(result -> result.getTunnel().getTunnelId())
+                    .collect(Collectors.toList()));
+            results = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        harness.stop();
+    }
+
+    @Benchmark
+    public List<VpnResult> provisionBatch() throws Exception {
+        results = manager.createVPNsAsync(requests).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return results;
+    }
+}
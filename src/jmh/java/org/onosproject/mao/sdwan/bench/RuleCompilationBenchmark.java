@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.bench;
+
+import com.google.common.collect.Lists;
+import org.onlab.packet.VlanId;
+import org.onosproject.mao.sdwan.mgr.TunnelRuleCompiler;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.onosproject.net.PortNumber.portNumber;
+
+/**
+ * Cost of compiling the rules of both directions of one tunnel.
+ *
+ * Hop i runs from port 2 of device i to port 1 of device i + 1, sites
+ * are on port 3 of the end devices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RuleCompilationBenchmark {
+
+    private static final int PRIORITY = 100;
+    private static final int IPV4 = 0x0800;
+    private static final long COOKIE = 0x7B005D00000001L;
+    private static final int FIRST_LABEL = 1000;
+
+    @Param({"1", "4", "16", "64"})
+    public int hops;
+
+    private final TunnelRuleCompiler compiler = new TunnelRuleCompiler(PRIORITY);
+
+    private ConnectPoint srcSite;
+    private ConnectPoint dstSite;
+    private List<ConnectPoint> forwardHops;
+    private List<ConnectPoint> backwardHops;
+    private List<Integer> forwardLabels;
+    private List<Integer> backwardLabels;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<DeviceId> devices = new ArrayList<>();
+        for (int i = 0; i <= hops; i++) {
+            devices.add(DeviceId.deviceId(String.format("of:%016x", i + 1)));
+        }
+        srcSite = new ConnectPoint(devices.get(0), portNumber(3));
+        dstSite = new ConnectPoint(devices.get(hops), portNumber(3));
+
+        forwardHops = new ArrayList<>();
+        backwardHops = new ArrayList<>();
+        forwardLabels = new ArrayList<>();
+        backwardLabels = new ArrayList<>();
+        for (int i = 0; i < hops; i++) {
+            forwardHops.add(new ConnectPoint(devices.get(i), portNumber(2)));
+            backwardHops.add(new ConnectPoint(devices.get(i + 1), portNumber(1)));
+            forwardLabels.add(FIRST_LABEL + i);
+            backwardLabels.add(FIRST_LABEL + hops + i);
+        }
+        backwardHops = Lists.reverse(backwardHops);
+    }
+
+    @Benchmark
+    public void bothDirections(Blackhole blackhole) {
+        blackhole.consume(compile(compiler));
+    }
+
+    /**
+     * Compiles with selectors and treatments cached by no earlier tunnel.
+     *
+     * @param blackhole sink of rules
+     */
+    @Benchmark
+    public void bothDirectionsColdCaches(Blackhole blackhole) {
+        blackhole.consume(compile(new TunnelRuleCompiler(PRIORITY)));
+    }
+
+    private List<FlowRule> compile(TunnelRuleCompiler compiler) {
+        List<FlowRule> rules = new ArrayList<>(2 * hops + 2);
+        rules.addAll(compiler.compile(srcSite, dstSite, forwardHops, forwardLabels,
+                VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE));
+        rules.addAll(compiler.compile(dstSite, srcSite, backwardHops, backwardLabels,
+                VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE));
+        return rules;
+    }
+}
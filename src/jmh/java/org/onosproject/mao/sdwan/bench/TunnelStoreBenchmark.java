@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.bench;
+
+import com.google.common.collect.Lists;
+import org.onlab.graph.ScalarWeight;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.mgr.SimpleSdwanTunnelStore;
+import org.onosproject.mao.sdwan.mgr.SyntheticTopology;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.provider.ProviderId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.onosproject.net.PortNumber.portNumber;
+
+/**
+ * Cost of the tunnel store lookups of provisioning and failure handling.
+ *
+ * Tunnels run two to six hops along a ring of 1,000 devices, from random
+ * devices, and belong to one of 100 tenants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TunnelStoreBenchmark {
+
+    private static final long SEED = 17;
+    private static final int DEVICES = 1000;
+    private static final int TENANTS = 100;
+    private static final int LOOKUPS = 1024; // power of two
+    private static final int FIRST_LABEL = 16;
+    private static final ProviderId PID = new ProviderId("bench", "org.onosproject.mao.sdwan.bench");
+
+    @Param({"1000", "100000"})
+    public int tunnels;
+
+    private SimpleSdwanTunnelStore store;
+    private SdwanTunnel[] lookups;
+    private SdwanTunnel extra;
+    private int next;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticTopology ring = SyntheticTopology.ring(DEVICES);
+        Random random = new Random(SEED);
+        store = new SimpleSdwanTunnelStore();
+        List<SdwanTunnel> added = new ArrayList<>(tunnels);
+        for (int i = 0; i < tunnels; i++) {
+            SdwanTunnel tunnel = tunnel(ring, random, store.nextTunnelId(), FIRST_LABEL + 2 * i);
+            store.addTunnel(tunnel);
+            added.add(tunnel);
+        }
+        lookups = new SdwanTunnel[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookups[i] = added.get(random.nextInt(tunnels));
+        }
+        extra = tunnel(ring, random, store.nextTunnelId(), FIRST_LABEL + 2 * tunnels);
+    }
+
+    private static SdwanTunnel tunnel(SyntheticTopology ring, Random random, long id, int label) {
+        int start = random.nextInt(DEVICES);
+        int hops = 2 + random.nextInt(5);
+        List<Link> links = new ArrayList<>(hops);
+        List<DeviceId> devices = new ArrayList<>(hops + 1);
+        devices.add(ring.devices().get(start));
+        for (int h = 0; h < hops; h++) {
+            int from = (start + h) % DEVICES;
+            int to = (from + 1) % DEVICES;
+            links.add(ring.link(from, to));
+            devices.add(ring.devices().get(to));
+        }
+        DefaultPath path = new DefaultPath(PID, links, new ScalarWeight(hops));
+
+        return SdwanTunnel.builder()
+                .tunnelId(id)
+                .tenant("tenant" + (id % TENANTS))
+                .src(new ConnectPoint(devices.get(0), portNumber(100)))
+                .dst(new ConnectPoint(devices.get(hops), portNumber(100)))
+                .networkProtocol(0x0800)
+                .forwardDevices(devices)
+                .backwardDevices(Lists.reverse(devices))
+                .forwardPath(path)
+                .backwardPath(path)
+                .forwardLabel(label)
+                .backwardLabel(label + 1)
+                .build();
+    }
+
+    private SdwanTunnel nextTunnel() {
+        return lookups[next++ & (LOOKUPS - 1)];
+    }
+
+    @Benchmark
+    public SdwanTunnel tunnelById() {
+        return store.getTunnel(nextTunnel().getTunnelId());
+    }
+
+    @Benchmark
+    public Collection<SdwanTunnel> deviceTunnels() {
+        return store.getDeviceTunnels(nextTunnel().getSrcSite().deviceId());
+    }
+
+    @Benchmark
+    public Collection<SdwanTunnel> linkTunnels() {
+        return store.getLinkTunnels(LinkKey.linkKey(nextTunnel().getForwardPath().links().get(0)));
+    }
+
+    @Benchmark
+    public SdwanTunnel labelTunnel() {
+        SdwanTunnel tunnel = nextTunnel();
+        return store.getLabelTunnel(tunnel.getDstSite().deviceId(), tunnel.getForwardLabel());
+    }
+
+    @Benchmark
+    public Collection<SdwanTunnel> tenantTunnels() {
+        return store.getTenantTunnels(nextTunnel().getTenantName());
+    }
+
+    @Benchmark
+    public SdwanTunnel addAndRemove() {
+        store.addTunnel(extra);
+        return store.removeTunnel(extra.getTunnelId());
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+/**
+ * Protection of VPN tunnels by a precomputed backup route.
+ */
+public enum ProtectionType {
+
+    /**
+     * No backup route.
+     */
+    NONE,
+
+    /**
+     * Backup route shares no link with primary route.
+     */
+    LINK_DISJOINT,
+
+    /**
+     * Backup route shares no transit device and no link with primary route.
+     */
+    NODE_DISJOINT
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+/**
+ * How traffic of a VPN tunnel is routed through the fabric.
+ */
+public enum RoutingMode {
+
+    /**
+     * One shortest route, one label per hop.
+     */
+    SHORTEST,
+
+    /**
+     * Spread over equal-cost routes by select groups where they diverge.
+     */
+    ECMP,
+
+    /**
+     * Carried by global node segments, ingress pushes a label stack and
+     * transit devices only hold one rule per node SID.
+     */
+    SEGMENT_ROUTING,
+
+    /**
+     * One shortest route, tunnels toward the same site and ethertype merge
+     * into one label and one set of transit rules once their routes join.
+     */
+    MERGED
+}
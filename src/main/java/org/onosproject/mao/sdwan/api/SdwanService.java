@@ -1,10 +1,24 @@
 package org.onosproject.mao.sdwan.api;
 
+import org.onlab.util.Bandwidth;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.LinkKey;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Created by mao on 17-4-14.
  */
 public interface SdwanService {
 
+    /**
+     * Name of the metrics component provisioning metrics are registered under.
+     */
+    String METRICS_COMPONENT = "sdwan";
+
     /**
      * Creates one VPN tunnel.
      *
@@ -14,4 +28,197 @@ public interface SdwanService {
      * @return
      */
     boolean createVPN(String tenantName, String srcSite, String dstSite, int ethertypeCode);
+
+    /**
+     * Creates one VPN tunnel on a route with enough residual bandwidth, and reserves it.
+     *
+     * @param tenantName name of tenant
+     * @param srcSite dpid and port no. of source device, e.g. of:0000000000000001/1
+     * @param dstSite dpid and port no. of destination device, e.g. of:0000000000000001/1
+     * @param ethertypeCode ethertype of network protocol carried, e.g. IPv4:0x0800
+     * @param bandwidth bandwidth to reserve in each direction, zero for best effort
+     * @return true if tunnel is created and its flow rules are submitted
+     */
+    boolean createVPN(String tenantName, String srcSite, String dstSite, int ethertypeCode, Bandwidth bandwidth);
+
+    /**
+     * Creates VPN tunnels in bulk.
+     *
+     * Flow rules of all tunnels are submitted to devices together, one batch per device.
+     * Tunnels whose rules are later rejected by devices are withdrawn.
+     *
+     * Tunnels of a site are told apart by VLAN, each tunnel takes the lowest
+     * VLAN free at both its sites, see SdwanTunnel.getSiteVlan. A request
+     * finding none fails with SITE_IN_USE.
+     *
+     * @param requests requests of VPN tunnels
+     * @return result of each request, in order of requests
+     */
+    List<VpnResult> createVPNs(Collection<VpnRequest> requests);
+
+    /**
+     * Creates VPN tunnels in bulk, reporting once their flow rules are installed.
+     *
+     * The future completes once devices answered for every created tunnel.
+     * A tunnel whose rules are rejected is withdrawn and its request is
+     * reported INSTALL_FAILED.
+     *
+     * @param requests requests of VPN tunnels
+     * @return future of result of each request, in order of requests
+     */
+    CompletableFuture<List<VpnResult>> createVPNsAsync(Collection<VpnRequest> requests);
+
+    /**
+     * Creates a full mesh of VPN tunnels among sites of a tenant, one tunnel per pair of sites.
+     *
+     * Routes of all pairs are computed in parallel against one topology snapshot,
+     * flow rules of all tunnels are submitted to devices together, one batch per device.
+     *
+     * Each pair takes a VLAN free at both its sites, traffic of a site tagged
+     * with it enters the tunnel of the pair and leaves the other site tagged
+     * alike. The first tunnel of a site goes untagged.
+     *
+     * @param tenantName name of tenant
+     * @param sites dpid and port no. of each site, e.g. of:0000000000000001/1
+     * @param ethertypeCode ethertype of network protocol carried, e.g. IPv4:0x0800
+     * @return result of each pair of sites, first site with all later ones, then second, and so on
+     */
+    List<VpnResult> createTenantMesh(String tenantName, List<String> sites, int ethertypeCode);
+
+    /**
+     * Creates VPN tunnels between a hub site of a tenant and each of its spoke sites.
+     *
+     * Routes are computed in parallel against one topology snapshot,
+     * flow rules of all tunnels are submitted to devices together, one batch per device.
+     *
+     * Each spoke takes a VLAN free at both its site and the hub site, traffic
+     * of the hub tagged with it enters the tunnel of the spoke.
+     *
+     * @param tenantName name of tenant
+     * @param hubSite dpid and port no. of hub site, e.g. of:0000000000000001/1
+     * @param spokeSites dpid and port no. of each spoke site
+     * @param ethertypeCode ethertype of network protocol carried, e.g. IPv4:0x0800
+     * @return result of each spoke site, in order of spoke sites
+     */
+    List<VpnResult> createTenantHubAndSpoke(String tenantName, String hubSite, List<String> spokeSites,
+                                            int ethertypeCode);
+
+    /**
+     * Creates one VPN tunnel, reporting when its flow rules are installed.
+     *
+     * The future completes once devices confirm every forward and backward rule,
+     * or fails with a VpnException listing rejected rules.
+     *
+     * @param tenantName name of tenant
+     * @param srcSite dpid and port no. of source device, e.g. of:0000000000000001/1
+     * @param dstSite dpid and port no. of destination device, e.g. of:0000000000000001/1
+     * @param ethertypeCode ethertype of network protocol carried, e.g. IPv4:0x0800
+     * @return future of installed tunnel
+     */
+    CompletableFuture<SdwanTunnel> createVPNAsync(String tenantName, String srcSite, String dstSite,
+                                                  int ethertypeCode);
+
+    /**
+     * Deletes one VPN tunnel, removing its flow rules as one batch.
+     *
+     * Labels, groups and bandwidth of the tunnel are released once the rules are removed.
+     *
+     * @param tunnelId id of tunnel
+     * @return true if tunnel existed
+     */
+    boolean deleteVPN(long tunnelId);
+
+    /**
+     * Deletes VPN tunnels in bulk, removing their flow rules as one batch.
+     *
+     * @param tunnelIds ids of tunnels, unknown ids are ignored
+     * @return number of tunnels deleted
+     */
+    int deleteVPNs(Collection<Long> tunnelIds);
+
+    /**
+     * Deletes all VPN tunnels of a tenant, removing their flow rules as one batch.
+     *
+     * Protection and routing mode of the tenant are kept.
+     *
+     * @param tenantName name of tenant
+     * @return number of tunnels deleted
+     */
+    int deleteTenant(String tenantName);
+
+    /**
+     * Returns all VPN tunnels.
+     *
+     * @return tunnels
+     */
+    Collection<SdwanTunnel> getTunnels();
+
+    /**
+     * Returns VPN tunnels of a tenant.
+     *
+     * @param tenantName name of tenant
+     * @return tunnels of tenant
+     */
+    Collection<SdwanTunnel> getTenantTunnels(String tenantName);
+
+    /**
+     * Returns VPN tunnels passing through a device.
+     *
+     * @param deviceId device
+     * @return tunnels using the device
+     */
+    Collection<SdwanTunnel> getDeviceTunnels(DeviceId deviceId);
+
+    /**
+     * Sets protection of tunnels created for a tenant from now on.
+     *
+     * @param tenantName name of tenant
+     * @param type protection type, null to fall back to default protection
+     */
+    void setTenantProtection(String tenantName, ProtectionType type);
+
+    /**
+     * Returns protection of tunnels created for a tenant.
+     *
+     * @param tenantName name of tenant
+     * @return protection type
+     */
+    ProtectionType getTenantProtection(String tenantName);
+
+    /**
+     * Sets routing mode of tunnels created for a tenant from now on.
+     *
+     * @param tenantName name of tenant
+     * @param mode routing mode, null to fall back to default routing mode
+     */
+    void setTenantRoutingMode(String tenantName, RoutingMode mode);
+
+    /**
+     * Returns routing mode of tunnels created for a tenant.
+     *
+     * @param tenantName name of tenant
+     * @return routing mode
+     */
+    RoutingMode getTenantRoutingMode(String tenantName);
+
+    /**
+     * Returns global node SID of each device, assigned once segment routing is used.
+     *
+     * @return device to node SID
+     */
+    Map<DeviceId, Integer> getNodeSids();
+
+    /**
+     * Returns counters of the path computation cache, e.g. hits and misses.
+     *
+     * @return counter name to value
+     */
+    Map<String, Long> getPathCacheStatistics();
+
+    /**
+     * Returns bandwidth reserved by tunnels on each link, in bps.
+     *
+     * @return link to reserved bandwidth, links without reservation left out
+     */
+    Map<LinkKey, Double> getLinkReservations();
 }
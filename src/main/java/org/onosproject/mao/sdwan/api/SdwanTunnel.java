@@ -1,15 +1,21 @@
 package org.onosproject.mao.sdwan.api;
 
+import org.onlab.packet.VlanId;
+import org.onlab.util.Bandwidth;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DefaultPath;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Path;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import static com.google.common.base.MoreObjects.toStringHelper;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -18,44 +24,70 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class SdwanTunnel {
 
+    public static final long INVALID_TUNNEL_ID = -1;
     public static final int INVALID_LABEL = -1;
     public static final int INVALID_NETWORK_PROTOCOL = -1;
     public static final int MIN_LABEL = 0;
     public static final int MAX_LABEL = 1048575;
 
 
+    private long tunnelId;
     private String tenantName;
     private ConnectPoint srcSite;
     private ConnectPoint dstSite;
     private int networkProtocol;
+    private VlanId siteVlan = VlanId.NONE; // same at both sites, tells tunnels of a site apart
     private List<DeviceId> forwardDevices;
     private List<DeviceId> backwardDevices;
     private Path forwardPath;
     private Path backwardPath;
     private int forwardLabel; // MPLS now
     private int backwardLabel; // MPLS now
+    private List<Integer> forwardLabels; // label of each hop, locally significant
+    private List<Integer> backwardLabels; // label of each hop, locally significant
+    private Bandwidth bandwidth = Bandwidth.bps(0); // reserved in each direction, zero for best effort
 
+    // optional disjoint backup route, protected by fast-failover groups
+    private Path backupPath;
+    private List<DeviceId> backupForwardDevices = new ArrayList<>();
+    private List<DeviceId> backupBackwardDevices = new ArrayList<>();
+    private List<Integer> backupForwardLabels = new ArrayList<>();
+    private List<Integer> backupBackwardLabels = new ArrayList<>();
 
+    // optional equal-cost routes, first one is forwardPath, each device takes one label per direction
+    private List<Path> ecmpPaths = new ArrayList<>();
+    private Map<DeviceId, Integer> forwardNodeLabels = new HashMap<>();
+    private Map<DeviceId, Integer> backwardNodeLabels = new HashMap<>();
 
-    SdwanTunnel(String tenantName, ConnectPoint srcSite, ConnectPoint dstSite,
+    // optional node SIDs pushed by ingress, top first; labels are then one service label per direction
+    private List<Integer> forwardSegments = new ArrayList<>();
+    private List<Integer> backwardSegments = new ArrayList<>();
+
+    // forward direction shares labels and transit rules with other tunnels toward dstSite
+    private boolean merged;
+
+
+
+    SdwanTunnel(long tunnelId, String tenantName, ConnectPoint srcSite, ConnectPoint dstSite,
                 List<DeviceId> forwardDevices, List<DeviceId> backwardDevices,
                 Path forwardPath, Path backwardPath,
-                int forwardLabel, int backwardLabel, int networkProtocol){
+                List<Integer> forwardLabels, List<Integer> backwardLabels, int networkProtocol){
 
         checkNotNull(tenantName, "Tenant name must be set");
         checkNotNull(srcSite, "Src site must be set");
         checkNotNull(dstSite, "Dst site must be set");
-        checkArgument(forwardLabel != INVALID_LABEL,
+        checkArgument(forwardLabels != null && !forwardLabels.isEmpty(),
                 "Forward label must be set");
-        checkArgument(forwardLabel >= MIN_LABEL && forwardLabel <= MAX_LABEL,
-                "Forward label is out of scope %s ~ %s", MIN_LABEL, MAX_LABEL);
-        checkArgument(backwardLabel != INVALID_LABEL,
+        forwardLabels.forEach(label -> checkArgument(label >= MIN_LABEL && label <= MAX_LABEL,
+                "Forward label is out of scope %s ~ %s", MIN_LABEL, MAX_LABEL));
+        checkArgument(backwardLabels != null && !backwardLabels.isEmpty(),
                 "Backward label must be set");
-        checkArgument(backwardLabel >= MIN_LABEL && backwardLabel <= MAX_LABEL,
-                "Backward label is out of scope %s ~ %s", MIN_LABEL, MAX_LABEL);
+        backwardLabels.forEach(label -> checkArgument(label >= MIN_LABEL && label <= MAX_LABEL,
+                "Backward label is out of scope %s ~ %s", MIN_LABEL, MAX_LABEL));
         checkArgument(networkProtocol != INVALID_NETWORK_PROTOCOL,
                 "Network Protocol must be set. e.g. IPv4:0x0800, ARP:0x0806");
 
+        this.tunnelId = tunnelId;
         this.tenantName = tenantName;
         this.srcSite = srcSite;
         this.dstSite = dstSite;
@@ -63,13 +95,19 @@ public class SdwanTunnel {
         this.backwardDevices = backwardDevices == null ? new ArrayList<>() : backwardDevices;
         this.forwardPath = forwardPath;
         this.backwardPath = backwardPath;
-        this.forwardLabel = forwardLabel;
-        this.backwardLabel = backwardLabel;
+        this.forwardLabels = new ArrayList<>(forwardLabels);
+        this.backwardLabels = new ArrayList<>(backwardLabels);
+        this.forwardLabel = this.forwardLabels.get(0);
+        this.backwardLabel = this.backwardLabels.get(0);
         this.networkProtocol = networkProtocol;
     }
 
 
 
+    public long getTunnelId() {
+        return tunnelId;
+    }
+
     public String getTenantName() {
         return tenantName;
     }
@@ -106,10 +144,194 @@ public class SdwanTunnel {
         return backwardLabel;
     }
 
+    /**
+     * Returns labels of forward hops.
+     *
+     * Label of hop i is allocated in label space of forwardDevices[i + 1],
+     * i.e. the device receiving it. A tunnel with a single label uses it on every hop.
+     *
+     * @return labels of forward hops
+     */
+    public List<Integer> getForwardLabels() {
+        return Collections.unmodifiableList(forwardLabels);
+    }
+
+    /**
+     * Returns labels of backward hops.
+     *
+     * Label of hop i is allocated in label space of backwardDevices[i + 1].
+     *
+     * @return labels of backward hops
+     */
+    public List<Integer> getBackwardLabels() {
+        return Collections.unmodifiableList(backwardLabels);
+    }
+
+    public int getForwardLabel(int hop) {
+        return forwardLabels.get(Math.min(hop, forwardLabels.size() - 1));
+    }
+
+    public int getBackwardLabel(int hop) {
+        return backwardLabels.get(Math.min(hop, backwardLabels.size() - 1));
+    }
+
     public int getNetworkProtocol() {
         return networkProtocol;
     }
 
+    /**
+     * Returns VLAN of traffic at both sites, telling this tunnel apart from others of the same sites.
+     *
+     * @return VLAN, VlanId.NONE for untagged traffic
+     */
+    public VlanId getSiteVlan() {
+        // tunnels stored before sites had VLANs go untagged
+        return siteVlan == null ? VlanId.NONE : siteVlan;
+    }
+
+    public Bandwidth getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Returns whether tunnel has a backup route.
+     *
+     * @return true if tunnel is protected
+     */
+    public boolean isProtected() {
+        return backupPath != null;
+    }
+
+    /**
+     * Returns backup route, in forward direction.
+     *
+     * @return backup path, or null if tunnel is not protected
+     */
+    public Path getBackupPath() {
+        return backupPath;
+    }
+
+    public List<DeviceId> getBackupForwardDevices() {
+        return Collections.unmodifiableList(backupForwardDevices);
+    }
+
+    public List<DeviceId> getBackupBackwardDevices() {
+        return Collections.unmodifiableList(backupBackwardDevices);
+    }
+
+    public List<Integer> getBackupForwardLabels() {
+        return Collections.unmodifiableList(backupForwardLabels);
+    }
+
+    public List<Integer> getBackupBackwardLabels() {
+        return Collections.unmodifiableList(backupBackwardLabels);
+    }
+
+    /**
+     * Returns whether tunnel is spread over equal-cost routes.
+     *
+     * @return true if tunnel has more than one route
+     */
+    public boolean isEcmp() {
+        return ecmpPaths.size() > 1;
+    }
+
+    public List<Path> getEcmpPaths() {
+        return Collections.unmodifiableList(ecmpPaths);
+    }
+
+    /**
+     * Returns label of each device receiving forward traffic of an ECMP tunnel,
+     * shared by every branch entering the device.
+     *
+     * @return device to label, empty if tunnel is not ECMP
+     */
+    public Map<DeviceId, Integer> getForwardNodeLabels() {
+        return Collections.unmodifiableMap(forwardNodeLabels);
+    }
+
+    public Map<DeviceId, Integer> getBackwardNodeLabels() {
+        return Collections.unmodifiableMap(backwardNodeLabels);
+    }
+
+    /**
+     * Returns whether tunnel is carried by node segments instead of per-tunnel transit rules.
+     *
+     * The only label of each direction is then the service label of its egress device.
+     *
+     * @return true if tunnel is segment routed
+     */
+    public boolean isSegmentRouted() {
+        return !forwardSegments.isEmpty();
+    }
+
+    /**
+     * Returns node SIDs of forward direction, top of stack first, the last one being the egress device.
+     *
+     * @return node SIDs, empty if tunnel is not segment routed
+     */
+    public List<Integer> getForwardSegments() {
+        return Collections.unmodifiableList(forwardSegments);
+    }
+
+    public List<Integer> getBackwardSegments() {
+        return Collections.unmodifiableList(backwardSegments);
+    }
+
+    private void setSegments(List<Integer> forwardSegments, List<Integer> backwardSegments) {
+        if (forwardSegments == null || forwardSegments.isEmpty()) {
+            return;
+        }
+        checkArgument(backwardSegments != null && !backwardSegments.isEmpty(),
+                "Backward segments must be set");
+        checkArgument(forwardLabels.size() == 1 && backwardLabels.size() == 1,
+                "Segment routed tunnel takes one service label per direction");
+
+        this.forwardSegments = new ArrayList<>(forwardSegments);
+        this.backwardSegments = new ArrayList<>(backwardSegments);
+    }
+
+    /**
+     * Returns whether forward direction is merged into the tree of its egress site.
+     *
+     * Forward labels then belong to the tree, shared by all tunnels toward
+     * the same site and ethertype; only the ingress rule belongs to the tunnel.
+     *
+     * @return true if forward direction is merged
+     */
+    public boolean isMerged() {
+        return merged;
+    }
+
+    private void setEcmp(List<Path> paths, Map<DeviceId, Integer> forwardLabels,
+                         Map<DeviceId, Integer> backwardLabels) {
+        if (paths == null || paths.size() < 2) {
+            return;
+        }
+        checkArgument(paths.get(0).equals(forwardPath), "First ECMP route must be the forward path");
+
+        this.ecmpPaths = new ArrayList<>(paths);
+        this.forwardNodeLabels = new HashMap<>(checkNotNull(forwardLabels));
+        this.backwardNodeLabels = new HashMap<>(checkNotNull(backwardLabels));
+    }
+
+    private void setBackup(Path path, List<DeviceId> forwardDevices, List<DeviceId> backwardDevices,
+                           List<Integer> forwardLabels, List<Integer> backwardLabels) {
+        if (path == null) {
+            return;
+        }
+        checkArgument(forwardLabels != null && forwardLabels.size() == path.links().size(),
+                "Backup forward labels must be set for every hop");
+        checkArgument(backwardLabels != null && backwardLabels.size() == path.links().size(),
+                "Backup backward labels must be set for every hop");
+
+        this.backupPath = path;
+        this.backupForwardDevices = new ArrayList<>(checkNotNull(forwardDevices));
+        this.backupBackwardDevices = new ArrayList<>(checkNotNull(backwardDevices));
+        this.backupForwardLabels = new ArrayList<>(forwardLabels);
+        this.backupBackwardLabels = new ArrayList<>(backwardLabels);
+    }
+
 
 
     public void updateNetworkProtocol(int ethertypeCode) {
@@ -140,38 +362,120 @@ public class SdwanTunnel {
         checkArgument(label >= MIN_LABEL && label <= MAX_LABEL,
                 "label is out of scope %s ~ %s", MIN_LABEL, MAX_LABEL);
         this.forwardLabel = label;
+        this.forwardLabels.set(0, label);
     }
 
     public void updateBackwardLabel(int label) {
         checkArgument(label >= MIN_LABEL && label <= MAX_LABEL,
                 "label is out of scope %s ~ %s", MIN_LABEL, MAX_LABEL);
         this.backwardLabel = label;
+        this.backwardLabels.set(0, label);
+    }
+
+    public void updateForwardLabels(List<Integer> labels) {
+        checkArgument(labels != null && !labels.isEmpty(), "labels cannot be empty");
+        this.forwardLabels = new ArrayList<>(labels);
+        this.forwardLabel = labels.get(0);
+    }
+
+    public void updateBackwardLabels(List<Integer> labels) {
+        checkArgument(labels != null && !labels.isEmpty(), "labels cannot be empty");
+        this.backwardLabels = new ArrayList<>(labels);
+        this.backwardLabel = labels.get(0);
+    }
+
+
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("id", tunnelId)
+                .add("tenant", tenantName)
+                .add("src", srcSite)
+                .add("dst", dstSite)
+                .add("ethertype", String.format("0x%04x", networkProtocol))
+                .add("vlan", getSiteVlan())
+                .add("bandwidth", bandwidth)
+                .add("forwardDevices", forwardDevices)
+                .add("forwardLabels", forwardLabels)
+                .add("backwardLabels", backwardLabels)
+                .add("backupDevices", backupPath == null ? null : backupForwardDevices)
+                .add("ecmpPaths", ecmpPaths.size())
+                .add("forwardSegments", forwardSegments)
+                .add("merged", merged)
+                .toString();
     }
 
 
 
     public static Builder builder() { return new Builder(); }
 
+    /**
+     * Returns a builder pre-filled with all fields of the tunnel, id included.
+     *
+     * @param tunnel tunnel to copy
+     * @return builder
+     */
+    public static Builder builder(SdwanTunnel tunnel) {
+        return new Builder()
+                .tunnelId(tunnel.tunnelId)
+                .tenant(tunnel.tenantName)
+                .src(tunnel.srcSite)
+                .dst(tunnel.dstSite)
+                .networkProtocol(tunnel.networkProtocol)
+                .siteVlan(tunnel.getSiteVlan())
+                .bandwidth(tunnel.bandwidth)
+                .forwardDevices(new ArrayList<>(tunnel.forwardDevices))
+                .backwardDevices(new ArrayList<>(tunnel.backwardDevices))
+                .forwardPath(tunnel.forwardPath)
+                .backwardPath(tunnel.backwardPath)
+                .forwardLabels(tunnel.forwardLabels)
+                .backwardLabels(tunnel.backwardLabels)
+                .backup(tunnel.backupPath, tunnel.backupForwardDevices, tunnel.backupBackwardDevices,
+                        tunnel.backupForwardLabels, tunnel.backupBackwardLabels)
+                .ecmp(tunnel.ecmpPaths, tunnel.forwardNodeLabels, tunnel.backwardNodeLabels)
+                .segments(tunnel.forwardSegments, tunnel.backwardSegments)
+                .merged(tunnel.merged);
+    }
+
     public static final class Builder {
 
+        private long tunnelId;
         private String tenantName;
         private ConnectPoint srcSite;
         private ConnectPoint dstSite;
         private int networkProtocols;
+        private VlanId siteVlan;
         private List<DeviceId> forwardDevices;
         private List<DeviceId> backwardDevices;
         private Path forwardPath;
         private Path backwardPath;
-        private int forwardLabel; // MPLS now
-        private int backwardLabel; // MPLS now
+        private List<Integer> forwardLabels; // MPLS now
+        private List<Integer> backwardLabels; // MPLS now
+        private Bandwidth bandwidth;
+        private Path backupPath;
+        private List<DeviceId> backupForwardDevices;
+        private List<DeviceId> backupBackwardDevices;
+        private List<Integer> backupForwardLabels;
+        private List<Integer> backupBackwardLabels;
+        private List<Path> ecmpPaths;
+        private Map<DeviceId, Integer> forwardNodeLabels;
+        private Map<DeviceId, Integer> backwardNodeLabels;
+        private List<Integer> forwardSegments;
+        private List<Integer> backwardSegments;
+        private boolean merged;
 
 
         Builder(){
-            forwardLabel = INVALID_LABEL;
-            backwardLabel = INVALID_LABEL;
+            tunnelId = INVALID_TUNNEL_ID;
             networkProtocols = INVALID_NETWORK_PROTOCOL;
         }
 
+        public Builder tunnelId(long id) {
+            this.tunnelId = id;
+            return this;
+        }
+
         public Builder tenant(String name) {
             this.tenantName = name;
             return this;
@@ -192,15 +496,39 @@ public class SdwanTunnel {
             return this;
         }
 
-        //MPLS now
+        //optional, untagged if not set
+        public Builder siteVlan(VlanId vlan) {
+            this.siteVlan = vlan;
+            return this;
+        }
+
+        //optional, best effort if not set
+        public Builder bandwidth(Bandwidth bandwidth) {
+            this.bandwidth = bandwidth;
+            return this;
+        }
+
+        //MPLS now, same label on every hop
         public Builder forwardLabel(int label) {
-            this.forwardLabel = label;
+            this.forwardLabels = Collections.singletonList(label);
             return this;
         }
 
-        //MPLS now
+        //MPLS now, same label on every hop
         public Builder backwardLabel(int label) {
-            this.backwardLabel = label;
+            this.backwardLabels = Collections.singletonList(label);
+            return this;
+        }
+
+        //MPLS now, one label per hop
+        public Builder forwardLabels(List<Integer> labels) {
+            this.forwardLabels = labels;
+            return this;
+        }
+
+        //MPLS now, one label per hop
+        public Builder backwardLabels(List<Integer> labels) {
+            this.backwardLabels = labels;
             return this;
         }
 
@@ -228,10 +556,78 @@ public class SdwanTunnel {
             return this;
         }
 
+        /**
+         * Sets backup route and its labels, optional.
+         *
+         * @param path backup path in forward direction, or null to leave tunnel unprotected
+         * @param forwardDevices devices of backup path in forward direction
+         * @param backwardDevices devices of backup path in backward direction
+         * @param forwardLabels labels of each forward hop of backup path
+         * @param backwardLabels labels of each backward hop of backup path
+         * @return this builder
+         */
+        public Builder backup(Path path, List<DeviceId> forwardDevices, List<DeviceId> backwardDevices,
+                              List<Integer> forwardLabels, List<Integer> backwardLabels) {
+            this.backupPath = path;
+            this.backupForwardDevices = forwardDevices;
+            this.backupBackwardDevices = backwardDevices;
+            this.backupForwardLabels = forwardLabels;
+            this.backupBackwardLabels = backwardLabels;
+            return this;
+        }
+
+        /**
+         * Sets equal-cost routes and label of each device, optional.
+         *
+         * @param paths equal-cost routes in forward direction, first one being the forward path,
+         *              or null to use forward path only
+         * @param forwardLabels label of each device receiving forward traffic
+         * @param backwardLabels label of each device receiving backward traffic
+         * @return this builder
+         */
+        public Builder ecmp(List<Path> paths, Map<DeviceId, Integer> forwardLabels,
+                            Map<DeviceId, Integer> backwardLabels) {
+            this.ecmpPaths = paths;
+            this.forwardNodeLabels = forwardLabels;
+            this.backwardNodeLabels = backwardLabels;
+            return this;
+        }
+
+        /**
+         * Sets node SIDs pushed by ingress of each direction, optional.
+         *
+         * @param forwardSegments node SIDs of forward direction, top first, or null if not segment routed
+         * @param backwardSegments node SIDs of backward direction, top first
+         * @return this builder
+         */
+        public Builder segments(List<Integer> forwardSegments, List<Integer> backwardSegments) {
+            this.forwardSegments = forwardSegments;
+            this.backwardSegments = backwardSegments;
+            return this;
+        }
+
+        //optional, forward direction is merged into the tree of dstSite
+        public Builder merged(boolean merged) {
+            this.merged = merged;
+            return this;
+        }
+
         public SdwanTunnel build() {
-            return new SdwanTunnel(tenantName, srcSite, dstSite,
+            SdwanTunnel tunnel = new SdwanTunnel(tunnelId, tenantName, srcSite, dstSite,
                     forwardDevices, backwardDevices, forwardPath, backwardPath,
-                    forwardLabel, backwardLabel, networkProtocols);
+                    forwardLabels, backwardLabels, networkProtocols);
+            tunnel.setBackup(backupPath, backupForwardDevices, backupBackwardDevices,
+                    backupForwardLabels, backupBackwardLabels);
+            tunnel.setEcmp(ecmpPaths, forwardNodeLabels, backwardNodeLabels);
+            tunnel.setSegments(forwardSegments, backwardSegments);
+            tunnel.merged = merged;
+            if(bandwidth != null) {
+                tunnel.bandwidth = bandwidth;
+            }
+            if(siteVlan != null) {
+                tunnel.siteVlan = siteVlan;
+            }
+            return tunnel;
         }
     }
 }
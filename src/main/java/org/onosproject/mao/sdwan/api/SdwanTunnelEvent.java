@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+import org.onosproject.event.AbstractEvent;
+
+/**
+ * Change of a tunnel record made by another instance of the cluster.
+ */
+public class SdwanTunnelEvent extends AbstractEvent<SdwanTunnelEvent.Type, SdwanTunnel> {
+
+    public enum Type {
+        TUNNEL_ADDED,
+        TUNNEL_UPDATED,
+        TUNNEL_REMOVED
+    }
+
+    private final SdwanTunnel prevSubject;
+
+
+    public SdwanTunnelEvent(Type type, SdwanTunnel tunnel) {
+        this(type, tunnel, null);
+    }
+
+    /**
+     * Creates an event of a tunnel which replaced an older record of it.
+     *
+     * @param type type of event
+     * @param tunnel tunnel as stored now, or as last stored if removed
+     * @param prevSubject tunnel as stored before, null if none
+     */
+    public SdwanTunnelEvent(Type type, SdwanTunnel tunnel, SdwanTunnel prevSubject) {
+        super(type, tunnel);
+        this.prevSubject = prevSubject;
+    }
+
+    public SdwanTunnel prevSubject() {
+        return prevSubject;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.LinkKey;
+import org.onosproject.store.Store;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Store of VPN tunnels, indexed by tenant, device, link, label and sites.
+ *
+ * The delegate is only told about changes made by other instances sharing the store.
+ */
+public interface SdwanTunnelStore extends Store<SdwanTunnelEvent, SdwanTunnelStoreDelegate> {
+
+    /**
+     * Returns a tunnel id no instance sharing the store got before.
+     *
+     * @return tunnel id, from 1 on
+     */
+    long nextTunnelId();
+
+    /**
+     * Makes sure no tunnel id up to the given one is handed out, e.g. ids of tunnels restored from a snapshot.
+     *
+     * @param tunnelId highest tunnel id in use
+     */
+    void reserveTunnelIds(long tunnelId);
+
+    /**
+     * Adds a tunnel, or replaces the tunnel with same id and re-indexes it.
+     *
+     * @param tunnel tunnel with a valid tunnel id
+     */
+    void addTunnel(SdwanTunnel tunnel);
+
+    /**
+     * Removes a tunnel.
+     *
+     * @param tunnelId id of tunnel
+     * @return removed tunnel, or null if not found
+     */
+    SdwanTunnel removeTunnel(long tunnelId);
+
+    SdwanTunnel getTunnel(long tunnelId);
+
+    Collection<SdwanTunnel> getTunnels();
+
+    int getTunnelCount();
+
+    Set<String> getTenants();
+
+    Collection<SdwanTunnel> getTenantTunnels(String tenantName);
+
+    /**
+     * Returns tunnels passing through the device, in either direction.
+     *
+     * @param deviceId device
+     * @return tunnels using the device
+     */
+    Collection<SdwanTunnel> getDeviceTunnels(DeviceId deviceId);
+
+    /**
+     * Returns tunnels carried by the unidirectional link.
+     *
+     * @param linkKey key of link
+     * @return tunnels using the link
+     */
+    Collection<SdwanTunnel> getLinkTunnels(LinkKey linkKey);
+
+    /**
+     * Returns tunnel owning the label in label space of the device.
+     *
+     * Labels shared by tunnels, like node SIDs and labels of merge trees, are owned by no tunnel.
+     *
+     * @param deviceId device receiving the label
+     * @param label label
+     * @return tunnel, or null if label is not used by any tunnel
+     */
+    SdwanTunnel getLabelTunnel(DeviceId deviceId, int label);
+
+    Collection<SdwanTunnel> getSiteTunnels(ConnectPoint srcSite, ConnectPoint dstSite);
+
+    void clear();
+}
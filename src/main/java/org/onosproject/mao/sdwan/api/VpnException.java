@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+import com.google.common.collect.ImmutableList;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.List;
+
+/**
+ * Signals that a VPN tunnel can't be created or installed.
+ */
+public class VpnException extends RuntimeException {
+
+    private final VpnResult.Status status;
+    private final List<FlowRule> rejectedRules;
+
+
+    public VpnException(VpnResult.Status status) {
+        this(status, ImmutableList.of());
+    }
+
+    /**
+     * Creates exception of tunnel whose flow rules are rejected by devices.
+     *
+     * @param status reason of failure
+     * @param rejectedRules flow rules rejected by devices
+     */
+    public VpnException(VpnResult.Status status, List<FlowRule> rejectedRules) {
+        super(rejectedRules.isEmpty() ? status.toString()
+                : status + ", " + rejectedRules.size() + " flow rules rejected");
+        this.status = status;
+        this.rejectedRules = ImmutableList.copyOf(rejectedRules);
+    }
+
+    public VpnResult.Status getStatus() {
+        return status;
+    }
+
+    public List<FlowRule> getRejectedRules() {
+        return rejectedRules;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+import org.onlab.util.Bandwidth;
+
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Request of one VPN tunnel, as taken by SdwanService.createVPN.
+ */
+public final class VpnRequest {
+
+    private final String tenantName;
+    private final String srcSite;
+    private final String dstSite;
+    private final int ethertypeCode;
+    private final Bandwidth bandwidth;
+
+
+    /**
+     * Creates request of one VPN tunnel.
+     *
+     * @param tenantName name of tenant
+     * @param srcSite dpid and port no. of source device, e.g. of:0000000000000001/1
+     * @param dstSite dpid and port no. of destination device, e.g. of:0000000000000001/1
+     * @param ethertypeCode ethertype of network protocol carried, e.g. IPv4:0x0800
+     */
+    public VpnRequest(String tenantName, String srcSite, String dstSite, int ethertypeCode) {
+        this(tenantName, srcSite, dstSite, ethertypeCode, Bandwidth.bps(0));
+    }
+
+    /**
+     * Creates request of one VPN tunnel with a bandwidth demand.
+     *
+     * @param tenantName name of tenant
+     * @param srcSite dpid and port no. of source device, e.g. of:0000000000000001/1
+     * @param dstSite dpid and port no. of destination device, e.g. of:0000000000000001/1
+     * @param ethertypeCode ethertype of network protocol carried, e.g. IPv4:0x0800
+     * @param bandwidth bandwidth to reserve in each direction, zero for best effort
+     */
+    public VpnRequest(String tenantName, String srcSite, String dstSite, int ethertypeCode, Bandwidth bandwidth) {
+        this.tenantName = checkNotNull(tenantName, "Tenant name must be set");
+        this.srcSite = checkNotNull(srcSite, "Src site must be set");
+        this.dstSite = checkNotNull(dstSite, "Dst site must be set");
+        this.ethertypeCode = ethertypeCode;
+        this.bandwidth = checkNotNull(bandwidth, "Bandwidth must be set");
+    }
+
+    public String getTenantName() {
+        return tenantName;
+    }
+
+    public String getSrcSite() {
+        return srcSite;
+    }
+
+    public String getDstSite() {
+        return dstSite;
+    }
+
+    public int getEthertypeCode() {
+        return ethertypeCode;
+    }
+
+    public Bandwidth getBandwidth() {
+        return bandwidth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VpnRequest)) {
+            return false;
+        }
+        VpnRequest that = (VpnRequest) o;
+        return ethertypeCode == that.ethertypeCode
+                && tenantName.equals(that.tenantName)
+                && srcSite.equals(that.srcSite)
+                && dstSite.equals(that.dstSite)
+                && bandwidth.bps() == that.bandwidth.bps();
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tenantName, srcSite, dstSite, ethertypeCode, bandwidth.bps());
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("tenant", tenantName)
+                .add("src", srcSite)
+                .add("dst", dstSite)
+                .add("ethertype", String.format("0x%04x", ethertypeCode))
+                .add("bandwidth", bandwidth)
+                .toString();
+    }
+}
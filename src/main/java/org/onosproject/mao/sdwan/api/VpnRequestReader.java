@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.onlab.packet.EthType;
+import org.onlab.util.Bandwidth;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads VPN requests from a file or stream one row at a time, so input of any size is read in constant memory.
+ *
+ * A row is tenant, source site, destination site, protocol and optionally
+ * bandwidth to reserve in Mbps. CSV has one row per line, '#' starts a
+ * comment and a first field "tenant" marks a header. JSON is an array of
+ * objects, or objects one after another as in NDJSON, with fields tenant,
+ * src, dst, protocol and bandwidth.
+ */
+public abstract class VpnRequestReader implements Closeable {
+
+    private static final String ARP = "arp";
+    private static final String IPV4 = "ipv4";
+    private static final String IPV6 = "ipv6";
+    private static final String MPLS = "mpls";
+
+    private static final String HEADER = "tenant";
+    private static final String COMMENT = "#";
+    private static final int MAX_ETHERTYPE = 0xFFFF;
+
+
+    /**
+     * Returns a reader of CSV rows.
+     *
+     * @param reader source of rows
+     * @return request reader
+     */
+    public static VpnRequestReader csv(Reader reader) {
+        return new CsvReader(reader);
+    }
+
+    /**
+     * Returns a reader of JSON objects.
+     *
+     * @param reader source of objects
+     * @return request reader
+     * @throws IOException if reader can't be opened
+     */
+    public static VpnRequestReader json(Reader reader) throws IOException {
+        return new JsonReader(reader);
+    }
+
+    /**
+     * Returns the next request.
+     *
+     * An invalid row throws IllegalArgumentException naming its line, the
+     * next call goes on with the row after it.
+     *
+     * @return request, or null at end of input
+     * @throws IOException if input can't be read any further
+     */
+    public abstract VpnRequest next() throws IOException;
+
+    /**
+     * Returns ethertype of a protocol name or number.
+     *
+     * @param protocol arp, ipv4, ipv6, mpls, or a number, e.g. 2048 or 0x0800
+     * @return ethertype, 0 to 0xFFFF
+     * @throws IllegalArgumentException if protocol is unknown
+     */
+    public static int parseProtocol(String protocol) {
+        if (protocol == null) {
+            throw new IllegalArgumentException("protocol must be set");
+        }
+        switch (protocol.trim().toLowerCase()) {
+            case ARP:
+                return EthType.EtherType.ARP.ethType().toShort() & MAX_ETHERTYPE;
+            case IPV4:
+                return EthType.EtherType.IPV4.ethType().toShort() & MAX_ETHERTYPE;
+            case IPV6:
+                return EthType.EtherType.IPV6.ethType().toShort() & MAX_ETHERTYPE;
+            case MPLS:
+                return EthType.EtherType.MPLS_UNICAST.ethType().toShort() & MAX_ETHERTYPE;
+            default:
+                int etherType;
+                try {
+                    etherType = Integer.decode(protocol.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("unknown protocol " + protocol);
+                }
+                if (etherType < 0 || etherType > MAX_ETHERTYPE) {
+                    throw new IllegalArgumentException("ethertype out of range " + protocol);
+                }
+                return etherType;
+        }
+    }
+
+    private static VpnRequest request(String tenant, String src, String dst, String protocol, String bandwidth) {
+        if (tenant == null || tenant.trim().isEmpty()) {
+            throw new IllegalArgumentException("tenant must be set");
+        }
+        int etherType = parseProtocol(protocol);
+
+        double mbps = 0;
+        if (bandwidth != null && !bandwidth.trim().isEmpty()) {
+            try {
+                mbps = Double.parseDouble(bandwidth.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid bandwidth " + bandwidth);
+            }
+            if (mbps < 0 || Double.isNaN(mbps) || Double.isInfinite(mbps)) {
+                throw new IllegalArgumentException("invalid bandwidth " + bandwidth);
+            }
+        }
+        return new VpnRequest(tenant.trim(), site(src), site(dst), etherType, Bandwidth.mbps(mbps));
+    }
+
+    // dpid and port no., e.g. of:0000000000000001/1
+    private static String site(String site) {
+        if (site == null) {
+            throw new IllegalArgumentException("site must be set");
+        }
+        String[] dpidAndPort = site.trim().split("/");
+        if (dpidAndPort.length != 2 || dpidAndPort[0].isEmpty()) {
+            throw new IllegalArgumentException("invalid site " + site);
+        }
+        try {
+            Long.parseLong(dpidAndPort[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid port of site " + site);
+        }
+        return site.trim();
+    }
+
+    private static IllegalArgumentException invalidRow(long line, IllegalArgumentException cause) {
+        return new IllegalArgumentException("line " + line + ": " + cause.getMessage(), cause);
+    }
+
+
+
+    /**
+     * Rows of comma separated fields, one per line.
+     */
+    private static final class CsvReader extends VpnRequestReader {
+
+        private final BufferedReader reader;
+        private long lineNumber;
+
+
+        private CsvReader(Reader reader) {
+            this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        }
+
+        @Override
+        public VpnRequest next() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String row = line.trim();
+                if (row.isEmpty() || row.startsWith(COMMENT)) {
+                    continue;
+                }
+
+                String[] fields = row.split(",", -1);
+                if (fields[0].trim().equalsIgnoreCase(HEADER)) {
+                    continue;
+                }
+                try {
+                    if (fields.length < 4 || fields.length > 5) {
+                        throw new IllegalArgumentException("expected 4 or 5 fields, got " + fields.length);
+                    }
+                    return request(fields[0], fields[1], fields[2], fields[3], fields.length == 5 ? fields[4] : null);
+                } catch (IllegalArgumentException e) {
+                    throw invalidRow(lineNumber, e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * JSON objects, streamed one at a time out of an array or a sequence of objects.
+     */
+    private static final class JsonReader extends VpnRequestReader {
+
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+
+        private final JsonParser parser;
+        private boolean started;
+        private boolean inArray;
+
+
+        private JsonReader(Reader reader) throws IOException {
+            this.parser = MAPPER.getFactory().createParser(reader);
+        }
+
+        @Override
+        public VpnRequest next() throws IOException {
+            JsonToken token = parser.nextToken();
+            if (!started) {
+                started = true;
+                if (token == JsonToken.START_ARRAY) {
+                    inArray = true;
+                    token = parser.nextToken();
+                }
+            }
+            if (token == null || (inArray && token == JsonToken.END_ARRAY)) {
+                return null;
+            }
+
+            long line = parser.getTokenLocation().getLineNr();
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                throw invalidRow(line, new IllegalArgumentException("expected an object"));
+            }
+
+            JsonNode row = MAPPER.readTree(parser);
+            try {
+                return request(text(row, "tenant"), text(row, "src"), text(row, "dst"),
+                               text(row, "protocol"), text(row, "bandwidth"));
+            } catch (IllegalArgumentException e) {
+                throw invalidRow(line, e);
+            }
+        }
+
+        private static String text(JsonNode row, String field) {
+            JsonNode value = row.get(field);
+            return value == null || value.isNull() ? null : value.asText();
+        }
+
+        @Override
+        public void close() throws IOException {
+            parser.close();
+        }
+    }
+}
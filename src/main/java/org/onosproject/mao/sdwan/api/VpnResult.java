@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Outcome of one VPN request.
+ */
+public final class VpnResult {
+
+    public enum Status {
+        /**
+         * Tunnel is created and its flow rules are submitted.
+         */
+        OK,
+
+        /**
+         * Source or destination site doesn't match the scheme, e.g. of:0000000000000001/1.
+         */
+        INVALID_SITE,
+
+        /**
+         * No route between source and destination site.
+         */
+        NO_PATH,
+
+        /**
+         * Label space of a device along the route is exhausted.
+         */
+        LABEL_EXHAUSTED,
+
+        /**
+         * No route has enough residual bandwidth for the demand.
+         */
+        INSUFFICIENT_BANDWIDTH,
+
+        /**
+         * Every VLAN of the source or destination site is taken by tunnels with the same ethertype.
+         */
+        SITE_IN_USE,
+
+        /**
+         * Flow rules of tunnel can't be compiled or are rejected by devices.
+         */
+        INSTALL_FAILED
+    }
+
+    private final VpnRequest request;
+    private final Status status;
+    private final SdwanTunnel tunnel;
+
+
+    private VpnResult(VpnRequest request, Status status, SdwanTunnel tunnel) {
+        this.request = checkNotNull(request);
+        this.status = checkNotNull(status);
+        this.tunnel = tunnel;
+    }
+
+    public static VpnResult success(VpnRequest request, SdwanTunnel tunnel) {
+        return new VpnResult(request, Status.OK, checkNotNull(tunnel));
+    }
+
+    public static VpnResult failure(VpnRequest request, Status status) {
+        return new VpnResult(request, status, null);
+    }
+
+    public boolean isSuccess() {
+        return status == Status.OK;
+    }
+
+    public VpnRequest getRequest() {
+        return request;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns created tunnel.
+     *
+     * @return tunnel, or null if request failed
+     */
+    public SdwanTunnel getTunnel() {
+        return tunnel;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("request", request)
+                .add("status", status)
+                .toString();
+    }
+}
@@ -0,0 +1,79 @@
+package org.onosproject.mao.sdwan.cli;
+
+import org.apache.karaf.shell.commands.Argument;
+import org.apache.karaf.shell.commands.Command;
+import org.apache.karaf.shell.commands.Option;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.VpnRequestReader;
+import org.onosproject.mao.sdwan.api.VpnResult;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates MPLS/SR VPN tunnels among sites of a tenant, full mesh or hub and spoke.
+ */
+@Command(scope = "onos",
+        name = "sdwan-create-mesh",
+        description = "Create MPLS/SR VPN tunnels among sites of a tenant",
+        detailedDescription = "Create a tunnel between every pair of sites; " +
+                "with --hub, between the hub site and each site only")
+public class SdwanCreateMesh extends AbstractShellCommand {
+
+    @Argument(index = 0, name = "TenantName",
+            description = "The name of tenant",
+            required = true, multiValued = false)
+    String tenantName = null;
+
+    @Argument(index = 1, name = "Network-Protocol-type",
+            description = "The type of Network protocol, e.g. ipv4 or 0x0800",
+            required = true, multiValued = false)
+    String networkProtocol = null;
+
+    @Argument(index = 2, name = "Sites",
+            description = "The sites of tenant, e.g. of:0000000000000001/1",
+            required = true, multiValued = true)
+    String[] sites = null;
+
+    @Option(name = "--hub",
+            description = "The hub site, tunnels go between it and each site",
+            required = false, multiValued = false)
+    String hubSite = null;
+
+    @Override
+    protected void execute() {
+
+        SdwanService sdwanService = getService(SdwanService.class);
+
+        int etherType;
+        try {
+            etherType = VpnRequestReader.parseProtocol(networkProtocol);
+        } catch (IllegalArgumentException e) {
+            print("Invalid network protocol: %s", e.getMessage());
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<VpnResult> results = hubSite == null ?
+                sdwanService.createTenantMesh(tenantName, Arrays.asList(sites), etherType) :
+                sdwanService.createTenantHubAndSpoke(tenantName, hubSite, Arrays.asList(sites), etherType);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        int created = 0;
+        for (VpnResult result : results) {
+            if (result.isSuccess()) {
+                created++;
+                // both sites tag traffic of the pair with its VLAN
+                print("%s -> %s: tunnel %s, vlan %s", result.getRequest().getSrcSite(),
+                      result.getRequest().getDstSite(), result.getTunnel().getTunnelId(),
+                      result.getTunnel().getSiteVlan());
+            } else {
+                print("%s -> %s: %s", result.getRequest().getSrcSite(),
+                      result.getRequest().getDstSite(), result.getStatus());
+            }
+        }
+        print("Created %s of %s tunnels of tenant %s in %sms", created, results.size(), tenantName, millis);
+    }
+}
@@ -2,11 +2,11 @@ package org.onosproject.mao.sdwan.cli;
 
 import org.apache.karaf.shell.commands.Argument;
 import org.apache.karaf.shell.commands.Command;
-import org.onlab.packet.EthType;
+import org.apache.karaf.shell.commands.Option;
+import org.onlab.util.Bandwidth;
 import org.onosproject.cli.AbstractShellCommand;
 import org.onosproject.mao.sdwan.api.SdwanService;
-
-import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_NETWORK_PROTOCOL;
+import org.onosproject.mao.sdwan.api.VpnRequestReader;
 
 /**
  * Created by mao on 17-4-17.
@@ -17,12 +17,6 @@ import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_NETWORK_PROTOCOL
         detailedDescription = "Create MPLS/SR VPN tunnel")
 public class SdwanCreateVPN extends AbstractShellCommand {
 
-    private static final String ARP = "arp";
-    private static final String IPV4 = "ipv4";
-    private static final String IPV6 = "ipv6";
-    private static final String MPLS = "mpls";
-
-
     @Argument(index = 0, name = "TenantName",
             description = "The name of tenant",
             required = true, multiValued = false)
@@ -49,32 +43,27 @@ public class SdwanCreateVPN extends AbstractShellCommand {
             required = true, multiValued = false)
     String networkProtocol = null;
 
+    @Option(name = "-b", aliases = "--bandwidth",
+            description = "Bandwidth to reserve in each direction, in Mbps",
+            required = false, multiValued = false)
+    double bandwidth = 0;
+
     @Override
     protected void execute() {
 
         SdwanService sdwanService = getService(SdwanService.class);
 
         int etherType;
-        switch (networkProtocol.trim().toLowerCase()) {
-            case ARP:
-                etherType = EthType.EtherType.ARP.ethType().toShort();
-                break;
-            case IPV4:
-                etherType = EthType.EtherType.IPV4.ethType().toShort();
-                break;
-            case IPV6:
-                etherType = EthType.EtherType.IPV6.ethType().toShort();
-                break;
-            case MPLS:
-                etherType = EthType.EtherType.MPLS_UNICAST.ethType().toShort();
-                break;
-            default:
-                etherType = Integer.valueOf(networkProtocol);
-                print("Novel protocol, etherType: [{}], tenant: {}", etherType, tenantName);
+        try {
+            etherType = VpnRequestReader.parseProtocol(networkProtocol);
+        } catch (IllegalArgumentException e) {
+            print("Invalid network protocol: %s", e.getMessage());
+            return;
         }
 
-        boolean result = sdwanService.createVPN(tenantName, srcSite, dstSite, etherType);
+        boolean result = sdwanService.createVPN(tenantName, srcSite, dstSite, etherType,
+                Bandwidth.mbps(bandwidth));
 
-        print("Create VPN {}! you can check logs", result ? "OK" : "Fail");
+        print("Create VPN %s! you can check logs", result ? "OK" : "Fail");
     }
 }
@@ -0,0 +1,52 @@
+package org.onosproject.mao.sdwan.cli;
+
+import org.apache.karaf.shell.commands.Argument;
+import org.apache.karaf.shell.commands.Command;
+import org.apache.karaf.shell.commands.Option;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.SdwanService;
+
+/**
+ * Deletes MPLS/SR VPN tunnels, by id or by tenant.
+ */
+@Command(scope = "onos",
+        name = "sdwan-delete-vpn",
+        description = "Delete MPLS/SR VPN tunnels",
+        detailedDescription = "Delete tunnels by id; with -t, delete all tunnels of the named tenants")
+public class SdwanDeleteVPN extends AbstractShellCommand {
+
+    @Argument(index = 0, name = "TunnelIds",
+            description = "Ids of tunnels, or names of tenants with -t",
+            required = true, multiValued = true)
+    String[] targets = null;
+
+    @Option(name = "-t", aliases = "--tenant",
+            description = "Arguments are names of tenants",
+            required = false, multiValued = false)
+    boolean tenant = false;
+
+    @Override
+    protected void execute() {
+
+        SdwanService sdwanService = getService(SdwanService.class);
+
+        int deleted = 0;
+        for (String target : targets) {
+            if (tenant) {
+                deleted += sdwanService.deleteTenant(target);
+                continue;
+            }
+            try {
+                if (sdwanService.deleteVPN(Long.parseLong(target.trim()))) {
+                    deleted++;
+                } else {
+                    print("No tunnel %s", target);
+                }
+            } catch (NumberFormatException e) {
+                print("Invalid tunnel id %s", target);
+            }
+        }
+
+        print("Delete %s tunnels! you can check logs", deleted);
+    }
+}
@@ -0,0 +1,147 @@
+package org.onosproject.mao.sdwan.cli;
+
+import org.apache.karaf.shell.commands.Argument;
+import org.apache.karaf.shell.commands.Command;
+import org.apache.karaf.shell.commands.Option;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.VpnRequestReader;
+import org.onosproject.mao.sdwan.api.VpnRequest;
+import org.onosproject.mao.sdwan.api.VpnResult;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates VPN tunnels of a CSV or JSON file, streamed in batches.
+ * Each batch is installed on devices before the next one is read.
+ *
+ * e.g. CSV row: tenant1,of:0000000000000001/1,of:0000000000000002/1,ipv4,100
+ * e.g. JSON: [{"tenant":"tenant1","src":"of:0000000000000001/1","dst":"of:0000000000000002/1",
+ *             "protocol":"0x0800","bandwidth":100}]
+ */
+@Command(scope = "onos",
+        name = "sdwan-import",
+        description = "Create MPLS/SR VPN tunnels of a CSV or JSON file",
+        detailedDescription = "Create MPLS/SR VPN tunnels of a CSV or JSON file. " +
+                "Row: tenant,source site,destination site,protocol[,bandwidth in Mbps]")
+public class SdwanImport extends AbstractShellCommand {
+
+    private static final String CSV = "csv";
+    private static final String JSON = "json";
+    private static final int MAX_ERRORS_SHOWN = 10;
+
+
+    @Argument(index = 0, name = "File",
+            description = "The file of VPN requests",
+            required = true, multiValued = false)
+    String file = null;
+
+    @Option(name = "-f", aliases = "--format",
+            description = "Format of file, csv or json, by default by file extension",
+            required = false, multiValued = false)
+    String format = null;
+
+    @Option(name = "-s", aliases = "--batch-size",
+            description = "Number of requests created together",
+            required = false, multiValued = false)
+    int batchSize = 1000;
+
+    private int invalid;
+    private int errorsShown;
+
+    @Override
+    protected void execute() {
+
+        if (batchSize <= 0) {
+            print("Invalid batch size %s", batchSize);
+            return;
+        }
+
+        Path path = Paths.get(file);
+        String fileFormat = format != null ? format.trim().toLowerCase() :
+                (path.toString().toLowerCase().endsWith("." + JSON) ? JSON : CSV);
+        if (!fileFormat.equals(CSV) && !fileFormat.equals(JSON)) {
+            print("Unknown format %s, expect csv or json", format);
+            return;
+        }
+
+        SdwanService sdwanService = getService(SdwanService.class);
+
+        int created = 0;
+        Map<VpnResult.Status, Integer> failures = new EnumMap<>(VpnResult.Status.class);
+        long start = System.nanoTime();
+
+        try (Reader input = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+             VpnRequestReader reader = fileFormat.equals(JSON) ?
+                     VpnRequestReader.json(input) : VpnRequestReader.csv(input)) {
+
+            List<VpnRequest> batch = new ArrayList<>(batchSize);
+            while (true) {
+                VpnRequest request;
+                try {
+                    request = reader.next();
+                } catch (IllegalArgumentException e) {
+                    // an invalid row is counted and skipped
+                    invalid++;
+                    showError("%s", e.getMessage());
+                    continue;
+                }
+                if (request != null) {
+                    batch.add(request);
+                }
+
+                if (batch.size() == batchSize || (request == null && !batch.isEmpty())) {
+                    for (VpnResult result : sdwanService.createVPNsAsync(batch).get()) {
+                        if (result.isSuccess()) {
+                            created++;
+                        } else {
+                            failures.merge(result.getStatus(), 1, Integer::sum);
+                            showError("%s -> %s: %s", result.getRequest().getSrcSite(),
+                                      result.getRequest().getDstSite(), result.getStatus());
+                        }
+                    }
+                    batch.clear();
+                    print("Installed %s tunnels so far...", created);
+                }
+                if (request == null) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            print("Read %s failed: %s", file, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            print("Interrupted while tunnels are installed");
+        } catch (ExecutionException e) {
+            print("Install tunnels failed: %s", e.getCause().getMessage());
+        }
+
+        double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        print("Created %s tunnels in %.1fs, %.1f tunnels/s", created, seconds,
+              seconds > 0 ? created / seconds : 0.0);
+        failures.forEach((status, count) -> print("Failed %s: %s", status, count));
+        if (invalid > 0) {
+            print("Invalid rows: %s", invalid);
+        }
+    }
+
+    private void showError(String format, Object... args) {
+        if (errorsShown < MAX_ERRORS_SHOWN) {
+            print(format, args);
+        } else if (errorsShown == MAX_ERRORS_SHOWN) {
+            print("More errors are not shown");
+        }
+        errorsShown++;
+    }
+}
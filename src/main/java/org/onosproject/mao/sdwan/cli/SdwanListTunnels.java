@@ -0,0 +1,56 @@
+package org.onosproject.mao.sdwan.cli;
+
+import org.apache.karaf.shell.commands.Argument;
+import org.apache.karaf.shell.commands.Command;
+import org.apache.karaf.shell.commands.Option;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+
+import java.util.Collection;
+
+import static org.onosproject.net.DeviceId.deviceId;
+
+/**
+ * Lists MPLS/SR VPN tunnels.
+ */
+@Command(scope = "onos",
+        name = "sdwan-tunnels",
+        description = "List MPLS/SR VPN tunnels",
+        detailedDescription = "List MPLS/SR VPN tunnels, of all tenants, of one tenant, or through one device")
+public class SdwanListTunnels extends AbstractShellCommand {
+
+    private static final String FORMAT = "id=%s, tenant=%s, src=%s, dst=%s, ethertype=0x%04x, vlan=%s, " +
+            "devices=%s, forwardLabels=%s, backwardLabels=%s";
+
+    @Argument(index = 0, name = "TenantName",
+            description = "The name of tenant",
+            required = false, multiValued = false)
+    String tenantName = null;
+
+    @Option(name = "-d", aliases = "--device",
+            description = "Only tunnels through the device, e.g. of:0000000000000001",
+            required = false, multiValued = false)
+    String device = null;
+
+    @Override
+    protected void execute() {
+
+        SdwanService sdwanService = getService(SdwanService.class);
+
+        Collection<SdwanTunnel> tunnels;
+        if (device != null) {
+            tunnels = sdwanService.getDeviceTunnels(deviceId(device));
+        } else if (tenantName != null) {
+            tunnels = sdwanService.getTenantTunnels(tenantName);
+        } else {
+            tunnels = sdwanService.getTunnels();
+        }
+
+        tunnels.stream()
+                .filter(tunnel -> tenantName == null || tenantName.equals(tunnel.getTenantName()))
+                .forEach(tunnel -> print(FORMAT, tunnel.getTunnelId(), tunnel.getTenantName(),
+                        tunnel.getSrcSite(), tunnel.getDstSite(), tunnel.getNetworkProtocol(), tunnel.getSiteVlan(),
+                        tunnel.getForwardDevices(), tunnel.getForwardLabels(), tunnel.getBackwardLabels()));
+    }
+}
@@ -0,0 +1,59 @@
+package org.onosproject.mao.sdwan.cli;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.apache.karaf.shell.commands.Command;
+import org.onlab.metrics.MetricsService;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.SdwanService;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows provisioning metrics: time of each stage, failures by reason, label and tunnel state.
+ */
+@Command(scope = "onos",
+        name = "sdwan-metrics",
+        description = "Show provisioning metrics of MPLS/SR VPN tunnels")
+public class SdwanMetrics extends AbstractShellCommand {
+
+    private static final double NANOS_PER_MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Override
+    protected void execute() {
+
+        MetricsService metricsService = getService(MetricsService.class);
+
+        String prefix = SdwanService.METRICS_COMPONENT + ".";
+        MetricFilter filter = (name, metric) -> name.startsWith(prefix);
+
+        Map<String, Timer> timers = new TreeMap<>(metricsService.getTimers(filter));
+        timers.forEach((name, timer) -> {
+            Snapshot snapshot = timer.getSnapshot();
+            print("%s count=%s, mean=%.3fms, p50=%.3fms, p99=%.3fms, max=%.3fms",
+                    name, timer.getCount(), snapshot.getMean() / NANOS_PER_MS,
+                    snapshot.getMedian() / NANOS_PER_MS, snapshot.get99thPercentile() / NANOS_PER_MS,
+                    snapshot.getMax() / NANOS_PER_MS);
+        });
+
+        Map<String, Histogram> histograms = new TreeMap<>(metricsService.getHistograms(filter));
+        histograms.forEach((name, histogram) -> {
+            Snapshot snapshot = histogram.getSnapshot();
+            print("%s count=%s, mean=%.1f, p50=%.1f, p99=%.1f, max=%s",
+                    name, histogram.getCount(), snapshot.getMean(), snapshot.getMedian(),
+                    snapshot.get99thPercentile(), snapshot.getMax());
+        });
+
+        Map<String, Counter> counters = new TreeMap<>(metricsService.getCounters(filter));
+        counters.forEach((name, counter) -> print("%s count=%s", name, counter.getCount()));
+
+        Map<String, Gauge> gauges = new TreeMap<>(metricsService.getGauges(filter));
+        gauges.forEach((name, gauge) -> print("%s value=%s", name, gauge.getValue()));
+    }
+}
@@ -0,0 +1,27 @@
+package org.onosproject.mao.sdwan.cli;
+
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.SdwanService;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Shows global node SID of each device.
+ */
+@Command(scope = "onos",
+        name = "sdwan-node-sids",
+        description = "Show global node SID of each device used by segment routing")
+public class SdwanNodeSids extends AbstractShellCommand {
+
+    @Override
+    protected void execute() {
+
+        SdwanService sdwanService = getService(SdwanService.class);
+
+        Map<String, Integer> sids = new TreeMap<>();
+        sdwanService.getNodeSids().forEach((deviceId, sid) -> sids.put(deviceId.toString(), sid));
+        sids.forEach((deviceId, sid) -> print("device=%s, sid=%s", deviceId, sid));
+    }
+}
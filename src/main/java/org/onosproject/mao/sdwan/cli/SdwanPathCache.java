@@ -0,0 +1,22 @@
+package org.onosproject.mao.sdwan.cli;
+
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.SdwanService;
+
+/**
+ * Shows counters of the path computation cache.
+ */
+@Command(scope = "onos",
+        name = "sdwan-path-cache",
+        description = "Show counters of the path computation cache")
+public class SdwanPathCache extends AbstractShellCommand {
+
+    @Override
+    protected void execute() {
+
+        SdwanService sdwanService = getService(SdwanService.class);
+
+        sdwanService.getPathCacheStatistics().forEach((name, value) -> print("%s=%s", name, value));
+    }
+}
@@ -0,0 +1,63 @@
+package org.onosproject.mao.sdwan.cli;
+
+import org.apache.karaf.shell.commands.Argument;
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.ProtectionType;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+
+import java.util.Collection;
+
+/**
+ * Shows or sets protection of MPLS/SR VPN tunnels.
+ */
+@Command(scope = "onos",
+        name = "sdwan-protection",
+        description = "Show or set protection of MPLS/SR VPN tunnels",
+        detailedDescription = "Show protection of tunnels, of all tenants or of one tenant; " +
+                "with a type, set protection of new tunnels of the tenant")
+public class SdwanProtection extends AbstractShellCommand {
+
+    private static final String SUMMARY = "tunnels=%s, protected=%s";
+    private static final String FORMAT = "id=%s, tenant=%s, primary=%s, backup=%s";
+
+    @Argument(index = 0, name = "TenantName",
+            description = "The name of tenant",
+            required = false, multiValued = false)
+    String tenantName = null;
+
+    @Argument(index = 1, name = "ProtectionType",
+            description = "NONE, LINK_DISJOINT or NODE_DISJOINT",
+            required = false, multiValued = false)
+    String protection = null;
+
+    @Override
+    protected void execute() {
+
+        SdwanService sdwanService = getService(SdwanService.class);
+
+        if (tenantName != null && protection != null) {
+            ProtectionType type;
+            try {
+                type = ProtectionType.valueOf(protection.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                print("Unknown protection type %s", protection);
+                return;
+            }
+            sdwanService.setTenantProtection(tenantName, type);
+        }
+
+        Collection<SdwanTunnel> tunnels = tenantName == null
+                ? sdwanService.getTunnels() : sdwanService.getTenantTunnels(tenantName);
+
+        if (tenantName != null) {
+            print("tenant=%s, protection=%s", tenantName, sdwanService.getTenantProtection(tenantName));
+        }
+        print(SUMMARY, tunnels.size(), tunnels.stream().filter(SdwanTunnel::isProtected).count());
+        tunnels.stream()
+                .filter(SdwanTunnel::isProtected)
+                .forEach(tunnel -> print(FORMAT, tunnel.getTunnelId(), tunnel.getTenantName(),
+                        tunnel.getForwardDevices(), tunnel.getBackupForwardDevices()));
+    }
+}
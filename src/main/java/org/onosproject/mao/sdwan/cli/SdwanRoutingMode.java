@@ -0,0 +1,49 @@
+package org.onosproject.mao.sdwan.cli;
+
+import org.apache.karaf.shell.commands.Argument;
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.mao.sdwan.api.RoutingMode;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+
+/**
+ * Shows or sets routing mode of MPLS/SR VPN tunnels of a tenant.
+ */
+@Command(scope = "onos",
+        name = "sdwan-routing-mode",
+        description = "Show or set routing mode of MPLS/SR VPN tunnels of a tenant",
+        detailedDescription = "Show routing mode of a tenant and how many of its tunnels are spread " +
+                "over equal-cost routes; with a mode, set routing mode of new tunnels of the tenant")
+public class SdwanRoutingMode extends AbstractShellCommand {
+
+    @Argument(index = 0, name = "TenantName",
+            description = "The name of tenant",
+            required = true, multiValued = false)
+    String tenantName = null;
+
+    @Argument(index = 1, name = "RoutingMode",
+            description = "SHORTEST, ECMP, SEGMENT_ROUTING or MERGED",
+            required = false, multiValued = false)
+    String mode = null;
+
+    @Override
+    protected void execute() {
+
+        SdwanService sdwanService = getService(SdwanService.class);
+
+        if (mode != null) {
+            try {
+                sdwanService.setTenantRoutingMode(tenantName, RoutingMode.valueOf(mode.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                print("Unknown routing mode %s", mode);
+                return;
+            }
+        }
+
+        print("tenant=%s, routingMode=%s, tunnels=%s, ecmpTunnels=%s", tenantName,
+                sdwanService.getTenantRoutingMode(tenantName),
+                sdwanService.getTenantTunnels(tenantName).size(),
+                sdwanService.getTenantTunnels(tenantName).stream().filter(SdwanTunnel::isEcmp).count());
+    }
+}
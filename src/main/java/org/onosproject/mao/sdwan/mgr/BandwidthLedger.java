@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableMap;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Per-link ledger of bandwidth reserved by tunnels, in bits per second.
+ *
+ * Links are directed, a bidirectional tunnel reserves on each link it
+ * uses and on the reverse of each. Links of unknown capacity are never
+ * full.
+ */
+public class BandwidthLedger {
+
+    private final ToDoubleFunction<Link> capacity;
+
+    private final Map<LinkKey, Double> reserved = new HashMap<>();
+    private final Map<Long, Reservation> tunnels = new HashMap<>();
+
+
+    /**
+     * Creates ledger.
+     *
+     * @param capacity capacity of link in bps, 0 or less if unknown
+     */
+    public BandwidthLedger(ToDoubleFunction<Link> capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns bandwidth left on link, in bps.
+     *
+     * @param link link
+     * @return residual bandwidth, Double.MAX_VALUE if capacity is unknown
+     */
+    public synchronized double residual(Link link) {
+        double total = capacity.applyAsDouble(link);
+        if (total <= 0) {
+            return Double.MAX_VALUE;
+        }
+        return total - reserved.getOrDefault(LinkKey.linkKey(link), 0.0);
+    }
+
+    public synchronized boolean fits(Link link, double bps) {
+        return residual(link) >= bps;
+    }
+
+    /**
+     * Reserves bandwidth for tunnel on every link, all or nothing.
+     *
+     * @param tunnelId tunnel, must hold no reservation yet
+     * @param links links used by tunnel
+     * @param bps bandwidth in bps
+     * @return false if a link lacks capacity, nothing is reserved then
+     */
+    public synchronized boolean reserve(long tunnelId, Collection<Link> links, double bps) {
+        for (Link link : links) {
+            if (!fits(link, bps)) {
+                return false;
+            }
+        }
+        forceReserve(tunnelId, links, bps);
+        return true;
+    }
+
+    /**
+     * Reserves bandwidth for tunnel without checking capacity, e.g. to restore a reservation.
+     *
+     * @param tunnelId tunnel, must hold no reservation yet
+     * @param links links used by tunnel
+     * @param bps bandwidth in bps
+     */
+    public synchronized void forceReserve(long tunnelId, Collection<Link> links, double bps) {
+        if (bps <= 0 || links.isEmpty()) {
+            return;
+        }
+        Reservation reservation = new Reservation(links, bps);
+        reservation.links.forEach(key -> reserved.merge(key, bps, Double::sum));
+        tunnels.put(tunnelId, reservation);
+    }
+
+    /**
+     * Releases reservation of tunnel.
+     *
+     * @param tunnelId tunnel
+     * @return released links, empty if tunnel held no reservation
+     */
+    public synchronized Collection<Link> release(long tunnelId) {
+        Reservation reservation = tunnels.remove(tunnelId);
+        if (reservation == null) {
+            return Collections.emptyList();
+        }
+        for (LinkKey key : reservation.links) {
+            double left = reserved.getOrDefault(key, 0.0) - reservation.bps;
+            if (left <= 0) {
+                reserved.remove(key);
+            } else {
+                reserved.put(key, left);
+            }
+        }
+        return reservation.origin;
+    }
+
+    public synchronized double reserved(LinkKey link) {
+        return reserved.getOrDefault(link, 0.0);
+    }
+
+    public synchronized Map<LinkKey, Double> reservations() {
+        return ImmutableMap.copyOf(reserved);
+    }
+
+    public synchronized void clear() {
+        reserved.clear();
+        tunnels.clear();
+    }
+
+
+
+    private static final class Reservation {
+
+        private final Collection<Link> origin;
+        private final Collection<LinkKey> links;
+        private final double bps;
+
+        private Reservation(Collection<Link> links, double bps) {
+            this.origin = links;
+            this.links = new HashSet<>();
+            links.forEach(link -> this.links.add(LinkKey.linkKey(link)));
+            this.bps = bps;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onlab.graph.ScalarWeight;
+import org.onlab.graph.Weight;
+import org.onosproject.net.Link;
+import org.onosproject.net.topology.LinkWeigher;
+import org.onosproject.net.topology.TopologyEdge;
+
+import java.util.function.Function;
+
+/**
+ * Hop-count link weigher pruning links without enough residual bandwidth, for CSPF.
+ *
+ * Tunnels are bidirectional, so the reverse link has to fit the demand as well.
+ */
+public class BandwidthLinkWeigher implements LinkWeigher {
+
+    private static final ScalarWeight HOP = new ScalarWeight(1);
+    private static final ScalarWeight ZERO = new ScalarWeight(0);
+
+    private final BandwidthLedger ledger;
+    private final double bps;
+    private final Function<Link, Link> reverse;
+
+
+    /**
+     * Creates weigher for one bandwidth demand.
+     *
+     * @param ledger reservation ledger
+     * @param bps demand in bps
+     * @param reverse returns reverse link of a link, or null if there is none
+     */
+    public BandwidthLinkWeigher(BandwidthLedger ledger, double bps, Function<Link, Link> reverse) {
+        this.ledger = ledger;
+        this.bps = bps;
+        this.reverse = reverse;
+    }
+
+    @Override
+    public Weight weight(TopologyEdge edge) {
+        Link link = edge.link();
+        if (link.state() == Link.State.INACTIVE || !ledger.fits(link, bps)) {
+            return getNonViableWeight();
+        }
+        Link back = reverse.apply(link);
+        if (back != null && !ledger.fits(back, bps)) {
+            return getNonViableWeight();
+        }
+        return HOP;
+    }
+
+    @Override
+    public Weight getInitialWeight() {
+        return ZERO;
+    }
+
+    @Override
+    public Weight getNonViableWeight() {
+        return ScalarWeight.NON_VIABLE_WEIGHT;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Flow rule operations of many devices, submitted together as one single stage batch per device.
+ *
+ * ONOS calls onError once for each failing device and stage, onSuccess only
+ * if no device failed, and nothing for devices that succeeded alongside a
+ * failing one. A single stage batch of one device is answered exactly once,
+ * so each owner of rules learns when all of its devices answered, and which
+ * of its rules were rejected.
+ *
+ * @param <T> owner of rules, e.g. a tunnel
+ */
+final class DeviceBatches<T> {
+
+    private final Map<DeviceId, FlowRuleOperations.Builder> batches = new LinkedHashMap<>();
+    private final Map<FlowRule, T> owners = new HashMap<>();
+    private final Map<T, Set<DeviceId>> pendingDevices = new HashMap<>();
+    private final Map<T, Set<FlowRule>> rejected = new HashMap<>();
+    private final Set<DeviceId> answered = new HashSet<>();
+    private final Set<FlowRule> failed = new HashSet<>();
+    private int operationCount;
+    private boolean submitted;
+
+    private BiConsumer<T, Set<FlowRule>> ownerDone;
+    private BiConsumer<Map<T, Set<FlowRule>>, Set<FlowRule>> allDone;
+
+
+    DeviceBatches<T> add(FlowRule rule, T owner) {
+        return operation(new FlowRuleOperation(rule, FlowRuleOperation.Type.ADD), owner);
+    }
+
+    DeviceBatches<T> modify(FlowRule rule, T owner) {
+        return operation(new FlowRuleOperation(rule, FlowRuleOperation.Type.MODIFY), owner);
+    }
+
+    DeviceBatches<T> remove(FlowRule rule, T owner) {
+        return operation(new FlowRuleOperation(rule, FlowRuleOperation.Type.REMOVE), owner);
+    }
+
+    /**
+     * Adds an operation to the batch of its device.
+     *
+     * @param op flow rule operation
+     * @param owner owner of rule, null for rules of no single owner
+     * @return this
+     */
+    synchronized DeviceBatches<T> operation(FlowRuleOperation op, T owner) {
+        DeviceId deviceId = op.rule().deviceId();
+        batches.computeIfAbsent(deviceId, id -> FlowRuleOperations.builder()).operation(op);
+        operationCount++;
+        if (owner != null) {
+            owners.put(op.rule(), owner);
+            pendingDevices.computeIfAbsent(owner, o -> new HashSet<>()).add(deviceId);
+        }
+        return this;
+    }
+
+    /**
+     * Adds every operation of all stages, stages aren't kept apart.
+     *
+     * @param ops flow rule operations
+     * @param owner owner of rules, null for rules of no single owner
+     * @return this
+     */
+    DeviceBatches<T> operations(FlowRuleOperations ops, T owner) {
+        ops.stages().forEach(stage -> stage.forEach(op -> operation(op, owner)));
+        return this;
+    }
+
+    synchronized boolean isEmpty() {
+        return batches.isEmpty();
+    }
+
+    synchronized int size() {
+        return operationCount;
+    }
+
+    /**
+     * Submits the batch of every device, once, for rules of no owner.
+     *
+     * @param flowRuleService flow rule service
+     * @param allDone called once when all devices answered, with all rejected rules
+     */
+    void submit(FlowRuleService flowRuleService, Consumer<Set<FlowRule>> allDone) {
+        submit(flowRuleService, (owner, rules) -> { }, (rejected, failed) -> allDone.accept(failed));
+    }
+
+    /**
+     * Submits the batch of every device, once.
+     *
+     * @param flowRuleService flow rule service
+     * @param ownerDone called once per owner when all of its devices answered, with its rejected rules
+     * @param allDone called once when all devices answered, with rejected rules of each owner
+     *                having any and all rejected rules; owners may still be called back meanwhile
+     */
+    void submit(FlowRuleService flowRuleService, BiConsumer<T, Set<FlowRule>> ownerDone,
+                BiConsumer<Map<T, Set<FlowRule>>, Set<FlowRule>> allDone) {
+        Map<DeviceId, FlowRuleOperations.Builder> toApply;
+        synchronized (this) {
+            if (submitted) {
+                throw new IllegalStateException("Batches are submitted already");
+            }
+            submitted = true;
+            this.ownerDone = ownerDone;
+            this.allDone = allDone;
+            toApply = new LinkedHashMap<>(batches);
+        }
+        if (toApply.isEmpty()) {
+            allDone.accept(Collections.emptyMap(), Collections.emptySet());
+            return;
+        }
+
+        toApply.forEach((deviceId, batch) -> flowRuleService.apply(batch.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                answer(deviceId, Collections.emptyList());
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                List<FlowRule> rules = new ArrayList<>();
+                ops.stages().forEach(stage -> stage.forEach(op -> rules.add(op.rule())));
+                answer(deviceId, rules);
+            }
+        })));
+    }
+
+    // owners are called back outside of the lock, they may submit batches of their own
+    private void answer(DeviceId deviceId, List<FlowRule> rejectedRules) {
+        Map<T, Set<FlowRule>> doneOwners = new LinkedHashMap<>();
+        Map<T, Set<FlowRule>> allRejected = null;
+        Set<FlowRule> allFailed = null;
+        synchronized (this) {
+            if (!answered.add(deviceId)) {
+                return;
+            }
+            failed.addAll(rejectedRules);
+            rejectedRules.forEach(rule -> {
+                T owner = owners.get(rule);
+                if (owner != null) {
+                    rejected.computeIfAbsent(owner, o -> new HashSet<>()).add(rule);
+                }
+            });
+
+            pendingDevices.entrySet().removeIf(entry -> {
+                entry.getValue().remove(deviceId);
+                if (!entry.getValue().isEmpty()) {
+                    return false;
+                }
+                doneOwners.put(entry.getKey(), rejected.getOrDefault(entry.getKey(), Collections.emptySet()));
+                return true;
+            });
+            if (answered.size() == batches.size()) {
+                allRejected = new HashMap<>(rejected);
+                allFailed = new HashSet<>(failed);
+            }
+        }
+
+        doneOwners.forEach(ownerDone);
+        if (allFailed != null) {
+            allDone.accept(allRejected, allFailed);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onosproject.net.DeviceId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.MAX_LABEL;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.MIN_LABEL;
+
+/**
+ * Locally significant MPLS label spaces, one per device.
+ *
+ * A label is only looked up by the switch receiving it, so each device
+ * hands out labels for the hops ending on it independently.
+ *
+ * The label space of a device is split into blocks, taken on first need
+ * from the lowest one on. Every block is leased before use, which never
+ * fails here; label spaces shared by several allocators override the lease
+ * so each one hands out labels of its own blocks only.
+ */
+public class DeviceLabelSpaces {
+
+    public static final int MAX_RESERVED_LABEL = 15; // RFC 3032, special-purpose labels
+    public static final int BLOCK_SIZE = 4096;
+    public static final int BLOCK_COUNT = (MAX_LABEL - MIN_LABEL + 1) / BLOCK_SIZE;
+
+    private final Map<DeviceId, Space> spaces = new ConcurrentHashMap<>();
+    // ranges kept out of every label space, e.g. a global SID block
+    private final List<int[]> globalRanges = new ArrayList<>();
+
+
+    private Space space(DeviceId deviceId) {
+        return spaces.computeIfAbsent(deviceId, id -> new Space());
+    }
+
+    private static int blockOf(int label) {
+        return (label - MIN_LABEL) / BLOCK_SIZE;
+    }
+
+    private static int blockStart(int block) {
+        return MIN_LABEL + block * BLOCK_SIZE;
+    }
+
+    /**
+     * Leases a block of the label space of the device to this allocator.
+     *
+     * @param deviceId device
+     * @param block index of block
+     * @return true if the block is this allocator's now
+     */
+    protected boolean leaseBlock(DeviceId deviceId, int block) {
+        return true;
+    }
+
+    /**
+     * Returns the block a device needing one more block is probed from.
+     *
+     * @param deviceId device
+     * @return index of block
+     */
+    protected int firstBlock(DeviceId deviceId) {
+        return 0;
+    }
+
+    /**
+     * Takes a block this allocator leased before, e.g. before a restart.
+     *
+     * @param deviceId device
+     * @param block index of block
+     */
+    protected void adoptBlock(DeviceId deviceId, int block) {
+        Space space = space(deviceId);
+        synchronized (space) {
+            if (!space.blocks.containsKey(block)) {
+                space.blocks.put(block, newBlock(block));
+            }
+        }
+    }
+
+    private LabelAllocator newBlock(int block) {
+        LabelAllocator allocator = new LabelAllocator(blockStart(block), blockStart(block) + BLOCK_SIZE - 1);
+        allocator.reserve(MIN_LABEL, MAX_RESERVED_LABEL);
+        synchronized (globalRanges) {
+            globalRanges.forEach(range -> allocator.reserve(range[0], range[1]));
+        }
+        return allocator;
+    }
+
+    // blocks inside a global range have nothing to hand out, they are never leased
+    private boolean isReservedBlock(int block) {
+        int start = blockStart(block);
+        int end = start + BLOCK_SIZE - 1;
+        synchronized (globalRanges) {
+            return globalRanges.stream().anyMatch(range -> range[0] <= start && range[1] >= end);
+        }
+    }
+
+    private boolean isReservedLabel(int label) {
+        if (label <= MAX_RESERVED_LABEL) {
+            return true;
+        }
+        synchronized (globalRanges) {
+            return globalRanges.stream().anyMatch(range -> range[0] <= label && range[1] >= label);
+        }
+    }
+
+    /**
+     * Keeps a range of labels out of the label space of every device, present and future.
+     *
+     * Call before labels are handed out, labels of the range already in use stay in use.
+     *
+     * @param from first label of range
+     * @param to last label of range
+     */
+    public void reserveGlobally(int from, int to) {
+        synchronized (globalRanges) {
+            globalRanges.add(new int[]{from, to});
+        }
+        spaces.values().forEach(space -> {
+            synchronized (space) {
+                space.blocks.values().forEach(block -> block.reserve(from, to));
+            }
+        });
+    }
+
+    /**
+     * Allocates a free label in label space of the device.
+     *
+     * @param deviceId device receiving the label
+     * @return label, or INVALID_LABEL if label space of device is exhausted
+     */
+    public int allocate(DeviceId deviceId) {
+        Space space = space(deviceId);
+        synchronized (space) {
+            for (LabelAllocator block : space.blocks.values()) {
+                int label = block.allocate();
+                if (label != INVALID_LABEL) {
+                    space.used++;
+                    return label;
+                }
+            }
+
+            int first = firstBlock(deviceId);
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                int index = (first + i) % BLOCK_COUNT;
+                if (space.blocks.containsKey(index) || isReservedBlock(index) || !leaseBlock(deviceId, index)) {
+                    continue;
+                }
+                LabelAllocator block = newBlock(index);
+                space.blocks.put(index, block);
+                int label = block.allocate();
+                if (label != INVALID_LABEL) {
+                    space.used++;
+                    return label;
+                }
+            }
+        }
+        return INVALID_LABEL;
+    }
+
+    /**
+     * Allocates the given label in label space of the device if it is free.
+     *
+     * @param deviceId device receiving the label
+     * @param label label to take
+     * @return true if the label was free and is now in use
+     */
+    public boolean allocate(DeviceId deviceId, int label) {
+        if (label < MIN_LABEL || label > MAX_LABEL || isReservedLabel(label)) {
+            return false;
+        }
+        int index = blockOf(label);
+        Space space = space(deviceId);
+        synchronized (space) {
+            LabelAllocator block = space.blocks.get(index);
+            if (block == null) {
+                if (!leaseBlock(deviceId, index)) {
+                    return false;
+                }
+                block = newBlock(index);
+                space.blocks.put(index, block);
+            }
+            if (!block.allocate(label)) {
+                return false;
+            }
+            space.used++;
+            return true;
+        }
+    }
+
+    /**
+     * Returns a label to the pool, ignored unless it is in a block of this allocator.
+     *
+     * @param deviceId device receiving the label
+     * @param label label to free
+     */
+    public void release(DeviceId deviceId, int label) {
+        if (label == INVALID_LABEL || isReservedLabel(label)) {
+            return;
+        }
+        Space space = spaces.get(deviceId);
+        if (space == null) {
+            return;
+        }
+        synchronized (space) {
+            LabelAllocator block = space.blocks.get(blockOf(label));
+            if (block != null && block.isAllocated(label)) {
+                block.release(label);
+                space.used--;
+            }
+        }
+    }
+
+    public boolean isAllocated(DeviceId deviceId, int label) {
+        Space space = spaces.get(deviceId);
+        if (space == null) {
+            return false;
+        }
+        synchronized (space) {
+            LabelAllocator block = space.blocks.get(blockOf(label));
+            return block != null && block.isAllocated(label);
+        }
+    }
+
+    /**
+     * Returns number of labels in use on the device, reserved labels excluded.
+     *
+     * @param deviceId device
+     * @return number of labels in use
+     */
+    public int usedCount(DeviceId deviceId) {
+        Space space = spaces.get(deviceId);
+        if (space == null) {
+            return 0;
+        }
+        synchronized (space) {
+            return space.used;
+        }
+    }
+
+    public Map<DeviceId, Integer> usedCounts() {
+        Map<DeviceId, Integer> counts = new HashMap<>();
+        spaces.keySet().forEach(id -> counts.put(id, usedCount(id)));
+        return counts;
+    }
+
+    /**
+     * Returns number of blocks of the device this allocator holds.
+     *
+     * @param deviceId device
+     * @return number of blocks
+     */
+    public int blockCount(DeviceId deviceId) {
+        Space space = spaces.get(deviceId);
+        if (space == null) {
+            return 0;
+        }
+        synchronized (space) {
+            return space.blocks.size();
+        }
+    }
+
+    /**
+     * Frees every label and drops every block, global ranges stay reserved.
+     */
+    public void clear() {
+        spaces.clear();
+    }
+
+
+
+    /**
+     * Blocks of one device, lowest first.
+     */
+    private static final class Space {
+
+        private final TreeMap<Integer, LabelAllocator> blocks = new TreeMap<>();
+        private int used;
+    }
+}
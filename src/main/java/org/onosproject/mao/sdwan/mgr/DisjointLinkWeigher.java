@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onlab.graph.ScalarWeight;
+import org.onlab.graph.Weight;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.Path;
+import org.onosproject.net.topology.LinkWeigher;
+import org.onosproject.net.topology.TopologyEdge;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hop-count link weigher avoiding links, and optionally transit devices, of a primary path.
+ */
+public class DisjointLinkWeigher implements LinkWeigher {
+
+    private static final ScalarWeight HOP = new ScalarWeight(1);
+    private static final ScalarWeight ZERO = new ScalarWeight(0);
+
+    private final Set<LinkKey> excludedLinks = new HashSet<>();
+    private final Set<DeviceId> excludedDevices = new HashSet<>();
+
+
+    /**
+     * Creates weigher avoiding the primary path.
+     *
+     * @param primary primary path
+     * @param nodeDisjoint true to avoid transit devices of primary path as well
+     */
+    public DisjointLinkWeigher(Path primary, boolean nodeDisjoint) {
+        List<Link> links = primary.links();
+        for (Link link : links) {
+            // both directions, backward traffic uses the reversed links
+            excludedLinks.add(LinkKey.linkKey(link.src(), link.dst()));
+            excludedLinks.add(LinkKey.linkKey(link.dst(), link.src()));
+        }
+        if (nodeDisjoint) {
+            for (int i = 1; i < links.size(); i++) {
+                excludedDevices.add(links.get(i).src().deviceId());
+            }
+        }
+    }
+
+    @Override
+    public Weight weight(TopologyEdge edge) {
+        Link link = edge.link();
+        if (link.state() == Link.State.INACTIVE
+                || excludedLinks.contains(LinkKey.linkKey(link))
+                || excludedDevices.contains(link.src().deviceId())
+                || excludedDevices.contains(link.dst().deviceId())) {
+            return getNonViableWeight();
+        }
+        return HOP;
+    }
+
+    @Override
+    public Weight getInitialWeight() {
+        return ZERO;
+    }
+
+    @Override
+    public Weight getNonViableWeight() {
+        return ScalarWeight.NON_VIABLE_WEIGHT;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.Service;
+import org.onlab.util.Bandwidth;
+import org.onlab.util.KryoNamespace;
+import org.onosproject.cluster.ClusterService;
+import org.onosproject.cluster.NodeId;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.api.SdwanTunnelEvent;
+import org.onosproject.mao.sdwan.api.SdwanTunnelStore;
+import org.onosproject.mao.sdwan.api.SdwanTunnelStoreDelegate;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.LinkKey;
+import org.onosproject.store.AbstractStore;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.AtomicCounter;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.MapEvent;
+import org.onosproject.store.service.MapEventListener;
+import org.onosproject.store.service.Serializer;
+import org.onosproject.store.service.StorageService;
+import org.onosproject.store.service.Versioned;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_TUNNEL_ID;
+
+/**
+ * Tunnel store shared by every instance of the cluster.
+ *
+ * Tunnel records live in a consistent map, each instance keeps its own
+ * indexes over all of them and answers lookups locally. Writes of this
+ * instance are indexed right away, writes of other instances once their
+ * map events arrive, and only those reach the delegate.
+ *
+ * Tunnel ids are leased from a shared counter in blocks, so creating a
+ * tunnel rarely waits for the cluster to agree on its id.
+ */
+@Component(immediate = true)
+@Service
+public class DistributedSdwanTunnelStore extends AbstractStore<SdwanTunnelEvent, SdwanTunnelStoreDelegate>
+        implements SdwanTunnelStore {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final String TUNNEL_MAP = "onos-sdwan-tunnels";
+    private static final String TUNNEL_ID_COUNTER = "onos-sdwan-tunnel-ids";
+    private static final long TUNNEL_ID_BLOCK = 1024;
+
+    private static final Serializer SERIALIZER = Serializer.using(KryoNamespace.newBuilder()
+            .register(KryoNamespaces.API)
+            .register(StoredTunnel.class, SdwanTunnel.class, Bandwidth.bps(0L).getClass())
+            .build());
+
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected StorageService storageService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ClusterService clusterService;
+
+    private ConsistentMap<Long, StoredTunnel> tunnels;
+    private AtomicCounter tunnelIdCounter;
+    private NodeId localNodeId;
+
+    // indexes over tunnels of every instance
+    private final SimpleSdwanTunnelStore index = new SimpleSdwanTunnelStore();
+    private final MapEventListener<Long, StoredTunnel> tunnelListener = new InternalTunnelListener();
+
+    // tunnel ids leased but not handed out yet, guarded by this
+    private long nextTunnelId;
+    private long lastTunnelId = -1;
+
+
+    @Activate
+    public void activate() {
+
+        localNodeId = clusterService.getLocalNode().id();
+        tunnels = storageService.<Long, StoredTunnel>consistentMapBuilder()
+                .withName(TUNNEL_MAP)
+                .withSerializer(SERIALIZER)
+                .build();
+        tunnelIdCounter = storageService.atomicCounterBuilder()
+                .withName(TUNNEL_ID_COUNTER)
+                .build()
+                .asAtomicCounter();
+
+        // listen first, adding a tunnel twice to the index is harmless
+        tunnels.addListener(tunnelListener);
+        tunnels.values().forEach(stored -> index.addTunnel(stored.value().tunnel));
+
+        log.info("Started, {} tunnels in cluster", index.getTunnelCount());
+    }
+
+    @Deactivate
+    public void deactivate() {
+        tunnels.removeListener(tunnelListener);
+        index.clear();
+        log.info("Stopped");
+    }
+
+    @Override
+    public synchronized long nextTunnelId() {
+        if (nextTunnelId > lastTunnelId) {
+            long base = tunnelIdCounter.getAndAdd(TUNNEL_ID_BLOCK);
+            nextTunnelId = base + 1;
+            lastTunnelId = base + TUNNEL_ID_BLOCK;
+        }
+        return nextTunnelId++;
+    }
+
+    @Override
+    public synchronized void reserveTunnelIds(long tunnelId) {
+        long current = tunnelIdCounter.get();
+        while (current < tunnelId && !tunnelIdCounter.compareAndSet(current, tunnelId)) {
+            current = tunnelIdCounter.get();
+        }
+        // leased ids up to tunnelId are taken, past the block the next lease starts above it
+        if (nextTunnelId <= tunnelId) {
+            nextTunnelId = Math.min(tunnelId, lastTunnelId) + 1;
+        }
+    }
+
+    @Override
+    public void addTunnel(SdwanTunnel tunnel) {
+        checkNotNull(tunnel, "tunnel cannot be null");
+        checkArgument(tunnel.getTunnelId() != INVALID_TUNNEL_ID, "Tunnel id must be set");
+
+        index.addTunnel(tunnel);
+        tunnels.put(tunnel.getTunnelId(), new StoredTunnel(localNodeId, tunnel));
+    }
+
+    @Override
+    public SdwanTunnel removeTunnel(long tunnelId) {
+        SdwanTunnel removed = index.removeTunnel(tunnelId);
+        Versioned<StoredTunnel> stored = tunnels.remove(tunnelId);
+        if (removed == null && stored != null) {
+            // written by another instance, its event is still on the way
+            removed = stored.value().tunnel;
+        }
+        return removed;
+    }
+
+    @Override
+    public SdwanTunnel getTunnel(long tunnelId) {
+        return index.getTunnel(tunnelId);
+    }
+
+    @Override
+    public Collection<SdwanTunnel> getTunnels() {
+        return index.getTunnels();
+    }
+
+    @Override
+    public int getTunnelCount() {
+        return index.getTunnelCount();
+    }
+
+    @Override
+    public Set<String> getTenants() {
+        return index.getTenants();
+    }
+
+    @Override
+    public Collection<SdwanTunnel> getTenantTunnels(String tenantName) {
+        return index.getTenantTunnels(tenantName);
+    }
+
+    @Override
+    public Collection<SdwanTunnel> getDeviceTunnels(DeviceId deviceId) {
+        return index.getDeviceTunnels(deviceId);
+    }
+
+    @Override
+    public Collection<SdwanTunnel> getLinkTunnels(LinkKey linkKey) {
+        return index.getLinkTunnels(linkKey);
+    }
+
+    @Override
+    public SdwanTunnel getLabelTunnel(DeviceId deviceId, int label) {
+        return index.getLabelTunnel(deviceId, label);
+    }
+
+    @Override
+    public Collection<SdwanTunnel> getSiteTunnels(ConnectPoint srcSite, ConnectPoint dstSite) {
+        return index.getSiteTunnels(srcSite, dstSite);
+    }
+
+    /**
+     * Removes tunnels of every instance, leased tunnel ids stay used.
+     */
+    @Override
+    public void clear() {
+        index.clear();
+        tunnels.clear();
+    }
+
+
+
+    /**
+     * Applies tunnels written by other instances to the indexes.
+     */
+    private class InternalTunnelListener implements MapEventListener<Long, StoredTunnel> {
+
+        @Override
+        public void event(MapEvent<Long, StoredTunnel> event) {
+            switch (event.type()) {
+                case INSERT:
+                case UPDATE:
+                    StoredTunnel stored = event.newValue().value();
+                    if (stored.origin.equals(localNodeId)) {
+                        return;
+                    }
+                    SdwanTunnel prev = index.getTunnel(event.key());
+                    index.addTunnel(stored.tunnel);
+                    notifyDelegate(prev == null
+                            ? new SdwanTunnelEvent(SdwanTunnelEvent.Type.TUNNEL_ADDED, stored.tunnel)
+                            : new SdwanTunnelEvent(SdwanTunnelEvent.Type.TUNNEL_UPDATED, stored.tunnel, prev));
+                    break;
+                case REMOVE:
+                    // gone from the index already if this instance removed it
+                    SdwanTunnel removed = index.removeTunnel(event.key());
+                    if (removed != null) {
+                        notifyDelegate(new SdwanTunnelEvent(SdwanTunnelEvent.Type.TUNNEL_REMOVED, removed));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Tunnel record with the instance which wrote it.
+     */
+    private static final class StoredTunnel {
+
+        private final NodeId origin;
+        private final SdwanTunnel tunnel;
+
+        private StoredTunnel(NodeId origin, SdwanTunnel tunnel) {
+            this.origin = origin;
+            this.tunnel = tunnel;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.topology.TopologyService;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.Versioned;
+
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
+
+/**
+ * Node segments all instances of a cluster agree on.
+ *
+ * A device gets its SID once, whichever instance asks first: the SID is
+ * claimed for the device, then the device is bound to it, both with
+ * putIfAbsent, so two instances never hand out one SID twice nor give one
+ * device two SIDs. Each instance pushes SID rules to the devices it masters.
+ *
+ * SIDs outlive the instance, like leases of label blocks.
+ */
+public class DistributedSegmentRoutingFabric extends SegmentRoutingFabric {
+
+    private final ConsistentMap<DeviceId, Integer> deviceSids;
+    private final ConsistentMap<Integer, DeviceId> sidDevices;
+    private final MastershipService mastershipService;
+
+
+    /**
+     * Creates fabric over the SRGB [srgbBase, srgbBase + srgbSize - 1], agreeing on SIDs in the given maps.
+     *
+     * @param appId application installing the SID rules
+     * @param priority priority of SID rules
+     * @param srgbBase first node SID
+     * @param srgbSize number of node SIDs
+     * @param flowRuleService flow rule service
+     * @param topologyService topology service
+     * @param pipeline tables of devices
+     * @param deviceSids node SID of each device
+     * @param sidDevices device claiming each node SID
+     * @param mastershipService mastership service
+     */
+    public DistributedSegmentRoutingFabric(ApplicationId appId, int priority, int srgbBase, int srgbSize,
+                                           FlowRuleService flowRuleService, TopologyService topologyService,
+                                           TablePipeline pipeline, ConsistentMap<DeviceId, Integer> deviceSids,
+                                           ConsistentMap<Integer, DeviceId> sidDevices,
+                                           MastershipService mastershipService) {
+        super(appId, priority, srgbBase, srgbSize, flowRuleService, topologyService, pipeline);
+        this.deviceSids = deviceSids;
+        this.sidDevices = sidDevices;
+        this.mastershipService = mastershipService;
+    }
+
+    @Override
+    protected Integer agreedSid(DeviceId deviceId) {
+        Versioned<Integer> sid = deviceSids.get(deviceId);
+        return sid == null ? null : sid.value();
+    }
+
+    @Override
+    protected int agreeSid(DeviceId deviceId, int sid) {
+        Versioned<DeviceId> claimer = sidDevices.putIfAbsent(sid, deviceId);
+        if (claimer != null && !deviceId.equals(claimer.value())) {
+            return INVALID_LABEL;
+        }
+        Versioned<Integer> bound = deviceSids.putIfAbsent(deviceId, sid);
+        if (bound != null && bound.value() != sid) {
+            // another instance was faster, its SID stands
+            sidDevices.remove(sid, deviceId);
+            return bound.value();
+        }
+        return sid;
+    }
+
+    @Override
+    protected boolean isLocal(DeviceId deviceId) {
+        return mastershipService.isLocalMaster(deviceId);
+    }
+}
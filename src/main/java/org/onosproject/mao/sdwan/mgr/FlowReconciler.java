@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.onosproject.net.flow.FlowEntry.FlowEntryState.FAILED;
+import static org.onosproject.net.flow.FlowEntry.FlowEntryState.PENDING_REMOVE;
+import static org.onosproject.net.flow.FlowEntry.FlowEntryState.REMOVED;
+
+/**
+ * Brings the rules of the application on devices in line with the rules it expects there.
+ *
+ * Rules are told apart by match, as on the switch. An expected rule missing or
+ * failed on the device is pushed again, one installed with another treatment is
+ * modified and one installed with another cookie is replaced. A rule of the
+ * application no one expects is an orphan and removed.
+ *
+ * A device is read and repaired on its own, in one batch, so repairing it costs
+ * in the number of its rules only.
+ */
+public class FlowReconciler {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ApplicationId appId;
+    private final FlowRuleService flowRuleService;
+    private final Function<DeviceId, Collection<FlowRule>> expectedRules;
+
+
+    /**
+     * Creates reconciler of the rules of the application.
+     *
+     * @param appId application owning the rules
+     * @param flowRuleService flow rule service
+     * @param expectedRules rules the application expects on a device
+     */
+    public FlowReconciler(ApplicationId appId, FlowRuleService flowRuleService,
+                          Function<DeviceId, Collection<FlowRule>> expectedRules) {
+        this.appId = appId;
+        this.flowRuleService = flowRuleService;
+        this.expectedRules = expectedRules;
+    }
+
+    /**
+     * Repairs rules of one device, reading rules of that device only.
+     *
+     * @param deviceId device
+     * @return number of rules pushed, modified or removed
+     */
+    public int reconcile(DeviceId deviceId) {
+        return reconcile(deviceId, true);
+    }
+
+    /**
+     * Repairs rules of one device, reading rules of that device only.
+     *
+     * @param deviceId device
+     * @param removeOrphans false to leave rules no one expects, e.g. while tunnels may be missing
+     * @return number of rules pushed, modified or removed
+     */
+    public int reconcile(DeviceId deviceId, boolean removeOrphans) {
+        List<FlowEntry> actual = new ArrayList<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.appId() == appId.id()) {
+                actual.add(entry);
+            }
+        }
+        return repair(deviceId, actual, removeOrphans);
+    }
+
+    /**
+     * Repairs rules of the devices with one read of all rules of the application.
+     *
+     * @param deviceIds devices
+     * @return number of rules pushed, modified or removed
+     */
+    public int reconcile(Collection<DeviceId> deviceIds) {
+        return reconcile(deviceIds, true);
+    }
+
+    /**
+     * Repairs rules of the devices with one read of all rules of the application.
+     *
+     * @param deviceIds devices
+     * @param removeOrphans false to leave rules no one expects, e.g. while tunnels may be missing
+     * @return number of rules pushed, modified or removed
+     */
+    public int reconcile(Collection<DeviceId> deviceIds, boolean removeOrphans) {
+        Map<DeviceId, List<FlowEntry>> actual = new HashMap<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(appId)) {
+            actual.computeIfAbsent(entry.deviceId(), id -> new ArrayList<>()).add(entry);
+        }
+
+        int changes = 0;
+        for (DeviceId deviceId : deviceIds) {
+            changes += repair(deviceId, actual.getOrDefault(deviceId, Collections.emptyList()), removeOrphans);
+        }
+        return changes;
+    }
+
+    private int repair(DeviceId deviceId, Collection<FlowEntry> actual, boolean removeOrphans) {
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        int changes = diff(expectedRules.apply(deviceId), actual, removeOrphans, ops);
+        if (changes == 0) {
+            return 0;
+        }
+
+        log.info("Repair {} rules on {}", changes, deviceId);
+        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                log.warn("Fail to repair rules on {}, {} stages of flow operations failed",
+                        deviceId, ops.stages().size());
+            }
+        }));
+        return changes;
+    }
+
+    /**
+     * Adds to ops what turns the actual rules of a device into the expected ones.
+     *
+     * Removals go in the first stage, so a rule replaced by another cookie is
+     * gone before it is pushed again in the second one. Entries being removed
+     * count as missing.
+     *
+     * @param expected rules expected on the device
+     * @param actual entries of the application on the device
+     * @param ops operations to add to
+     * @return number of operations added
+     */
+    static int diff(Collection<FlowRule> expected, Collection<FlowEntry> actual,
+                    FlowRuleOperations.Builder ops) {
+        return diff(expected, actual, true, ops);
+    }
+
+    /**
+     * Adds to ops what turns the actual rules of a device into the expected ones.
+     *
+     * @param expected rules expected on the device
+     * @param actual entries of the application on the device
+     * @param removeOrphans false to leave entries no expected rule matches
+     * @param ops operations to add to
+     * @return number of operations added
+     */
+    static int diff(Collection<FlowRule> expected, Collection<FlowEntry> actual, boolean removeOrphans,
+                    FlowRuleOperations.Builder ops) {
+
+        // FlowRule equality covers match only
+        Map<FlowRule, FlowEntry> present = new HashMap<>();
+        for (FlowEntry entry : actual) {
+            if (entry.state() != PENDING_REMOVE && entry.state() != REMOVED) {
+                present.put(entry, entry);
+            }
+        }
+        Map<FlowRule, FlowRule> wanted = new HashMap<>();
+        expected.forEach(rule -> wanted.put(rule, rule));
+
+        List<FlowRule> removals = new ArrayList<>();
+        List<FlowRule> additions = new ArrayList<>();
+        List<FlowRule> modifications = new ArrayList<>();
+        for (FlowEntry entry : present.values()) {
+            if (removeOrphans && !wanted.containsKey(entry)) {
+                removals.add(entry);
+            }
+        }
+        for (FlowRule rule : wanted.values()) {
+            FlowEntry entry = present.get(rule);
+            if (entry == null || entry.state() == FAILED) {
+                additions.add(rule);
+            } else if (entry.id().value() != rule.id().value()) {
+                removals.add(entry);
+                additions.add(rule);
+            } else if (!entry.treatment().equals(rule.treatment())) {
+                modifications.add(rule);
+            }
+        }
+
+        removals.forEach(ops::remove);
+        if (!removals.isEmpty() && !(additions.isEmpty() && modifications.isEmpty())) {
+            ops.newStage();
+        }
+        additions.forEach(ops::add);
+        modifications.forEach(ops::modify);
+        return removals.size() + additions.size() + modifications.size();
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
+
+/**
+ * Label allocator backed by a hierarchical bitmap.
+ *
+ * Level 0 holds one bit per label, set when the label is in use.
+ * Every upper level holds one bit per word of the level below,
+ * set when that word is full, so allocate and free only walk
+ * log64(size) words.
+ *
+ * Level 0 words are kept in pages allocated on first use, the whole
+ * MPLS label space costs about 128 KB once every page is touched.
+ */
+public class LabelAllocator {
+
+    private static final int WORD_SHIFT = 6;
+    private static final int WORD_MASK = 63;
+    private static final long FULL = -1L;
+
+    private static final int PAGE_SHIFT = 6; // 64 words, 4096 labels per page
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    private final int minLabel;
+    private final int maxLabel;
+    private final int size;
+
+    // level 0, paged
+    private final long[][] pages;
+    // level 1 .. top, summary[0] is the level right above level 0
+    private final long[][] summary;
+
+    private int used;
+
+
+    /**
+     * Creates an allocator over the closed range [minLabel, maxLabel].
+     *
+     * @param minLabel lowest label
+     * @param maxLabel highest label
+     */
+    public LabelAllocator(int minLabel, int maxLabel) {
+        checkArgument(minLabel >= 0 && minLabel <= maxLabel,
+                "Invalid label range %s ~ %s", minLabel, maxLabel);
+
+        this.minLabel = minLabel;
+        this.maxLabel = maxLabel;
+        this.size = maxLabel - minLabel + 1;
+
+        int words = wordsFor(size);
+        pages = new long[(words + PAGE_MASK) >> PAGE_SHIFT][];
+
+        int levels = 0;
+        for (int n = words; n > 1; n = wordsFor(n)) {
+            levels++;
+        }
+        summary = new long[Math.max(levels, 1)][];
+        for (int l = 0, n = words; l < summary.length; l++) {
+            n = wordsFor(n);
+            summary[l] = new long[n];
+        }
+
+        markPadding();
+    }
+
+    private static int wordsFor(int bits) {
+        return (bits + WORD_MASK) >>> WORD_SHIFT;
+    }
+
+    // bits beyond the range are never available
+    private void markPadding() {
+        int n = wordsFor(size);
+        int tail = size & WORD_MASK;
+        if (tail != 0) {
+            int last = n - 1;
+            page(last)[last & PAGE_MASK] |= FULL << tail;
+        }
+        for (long[] level : summary) {
+            int levelTail = n & WORD_MASK;
+            if (levelTail != 0) {
+                level[level.length - 1] |= FULL << levelTail;
+            }
+            n = level.length;
+        }
+    }
+
+    private long[] page(int word) {
+        long[] page = pages[word >>> PAGE_SHIFT];
+        if (page == null) {
+            page = new long[1 << PAGE_SHIFT];
+            pages[word >>> PAGE_SHIFT] = page;
+        }
+        return page;
+    }
+
+
+
+    /**
+     * Allocates the lowest free label.
+     *
+     * @return label, or INVALID_LABEL if the whole range is used
+     */
+    public synchronized int allocate() {
+        long[] top = summary[summary.length - 1];
+        int idx = -1;
+        for (int i = 0; i < top.length; i++) {
+            if (top[i] != FULL) {
+                idx = i;
+                break;
+            }
+        }
+        if (idx < 0) {
+            return INVALID_LABEL;
+        }
+
+        for (int l = summary.length - 1; l >= 0; l--) {
+            long word = summary[l][idx];
+            idx = (idx << WORD_SHIFT) + Long.numberOfTrailingZeros(~word);
+        }
+
+        long[] page = page(idx);
+        long word = page[idx & PAGE_MASK];
+        int bit = (idx << WORD_SHIFT) + Long.numberOfTrailingZeros(~word);
+
+        setUsed(bit);
+        return bit + minLabel;
+    }
+
+    /**
+     * Allocates the given label if it is free.
+     *
+     * @param label label to take
+     * @return true if the label was free and is now in use
+     */
+    public synchronized boolean allocate(int label) {
+        if (label < minLabel || label > maxLabel) {
+            return false;
+        }
+        int bit = label - minLabel;
+        if (isSet(bit)) {
+            return false;
+        }
+        setUsed(bit);
+        return true;
+    }
+
+    /**
+     * Returns a label to the pool.
+     *
+     * @param label label to free, ignored if out of range or not in use
+     */
+    public synchronized void release(int label) {
+        if (label < minLabel || label > maxLabel) {
+            return;
+        }
+        int bit = label - minLabel;
+        if (!isSet(bit)) {
+            return;
+        }
+
+        int word = bit >>> WORD_SHIFT;
+        page(word)[word & PAGE_MASK] &= ~(1L << (bit & WORD_MASK));
+
+        int idx = word;
+        for (long[] level : summary) {
+            level[idx >>> WORD_SHIFT] &= ~(1L << (idx & WORD_MASK));
+            idx >>>= WORD_SHIFT;
+        }
+        used--;
+    }
+
+    /**
+     * Marks a closed range of labels as in use, e.g. reserved labels 0 ~ 15.
+     *
+     * @param from first label of range
+     * @param to last label of range
+     */
+    public synchronized void reserve(int from, int to) {
+        checkArgument(from <= to, "Invalid reserve range %s ~ %s", from, to);
+        for (int label = Math.max(from, minLabel); label <= Math.min(to, maxLabel); label++) {
+            int bit = label - minLabel;
+            if (!isSet(bit)) {
+                setUsed(bit);
+            }
+        }
+    }
+
+    public synchronized boolean isAllocated(int label) {
+        return label >= minLabel && label <= maxLabel && isSet(label - minLabel);
+    }
+
+    /**
+     * Frees every label, reserved ranges included.
+     */
+    public synchronized void clear() {
+        Arrays.fill(pages, null);
+        for (long[] level : summary) {
+            Arrays.fill(level, 0L);
+        }
+        markPadding();
+        used = 0;
+    }
+
+    public synchronized int usedCount() {
+        return used;
+    }
+
+    public int capacity() {
+        return size;
+    }
+
+    public int minLabel() {
+        return minLabel;
+    }
+
+    public int maxLabel() {
+        return maxLabel;
+    }
+
+
+
+    private boolean isSet(int bit) {
+        int word = bit >>> WORD_SHIFT;
+        long[] page = pages[word >>> PAGE_SHIFT];
+        return page != null && (page[word & PAGE_MASK] & (1L << (bit & WORD_MASK))) != 0;
+    }
+
+    private void setUsed(int bit) {
+        int word = bit >>> WORD_SHIFT;
+        long[] page = page(word);
+        page[word & PAGE_MASK] |= 1L << (bit & WORD_MASK);
+        used++;
+
+        // propagate "full" upwards only while words become full
+        boolean full = page[word & PAGE_MASK] == FULL;
+        int idx = word;
+        for (long[] level : summary) {
+            if (!full) {
+                break;
+            }
+            level[idx >>> WORD_SHIFT] |= 1L << (idx & WORD_MASK);
+            full = level[idx >>> WORD_SHIFT] == FULL;
+            idx >>>= WORD_SHIFT;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onosproject.cluster.NodeId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.Versioned;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Label spaces shared by the instances of a cluster, each one handing out
+ * labels of the blocks leased to it.
+ *
+ * Leasing a block is the only step all instances agree on, labels inside
+ * a block are allocated and released locally. Instances probe blocks from
+ * different offsets, so they rarely race for the same one.
+ *
+ * Leases outlive the instance, a restarted instance takes its blocks back.
+ * Blocks of an instance that left the cluster are taken over by those
+ * staying, as tunnels it made still carry their labels.
+ */
+public class LeasedLabelSpaces extends DeviceLabelSpaces {
+
+    private final ConsistentMap<String, NodeId> leases;
+    private final NodeId localNodeId;
+
+
+    /**
+     * Creates label spaces leasing blocks in the given map, adopting blocks
+     * the local instance leased before.
+     *
+     * @param leases owner of each leased block, keyed by device and block
+     * @param localNodeId local instance
+     */
+    public LeasedLabelSpaces(ConsistentMap<String, NodeId> leases, NodeId localNodeId) {
+        this.leases = leases;
+        this.localNodeId = localNodeId;
+
+        for (Map.Entry<String, Versioned<NodeId>> lease : leases.entrySet()) {
+            if (localNodeId.equals(lease.getValue().value())) {
+                adoptBlock(lease.getKey());
+            }
+        }
+    }
+
+    private void adoptBlock(String leaseKey) {
+        int split = leaseKey.lastIndexOf('/');
+        adoptBlock(DeviceId.deviceId(leaseKey.substring(0, split)), Integer.parseInt(leaseKey.substring(split + 1)));
+    }
+
+    private static String leaseKey(DeviceId deviceId, int block) {
+        return deviceId.toString() + "/" + block;
+    }
+
+    @Override
+    protected boolean leaseBlock(DeviceId deviceId, int block) {
+        Versioned<NodeId> owner = leases.putIfAbsent(leaseKey(deviceId, block), localNodeId);
+        return owner == null || localNodeId.equals(owner.value());
+    }
+
+    @Override
+    protected int firstBlock(DeviceId deviceId) {
+        return Math.floorMod(localNodeId.hashCode(), BLOCK_COUNT);
+    }
+
+    /**
+     * Takes over blocks leased by instances no longer in the cluster.
+     *
+     * Each block goes to one of the instances calling this, labels of the
+     * blocks taken over are free until marked in use again.
+     *
+     * @param members instances in the cluster
+     * @return number of blocks taken over by this instance
+     */
+    public int takeOverLeases(Set<NodeId> members) {
+        int taken = 0;
+        for (Map.Entry<String, Versioned<NodeId>> lease : leases.entrySet()) {
+            Versioned<NodeId> owner = lease.getValue();
+            if (!members.contains(owner.value())
+                    && leases.replace(lease.getKey(), owner.version(), localNodeId)) {
+                adoptBlock(lease.getKey());
+                taken++;
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Frees every label and gives every block of this instance back.
+     */
+    @Override
+    public void clear() {
+        super.clear();
+        leases.entrySet().stream()
+                .filter(lease -> localNodeId.equals(lease.getValue().value()))
+                .forEach(lease -> leases.remove(lease.getKey(), lease.getValue().version()));
+    }
+}
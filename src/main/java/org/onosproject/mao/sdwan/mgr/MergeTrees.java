@@ -0,0 +1,413 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onlab.packet.EthType;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.onlab.packet.MplsLabel.mplsLabel;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
+
+/**
+ * Multipoint-to-point trees of tunnels merged toward a shared egress site.
+ *
+ * Tunnels to the same egress site and ethertype share one tree rooted at the
+ * egress device. Once a route reaches a device of the tree it follows the tree,
+ * so every device holds one label and one rule per tree, whatever the number
+ * of tunnels crossing it. Each tunnel only adds the hops before it joins.
+ *
+ * Tree nodes are reference counted by the tunnels crossing them. Nodes no
+ * tunnel crosses stay in place until the next diff, so a tunnel leaving and
+ * joining again in between keeps the labels of the devices it still crosses.
+ */
+public class MergeTrees {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ApplicationId appId;
+    private final int priority;
+    private final DeviceLabelSpaces labelSpaces;
+    private final TablePipeline pipeline;
+
+    private final Map<Key, Tree> trees = new HashMap<>();
+    // FlowRule equality covers match only
+    private final Map<FlowRule, FlowRule> installed = new HashMap<>();
+    private final Map<DeviceId, List<FlowRule>> deviceRules = new HashMap<>();
+
+
+    /**
+     * Creates merge trees taking labels out of the given label spaces.
+     *
+     * @param appId application installing the tree rules
+     * @param priority priority of tree rules
+     * @param labelSpaces local label spaces of devices
+     */
+    public MergeTrees(ApplicationId appId, int priority, DeviceLabelSpaces labelSpaces) {
+        this(appId, priority, labelSpaces, TablePipeline.singleTable());
+    }
+
+    /**
+     * Creates merge trees taking labels out of the given label spaces, with rules in label tables.
+     *
+     * @param appId application installing the tree rules
+     * @param priority priority of tree rules
+     * @param labelSpaces local label spaces of devices
+     * @param pipeline tables of devices
+     */
+    public MergeTrees(ApplicationId appId, int priority, DeviceLabelSpaces labelSpaces, TablePipeline pipeline) {
+        this.appId = appId;
+        this.priority = priority;
+        this.labelSpaces = labelSpaces;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Adds a route to the tree of the egress site.
+     *
+     * The route follows the links until it reaches a device some other tunnel
+     * of the tree crosses, from there on it follows the tree.
+     *
+     * @param egress egress site, root of the tree
+     * @param ethertypeCode ethertype carried by the tree
+     * @param links route from ingress device to egress device
+     * @return links of the route actually taken, or null if a label space is exhausted
+     */
+    public synchronized List<Link> attach(ConnectPoint egress, int ethertypeCode, List<Link> links) {
+        checkArgument(!links.isEmpty(), "Ingress and egress are on the same device");
+        checkArgument(links.get(links.size() - 1).dst().deviceId().equals(egress.deviceId()),
+                "Route doesn't end at egress device");
+
+        Tree tree = trees.computeIfAbsent(new Key(egress, ethertypeCode), Tree::new);
+
+        List<Link> route = new ArrayList<>();
+        DeviceId deviceId = links.get(0).src().deviceId();
+        boolean joined = false;
+        for (int i = 0; !deviceId.equals(egress.deviceId()); ) {
+            Node node = tree.nodes.get(deviceId);
+            joined |= node != null && node.refs > 0;
+            Link next;
+            if (joined) {
+                next = node.next;
+            } else {
+                // a device no tunnel crosses any more is taken over with its label
+                next = links.get(i++);
+                if (node == null) {
+                    node = new Node();
+                    tree.nodes.put(deviceId, node);
+                }
+                node.next = next;
+            }
+            route.add(next);
+            deviceId = next.dst().deviceId();
+        }
+        tree.nodes.computeIfAbsent(egress.deviceId(), id -> new Node());
+
+        // labels first, so an exhausted label space leaves reference counts untouched
+        for (Link link : route) {
+            DeviceId receiver = link.dst().deviceId();
+            Node node = tree.nodes.get(receiver);
+            if (node.label == INVALID_LABEL) {
+                node.label = labelSpaces.allocate(receiver);
+                if (node.label == INVALID_LABEL) {
+                    log.warn("Label space of {} is exhausted, {} labels in use.",
+                            receiver, labelSpaces.usedCount(receiver));
+                    return null;
+                }
+            }
+        }
+
+        tree.nodes.get(route.get(0).src().deviceId()).refs++;
+        for (Link link : route) {
+            Node node = tree.nodes.get(link.dst().deviceId());
+            node.refs++;
+            node.transitRefs++;
+        }
+        return route;
+    }
+
+    /**
+     * Removes a route returned by attach from the tree of the egress site.
+     *
+     * @param egress egress site, root of the tree
+     * @param ethertypeCode ethertype carried by the tree
+     * @param route links of the route
+     */
+    public synchronized void detach(ConnectPoint egress, int ethertypeCode, List<Link> route) {
+        Tree tree = trees.get(new Key(egress, ethertypeCode));
+        if (tree == null || route.isEmpty()) {
+            return;
+        }
+        Node ingress = tree.nodes.get(route.get(0).src().deviceId());
+        if (ingress != null && ingress.refs > 0) {
+            ingress.refs--;
+        }
+        for (Link link : route) {
+            Node node = tree.nodes.get(link.dst().deviceId());
+            if (node != null && node.transitRefs > 0) {
+                node.refs--;
+                node.transitRefs--;
+            }
+        }
+    }
+
+    /**
+     * Adds a route with known labels to the tree of the egress site, e.g. the
+     * route of a tunnel stored before a restart or created by another instance.
+     *
+     * Nodes which already have a label keep it, the others take the given one,
+     * also in the label space of their device if it is free there.
+     *
+     * @param egress egress site, root of the tree
+     * @param ethertypeCode ethertype carried by the tree
+     * @param route links of the route, as returned by attach
+     * @param labels label each link is received with, in order of links
+     */
+    public synchronized void restore(ConnectPoint egress, int ethertypeCode, List<Link> route,
+                                     List<Integer> labels) {
+        checkArgument(route.size() == labels.size(), "Route has %s links but %s labels",
+                route.size(), labels.size());
+        if (route.isEmpty()) {
+            return;
+        }
+
+        Tree tree = trees.computeIfAbsent(new Key(egress, ethertypeCode), Tree::new);
+        for (int i = 0; i < route.size(); i++) {
+            Link link = route.get(i);
+            Node from = tree.nodes.computeIfAbsent(link.src().deviceId(), id -> new Node());
+            if (from.refs == 0) {
+                from.next = link;
+            }
+            Node to = tree.nodes.computeIfAbsent(link.dst().deviceId(), id -> new Node());
+            if (to.label == INVALID_LABEL) {
+                to.label = labels.get(i);
+                labelSpaces.allocate(link.dst().deviceId(), to.label);
+            }
+        }
+
+        tree.nodes.get(route.get(0).src().deviceId()).refs++;
+        for (Link link : route) {
+            Node node = tree.nodes.get(link.dst().deviceId());
+            node.refs++;
+            node.transitRefs++;
+        }
+    }
+
+    /**
+     * Returns label the device receives traffic of the tree with.
+     *
+     * @param egress egress site, root of the tree
+     * @param ethertypeCode ethertype carried by the tree
+     * @param deviceId device of the tree
+     * @return label, or INVALID_LABEL if the device receives no traffic of the tree
+     */
+    public synchronized int label(ConnectPoint egress, int ethertypeCode, DeviceId deviceId) {
+        Tree tree = trees.get(new Key(egress, ethertypeCode));
+        Node node = tree == null ? null : tree.nodes.get(deviceId);
+        return node == null ? INVALID_LABEL : node.label;
+    }
+
+    /**
+     * Prunes nodes no tunnel crosses and brings rules of every tree in line with the trees.
+     *
+     * @param ops filled with rules to add or modify
+     * @param staleFlows filled with rules to remove once changed rules are in place
+     * @param staleLabels filled with labels of pruned nodes, to release once their rules are removed
+     * @return number of rules changed or stale
+     */
+    public synchronized int diff(FlowRuleOperations.Builder ops, List<FlowRule> staleFlows,
+                                 Map<DeviceId, List<Integer>> staleLabels) {
+
+        Map<FlowRule, FlowRule> desired = new HashMap<>();
+        Iterator<Tree> treeIterator = trees.values().iterator();
+        while (treeIterator.hasNext()) {
+            Tree tree = treeIterator.next();
+            Iterator<Map.Entry<DeviceId, Node>> it = tree.nodes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<DeviceId, Node> entry = it.next();
+                Node node = entry.getValue();
+                if (node.refs == 0) {
+                    if (node.label != INVALID_LABEL) {
+                        staleLabels.computeIfAbsent(entry.getKey(), id -> new ArrayList<>()).add(node.label);
+                    }
+                    it.remove();
+                } else if (node.transitRefs > 0) {
+                    FlowRule rule = treeRule(tree, entry.getKey(), node);
+                    desired.put(rule, rule);
+                }
+            }
+            if (tree.nodes.isEmpty()) {
+                treeIterator.remove();
+            }
+        }
+
+        int changes = 0;
+        for (FlowRule rule : desired.values()) {
+            FlowRule old = installed.get(rule);
+            if (old == null) {
+                ops.add(rule);
+                changes++;
+            } else if (!old.treatment().equals(rule.treatment())) {
+                ops.modify(rule);
+                changes++;
+            }
+        }
+        for (FlowRule old : installed.values()) {
+            if (!desired.containsKey(old)) {
+                staleFlows.add(old);
+                changes++;
+            }
+        }
+        installed.clear();
+        installed.putAll(desired);
+        indexRules();
+        return changes;
+    }
+
+    private FlowRule treeRule(Tree tree, DeviceId deviceId, Node node) {
+
+        TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder().immediate();
+        if (node.next == null) {
+            treatment.popMpls(new EthType(tree.key.ethertypeCode))
+                    .setOutput(tree.key.egress.port());
+        } else {
+            int outLabel = tree.nodes.get(node.next.dst().deviceId()).label;
+            if (outLabel != node.label) {
+                treatment.setMpls(mplsLabel(outLabel));
+            }
+            treatment.setOutput(node.next.src().port());
+        }
+
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(pipeline.labelTable(deviceId))
+                .fromApp(appId)
+                .makePermanent()
+                .withPriority(priority)
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthType(EthType.EtherType.MPLS_UNICAST.ethType().toShort())
+                        .matchMplsLabel(mplsLabel(node.label))
+                        .build())
+                .withTreatment(treatment.build())
+                .build();
+    }
+
+    /**
+     * Returns number of trees with at least one tunnel.
+     *
+     * @return number of trees
+     */
+    public synchronized int size() {
+        return (int) trees.values().stream()
+                .filter(tree -> tree.nodes.values().stream().anyMatch(node -> node.refs > 0))
+                .count();
+    }
+
+    private void indexRules() {
+        deviceRules.clear();
+        installed.values().forEach(rule ->
+                deviceRules.computeIfAbsent(rule.deviceId(), id -> new ArrayList<>()).add(rule));
+    }
+
+    /**
+     * Returns tree rules installed on the device.
+     *
+     * @param deviceId device
+     * @return rules, empty if none
+     */
+    public synchronized List<FlowRule> installedRules(DeviceId deviceId) {
+        List<FlowRule> rules = deviceRules.get(deviceId);
+        return rules == null ? new ArrayList<>() : new ArrayList<>(rules);
+    }
+
+    /**
+     * Forgets trees and rules, e.g. after the caller removed all rules of the application.
+     */
+    public synchronized void clear() {
+        trees.clear();
+        installed.clear();
+        deviceRules.clear();
+    }
+
+
+
+    private static final class Key {
+
+        private final ConnectPoint egress;
+        private final int ethertypeCode;
+
+        private Key(ConnectPoint egress, int ethertypeCode) {
+            this.egress = egress;
+            this.ethertypeCode = ethertypeCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return ethertypeCode == that.ethertypeCode && egress.equals(that.egress);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(egress, ethertypeCode);
+        }
+    }
+
+    private static final class Tree {
+
+        private final Key key;
+        private final Map<DeviceId, Node> nodes = new HashMap<>();
+
+        private Tree(Key key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Device of a tree, next being null at the root.
+     */
+    private static final class Node {
+
+        private Link next;
+        private int label = INVALID_LABEL;
+        private int refs;          // tunnels crossing the device
+        private int transitRefs;   // tunnels receiving on the device, i.e. not entering there
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.DisjointPath;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.Path;
+import org.onosproject.net.topology.LinkWeigher;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyService;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * LRU cache of computed paths, keyed by (src, dst, weigher) and bound to one topology.
+ *
+ * Lookups against any other topology than the bound one bypass the cache.
+ * On topology change the owner rebinds the cache to the new topology,
+ * dropping only entries crossing removed links or devices when nothing was added.
+ *
+ * Weighers are compared by equals, so only pass weighers which are shared
+ * between lookups, e.g. not one built around a given primary path.
+ */
+public class PathCache {
+
+    private final TopologyService topologyService;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxSize;
+    private Topology topology;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+
+    public PathCache(TopologyService topologyService, int maxSize) {
+        checkArgument(maxSize >= 0, "Invalid path cache size %s", maxSize);
+        this.topologyService = topologyService;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns shortest paths by hop count.
+     *
+     * @param topology topology snapshot to compute against
+     * @param src source device
+     * @param dst destination device
+     * @return paths, empty if none
+     */
+    public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst) {
+        return lookup(topology, new Key(src, dst, null, false),
+                () -> topologyService.getPaths(topology, src, dst));
+    }
+
+    /**
+     * Returns shortest paths under the weigher.
+     *
+     * @param topology topology snapshot to compute against
+     * @param src source device
+     * @param dst destination device
+     * @param weigher link weigher, compared by equals
+     * @return paths, empty if none
+     */
+    public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst, LinkWeigher weigher) {
+        return lookup(topology, new Key(src, dst, weigher, false),
+                () -> topologyService.getPaths(topology, src, dst, weigher));
+    }
+
+    /**
+     * Returns shortest pairs of disjoint paths by hop count.
+     *
+     * @param topology topology snapshot to compute against
+     * @param src source device
+     * @param dst destination device
+     * @return disjoint paths, empty if none
+     */
+    @SuppressWarnings("unchecked")
+    public Set<DisjointPath> getDisjointPaths(Topology topology, DeviceId src, DeviceId dst) {
+        return (Set<DisjointPath>) (Set<? extends Path>) lookup(topology, new Key(src, dst, null, true),
+                () -> topologyService.getDisjointPaths(topology, src, dst));
+    }
+
+    private Set<Path> lookup(Topology topology, Key key, Supplier<Set<? extends Path>> compute) {
+
+        synchronized (this) {
+            if (topology == this.topology) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    hits.incrementAndGet();
+                    return entry.paths;
+                }
+            }
+        }
+        misses.incrementAndGet();
+
+        // graph search runs outside of the lock
+        Set<Path> paths = ImmutableSet.copyOf(compute.get());
+
+        synchronized (this) {
+            if (topology == this.topology && maxSize > 0) {
+                entries.put(key, new Entry(paths));
+                trim();
+            }
+        }
+        return paths;
+    }
+
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Binds the cache to a new topology, dropping every entry.
+     *
+     * @param topology new topology
+     */
+    public synchronized void bind(Topology topology) {
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+        this.topology = topology;
+    }
+
+    /**
+     * Binds the cache to a topology which only lost the given links and devices.
+     *
+     * Shortest paths avoiding every lost element are still shortest, so only
+     * entries crossing one of them are dropped.
+     *
+     * @param topology new topology
+     * @param lostLinks links gone or down
+     * @param lostDevices devices gone or unavailable
+     */
+    public synchronized void bind(Topology topology, Set<LinkKey> lostLinks, Set<DeviceId> lostDevices) {
+        Predicate<Link> lost = link -> lostLinks.contains(LinkKey.linkKey(link))
+                || lostDevices.contains(link.src().deviceId())
+                || lostDevices.contains(link.dst().deviceId());
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().crosses(lost)) {
+                it.remove();
+                invalidations.incrementAndGet();
+            }
+        }
+        this.topology = topology;
+    }
+
+    public synchronized void resize(int maxSize) {
+        checkArgument(maxSize >= 0, "Invalid path cache size %s", maxSize);
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns counters of the cache, in a fixed order.
+     *
+     * @return name to value
+     */
+    public Map<String, Long> statistics() {
+        return ImmutableMap.<String, Long>builder()
+                .put("size", (long) size())
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("evictions", evictions.get())
+                .put("invalidations", invalidations.get())
+                .build();
+    }
+
+
+
+    private static final class Key {
+
+        private final DeviceId src;
+        private final DeviceId dst;
+        private final LinkWeigher weigher;
+        private final boolean disjoint;
+
+        private Key(DeviceId src, DeviceId dst, LinkWeigher weigher, boolean disjoint) {
+            this.src = src;
+            this.dst = dst;
+            this.weigher = weigher;
+            this.disjoint = disjoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return disjoint == that.disjoint && src.equals(that.src) && dst.equals(that.dst)
+                    && Objects.equals(weigher, that.weigher);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(src, dst, weigher, disjoint);
+        }
+    }
+
+    private static final class Entry {
+
+        private final Set<Path> paths;
+        private final Set<Link> links = new HashSet<>();
+
+        private Entry(Set<Path> paths) {
+            this.paths = paths;
+            for (Path path : paths) {
+                links.addAll(path.links());
+                if (path instanceof DisjointPath && ((DisjointPath) path).backup() != null) {
+                    links.addAll(((DisjointPath) path).backup().links());
+                }
+            }
+        }
+
+        private boolean crosses(Predicate<Link> lost) {
+            return links.stream().anyMatch(lost);
+        }
+    }
+}
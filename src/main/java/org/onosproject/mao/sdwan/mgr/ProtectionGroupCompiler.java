@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.DefaultGroupKey;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.onlab.packet.MplsLabel.mplsLabel;
+import static org.onosproject.mao.sdwan.mgr.TunnelRuleCompiler.swapTreatment;
+
+/**
+ * Compiles the fast-failover groups of protected tunnels.
+ *
+ * In each direction the ingress device gets a group switching between the
+ * first hop of primary and of backup route. A primary transit device which
+ * is also a transit device of the backup route gets a group continuing on
+ * the backup route from there. Buckets watch the port they send out of.
+ *
+ * A group is numbered after a label the tunnel owns on its device, so
+ * groups of tunnels never clash: the ingress group after the label the
+ * opposite direction ends with there, a transit group after the label the
+ * device receives.
+ */
+public class ProtectionGroupCompiler {
+
+    public static final int GROUP_ID_BASE = 0x5D000000;
+
+    private final ApplicationId appId;
+
+
+    /**
+     * Creates a compiler of groups owned by the application.
+     *
+     * @param appId application owning the groups
+     */
+    public ProtectionGroupCompiler(ApplicationId appId) {
+        this.appId = appId;
+    }
+
+    /**
+     * Returns id of the protection group numbered after a label.
+     *
+     * @param ownedLabel label owned by the tunnel on the device of the group
+     * @return group id
+     */
+    public static int groupId(int ownedLabel) {
+        return GROUP_ID_BASE | ownedLabel;
+    }
+
+    /**
+     * Returns key of a group of a tunnel.
+     *
+     * @param groupId id of group
+     * @return group key
+     */
+    public static GroupKey groupKey(int groupId) {
+        return new DefaultGroupKey(ByteBuffer.allocate(4).putInt(groupId).array());
+    }
+
+    /**
+     * Returns points where each hop of path leaves its device, in direction of traffic.
+     *
+     * @param path path in forward direction
+     * @param reverse true for backward direction
+     * @return egress point of each hop
+     */
+    public static List<ConnectPoint> hopEgressPoints(Path path, boolean reverse) {
+
+        List<Link> links = path.links();
+        List<ConnectPoint> points = new ArrayList<>(links.size());
+        if (reverse) {
+            for (int i = links.size() - 1; i >= 0; i--) {
+                points.add(links.get(i).dst());
+            }
+        } else {
+            links.forEach(link -> points.add(link.src()));
+        }
+        return points;
+    }
+
+    /**
+     * Returns hop index of device as a transit device of backup route.
+     *
+     * @param backupPoints egress points of backup hops
+     * @param deviceId device
+     * @return hop index, or -1 if device is not a transit device of backup route
+     */
+    public static int backupTransitIndex(List<ConnectPoint> backupPoints, DeviceId deviceId) {
+        for (int j = 1; j < backupPoints.size(); j++) {
+            if (backupPoints.get(j).deviceId().equals(deviceId)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compiles fast-failover groups of both directions of a tunnel.
+     *
+     * @param tunnel tunnel
+     * @return group descriptions, empty if tunnel is not protected
+     */
+    public List<GroupDescription> compile(SdwanTunnel tunnel) {
+
+        List<GroupDescription> groups = new ArrayList<>();
+        if (!tunnel.isProtected()) {
+            return groups;
+        }
+
+        int hops = tunnel.getForwardPath().links().size();
+        compile(hopEgressPoints(tunnel.getForwardPath(), false), tunnel.getForwardLabels(),
+                tunnel.getBackwardLabel(hops - 1),
+                hopEgressPoints(tunnel.getBackupPath(), false), tunnel.getBackupForwardLabels(), groups);
+        compile(hopEgressPoints(tunnel.getBackwardPath(), true), tunnel.getBackwardLabels(),
+                tunnel.getForwardLabel(hops - 1),
+                hopEgressPoints(tunnel.getBackupPath(), true), tunnel.getBackupBackwardLabels(), groups);
+        return groups;
+    }
+
+    private void compile(List<ConnectPoint> primaryPoints, List<Integer> primaryLabels, int ingressOwnedLabel,
+                         List<ConnectPoint> backupPoints, List<Integer> backupLabels,
+                         List<GroupDescription> groups) {
+
+        ConnectPoint primaryOut = primaryPoints.get(0);
+        ConnectPoint backupOut = backupPoints.get(0);
+        groups.add(failoverGroup(primaryOut.deviceId(), groupId(ingressOwnedLabel),
+                DefaultTrafficTreatment.builder()
+                        .pushMpls().setMpls(mplsLabel(primaryLabels.get(0)))
+                        .setOutput(primaryOut.port())
+                        .build(), primaryOut.port(),
+                DefaultTrafficTreatment.builder()
+                        .pushMpls().setMpls(mplsLabel(backupLabels.get(0)))
+                        .setOutput(backupOut.port())
+                        .build(), backupOut.port()));
+
+        for (int i = 1; i < primaryPoints.size(); i++) {
+            int j = backupTransitIndex(backupPoints, primaryPoints.get(i).deviceId());
+            if (j < 0) {
+                continue;
+            }
+            int inLabel = primaryLabels.get(Math.min(i - 1, primaryLabels.size() - 1));
+            primaryOut = primaryPoints.get(i);
+            backupOut = backupPoints.get(j);
+            groups.add(failoverGroup(primaryOut.deviceId(), groupId(inLabel),
+                    swapTreatment(inLabel, primaryLabels.get(Math.min(i, primaryLabels.size() - 1)),
+                            primaryOut.port()), primaryOut.port(),
+                    swapTreatment(inLabel, backupLabels.get(j), backupOut.port()), backupOut.port()));
+        }
+    }
+
+    private GroupDescription failoverGroup(DeviceId deviceId, int groupId,
+                                           TrafficTreatment primary, PortNumber primaryPort,
+                                           TrafficTreatment backup, PortNumber backupPort) {
+
+        List<GroupBucket> buckets = new ArrayList<>();
+        buckets.add(DefaultGroupBucket.createFailoverGroupBucket(primary, primaryPort, null));
+        buckets.add(DefaultGroupBucket.createFailoverGroupBucket(backup, backupPort, null));
+
+        return new DefaultGroupDescription(deviceId, GroupDescription.Type.FAILOVER,
+                new GroupBuckets(buckets), groupKey(groupId), groupId, appId);
+    }
+}
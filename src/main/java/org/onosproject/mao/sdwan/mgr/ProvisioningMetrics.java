@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onosproject.mao.sdwan.api.SdwanTunnelStore;
+import org.onosproject.mao.sdwan.api.VpnResult;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import static org.onosproject.mao.sdwan.api.SdwanService.METRICS_COMPONENT;
+
+/**
+ * Metrics of tunnel provisioning, registered with the metrics service.
+ *
+ * Each stage of provisioning has a timer. Path computation and label
+ * allocation are timed per call, so a protected tunnel counts several times;
+ * rule compilation is timed per tunnel and install per batch of rules, from
+ * submission until devices confirm or reject it.
+ */
+public class ProvisioningMetrics {
+
+    public static final String PROVISIONING = "provisioning";
+    public static final String FAILURES = "failures";
+    public static final String STATE = "state";
+
+    /**
+     * Stage of provisioning of a tunnel.
+     */
+    public enum Stage {
+        PATH("pathComputation"),
+        LABEL("labelAllocation"),
+        COMPILE("ruleCompilation"),
+        INSTALL("flowInstall");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private final MetricsService metricsService;
+    private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+    private final Map<VpnResult.Status, Counter> failures = new EnumMap<>(VpnResult.Status.class);
+    private final Counter created;
+    private final Histogram pathHops;
+    private final Histogram tunnelRules;
+    private final Histogram batchRules;
+
+
+    /**
+     * Registers provisioning metrics.
+     *
+     * @param metricsService metrics service
+     * @param labelSpaces label spaces of devices
+     * @param labelsPerDevice labels a device can hand out, for utilization
+     * @param tunnelStore tunnel store
+     */
+    public ProvisioningMetrics(MetricsService metricsService, DeviceLabelSpaces labelSpaces, int labelsPerDevice,
+                               SdwanTunnelStore tunnelStore) {
+
+        this.metricsService = metricsService;
+        MetricsComponent component = metricsService.registerComponent(METRICS_COMPONENT);
+        MetricsFeature provisioning = component.registerFeature(PROVISIONING);
+        MetricsFeature failed = component.registerFeature(FAILURES);
+        MetricsFeature state = component.registerFeature(STATE);
+
+        for (Stage stage : Stage.values()) {
+            timers.put(stage, metricsService.createTimer(component, provisioning, stage.metricName));
+        }
+        created = metricsService.createCounter(component, provisioning, "tunnelsCreated");
+        pathHops = metricsService.createHistogram(component, provisioning, "pathHops");
+        tunnelRules = metricsService.createHistogram(component, provisioning, "tunnelRules");
+        batchRules = metricsService.createHistogram(component, provisioning, "batchRules");
+
+        for (VpnResult.Status status : VpnResult.Status.values()) {
+            if (status != VpnResult.Status.OK) {
+                failures.put(status, metricsService.createCounter(component, failed, status.name()));
+            }
+        }
+
+        metricsService.registerMetric(component, state, "labelsInUse",
+                (Gauge<Integer>) () -> labelSpaces.usedCounts().values().stream().mapToInt(Integer::intValue).sum());
+        // the fullest device runs out of labels first
+        metricsService.registerMetric(component, state, "maxLabelUtilization",
+                (Gauge<Double>) () -> labelSpaces.usedCounts().values().stream()
+                        .mapToDouble(used -> (double) used / labelsPerDevice).max().orElse(0));
+        metricsService.registerMetric(component, state, "tunnels",
+                (Gauge<Integer>) tunnelStore::getTunnelCount);
+        metricsService.registerMetric(component, state, "tenantTunnels",
+                (Gauge<Map<String, Integer>>) () -> {
+                    Map<String, Integer> counts = new TreeMap<>();
+                    tunnelStore.getTenants().forEach(
+                            tenant -> counts.put(tenant, tunnelStore.getTenantTunnels(tenant).size()));
+                    return counts;
+                });
+    }
+
+    /**
+     * Times a stage.
+     *
+     * @param stage stage
+     * @param work work of stage
+     * @param <T> type of result
+     * @return result of work
+     */
+    public <T> T time(Stage stage, Supplier<T> work) {
+        Timer.Context context = timers.get(stage).time();
+        try {
+            return work.get();
+        } finally {
+            context.stop();
+        }
+    }
+
+    /**
+     * Starts timing a stage ending elsewhere, e.g. in a callback.
+     *
+     * @param stage stage
+     * @return context to stop once the stage is done
+     */
+    public Timer.Context start(Stage stage) {
+        return timers.get(stage).time();
+    }
+
+    /**
+     * Records a tunnel whose rules are about to be submitted.
+     *
+     * @param hops hops of primary route
+     * @param rules rules of tunnel
+     */
+    public void tunnelCreated(int hops, int rules) {
+        created.inc();
+        pathHops.update(hops);
+        tunnelRules.update(rules);
+    }
+
+    public void batchSubmitted(int rules) {
+        batchRules.update(rules);
+    }
+
+    /**
+     * Counts a request that failed.
+     *
+     * @param status reason of failure
+     */
+    public void failed(VpnResult.Status status) {
+        Counter counter = failures.get(status);
+        if (counter != null) {
+            counter.inc();
+        }
+    }
+
+    /**
+     * Removes every metric of the app from the metrics service.
+     */
+    public void remove() {
+        String prefix = METRICS_COMPONENT + ".";
+        metricsService.removeMatching((name, metric) -> name.startsWith(prefix));
+    }
+}
@@ -15,27 +15,86 @@
  */
 package org.onosproject.mao.sdwan.mgr;
 
-import org.apache.commons.collections.MultiMap;
-import org.apache.commons.collections.map.MultiValueMap;
+import com.codahale.metrics.Timer;
 import org.apache.felix.scr.annotations.*;
-import org.onlab.packet.EthType;
+import org.onlab.graph.ScalarWeight;
+import org.onlab.metrics.MetricsService;
 import org.onlab.packet.MplsLabel;
+import org.onlab.packet.VlanId;
+import org.onlab.util.Bandwidth;
+import org.onosproject.app.ApplicationService;
+import org.onosproject.app.ApplicationState;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.cluster.ClusterEvent;
+import org.onosproject.cluster.ClusterEventListener;
+import org.onosproject.cluster.ClusterService;
+import org.onosproject.cluster.ControllerNode;
+import org.onosproject.cluster.NodeId;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
+import org.onosproject.mao.sdwan.api.ProtectionType;
+import org.onosproject.mao.sdwan.api.RoutingMode;
 import org.onosproject.mao.sdwan.api.SdwanService;
 import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.api.SdwanTunnelEvent;
+import org.onosproject.mao.sdwan.api.SdwanTunnelStore;
+import org.onosproject.mao.sdwan.api.SdwanTunnelStoreDelegate;
+import org.onosproject.mao.sdwan.api.VpnException;
+import org.onosproject.mao.sdwan.api.VpnRequest;
+import org.onosproject.mao.sdwan.api.VpnResult;
+import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.*;
+import org.onosproject.event.Event;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.driver.DriverService;
 import org.onosproject.net.flow.*;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkService;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
 import org.onosproject.net.topology.TopologyService;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.Serializer;
+import org.onosproject.store.service.StorageService;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static org.onlab.packet.MplsLabel.mplsLabel;
+import static org.onlab.util.Tools.get;
+import static org.onlab.util.Tools.groupedThreads;
 import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
 import static org.onosproject.mao.sdwan.api.SdwanTunnel.MAX_LABEL;
+import static org.onosproject.mao.sdwan.mgr.DeviceLabelSpaces.MAX_RESERVED_LABEL;
+import static org.onosproject.mao.sdwan.mgr.ProtectionGroupCompiler.backupTransitIndex;
+import static org.onosproject.mao.sdwan.mgr.ProtectionGroupCompiler.groupKey;
+import static org.onosproject.mao.sdwan.mgr.ProtectionGroupCompiler.hopEgressPoints;
+import static org.onosproject.mao.sdwan.mgr.TunnelRuleCompiler.groupTreatment;
+import static org.onosproject.mao.sdwan.mgr.TunnelRuleCompiler.swapTreatment;
 import static org.onosproject.net.DeviceId.deviceId;
 import static org.onosproject.net.PortNumber.portNumber;
 
@@ -49,6 +108,62 @@ public class SdwanManager implements SdwanService {
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final int FLOWRULE_PRIORITY = 55555;
 
+    // ECMP groups are numbered after a label owned by the tunnel on that device, as protection groups
+    private static final int ECMP_GROUP_ID_BASE = 0x5E000000;
+
+    // global block of node SIDs, kept out of every local label space
+    private static final int SRGB_BASE = 16000;
+    private static final int SRGB_SIZE = 8000;
+    // labels a device hands out to tunnels
+    private static final int LOCAL_LABELS = MAX_LABEL - MAX_RESERVED_LABEL - SRGB_SIZE;
+
+    private static final String LABEL_LEASES = "onos-sdwan-label-leases";
+    private static final String NODE_SIDS = "onos-sdwan-node-sids";
+    private static final String SID_DEVICES = "onos-sdwan-sid-devices";
+    private static final String SNAPSHOT_FILE = "sdwan/tunnels.snapshot";
+
+    private static final String DEFAULT_PROTECTION = "NONE";
+    @Property(name = "defaultProtection", value = DEFAULT_PROTECTION,
+            label = "Protection of tunnels of tenants without own setting: NONE, LINK_DISJOINT or NODE_DISJOINT")
+    private ProtectionType defaultProtection = ProtectionType.valueOf(DEFAULT_PROTECTION);
+
+    private static final String DEFAULT_ROUTING_MODE = "SHORTEST";
+    @Property(name = "defaultRoutingMode", value = DEFAULT_ROUTING_MODE,
+            label = "Routing of tunnels of tenants without own setting: SHORTEST, ECMP, SEGMENT_ROUTING or MERGED")
+    private RoutingMode defaultRoutingMode = RoutingMode.valueOf(DEFAULT_ROUTING_MODE);
+
+    private static final int DEFAULT_ECMP_MAX_PATHS = 4;
+    @Property(name = "ecmpMaxPaths", intValue = DEFAULT_ECMP_MAX_PATHS,
+            label = "Max number of equal-cost routes an ECMP tunnel is spread over")
+    private int ecmpMaxPaths = DEFAULT_ECMP_MAX_PATHS;
+
+    private static final int DEFAULT_PATH_CACHE_SIZE = 4096;
+    @Property(name = "pathCacheSize", intValue = DEFAULT_PATH_CACHE_SIZE,
+            label = "Max number of (src, dst) path computations kept, 0 to disable the cache")
+    private int pathCacheSize = DEFAULT_PATH_CACHE_SIZE;
+
+    private static final int DEFAULT_RECONCILE_INTERVAL = 60;
+    @Property(name = "reconcileInterval", intValue = DEFAULT_RECONCILE_INTERVAL,
+            label = "Seconds between checks of rules on devices against tunnels, 0 to disable")
+    private int reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+
+    private static final boolean DEFAULT_KEEP_RULES = false;
+    @Property(name = "keepRulesOnDeactivate", boolValue = DEFAULT_KEEP_RULES,
+            label = "Leave tunnels and their rules in place when the application is deactivated, "
+                    + "to be taken back on activation without cutting traffic")
+    private boolean keepRulesOnDeactivate = DEFAULT_KEEP_RULES;
+
+    private static final int DEFAULT_CLASSIFIER_TABLE = 0;
+    @Property(name = "classifierTable", intValue = DEFAULT_CLASSIFIER_TABLE,
+            label = "Table classifying traffic entering tunnels, unless the driver sets sdwan.classifierTable")
+    private int classifierTable = DEFAULT_CLASSIFIER_TABLE;
+
+    private static final int DEFAULT_LABEL_TABLE = 0;
+    @Property(name = "labelTable", intValue = DEFAULT_LABEL_TABLE,
+            label = "Exact-match table switching labels, the classifier table for a single table pipeline, "
+                    + "unless the driver sets sdwan.labelTable")
+    private int labelTable = DEFAULT_LABEL_TABLE;
+
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected FlowRuleService flowRuleService;
@@ -62,427 +177,1835 @@ public class SdwanManager implements SdwanService {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected CoreService coreService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected GroupService groupService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected LinkService linkService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ComponentConfigService cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected SdwanTunnelStore tunnelStore;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected StorageService storageService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ClusterService clusterService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ApplicationService applicationService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MetricsService metricsService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected DriverService driverService;
+
     private ApplicationId appId;
-    private MultiMap vpnDB = new MultiValueMap();
 
-    private Random labelGenerator = new Random();
-    private Set<Integer> usingLabels = new HashSet<>();
+    private LeasedLabelSpaces labelSpaces;
+    private Map<String, ProtectionType> tenantProtection = new ConcurrentHashMap<>();
+    private Map<String, RoutingMode> tenantRoutingMode = new ConcurrentHashMap<>();
+    private PathCache pathCache;
+    private SegmentRoutingFabric srFabric;
+    private MergeTrees mergeTrees;
+    private ProvisioningMetrics metrics;
+    private FlowReconciler reconciler;
+    private File snapshotFile;
+    // a snapshot that can't be read may have held tunnels whose rules are still on devices
+    private volatile boolean keepOrphans;
+    // rules of each tunnel as installed, tagged with the cookie of the tunnel
+    private final Map<Long, List<FlowRule>> installedFlows = new ConcurrentHashMap<>();
+    private BandwidthLedger bandwidthLedger = new BandwidthLedger(this::linkCapacity);
+    // VLAN of each tunnel at its sites, claimed for every request before it is routed
+    private final SiteVlans siteVlans = new SiteVlans();
+
+    private TablePipeline pipeline;
+    private TunnelRuleCompiler ruleCompiler;
+    private ProtectionGroupCompiler protectionGroups;
+    private final TopologyListener topologyListener = new InternalTopologyListener();
+    private final SdwanTunnelStoreDelegate storeDelegate = new InternalStoreDelegate();
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final ClusterEventListener clusterListener = new InternalClusterListener();
+    private ScheduledExecutorService rerouteExecutor;
+    // routes of a tenant's site pairs are computed in parallel, the graph search is read only
+    private ForkJoinPool pathPool;
+    private ScheduledFuture<?> reconcileTask;
 
 
     @Activate
-    public void activate() {
+    public void activate(ComponentContext context) {
 
         appId = coreService.registerApplication("Mao.SDWAN");
 
-        log.info("Started");
+        pathCache = new PathCache(topologyService, pathCacheSize);
+        pathCache.bind(topologyService.currentTopology());
+
+        // every instance hands out labels of its own blocks, leases survive restarts
+        labelSpaces = new LeasedLabelSpaces(storageService.<String, NodeId>consistentMapBuilder()
+                .withName(LABEL_LEASES)
+                .withSerializer(Serializer.using(KryoNamespaces.API))
+                .build(), clusterService.getLocalNode().id());
+        labelSpaces.reserveGlobally(SRGB_BASE, SRGB_BASE + SRGB_SIZE - 1);
+        // labelled traffic jumps to the label table below the priority of tunnel rules
+        pipeline = new TablePipeline(appId, FLOWRULE_PRIORITY - 1, driverService);
+        ruleCompiler = new TunnelRuleCompiler(FLOWRULE_PRIORITY, pipeline);
+        protectionGroups = new ProtectionGroupCompiler(appId);
+        // every instance numbers devices alike, each one pushes SID rules to devices it masters
+        srFabric = new DistributedSegmentRoutingFabric(appId, FLOWRULE_PRIORITY, SRGB_BASE, SRGB_SIZE,
+                flowRuleService, topologyService, pipeline,
+                storageService.<DeviceId, Integer>consistentMapBuilder()
+                        .withName(NODE_SIDS)
+                        .withSerializer(Serializer.using(KryoNamespaces.API))
+                        .build(),
+                storageService.<Integer, DeviceId>consistentMapBuilder()
+                        .withName(SID_DEVICES)
+                        .withSerializer(Serializer.using(KryoNamespaces.API))
+                        .build(),
+                mastershipService);
+        mergeTrees = new MergeTrees(appId, FLOWRULE_PRIORITY, labelSpaces, pipeline);
+        metrics = new ProvisioningMetrics(metricsService, labelSpaces, LOCAL_LABELS, tunnelStore);
+        reconciler = new FlowReconciler(appId, flowRuleService, this::expectedRules);
+
+        // reconciling and deletes run here too, in line with reroutes
+        rerouteExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("onos/sdwan", "reroute", log));
+        pathPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        cfgService.registerProperties(getClass());
+        modified(context);
+        scheduleReconcile();
+
+        // tunnels of the cluster, including those this instance made before a restart
+        snapshotFile = new File(System.getProperty("karaf.data", "data"), SNAPSHOT_FILE);
+        tunnelStore.setDelegate(storeDelegate);
+        restoreSnapshot();
+        tunnelStore.getTunnels().forEach(this::adoptTunnel);
+        updateMergeTrees();
+        // instances may have left the cluster while this one was down
+        rerouteExecutor.execute(this::takeOverLabelLeases);
+        // rules of devices in line with tunnels taken over, jump rules of the pipeline too
+        rerouteExecutor.execute(this::reconcileDevices);
+
+        topologyService.addListener(topologyListener);
+        deviceService.addListener(deviceListener);
+        clusterService.addListener(clusterListener);
+
+        log.info("Started, {} tunnels in cluster", tunnelStore.getTunnelCount());
     }
 
     @Deactivate
     public void deactivate() {
 
-        flowRuleService.removeFlowRulesById(appId);
+        cfgService.unregisterProperties(getClass(), false);
+
+        topologyService.removeListener(topologyListener);
+        deviceService.removeListener(deviceListener);
+        clusterService.removeListener(clusterListener);
+        tunnelStore.unsetDelegate(storeDelegate);
+        rerouteExecutor.shutdownNow();
+        pathPool.shutdownNow();
+
+        if(keepRulesOnDeactivate) {
+            writeSnapshot();
+        }
+
+        // application still active means only this instance goes down, the cluster keeps the tunnels
+        if(applicationService.getState(appId) == ApplicationState.ACTIVE) {
+            log.info("Leave {} tunnels to the cluster", tunnelStore.getTunnelCount());
+        } else if(keepRulesOnDeactivate) {
+            // the cluster keeps the tunnels while it runs, the snapshot beyond
+            log.info("Keep {} tunnels and their rules for next activation", tunnelStore.getTunnelCount());
+        } else {
+            flowRuleService.removeFlowRulesById(appId);
+            tunnelStore.getTunnels().forEach(this::removeTunnelGroups);
+            tunnelStore.clear();
+            labelSpaces.clear();
+            if(snapshotFile.exists() && !snapshotFile.delete()) {
+                log.warn("Fail to delete tunnel snapshot {}", snapshotFile);
+            }
+        }
 
-        vpnDB.clear();
-        usingLabels.clear();
+        installedFlows.clear();
+        bandwidthLedger.clear();
+        siteVlans.clear();
+        srFabric.clear();
+        mergeTrees.clear();
+        metrics.remove();
+        log.info("Path cache {}", pathCache.statistics());
 
         log.info("Stopped");
     }
 
+    @Modified
+    public void modified(ComponentContext context) {
 
-    @Override
-    public boolean createVPN(String tenantName, String srcSite, String dstSite, int ethertypeCode) {
-
-        SdwanTunnel tunnel = generateTunnel(tenantName, srcSite, dstSite, ethertypeCode);
-        if (tunnel == null) {
-            return false;
+        if(context == null) {
+            return;
         }
 
-        if(!setupTunnelConnectivity(tunnel)) {
-            return false;
+        String protection = get(context.getProperties(), "defaultProtection");
+        if(protection != null) {
+            try {
+                defaultProtection = ProtectionType.valueOf(protection.trim().toUpperCase());
+                log.info("Default protection is {}", defaultProtection);
+            } catch (IllegalArgumentException e) {
+                log.warn("Unknown protection type {}, keep {}", protection, defaultProtection);
+            }
         }
 
-        vpnDB.put(tunnel.getTenantName(), tunnel);
+        String routingMode = get(context.getProperties(), "defaultRoutingMode");
+        if(routingMode != null) {
+            try {
+                defaultRoutingMode = RoutingMode.valueOf(routingMode.trim().toUpperCase());
+                log.info("Default routing mode is {}", defaultRoutingMode);
+            } catch (IllegalArgumentException e) {
+                log.warn("Unknown routing mode {}, keep {}", routingMode, defaultRoutingMode);
+            }
+        }
 
-        return true;
-    }
+        String maxPaths = get(context.getProperties(), "ecmpMaxPaths");
+        if(maxPaths != null) {
+            try {
+                int paths = Integer.parseInt(maxPaths.trim());
+                if(paths < 1) {
+                    throw new NumberFormatException("at least one route");
+                }
+                ecmpMaxPaths = paths;
+                log.info("ECMP tunnels take at most {} routes", ecmpMaxPaths);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid ECMP max paths {}, keep {}", maxPaths, ecmpMaxPaths);
+            }
+        }
 
-    private SdwanTunnel generateTunnel(String tenantName, String srcSite, String dstSite, int ethertypeCode) {
+        String cacheSize = get(context.getProperties(), "pathCacheSize");
+        if(cacheSize != null) {
+            try {
+                int size = Integer.parseInt(cacheSize.trim());
+                pathCache.resize(size);
+                pathCacheSize = size;
+                log.info("Path cache size is {}", pathCacheSize);
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid path cache size {}, keep {}", cacheSize, pathCacheSize);
+            }
+        }
 
-        SdwanTunnel.Builder tunnelBuilder = SdwanTunnel.builder().tenant(tenantName).networkProtocol(ethertypeCode);
+        String interval = get(context.getProperties(), "reconcileInterval");
+        if(interval != null) {
+            try {
+                int seconds = Integer.parseInt(interval.trim());
+                if(seconds < 0) {
+                    throw new NumberFormatException("negative interval");
+                }
+                if(seconds != reconcileInterval) {
+                    reconcileInterval = seconds;
+                    scheduleReconcile();
+                }
+                log.info("Reconcile rules every {} seconds", reconcileInterval);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid reconcile interval {}, keep {}", interval, reconcileInterval);
+            }
+        }
 
+        String keepRules = get(context.getProperties(), "keepRulesOnDeactivate");
+        if(keepRules != null) {
+            keepRulesOnDeactivate = Boolean.parseBoolean(keepRules.trim());
+            log.info("{} tunnels and their rules on deactivation", keepRulesOnDeactivate ? "Keep" : "Remove");
+        }
 
+        String classifier = get(context.getProperties(), "classifierTable");
+        String label = get(context.getProperties(), "labelTable");
+        if(classifier != null || label != null) {
+            try {
+                int newClassifierTable = classifier == null ? classifierTable : Integer.parseInt(classifier.trim());
+                int newLabelTable = label == null ? labelTable : Integer.parseInt(label.trim());
+                if(newClassifierTable != classifierTable || newLabelTable != labelTable) {
+                    // rules in place stay where they are, tunnels can't be split over two pipelines
+                    if(!installedFlows.isEmpty()) {
+                        log.warn("Tunnels are in place, keep classifier table {} and label table {}",
+                                classifierTable, labelTable);
+                    } else {
+                        pipeline.setTables(newClassifierTable, newLabelTable);
+                        classifierTable = newClassifierTable;
+                        labelTable = newLabelTable;
+                        log.info("Classify in table {}, switch labels in table {}", classifierTable, labelTable);
+                        rerouteExecutor.execute(this::reconcileDevices);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid tables {} and {}, keep {} and {}", classifier, label, classifierTable, labelTable);
+            }
+        }
+    }
 
-        ConnectPoint src = generateConnectPoint(srcSite);
-        ConnectPoint dst = generateConnectPoint(dstSite);
-        if(src == null || dst == null) {
-            log.warn("Source or Destination site doesn't match the scheme, e.g. of:0000000000000001/1");
-            return null;
+    private synchronized void scheduleReconcile() {
+        if(reconcileTask != null) {
+            reconcileTask.cancel(false);
+            reconcileTask = null;
         }
+        if(reconcileInterval > 0) {
+            // fixed delay, a slow sweep never runs back to back with the next one
+            reconcileTask = rerouteExecutor.scheduleWithFixedDelay(this::reconcileDevices,
+                    reconcileInterval, reconcileInterval, TimeUnit.SECONDS);
+        }
+    }
 
-        tunnelBuilder.src(src).dst(dst);
 
+    @Override
+    public boolean createVPN(String tenantName, String srcSite, String dstSite, int ethertypeCode) {
 
+        VpnRequest request = new VpnRequest(tenantName, srcSite, dstSite, ethertypeCode);
 
-        Set<Path> paths = topologyService.getPaths(topologyService.currentTopology(),
-                src.deviceId(), dst.deviceId());
-        if(paths.isEmpty()) {
-            log.warn("Can't find a route from {} to {}", src.deviceId(), dst.deviceId());
-            return null;
-        }
+        return createVPNs(Collections.singletonList(request)).get(0).isSuccess();
+    }
 
-        // TODO - make a decision that should we store Path or List<DeviceId> ?
-        // TODO - and just do it !
-        Path path = paths.iterator().next();
-        Iterator<Link> links = path.links().iterator();
-        Link firstLink = links.next();
+    @Override
+    public boolean createVPN(String tenantName, String srcSite, String dstSite, int ethertypeCode,
+                             Bandwidth bandwidth) {
 
-        List<DeviceId> forwardDevices = new ArrayList<>();
-        List<DeviceId> backwardDevices = new ArrayList<>();
+        VpnRequest request = new VpnRequest(tenantName, srcSite, dstSite, ethertypeCode, bandwidth);
 
-        forwardDevices.add(firstLink.src().deviceId());
-        forwardDevices.add(firstLink.dst().deviceId());
-        links.forEachRemaining(link -> forwardDevices.add(link.dst().deviceId()));
-        forwardDevices.forEach(dpid -> backwardDevices.add(0, dpid));
+        return createVPNs(Collections.singletonList(request)).get(0).isSuccess();
+    }
 
-        tunnelBuilder.forwardDevices(forwardDevices).backwardDevices(backwardDevices);
-        tunnelBuilder.forwardPath(path).backwardPath(path);
+    @Override
+    public List<VpnResult> createVPNs(Collection<VpnRequest> requests) {
+        return provision(requests, new HashMap<>());
+    }
 
+    @Override
+    public CompletableFuture<List<VpnResult>> createVPNsAsync(Collection<VpnRequest> requests) {
+
+        Map<SdwanTunnel, CompletableFuture<SdwanTunnel>> installed = new HashMap<>();
+        List<VpnResult> results = provision(requests, installed);
+
+        // a withdrawn tunnel fails its future, never the future of the batch
+        CompletableFuture<?>[] answered = installed.values().stream()
+                .map(future -> future.handle((tunnel, error) -> null))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(answered).thenApply(done -> {
+            List<VpnResult> installedResults = new ArrayList<>(results.size());
+            for (VpnResult result : results) {
+                CompletableFuture<SdwanTunnel> future = result.isSuccess() ? installed.get(result.getTunnel()) : null;
+                if(future != null && future.isCompletedExceptionally()) {
+                    installedResults.add(VpnResult.failure(result.getRequest(), VpnResult.Status.INSTALL_FAILED));
+                } else {
+                    installedResults.add(result);
+                }
+            }
+            return installedResults;
+        });
+    }
 
+    @Override
+    public CompletableFuture<SdwanTunnel> createVPNAsync(String tenantName, String srcSite, String dstSite,
+                                                         int ethertypeCode) {
 
-        // In present, use same route for both unidirectional tunnels.
-        int forwardLabel = newLabel();
-        int backwardLabel = newLabel();
+        VpnRequest request = new VpnRequest(tenantName, srcSite, dstSite, ethertypeCode);
+        Map<SdwanTunnel, CompletableFuture<SdwanTunnel>> installed = new HashMap<>();
 
-        if(forwardLabel == INVALID_LABEL || backwardLabel == INVALID_LABEL) {
-            log.warn("Fail to attempt to find a no-conflict tunnel label, please retry.");
-            return null;
+        VpnResult result = provision(Collections.singletonList(request), installed).get(0);
+        if(!result.isSuccess()) {
+            CompletableFuture<SdwanTunnel> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new VpnException(result.getStatus()));
+            return failed;
         }
 
-        tunnelBuilder.forwardLabel(forwardLabel).backwardLabel(backwardLabel);
-
+        return installed.get(result.getTunnel());
+    }
 
+    @Override
+    public boolean deleteVPN(long tunnelId) {
+        return deleteTunnels(Collections.singletonList(tunnelId)) == 1;
+    }
 
-        return tunnelBuilder.build();
+    @Override
+    public int deleteVPNs(Collection<Long> tunnelIds) {
+        return deleteTunnels(tunnelIds);
     }
 
-    private boolean setupTunnelConnectivity(SdwanTunnel tunnel) {
+    @Override
+    public int deleteTenant(String tenantName) {
+        List<Long> tunnelIds = new ArrayList<>();
+        tunnelStore.getTenantTunnels(tenantName).forEach(tunnel -> tunnelIds.add(tunnel.getTunnelId()));
+        return deleteTunnels(tunnelIds);
+    }
 
-        if(!setupForwardPathConnectivity(tunnel)) {
-            // TODO - withdraw changes
-            log.warn("Fail to setup Forward path!\nTunnel: {}", tunnel.toString());
-            return false;
+    @Override
+    public List<VpnResult> createTenantMesh(String tenantName, List<String> sites, int ethertypeCode) {
+        List<VpnRequest> requests = new ArrayList<>();
+        for (int i = 0; i < sites.size(); i++) {
+            for (int j = i + 1; j < sites.size(); j++) {
+                requests.add(new VpnRequest(tenantName, sites.get(i), sites.get(j), ethertypeCode));
+            }
         }
+        return provisionInParallel(requests);
+    }
 
-        if(!setupBackwardPathConnectivity(tunnel)) {
-            // TODO - withdraw changes
-            log.warn("Fail to setup Backward path!\nTunnel: {}", tunnel.toString());
-            return false;
-        }
+    @Override
+    public List<VpnResult> createTenantHubAndSpoke(String tenantName, String hubSite, List<String> spokeSites,
+                                                   int ethertypeCode) {
+        List<VpnRequest> requests = new ArrayList<>();
+        spokeSites.forEach(spokeSite -> requests.add(new VpnRequest(tenantName, hubSite, spokeSite, ethertypeCode)));
+        return provisionInParallel(requests);
+    }
 
-        log.info("Succeed to setup Forward path :)\nTunnel: {}", tunnel.toString());
-        return true;
+    @Override
+    public Collection<SdwanTunnel> getTunnels() {
+        return tunnelStore.getTunnels();
     }
 
-    private boolean setupForwardPathConnectivity(SdwanTunnel tunnel) {
+    @Override
+    public Collection<SdwanTunnel> getTenantTunnels(String tenantName) {
+        return tunnelStore.getTenantTunnels(tenantName);
+    }
+
+    @Override
+    public Collection<SdwanTunnel> getDeviceTunnels(DeviceId deviceId) {
+        return tunnelStore.getDeviceTunnels(deviceId);
+    }
 
-        List<FlowRule> tunnelFlows = new ArrayList<>();
+    @Override
+    public void setTenantProtection(String tenantName, ProtectionType type) {
+        if(type == null) {
+            tenantProtection.remove(tenantName);
+        } else {
+            tenantProtection.put(tenantName, type);
+        }
+    }
 
-        //TODO - check - deal with [empty, 1, n] pathLinks
+    @Override
+    public ProtectionType getTenantProtection(String tenantName) {
+        return tenantProtection.getOrDefault(tenantName, defaultProtection);
+    }
 
-        List<Link> pathLinks = tunnel.getForwardPath().links();
-        if(pathLinks.isEmpty()) {
+    @Override
+    public void setTenantRoutingMode(String tenantName, RoutingMode mode) {
+        if(mode == null) {
+            tenantRoutingMode.remove(tenantName);
+        } else {
+            tenantRoutingMode.put(tenantName, mode);
+        }
+    }
 
-            if(tunnel.getSrcSite().deviceId().equals(tunnel.getDstSite().deviceId())) {
-                log.warn("path is empty, but src and dst is not the identical ones! \n{}\nforward tunnel is not installed", tunnel.toString());
-                return false;
-            }
+    @Override
+    public RoutingMode getTenantRoutingMode(String tenantName) {
+        return tenantRoutingMode.getOrDefault(tenantName, defaultRoutingMode);
+    }
 
-            TrafficSelector selector = DefaultTrafficSelector.builder()
-                    .matchInPort(tunnel.getSrcSite().port())
-                    .matchEthType((short)(tunnel.getNetworkProtocol() & 0xFFFF))
-                    .build();
+    @Override
+    public Map<DeviceId, Integer> getNodeSids() {
+        return srFabric.nodeSids();
+    }
 
-            TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                    .immediate()
-                    .setOutput(tunnel.getDstSite().port())
-                    .build();
+    @Override
+    public Map<String, Long> getPathCacheStatistics() {
+        return pathCache.statistics();
+    }
 
-            FlowRule oneHopFlow = DefaultFlowRule.builder()
-                    .forDevice(tunnel.getSrcSite().deviceId())
-                    .forTable(0)
-                    .fromApp(appId)
-                    .makePermanent()
-                    // .withCookie(tunnel.getForwardLabel())
-                    .withPriority(FLOWRULE_PRIORITY)
-                    .withSelector(selector)
-                    .withTreatment(treatment)
-                    .build();
+    @Override
+    public Map<LinkKey, Double> getLinkReservations() {
+        return bandwidthLedger.reservations();
+    }
 
-            flowRuleService.applyFlowRules(oneHopFlow);
+    /**
+     * Create tunnels of requests as one batch, their routes computed in parallel beforehand.
+     *
+     * @param requests requests of VPN tunnels
+     * @return result of each request, in order of requests
+     */
+    private List<VpnResult> provisionInParallel(List<VpnRequest> requests) {
+        Topology topology = topologyService.currentTopology();
+        return provision(requests, new HashMap<>(), topology, computePaths(topology, requests));
+    }
 
-            return true;
+    /**
+     * Compute routes of requests in parallel against one topology snapshot.
+     *
+     * Only best effort requests are computed here; routes of requests reserving
+     * bandwidth depend on reservations of the requests before them.
+     *
+     * @param topology topology snapshot
+     * @param requests requests of VPN tunnels
+     * @return paths of each request with valid sites
+     */
+    private Map<VpnRequest, Set<Path>> computePaths(Topology topology, List<VpnRequest> requests) {
+        Map<VpnRequest, Set<Path>> paths = new ConcurrentHashMap<>();
+        try {
+            pathPool.submit(() -> requests.parallelStream().forEach(request -> {
+                ConnectPoint src = generateConnectPoint(request.getSrcSite());
+                ConnectPoint dst = generateConnectPoint(request.getDstSite());
+                if(src != null && dst != null && request.getBandwidth().bps() <= 0) {
+                    paths.put(request, findPaths(topology, src.deviceId(), dst.deviceId(), 0));
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("Fail to compute routes in parallel, compute them one by one", e.getCause());
         }
+        return paths;
+    }
 
+    /**
+     * Create tunnels of requests and submit their flow rules as one batch.
+     *
+     * @param requests requests of VPN tunnels
+     * @param installed filled with a future per created tunnel, completed once its flows are installed
+     * @return result of each request, in order of requests
+     */
+    private List<VpnResult> provision(Collection<VpnRequest> requests,
+                                      Map<SdwanTunnel, CompletableFuture<SdwanTunnel>> installed) {
+        return provision(requests, installed, topologyService.currentTopology(), Collections.emptyMap());
+    }
 
+    /**
+     * Create tunnels of requests against one topology snapshot and submit their flow rules as one batch.
+     *
+     * @param requests requests of VPN tunnels
+     * @param installed filled with a future per created tunnel, completed once its flows are installed
+     * @param topology topology snapshot routes of all tunnels are computed against
+     * @param knownPaths paths of requests computed beforehand, the others are computed one by one
+     * @return result of each request, in order of requests
+     */
+    private List<VpnResult> provision(Collection<VpnRequest> requests,
+                                      Map<SdwanTunnel, CompletableFuture<SdwanTunnel>> installed,
+                                      Topology topology, Map<VpnRequest, Set<Path>> knownPaths) {
 
-        // ------------
+        List<VpnResult> results = new ArrayList<>(requests.size());
+        DeviceBatches<SdwanTunnel> batches = new DeviceBatches<>();
+        List<GroupDescription> groups = new ArrayList<>();
 
-        ConnectPoint entryFirstHop = tunnel.getSrcSite();
-        ConnectPoint leaveFirstHop = pathLinks.get(0).src();
+        for (VpnRequest request : requests) {
 
+            VpnResult result = generateTunnel(request, topology, knownPaths.get(request));
+            if(!result.isSuccess()) {
+                metrics.failed(result.getStatus());
+                results.add(result);
+                continue;
+            }
 
-        TrafficSelector selector = DefaultTrafficSelector.builder()
-                .matchInPort(entryFirstHop.port())
-                .matchEthType((short)(tunnel.getNetworkProtocol() & 0xFFFF))
-                .build();
+            SdwanTunnel tunnel = result.getTunnel();
+            List<FlowRule> tunnelFlows = metrics.time(ProvisioningMetrics.Stage.COMPILE,
+                    () -> compileTunnelFlows(tunnel));
+            if(tunnelFlows == null) {
+                detachMerged(tunnel);
+                releaseLabels(tunnel);
+                releaseSiteVlan(tunnel);
+                bandwidthLedger.release(tunnel.getTunnelId());
+                metrics.failed(VpnResult.Status.INSTALL_FAILED);
+                results.add(VpnResult.failure(request, VpnResult.Status.INSTALL_FAILED));
+                continue;
+            }
+            metrics.tunnelCreated(tunnel.getForwardPath().links().size(), tunnelFlows.size());
 
-        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                .immediate()
-                .pushMpls().setMpls(mplsLabel(tunnel.getForwardLabel()))
-                .setOutput(leaveFirstHop.port())
-                .build();
+            tunnelFlows.forEach(flow -> batches.add(flow, tunnel));
+            groups.addAll(compileTunnelGroups(tunnel));
+            installed.put(tunnel, new CompletableFuture<>());
 
-        FlowRule entryFlow = DefaultFlowRule.builder()
-                .forDevice(entryFirstHop.deviceId())
-                .forTable(0)
-                .fromApp(appId)
-                .makePermanent()
-                // .withCookie(tunnel.getForwardLabel())
-                .withPriority(FLOWRULE_PRIORITY)
-                .withSelector(selector)
-                .withTreatment(treatment)
-                .build();
+            tunnelStore.addTunnel(tunnel);
+            installedFlows.put(tunnel.getTunnelId(), tunnelFlows);
+            results.add(result);
+        }
 
-        tunnelFlows.add(entryFlow);
+        // groups go first, flows of protected hops point to them
+        groups.forEach(groupService::addGroup);
 
+        // rules shared by merged tunnels go in the same batches, they belong to no single tunnel
+        FlowRuleOperations.Builder treeOps = FlowRuleOperations.builder();
+        List<FlowRule> staleFlows = new ArrayList<>();
+        Map<DeviceId, List<Integer>> staleLabels = new HashMap<>();
+        mergeTrees.diff(treeOps, staleFlows, staleLabels);
+        batches.operations(treeOps.build(), null);
 
+        if(!batches.isEmpty() || !staleFlows.isEmpty()) {
+            installFlows(batches, installed, staleFlows, staleLabels);
+        } else {
+            releaseLabels(staleLabels);
+        }
 
-        // ------------
+        return results;
+    }
 
-        if(pathLinks.size() != 1) {
-            selector = DefaultTrafficSelector.builder()
-                    .matchEthType(EthType.EtherType.MPLS_UNICAST.ethType().toShort())
-                    .matchMplsLabel(mplsLabel(tunnel.getForwardLabel()))
-                    .build();
+    /**
+     * Submit flow rules of all tunnels together, one batch per device.
+     *
+     * A tunnel is installed once every device of its rules confirmed them.
+     * Once every device answered, tunnels with any rejected rule are withdrawn:
+     * out of tunnel store, their rules that made it to devices removed, then
+     * labels and groups given back. Shared rules no tree needs any more go last.
+     *
+     * @param batches flow operations of all tunnels, by device
+     * @param installed future of each tunnel, completed when devices confirm or reject its flows
+     * @param staleFlows shared rules to remove once the batches are done
+     * @param staleLabels labels to release once stale rules are removed
+     */
+    private void installFlows(DeviceBatches<SdwanTunnel> batches,
+                              Map<SdwanTunnel, CompletableFuture<SdwanTunnel>> installed,
+                              List<FlowRule> staleFlows, Map<DeviceId, List<Integer>> staleLabels) {
+
+        Timer.Context installTimer = metrics.start(ProvisioningMetrics.Stage.INSTALL);
+        int flowCount = batches.size();
+        metrics.batchSubmitted(flowCount);
+        batches.submit(flowRuleService, (tunnel, rejectedRules) -> {
+            if(rejectedRules.isEmpty()) {
+                installed.get(tunnel).complete(tunnel);
+            }
+        }, (rejected, failed) -> {
+            installTimer.stop();
+            if(failed.isEmpty()) {
+                log.info("Succeed to install {} flows of {} tunnels :)", flowCount, installed.size());
+            } else if(!rejected.isEmpty()) {
+                withdrawTunnels(rejected, failed, installed);
+            } else {
+                // rules of merge trees, the reconciler pushes them again
+                log.warn("Fail to install {} shared flows of merge trees", failed.size());
+            }
+            removeFlows(staleFlows, staleFailed -> releaseLabels(staleLabels));
+        });
+    }
 
-            for (int i = 1; i < pathLinks.size(); i++) {
+    /**
+     * Withdraw tunnels whose rules were rejected in part, as if they were never made.
+     *
+     * Rules of the tunnels other devices accepted are removed together. Labels
+     * and groups of a tunnel are given back once every device removed its
+     * rules, so no new tunnel takes a label whose old rule is still on its way
+     * out; if a device keeps any, they stay reserved and the reconciler removes
+     * the rules left behind. Tunnels deleted meanwhile are left to the delete.
+     *
+     * @param rejected rejected rules of each tunnel
+     * @param failed all rejected rules, never installed
+     * @param installed future of each tunnel, rejected ones completed exceptionally once withdrawn
+     */
+    private void withdrawTunnels(Map<SdwanTunnel, Set<FlowRule>> rejected, Set<FlowRule> failed,
+                                 Map<SdwanTunnel, CompletableFuture<SdwanTunnel>> installed) {
+
+        DeviceBatches<SdwanTunnel> batches = new DeviceBatches<>();
+        List<SdwanTunnel> withdrawn = new ArrayList<>();
+        List<SdwanTunnel> nothingAccepted = new ArrayList<>();
+        for (SdwanTunnel tunnel : rejected.keySet()) {
+            // out of the store once only, whoever takes it out gives its labels back
+            if(tunnelStore.removeTunnel(tunnel.getTunnelId()) == null) {
+                installed.get(tunnel).completeExceptionally(new VpnException(VpnResult.Status.INSTALL_FAILED,
+                        new ArrayList<>(rejected.get(tunnel))));
+                continue;
+            }
+            log.warn("Fail to install flows of tunnel, withdraw it!\nTunnel: {}", tunnel.toString());
+            metrics.failed(VpnResult.Status.INSTALL_FAILED);
+
+            int acceptedCount = 0;
+            List<FlowRule> flows = installedFlows.remove(tunnel.getTunnelId());
+            if(flows != null) {
+                for (FlowRule flow : flows) {
+                    if(!failed.contains(flow)) {
+                        batches.remove(flow, tunnel);
+                        acceptedCount++;
+                    }
+                }
+            }
+            detachMerged(tunnel);
+            bandwidthLedger.release(tunnel.getTunnelId());
+            withdrawn.add(tunnel);
+            if(acceptedCount == 0) {
+                nothingAccepted.add(tunnel);
+            }
+        }
+        if(withdrawn.stream().anyMatch(SdwanTunnel::isMerged)) {
+            updateMergeTrees();
+        }
 
-                ConnectPoint cp = pathLinks.get(i).src();
+        BiConsumer<SdwanTunnel, Set<FlowRule>> release = (tunnel, leftRules) -> {
+            releaseTunnel(tunnel, leftRules);
+            installed.get(tunnel).completeExceptionally(new VpnException(VpnResult.Status.INSTALL_FAILED,
+                    new ArrayList<>(rejected.get(tunnel))));
+        };
+        nothingAccepted.forEach(tunnel -> release.accept(tunnel, Collections.emptySet()));
+
+        int removedFlows = batches.size();
+        batches.submit(flowRuleService, release, (leftRules, notRemoved) -> {
+            if(notRemoved.isEmpty()) {
+                log.info("Succeed to withdraw {} flows of {} rejected tunnels", removedFlows, withdrawn.size());
+            } else {
+                log.warn("Fail to withdraw {} flows of {} rejected tunnels", notRemoved.size(), leftRules.size());
+            }
+        });
+    }
 
-                treatment = DefaultTrafficTreatment.builder()
-                        .immediate()
-                        .setOutput(cp.port())
-                        .build();
+    /**
+     * Give back labels and groups of a tunnel taken out of the store, once its rules are gone.
+     *
+     * Labels and VLAN of rules devices kept stay reserved, no new tunnel may
+     * take a label or VLAN an old rule still matches; the reconciler removes
+     * those rules.
+     *
+     * @param tunnel tunnel out of the store
+     * @param leftRules rules of tunnel devices failed to remove
+     */
+    private void releaseTunnel(SdwanTunnel tunnel, Set<FlowRule> leftRules) {
+        if(leftRules.isEmpty()) {
+            removeTunnelGroups(tunnel);
+            releaseLabels(tunnel);
+            releaseSiteVlan(tunnel);
+        } else {
+            log.warn("{} flows of tunnel {} are left on devices, its labels and VLAN stay reserved",
+                    leftRules.size(), tunnel.getTunnelId());
+        }
+    }
 
-                FlowRule intermediateFlow = DefaultFlowRule.builder()
-                        .forDevice(cp.deviceId())
-                        .forTable(0)
-                        .fromApp(appId)
-                        .makePermanent()
-                        // .withCookie(tunnel.getForwardLabel())
-                        .withPriority(FLOWRULE_PRIORITY)
-                        .withSelector(selector)
-                        .withTreatment(treatment)
-                        .build();
+    /**
+     * Remove flow rules together, one batch per device.
+     *
+     * @param flows flow rules
+     * @param done called once every device answered, with rules not removed
+     */
+    private void removeFlows(Collection<FlowRule> flows, Consumer<Set<FlowRule>> done) {
+        DeviceBatches<SdwanTunnel> batches = new DeviceBatches<>();
+        flows.forEach(flow -> batches.remove(flow, null));
+        batches.submit(flowRuleService, done);
+    }
 
-                tunnelFlows.add(intermediateFlow);
+    /**
+     * Remove tunnels on the reroute thread and wait for it.
+     *
+     * A reroute reads a tunnel and writes its new route back later; run in
+     * line with reroutes, no delete falls in between and gets undone.
+     *
+     * @param tunnelIds ids of tunnels
+     * @return number of tunnels removed
+     */
+    private int deleteTunnels(Collection<Long> tunnelIds) {
+        try {
+            return rerouteExecutor.submit(() -> removeTunnels(tunnelIds)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while deleting tunnels", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new IllegalStateException(e.getCause());
         }
+    }
 
+    /**
+     * Remove tunnels and their flow rules together, one batch per device.
+     *
+     * Rules are taken as installed, nothing is recompiled. Bandwidth is given
+     * back at once, labels and groups of a tunnel once every device removed
+     * its rules.
+     *
+     * @param tunnelIds ids of tunnels
+     * @return number of tunnels removed
+     */
+    private int removeTunnels(Collection<Long> tunnelIds) {
 
+        DeviceBatches<SdwanTunnel> batches = new DeviceBatches<>();
+        List<SdwanTunnel> removed = new ArrayList<>();
+        List<SdwanTunnel> withoutFlows = new ArrayList<>();
 
-        // ------------
-
-        ConnectPoint leaveLastHop = tunnel.getDstSite();
+        for (long tunnelId : tunnelIds) {
+            SdwanTunnel tunnel = tunnelStore.removeTunnel(tunnelId);
+            if(tunnel == null) {
+                continue;
+            }
+            List<FlowRule> flows = installedFlows.remove(tunnelId);
+            if(flows != null && !flows.isEmpty()) {
+                flows.forEach(flow -> batches.remove(flow, tunnel));
+            } else {
+                withoutFlows.add(tunnel);
+            }
+            detachMerged(tunnel);
+            bandwidthLedger.release(tunnelId);
+            removed.add(tunnel);
+        }
 
-        selector = DefaultTrafficSelector.builder()
-                .matchEthType(EthType.EtherType.MPLS_UNICAST.ethType().toShort())
-                .matchMplsLabel(mplsLabel(tunnel.getForwardLabel()))
-                .build();
+        if(removed.isEmpty()) {
+            return 0;
+        }
 
-        treatment = DefaultTrafficTreatment.builder()
-                .immediate()
-                .popMpls(new EthType(tunnel.getNetworkProtocol()))
-                .setOutput(leaveLastHop.port())
-                .build();
+        // shared rules no tunnel needs any more go once rules of tunnels are gone
+        FlowRuleOperations.Builder treeOps = FlowRuleOperations.builder();
+        List<FlowRule> staleFlows = new ArrayList<>();
+        Map<DeviceId, List<Integer>> staleLabels = new HashMap<>();
+        mergeTrees.diff(treeOps, staleFlows, staleLabels);
+        batches.operations(treeOps.build(), null);
+
+        withoutFlows.forEach(tunnel -> releaseTunnel(tunnel, Collections.emptySet()));
+        int flowCount = batches.size();
+        batches.submit(flowRuleService, this::releaseTunnel, (leftRules, notRemoved) -> {
+            if(notRemoved.isEmpty()) {
+                log.info("Succeed to remove {} flows of {} tunnels :)", flowCount, removed.size());
+            } else {
+                log.warn("Fail to remove {} flows of {} tunnels", notRemoved.size(), leftRules.size());
+            }
+            removeFlows(staleFlows, staleFailed -> releaseLabels(staleLabels));
+        });
 
-        FlowRule leaveFlow = DefaultFlowRule.builder()
-                .forDevice(leaveLastHop.deviceId())
-                .forTable(0)
-                .fromApp(appId)
-                .makePermanent()
-                // .withCookie(tunnel.getForwardLabel())
-                .withPriority(FLOWRULE_PRIORITY)
-                .withSelector(selector)
-                .withTreatment(treatment)
-                .build();
+        return removed.size();
+    }
 
-        tunnelFlows.add(leaveFlow);
+    private VpnResult generateTunnel(VpnRequest request, Topology topology, Set<Path> knownPaths) {
 
+        long tunnelId = tunnelStore.nextTunnelId();
+        SdwanTunnel.Builder tunnelBuilder = SdwanTunnel.builder()
+                .tunnelId(tunnelId)
+                .tenant(request.getTenantName())
+                .networkProtocol(request.getEthertypeCode())
+                .bandwidth(request.getBandwidth());
 
 
-        // ------------
 
-        FlowRule [] flows = new FlowRule[tunnelFlows.size()];
-        tunnelFlows.toArray(flows);
+        ConnectPoint src = generateConnectPoint(request.getSrcSite());
+        ConnectPoint dst = generateConnectPoint(request.getDstSite());
+        if(src == null || dst == null) {
+            log.warn("Source or Destination site doesn't match the scheme, e.g. of:0000000000000001/1");
+            return VpnResult.failure(request, VpnResult.Status.INVALID_SITE);
+        }
 
-        flowRuleService.applyFlowRules(flows);
+        tunnelBuilder.src(src).dst(dst);
 
-        return true;
-    }
+        if(src.deviceId().equals(dst.deviceId())) {
+            log.warn("Both sites are on {}, there is no route to tunnel over", src.deviceId());
+            return VpnResult.failure(request, VpnResult.Status.NO_PATH);
+        }
 
-    private boolean setupBackwardPathConnectivity(SdwanTunnel tunnel) {
+        // claimed before routing, so concurrent requests of a site never take the same VLAN
+        VlanId vlan = siteVlans.claim(src, dst, request.getEthertypeCode());
+        if(vlan == null) {
+            log.warn("No VLAN is free at both {} and {} with ethertype 0x{}", src, dst,
+                    Integer.toHexString(request.getEthertypeCode()));
+            return VpnResult.failure(request, VpnResult.Status.SITE_IN_USE);
+        }
+        tunnelBuilder.siteVlan(vlan);
 
+        VpnResult result = routeTunnel(request, tunnelBuilder, tunnelId, src, dst, topology, knownPaths);
+        if(!result.isSuccess()) {
+            siteVlans.release(src, dst, request.getEthertypeCode(), vlan);
+        }
+        return result;
+    }
 
-        List<FlowRule> tunnelFlows = new ArrayList<>();
+    /**
+     * Route tunnel of a request between its sites, and take its labels and bandwidth.
+     *
+     * @param request request of tunnel
+     * @param tunnelBuilder builder with id, tenant, sites, VLAN and bandwidth set
+     * @param tunnelId id of tunnel
+     * @param src source site
+     * @param dst destination site, on another device
+     * @param topology topology snapshot
+     * @param knownPaths paths computed beforehand, or null to compute them
+     * @return result of request
+     */
+    private VpnResult routeTunnel(VpnRequest request, SdwanTunnel.Builder tunnelBuilder, long tunnelId,
+                                  ConnectPoint src, ConnectPoint dst, Topology topology, Set<Path> knownPaths) {
 
-        //TODO - check - deal with [empty, 1, n] pathLinks
+        double bps = request.getBandwidth().bps();
+        Set<Path> paths = knownPaths != null ? knownPaths : findPaths(topology, src.deviceId(), dst.deviceId(), bps);
+        if(paths.isEmpty()) {
+            if(bps > 0 && !pathCache.getPaths(topology, src.deviceId(), dst.deviceId()).isEmpty()) {
+                log.warn("No route from {} to {} has {} bps left", src.deviceId(), dst.deviceId(), bps);
+                return VpnResult.failure(request, VpnResult.Status.INSUFFICIENT_BANDWIDTH);
+            }
+            log.warn("Can't find a route from {} to {}", src.deviceId(), dst.deviceId());
+            return VpnResult.failure(request, VpnResult.Status.NO_PATH);
+        }
 
-        List<Link> pathLinks = tunnel.getBackwardPath().links();
-        if(pathLinks.isEmpty()) {
+        RoutingMode mode = getTenantRoutingMode(request.getTenantName());
+        if(mode == RoutingMode.SEGMENT_ROUTING) {
+            return generateSegmentRoutedTunnel(request, tunnelBuilder, tunnelId, src, dst, paths);
+        }
+        if(mode == RoutingMode.MERGED) {
+            return generateMergedTunnel(request, tunnelBuilder, tunnelId, dst, paths.iterator().next());
+        }
+        if(mode == RoutingMode.ECMP && paths.size() > 1) {
+            return generateEcmpTunnel(request, tunnelBuilder, tunnelId, src, dst, ecmpPaths(paths));
+        }
 
-            if(tunnel.getDstSite().deviceId().equals(tunnel.getSrcSite().deviceId())) {
-                log.warn("path is empty, but dst and src is not the identical ones! \n{}\nbackward tunnel is not installed", tunnel.toString());
-                return false;
+        // TODO - make a decision that should we store Path or List<DeviceId> ?
+        // TODO - and just do it !
+        Path path = paths.iterator().next();
+        Path backupPath = null;
+
+        ProtectionType protection = getTenantProtection(request.getTenantName());
+        if(protection == ProtectionType.LINK_DISJOINT) {
+            Set<DisjointPath> disjointPaths = metrics.time(ProvisioningMetrics.Stage.PATH, () -> bps > 0
+                    ? topologyService.getDisjointPaths(topology, src.deviceId(), dst.deviceId(), bandwidthWeigher(bps))
+                    : pathCache.getDisjointPaths(topology, src.deviceId(), dst.deviceId()));
+            for (DisjointPath disjointPath : disjointPaths) {
+                if(disjointPath.backup() != null) {
+                    path = disjointPath.primary();
+                    backupPath = disjointPath.backup();
+                    break;
+                }
             }
+        } else if(protection == ProtectionType.NODE_DISJOINT) {
+            Path primary = path;
+            Set<Path> backupPaths = metrics.time(ProvisioningMetrics.Stage.PATH, () -> topologyService.getPaths(
+                    topology, src.deviceId(), dst.deviceId(), new DisjointLinkWeigher(primary, true)));
+            backupPath = backupPaths.isEmpty() ? null : backupPaths.iterator().next();
+        }
+        if(protection != ProtectionType.NONE && backupPath == null) {
+            log.warn("Can't find a {} backup route from {} to {}, tunnel is unprotected",
+                    protection, src.deviceId(), dst.deviceId());
+        }
 
-            TrafficSelector selector = DefaultTrafficSelector.builder()
-                    .matchInPort(tunnel.getDstSite().port())
-                    .build();
+        List<DeviceId> forwardDevices = pathDevices(path);
+        List<DeviceId> backwardDevices = new ArrayList<>(forwardDevices);
+        Collections.reverse(backwardDevices);
 
-            TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                    .immediate()
-                    .setOutput(tunnel.getSrcSite().port())
-                    .build();
+        tunnelBuilder.forwardDevices(forwardDevices).backwardDevices(backwardDevices);
+        tunnelBuilder.forwardPath(path).backwardPath(path);
 
-            FlowRule oneHopFlow = DefaultFlowRule.builder()
-                    .forDevice(tunnel.getDstSite().deviceId())
-                    .forTable(0)
-                    .fromApp(appId)
-                    .makePermanent()
-                    // .withCookie(tunnel.getBackwardLabel())
-                    .withPriority(FLOWRULE_PRIORITY)
-                    .withSelector(selector)
-                    .withTreatment(treatment)
-                    .build();
 
-            flowRuleService.applyFlowRules(oneHopFlow);
 
-            return true;
+        // In present, use same route for both unidirectional tunnels.
+        // Labels are locally significant, each hop takes a label from the device receiving it.
+        List<Integer> forwardLabels = newLabels(forwardDevices);
+        if(forwardLabels == null) {
+            return VpnResult.failure(request, VpnResult.Status.LABEL_EXHAUSTED);
+        }
+        List<Integer> backwardLabels = newLabels(backwardDevices);
+        if(backwardLabels == null) {
+            releaseLabels(forwardDevices, forwardLabels);
+            return VpnResult.failure(request, VpnResult.Status.LABEL_EXHAUSTED);
         }
 
+        tunnelBuilder.forwardLabels(forwardLabels).backwardLabels(backwardLabels);
 
 
-        // ------------
 
-        // TODO - path is the same one with forward path !!!
+        if(backupPath != null) {
+            List<DeviceId> backupForwardDevices = pathDevices(backupPath);
+            List<DeviceId> backupBackwardDevices = new ArrayList<>(backupForwardDevices);
+            Collections.reverse(backupBackwardDevices);
 
-        ConnectPoint entryFirstHop = tunnel.getDstSite();
-        ConnectPoint leaveFirstHop = pathLinks.get(pathLinks.size()-1).dst();
+            List<Integer> backupForwardLabels = newLabels(backupForwardDevices);
+            List<Integer> backupBackwardLabels = backupForwardLabels == null ? null
+                    : newLabels(backupBackwardDevices);
+            if(backupBackwardLabels == null) {
+                if(backupForwardLabels != null) {
+                    releaseLabels(backupForwardDevices, backupForwardLabels);
+                }
+                releaseLabels(forwardDevices, forwardLabels);
+                releaseLabels(backwardDevices, backwardLabels);
+                return VpnResult.failure(request, VpnResult.Status.LABEL_EXHAUSTED);
+            }
 
+            tunnelBuilder.backup(backupPath, backupForwardDevices, backupBackwardDevices,
+                    backupForwardLabels, backupBackwardLabels);
+        }
 
-        TrafficSelector selector = DefaultTrafficSelector.builder()
-                .matchInPort(entryFirstHop.port())
-                .matchEthType((short)(tunnel.getNetworkProtocol() & 0xFFFF))
-                .build();
 
-        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                .immediate()
-                .pushMpls().setMpls(mplsLabel(tunnel.getBackwardLabel()))
-                .setOutput(leaveFirstHop.port())
-                .build();
 
-        FlowRule entryFlow = DefaultFlowRule.builder()
-                .forDevice(entryFirstHop.deviceId())
-                .forTable(0)
-                .fromApp(appId)
-                .makePermanent()
-                // .withCookie(tunnel.getBackwardLabel())
-                .withPriority(FLOWRULE_PRIORITY)
-                .withSelector(selector)
-                .withTreatment(treatment)
-                .build();
+        // the path was found against the ledger, but another request may have taken it meanwhile
+        if(bps > 0 && !bandwidthLedger.reserve(tunnelId, tunnelLinks(path), bps)) {
+            SdwanTunnel tunnel = tunnelBuilder.build();
+            releaseLabels(tunnel);
+            log.warn("Route of tunnel {} ran out of bandwidth meanwhile", tunnelId);
+            return VpnResult.failure(request, VpnResult.Status.INSUFFICIENT_BANDWIDTH);
+        }
 
-        tunnelFlows.add(entryFlow);
+        return VpnResult.success(request, tunnelBuilder.build());
+    }
 
+    /**
+     * Create tunnel spread over equal-cost routes.
+     *
+     * Each device takes one label per direction from its own label space,
+     * shared by every branch entering it, so branches merge again without
+     * extra rules.
+     *
+     * @param request request of tunnel
+     * @param tunnelBuilder builder with id, tenant, sites and bandwidth set
+     * @param tunnelId id of tunnel
+     * @param src source site
+     * @param dst destination site
+     * @param paths equal-cost routes, at least two
+     * @return result of request
+     */
+    private VpnResult generateEcmpTunnel(VpnRequest request, SdwanTunnel.Builder tunnelBuilder, long tunnelId,
+                                         ConnectPoint src, ConnectPoint dst, List<Path> paths) {
+
+        Path path = paths.get(0);
+        List<DeviceId> forwardDevices = pathDevices(path);
+        List<DeviceId> backwardDevices = new ArrayList<>(forwardDevices);
+        Collections.reverse(backwardDevices);
+
+        Map<DeviceId, List<Integer>> freshLabels = new HashMap<>();
+        Map<DeviceId, Integer> forwardNodeLabels = nodeLabels(ecmpNodes(paths, src.deviceId()),
+                Collections.emptyMap(), freshLabels);
+        Map<DeviceId, Integer> backwardNodeLabels = forwardNodeLabels == null ? null
+                : nodeLabels(ecmpNodes(paths, dst.deviceId()), Collections.emptyMap(), freshLabels);
+        if(backwardNodeLabels == null) {
+            freshLabels.forEach((deviceId, labels) -> labels.forEach(l -> labelSpaces.release(deviceId, l)));
+            return VpnResult.failure(request, VpnResult.Status.LABEL_EXHAUSTED);
+        }
 
+        double bps = request.getBandwidth().bps();
+        if(bps > 0 && !bandwidthLedger.reserve(tunnelId, ecmpLinks(paths), bps)) {
+            freshLabels.forEach((deviceId, labels) -> labels.forEach(l -> labelSpaces.release(deviceId, l)));
+            log.warn("Routes of tunnel {} ran out of bandwidth meanwhile", tunnelId);
+            return VpnResult.failure(request, VpnResult.Status.INSUFFICIENT_BANDWIDTH);
+        }
 
-        // ------------
+        if(getTenantProtection(request.getTenantName()) != ProtectionType.NONE) {
+            log.info("Tunnel {} is spread over {} routes, it needs no backup route",
+                    tunnelId, paths.size());
+        }
 
-        if(pathLinks.size() != 1) {
-            selector = DefaultTrafficSelector.builder()
-                    .matchEthType(EthType.EtherType.MPLS_UNICAST.ethType().toShort())
-                    .matchMplsLabel(mplsLabel(tunnel.getBackwardLabel()))
-                    .build();
+        return VpnResult.success(request, tunnelBuilder
+                .forwardDevices(forwardDevices).backwardDevices(backwardDevices)
+                .forwardPath(path).backwardPath(path)
+                .forwardLabels(hopLabels(forwardDevices, forwardNodeLabels))
+                .backwardLabels(hopLabels(backwardDevices, backwardNodeLabels))
+                .ecmp(paths, forwardNodeLabels, backwardNodeLabels)
+                .build());
+    }
 
-            //TODO - check "for"
-            for (int i = pathLinks.size() - 2; i >= 0; i--) {
+    /**
+     * Create tunnel carried by node segments.
+     *
+     * Transit devices need no rule of their own, ingress pushes a service label
+     * of the egress device and the node SIDs steering traffic along the route.
+     *
+     * @param request request of tunnel
+     * @param tunnelBuilder builder with id, tenant, sites and bandwidth set
+     * @param tunnelId id of tunnel
+     * @param src source site
+     * @param dst destination site
+     * @param paths candidate routes, all fitting the bandwidth demand
+     * @return result of request
+     */
+    private VpnResult generateSegmentRoutedTunnel(VpnRequest request, SdwanTunnel.Builder tunnelBuilder,
+                                                  long tunnelId, ConnectPoint src, ConnectPoint dst,
+                                                  Set<Path> paths) {
 
-                ConnectPoint cp = pathLinks.get(i).dst();
+        if(!srFabric.isActive()) {
+            srFabric.refresh();
+        }
 
-                treatment = DefaultTrafficTreatment.builder()
-                        .immediate()
-                        .setOutput(cp.port())
-                        .build();
+        SegmentedRoute route = segmentedRoute(paths);
+        if(route == null) {
+            log.warn("Route from {} to {} can't be expressed in node segments", src.deviceId(), dst.deviceId());
+            return VpnResult.failure(request, VpnResult.Status.NO_PATH);
+        }
 
-                FlowRule intermediateFlow = DefaultFlowRule.builder()
-                        .forDevice(cp.deviceId())
-                        .forTable(0)
-                        .fromApp(appId)
-                        .makePermanent()
-                        // .withCookie(tunnel.getBackwardLabel())
-                        .withPriority(FLOWRULE_PRIORITY)
-                        .withSelector(selector)
-                        .withTreatment(treatment)
-                        .build();
+        int forwardLabel = labelSpaces.allocate(dst.deviceId());
+        int backwardLabel = forwardLabel == INVALID_LABEL ? INVALID_LABEL : labelSpaces.allocate(src.deviceId());
+        if(backwardLabel == INVALID_LABEL) {
+            labelSpaces.release(dst.deviceId(), forwardLabel);
+            return VpnResult.failure(request, VpnResult.Status.LABEL_EXHAUSTED);
+        }
 
-                tunnelFlows.add(intermediateFlow);
-            }
+        double bps = request.getBandwidth().bps();
+        if(bps > 0 && !bandwidthLedger.reserve(tunnelId, tunnelLinks(route.path), bps)) {
+            labelSpaces.release(dst.deviceId(), forwardLabel);
+            labelSpaces.release(src.deviceId(), backwardLabel);
+            log.warn("Route of tunnel {} ran out of bandwidth meanwhile", tunnelId);
+            return VpnResult.failure(request, VpnResult.Status.INSUFFICIENT_BANDWIDTH);
         }
 
+        if(getTenantProtection(request.getTenantName()) != ProtectionType.NONE) {
+            log.info("Tunnel {} follows node segments, it gets no backup route", tunnelId);
+        }
 
+        return VpnResult.success(request, tunnelBuilder
+                .forwardDevices(route.forwardDevices).backwardDevices(route.backwardDevices)
+                .forwardPath(route.path).backwardPath(route.path)
+                .forwardLabel(forwardLabel).backwardLabel(backwardLabel)
+                .segments(route.forwardSegments, route.backwardSegments)
+                .build());
+    }
 
-        // ------------
+    /**
+     * Create tunnel whose forward direction merges into the tree of its destination site.
+     *
+     * @param request request of tunnel
+     * @param tunnelBuilder builder with id, tenant, sites and bandwidth set
+     * @param tunnelId id of tunnel
+     * @param dst destination site, root of the tree
+     * @param path shortest route, followed until it joins the tree
+     * @return result of request
+     */
+    private VpnResult generateMergedTunnel(VpnRequest request, SdwanTunnel.Builder tunnelBuilder,
+                                           long tunnelId, ConnectPoint dst, Path path) {
 
-        ConnectPoint leaveLastHop = tunnel.getSrcSite();
+        List<Link> route = mergeTrees.attach(dst, request.getEthertypeCode(), path.links());
+        if(route == null) {
+            return VpnResult.failure(request, VpnResult.Status.LABEL_EXHAUSTED);
+        }
+        Path routePath = routePath(path, route);
 
-        selector = DefaultTrafficSelector.builder()
-                .matchEthType(EthType.EtherType.MPLS_UNICAST.ethType().toShort())
-                .matchMplsLabel(mplsLabel(tunnel.getBackwardLabel()))
-                .build();
+        List<DeviceId> forwardDevices = pathDevices(routePath);
+        List<DeviceId> backwardDevices = new ArrayList<>(forwardDevices);
+        Collections.reverse(backwardDevices);
+
+        List<Integer> backwardLabels = newLabels(backwardDevices);
+        if(backwardLabels == null) {
+            mergeTrees.detach(dst, request.getEthertypeCode(), route);
+            return VpnResult.failure(request, VpnResult.Status.LABEL_EXHAUSTED);
+        }
+
+        // the tree may lead the route over other links than the shortest route
+        double bps = request.getBandwidth().bps();
+        if(bps > 0 && !bandwidthLedger.reserve(tunnelId, tunnelLinks(routePath), bps)) {
+            mergeTrees.detach(dst, request.getEthertypeCode(), route);
+            releaseLabels(backwardDevices, backwardLabels);
+            log.warn("Tree toward {} has not {} bps left for tunnel {}", dst, bps, tunnelId);
+            return VpnResult.failure(request, VpnResult.Status.INSUFFICIENT_BANDWIDTH);
+        }
+
+        if(getTenantProtection(request.getTenantName()) != ProtectionType.NONE) {
+            log.info("Tunnel {} is merged toward {}, it gets no backup route", tunnelId, dst);
+        }
+
+        return VpnResult.success(request, tunnelBuilder
+                .forwardDevices(forwardDevices).backwardDevices(backwardDevices)
+                .forwardPath(routePath).backwardPath(routePath)
+                .forwardLabels(mergedLabels(dst, request.getEthertypeCode(), forwardDevices))
+                .backwardLabels(backwardLabels)
+                .merged(true)
+                .build());
+    }
+
+    /**
+     * Return path of the route, the computed path itself if the route didn't leave it.
+     *
+     * @param path computed path
+     * @param route links actually taken
+     * @return path of route
+     */
+    private Path routePath(Path path, List<Link> route) {
+        if(route.equals(path.links())) {
+            return path;
+        }
+        return new DefaultPath(path.providerId(), route, new ScalarWeight(route.size()));
+    }
+
+    private List<Integer> mergedLabels(ConnectPoint dst, int ethertypeCode, List<DeviceId> devices) {
+        List<Integer> labels = new ArrayList<>();
+        for (int i = 1; i < devices.size(); i++) {
+            labels.add(mergeTrees.label(dst, ethertypeCode, devices.get(i)));
+        }
+        return labels;
+    }
+
+    private void detachMerged(SdwanTunnel tunnel) {
+        if(tunnel.isMerged()) {
+            mergeTrees.detach(tunnel.getDstSite(), tunnel.getNetworkProtocol(), tunnel.getForwardPath().links());
+        }
+    }
+
+    /**
+     * Bring rules of merge trees in line with the trees, e.g. after tunnels left them.
+     *
+     * Changed rules go first, stale rules and their labels are removed once they are in place.
+     */
+    private void updateMergeTrees() {
+
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        List<FlowRule> staleFlows = new ArrayList<>();
+        Map<DeviceId, List<Integer>> staleLabels = new HashMap<>();
+        if(mergeTrees.diff(ops, staleFlows, staleLabels) == 0) {
+            releaseLabels(staleLabels);
+            return;
+        }
+
+        new DeviceBatches<SdwanTunnel>().operations(ops.build(), null).submit(flowRuleService,
+                failed -> removeFlows(staleFlows, staleFailed -> {
+                    releaseLabels(staleLabels);
+                    if(!failed.isEmpty() || !staleFailed.isEmpty()) {
+                        log.warn("Fail to update {} flows of merge trees", failed.size() + staleFailed.size());
+                    }
+                }));
+    }
+
+    /**
+     * Return the candidate route needing fewest node segments, ties broken in a stable order.
+     *
+     * @param paths candidate routes
+     * @return route with its segments, or null if none can be expressed in node segments
+     */
+    private SegmentedRoute segmentedRoute(Set<Path> paths) {
+        SegmentedRoute best = null;
+        for (Path path : ecmpPaths(paths, paths.size())) {
+            SegmentedRoute route = new SegmentedRoute(path);
+            if(route.forwardSegments != null && route.backwardSegments != null
+                    && (best == null || route.size() < best.size())) {
+                best = route;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Route of a segment routed tunnel, with node SIDs of both directions.
+     */
+    private final class SegmentedRoute {
+
+        private final Path path;
+        private final List<DeviceId> forwardDevices;
+        private final List<DeviceId> backwardDevices;
+        private final List<Integer> forwardSegments;
+        private final List<Integer> backwardSegments;
+
+        private SegmentedRoute(Path path) {
+            this.path = path;
+            this.forwardDevices = pathDevices(path);
+            this.backwardDevices = new ArrayList<>(forwardDevices);
+            Collections.reverse(backwardDevices);
+            this.forwardSegments = srFabric.segments(forwardDevices);
+            this.backwardSegments = srFabric.segments(backwardDevices);
+        }
+
+        private int size() {
+            return forwardSegments.size() + backwardSegments.size();
+        }
+    }
+
+    /**
+     * Return up to ecmpMaxPaths of the equal-cost paths, in a stable order.
+     *
+     * @param paths equal-cost paths
+     * @return paths taken by tunnel, at least one
+     */
+    private List<Path> ecmpPaths(Set<Path> paths) {
+        return ecmpPaths(paths, ecmpMaxPaths);
+    }
+
+    private List<Path> ecmpPaths(Set<Path> paths, int maxPaths) {
+        List<Path> sorted = new ArrayList<>(paths);
+        sorted.sort(Comparator.comparing(path -> path.links().toString()));
+        return new ArrayList<>(sorted.subList(0, Math.min(maxPaths, sorted.size())));
+    }
+
+    /**
+     * Return devices receiving traffic of the routes, i.e. every device but the ingress.
+     *
+     * @param paths routes of tunnel
+     * @param ingress ingress device of the direction
+     * @return devices in order of first appearance
+     */
+    private Set<DeviceId> ecmpNodes(List<Path> paths, DeviceId ingress) {
+        Set<DeviceId> nodes = new LinkedHashSet<>();
+        for (Path path : paths) {
+            nodes.addAll(pathDevices(path));
+        }
+        nodes.remove(ingress);
+        return nodes;
+    }
+
+    /**
+     * Return links carrying both directions of a tunnel over the routes, each once.
+     *
+     * @param paths routes of tunnel
+     * @return links of routes and their reverse links
+     */
+    private List<Link> ecmpLinks(List<Path> paths) {
+        Set<Link> links = new LinkedHashSet<>();
+        paths.forEach(path -> links.addAll(tunnelLinks(path)));
+        return new ArrayList<>(links);
+    }
+
+    /**
+     * Return label of each device receiving one direction of a tunnel,
+     * reusing old label of the device where there is one.
+     *
+     * @param nodes devices receiving traffic
+     * @param reusable old label of each device
+     * @param freshLabels filled with newly allocated labels, per device
+     * @return device to label, or null if label space of a device is exhausted
+     */
+    private Map<DeviceId, Integer> nodeLabels(Collection<DeviceId> nodes, Map<DeviceId, Integer> reusable,
+                                              Map<DeviceId, List<Integer>> freshLabels) {
+        return metrics.time(ProvisioningMetrics.Stage.LABEL, () -> {
+            Map<DeviceId, Integer> labels = new LinkedHashMap<>();
+            for (DeviceId deviceId : nodes) {
+                Integer label = reusable.get(deviceId);
+                if(label == null) {
+                    label = labelSpaces.allocate(deviceId);
+                    if(label == INVALID_LABEL) {
+                        log.warn("Label space of {} is exhausted, {} labels in use.",
+                                deviceId, labelSpaces.usedCount(deviceId));
+                        return null;
+                    }
+                    freshLabels.computeIfAbsent(deviceId, id -> new ArrayList<>()).add(label);
+                }
+                labels.put(deviceId, label);
+            }
+            return labels;
+        });
+    }
+
+    /**
+     * Return label of each device receiving one direction of a tunnel, as it is now.
+     *
+     * @param tunnel tunnel
+     * @param forward true for forward direction
+     * @return device to label
+     */
+    private Map<DeviceId, Integer> nodeLabelsOf(SdwanTunnel tunnel, boolean forward) {
+        if(tunnel.isEcmp()) {
+            return forward ? tunnel.getForwardNodeLabels() : tunnel.getBackwardNodeLabels();
+        }
+        List<DeviceId> devices = forward ? tunnel.getForwardDevices() : tunnel.getBackwardDevices();
+        List<Integer> labels = forward ? tunnel.getForwardLabels() : tunnel.getBackwardLabels();
+        Map<DeviceId, Integer> nodeLabels = new HashMap<>();
+        for (int i = 0; i + 1 < devices.size(); i++) {
+            nodeLabels.put(devices.get(i + 1), labels.get(Math.min(i, labels.size() - 1)));
+        }
+        return nodeLabels;
+    }
+
+    private List<Integer> hopLabels(List<DeviceId> devices, Map<DeviceId, Integer> nodeLabels) {
+        List<Integer> labels = new ArrayList<>();
+        for (int i = 1; i < devices.size(); i++) {
+            labels.add(nodeLabels.get(devices.get(i)));
+        }
+        return labels;
+    }
+
+    /**
+     * Return flow rules of both directions of tunnel, tagged with the cookie of the tunnel.
+     *
+     * @param tunnel tunnel to compile
+     * @return flow rules, or null if any direction can't be compiled
+     */
+    private List<FlowRule> compileTunnelFlows(SdwanTunnel tunnel) {
+
+        long cookie = TunnelCookies.cookie(appId, tunnel.getTunnelId());
+
+        if(tunnel.isSegmentRouted()) {
+            List<FlowRule> forwardFlows = compileSegmentRoutedFlows(tunnel.getSrcSite(), tunnel.getDstSite(),
+                    tunnel.getForwardSegments(), tunnel.getForwardLabel(0), tunnel.getSiteVlan(),
+                    tunnel.getNetworkProtocol(), cookie);
+            List<FlowRule> backwardFlows = compileSegmentRoutedFlows(tunnel.getDstSite(), tunnel.getSrcSite(),
+                    tunnel.getBackwardSegments(), tunnel.getBackwardLabel(0), tunnel.getSiteVlan(),
+                    tunnel.getNetworkProtocol(), cookie);
+            if(forwardFlows == null || backwardFlows == null) {
+                log.warn("No node segment route between sites!\nTunnel: {}", tunnel.toString());
+                return null;
+            }
+            List<FlowRule> tunnelFlows = new ArrayList<>(forwardFlows);
+            tunnelFlows.addAll(backwardFlows);
+            return tunnelFlows;
+        }
+
+        // transit and egress rules of a merged direction belong to its tree
+        if(tunnel.isMerged()) {
+            List<FlowRule> backwardFlows = compilePathFlows(tunnel, true);
+            if(backwardFlows == null) {
+                log.warn("Fail to setup Backward path!\nTunnel: {}", tunnel.toString());
+                return null;
+            }
+            List<FlowRule> tunnelFlows = new ArrayList<>(backwardFlows);
+            tunnelFlows.add(compileMergedIngressFlow(tunnel, cookie));
+            return tunnelFlows;
+        }
+
+        if(tunnel.isEcmp()) {
+            List<FlowRule> tunnelFlows = new ArrayList<>();
+            tunnelFlows.addAll(compileEcmpFlows(tunnel.getSrcSite(), tunnel.getDstSite(),
+                    ecmpBranches(tunnel.getEcmpPaths(), false), tunnel.getForwardNodeLabels(),
+                    tunnel.getBackwardNodeLabels(), tunnel.getSiteVlan(), tunnel.getNetworkProtocol(), cookie));
+            tunnelFlows.addAll(compileEcmpFlows(tunnel.getDstSite(), tunnel.getSrcSite(),
+                    ecmpBranches(tunnel.getEcmpPaths(), true), tunnel.getBackwardNodeLabels(),
+                    tunnel.getForwardNodeLabels(), tunnel.getSiteVlan(), tunnel.getNetworkProtocol(), cookie));
+            return tunnelFlows;
+        }
+
+        List<FlowRule> forwardFlows = compilePathFlows(tunnel, false);
+        if(forwardFlows == null) {
+            log.warn("Fail to setup Forward path!\nTunnel: {}", tunnel.toString());
+            return null;
+        }
+
+        List<FlowRule> backwardFlows = compilePathFlows(tunnel, true);
+        if(backwardFlows == null) {
+            log.warn("Fail to setup Backward path!\nTunnel: {}", tunnel.toString());
+            return null;
+        }
+
+        List<FlowRule> tunnelFlows = new ArrayList<>(forwardFlows.size() + backwardFlows.size());
+        tunnelFlows.addAll(forwardFlows);
+        tunnelFlows.addAll(backwardFlows);
+
+        if(tunnel.isProtected()) {
+            tunnelFlows.addAll(compileBackupFlows(hopEgressPoints(tunnel.getBackupPath(), false),
+                    tunnel.getBackupForwardLabels(), tunnel.getDstSite(), tunnel));
+            tunnelFlows.addAll(compileBackupFlows(hopEgressPoints(tunnel.getBackupPath(), true),
+                    tunnel.getBackupBackwardLabels(), tunnel.getSrcSite(), tunnel));
+        }
+        return tunnelFlows;
+    }
+
+    private FlowRule compileMergedIngressFlow(SdwanTunnel tunnel, long cookie) {
 
-        treatment = DefaultTrafficTreatment.builder()
+        TrafficSelector selector = ruleCompiler.siteSelector(tunnel.getSrcSite().port(), tunnel.getSiteVlan(),
+                tunnel.getNetworkProtocol());
+
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
                 .immediate()
-                .popMpls(new EthType(tunnel.getNetworkProtocol()))
-                .setOutput(leaveLastHop.port())
+                .pushMpls().setMpls(mplsLabel(tunnel.getForwardLabel(0)))
+                .setOutput(tunnel.getForwardPath().links().get(0).src().port())
                 .build();
 
-        FlowRule leaveFlow = DefaultFlowRule.builder()
-                .forDevice(leaveLastHop.deviceId())
-                .forTable(0)
-                .fromApp(appId)
-                .makePermanent()
-                // .withCookie(tunnel.getBackwardLabel())
-                .withPriority(FLOWRULE_PRIORITY)
-                .withSelector(selector)
-                .withTreatment(treatment)
+        return ruleCompiler.classifierRule(tunnel.getSrcSite().deviceId(), selector, treatment, cookie);
+    }
+
+    /**
+     * Compile rules of one direction of a tunnel along its path.
+     *
+     * @param tunnel tunnel
+     * @param reverse true for backward direction, from dst site to src site
+     * @return rules, or null if the path doesn't connect the sites
+     */
+    private List<FlowRule> compilePathFlows(SdwanTunnel tunnel, boolean reverse) {
+
+        ConnectPoint ingress = reverse ? tunnel.getDstSite() : tunnel.getSrcSite();
+        ConnectPoint egress = reverse ? tunnel.getSrcSite() : tunnel.getDstSite();
+        List<Integer> labels = reverse ? tunnel.getBackwardLabels() : tunnel.getForwardLabels();
+        List<Integer> oppositeLabels = reverse ? tunnel.getForwardLabels() : tunnel.getBackwardLabels();
+        // both directions share the path, backward one runs it from the end
+        List<ConnectPoint> hopPorts = hopEgressPoints(reverse ? tunnel.getBackwardPath() : tunnel.getForwardPath(),
+                reverse);
+
+        // protected hops point to fast-failover groups, numbered after a label the device owns
+        Map<Integer, Integer> hopGroups = new HashMap<>();
+        if(tunnel.isProtected() && !hopPorts.isEmpty()) {
+            hopGroups.put(0, ProtectionGroupCompiler.groupId(oppositeLabels.get(hopPorts.size() - 1)));
+            List<ConnectPoint> backupPoints = hopEgressPoints(tunnel.getBackupPath(), reverse);
+            for (int i = 1; i < hopPorts.size(); i++) {
+                if(backupTransitIndex(backupPoints, hopPorts.get(i).deviceId()) > 0) {
+                    hopGroups.put(i, ProtectionGroupCompiler.groupId(labels.get(i - 1)));
+                }
+            }
+        }
+
+        try {
+            return ruleCompiler.compile(ingress, egress, hopPorts, labels, tunnel.getSiteVlan(),
+                    tunnel.getNetworkProtocol(), hopGroups, TunnelCookies.cookie(appId, tunnel.getTunnelId()));
+        } catch (IllegalArgumentException e) {
+            log.warn("{}, {} direction is not installed\n{}", e.getMessage(),
+                    reverse ? "backward" : "forward", tunnel.toString());
+            return null;
+        }
+    }
+
+
+
+    /**
+     * Reroute tunnels away from failed links or devices.
+     *
+     * Only hop rules that differ between old and new route are touched,
+     * new and changed rules are installed before stale ones are removed.
+     * Stale groups and labels go once stale rules are removed, whether
+     * the batch failed on some devices or not.
+     *
+     * @param tunnels tunnels crossing failed elements
+     */
+    private void rerouteTunnels(Collection<SdwanTunnel> tunnels) {
+
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        List<FlowRule> staleFlows = new ArrayList<>();
+        List<GroupDescription> staleGroups = new ArrayList<>();
+        Map<DeviceId, List<Integer>> staleLabels = new HashMap<>();
+        int rerouted = 0;
+
+        // tunnels may be changed or removed since the event was queued
+        List<SdwanTunnel> current = new ArrayList<>();
+        for (SdwanTunnel stored : tunnels) {
+            SdwanTunnel tunnel = tunnelStore.getTunnel(stored.getTunnelId());
+            if(tunnel != null && tunnel.getForwardPath() != null) {
+                current.add(tunnel);
+            }
+        }
+
+        // merged tunnels all leave their trees first, so none joins again at a branch over the failure
+        current.forEach(this::detachMerged);
+
+        for (SdwanTunnel tunnel : current) {
+
+            if(tunnel.isProtected()) {
+                boolean primaryIntact = isPathIntact(tunnel.getForwardPath());
+                boolean backupIntact = isPathIntact(tunnel.getBackupPath());
+                if(primaryIntact || backupIntact) {
+                    log.info("Tunnel {} is protected, {} route is still up, leave it to fast-failover",
+                            tunnel.getTunnelId(), primaryIntact ? "primary" : "backup");
+                    continue;
+                }
+            }
+
+            SdwanTunnel newTunnel = rerouteTunnel(tunnel, staleLabels);
+            if(newTunnel == null && tunnel.isMerged()) {
+                // back into the tree along its old route, it is rerouted once a route comes up
+                newTunnel = remergeTunnel(tunnel, tunnel.getForwardPath(), 0, staleLabels);
+                if(newTunnel == null) {
+                    log.error("Tunnel {} lost its place in the tree toward {}", tunnel.getTunnelId(),
+                            tunnel.getDstSite());
+                }
+            }
+            if(newTunnel == null) {
+                continue;
+            }
+
+            List<FlowRule> oldFlows = installedFlows.get(tunnel.getTunnelId());
+            if(oldFlows == null) {
+                oldFlows = compileTunnelFlows(tunnel);
+            }
+            List<FlowRule> newFlows = compileTunnelFlows(newTunnel);
+            if(oldFlows == null || newFlows == null) {
+                continue;
+            }
+
+            // groups are in place before flows point to them
+            updateGroups(compileTunnelGroups(tunnel), compileTunnelGroups(newTunnel), staleGroups);
+
+            // FlowRule equality covers match only, treatment is compared separately
+            Map<FlowRule, FlowRule> oldByMatch = new HashMap<>();
+            oldFlows.forEach(flow -> oldByMatch.put(flow, flow));
+            for (FlowRule flow : newFlows) {
+                FlowRule oldFlow = oldByMatch.remove(flow);
+                if(oldFlow == null) {
+                    ops.add(flow);
+                } else if(!oldFlow.treatment().equals(flow.treatment())) {
+                    ops.modify(flow);
+                }
+            }
+            staleFlows.addAll(oldByMatch.values());
+
+            tunnelStore.addTunnel(newTunnel);
+            installedFlows.put(newTunnel.getTunnelId(), newFlows);
+            rerouted++;
+        }
+
+        int treeChanges = mergeTrees.diff(ops, staleFlows, staleLabels);
+        if(rerouted == 0 && treeChanges == 0) {
+            releaseLabels(staleLabels);
+            return;
+        }
+
+        // make before break, stale rules go once every device answered
+        int reroutedCount = rerouted;
+        new DeviceBatches<SdwanTunnel>().operations(ops.build(), null).submit(flowRuleService, failed -> {
+            if(!failed.isEmpty()) {
+                log.warn("Fail to reroute {} tunnels, {} flow rules failed, the reconciler retries them",
+                        reroutedCount, failed.size());
+            }
+            removeFlows(staleFlows, staleFailed -> {
+                removeStaleGroups(staleGroups, staleFailed);
+                releaseLabels(staleLabels);
+                if(failed.isEmpty() && staleFailed.isEmpty()) {
+                    log.info("Succeed to reroute {} tunnels :)", reroutedCount);
+                } else if(!staleFailed.isEmpty()) {
+                    log.warn("Fail to remove {} stale flow rules after reroute", staleFailed.size());
+                }
+            });
+        });
+    }
+
+    /**
+     * Remove groups left by rerouted tunnels.
+     *
+     * A group stays on a device where stale rules could not be removed,
+     * as they may still point to it.
+     *
+     * @param staleGroups groups no longer used
+     * @param staleFailed stale rules devices failed to remove
+     */
+    private void removeStaleGroups(List<GroupDescription> staleGroups, Set<FlowRule> staleFailed) {
+        Set<DeviceId> keep = new HashSet<>();
+        staleFailed.forEach(flow -> keep.add(flow.deviceId()));
+        for (GroupDescription group : staleGroups) {
+            if(keep.contains(group.deviceId())) {
+                log.warn("Keep stale group {} on {}, stale rules may still use it", group.appCookie(),
+                        group.deviceId());
+            } else {
+                groupService.removeGroup(group.deviceId(), group.appCookie(), appId);
+            }
+        }
+    }
+
+    /**
+     * Compute new route of tunnel over current topology, keeping labels where possible.
+     *
+     * @param tunnel tunnel to reroute
+     * @param staleLabels filled with labels no longer used by new route, per device
+     * @return rerouted tunnel with same id, or null if there is no new route
+     */
+    private SdwanTunnel rerouteTunnel(SdwanTunnel tunnel, Map<DeviceId, List<Integer>> staleLabels) {
+
+        DeviceId src = tunnel.getSrcSite().deviceId();
+        DeviceId dst = tunnel.getDstSite().deviceId();
+        if(!deviceService.isAvailable(src) || !deviceService.isAvailable(dst)) {
+            log.warn("Site device of tunnel is down, can't reroute.\nTunnel: {}", tunnel.toString());
+            return null;
+        }
+
+        // the tunnel competes for bandwidth without its old reservation, restored if it stays
+        double bps = tunnel.getBandwidth().bps();
+        Collection<Link> oldReservation = bandwidthLedger.release(tunnel.getTunnelId());
+
+        Set<Path> paths = findPaths(topologyService.currentTopology(), src, dst, bps);
+        if(paths.isEmpty()) {
+            bandwidthLedger.forceReserve(tunnel.getTunnelId(), oldReservation, bps);
+            log.warn("Can't find a new route from {} to {}.\nTunnel: {}", src, dst, tunnel.toString());
+            return null;
+        }
+
+        // service labels stay with the site devices, only the segments change
+        if(tunnel.isSegmentRouted()) {
+            SegmentedRoute route = segmentedRoute(paths);
+            if(route == null || (bps > 0
+                    && !bandwidthLedger.reserve(tunnel.getTunnelId(), tunnelLinks(route.path), bps))) {
+                bandwidthLedger.forceReserve(tunnel.getTunnelId(), oldReservation, bps);
+                log.warn("Can't find a new segment route from {} to {}.\nTunnel: {}", src, dst, tunnel.toString());
+                return null;
+            }
+            return SdwanTunnel.builder(tunnel)
+                    .forwardDevices(route.forwardDevices).backwardDevices(route.backwardDevices)
+                    .forwardPath(route.path).backwardPath(route.path)
+                    .segments(route.forwardSegments, route.backwardSegments)
+                    .build();
+        }
+
+        if(tunnel.isMerged()) {
+            SdwanTunnel newTunnel = remergeTunnel(tunnel, paths.iterator().next(), bps, staleLabels);
+            if(newTunnel == null) {
+                bandwidthLedger.forceReserve(tunnel.getTunnelId(), oldReservation, bps);
+                log.warn("Can't merge new route from {} to {}.\nTunnel: {}", src, dst, tunnel.toString());
+            }
+            return newTunnel;
+        }
+
+        // an ECMP tenant gets its tunnels spread again, others keep one route
+        boolean ecmp = tunnel.isEcmp() || getTenantRoutingMode(tunnel.getTenantName()) == RoutingMode.ECMP;
+        List<Path> selected = ecmp ? ecmpPaths(paths) : Collections.singletonList(paths.iterator().next());
+        Path path = selected.get(0);
+        if(bps > 0 && !bandwidthLedger.reserve(tunnel.getTunnelId(), ecmpLinks(selected), bps)) {
+            bandwidthLedger.forceReserve(tunnel.getTunnelId(), oldReservation, bps);
+            log.warn("New route of tunnel ran out of bandwidth meanwhile.\nTunnel: {}", tunnel.toString());
+            return null;
+        }
+
+        List<DeviceId> forwardDevices = pathDevices(path);
+        List<DeviceId> backwardDevices = new ArrayList<>(forwardDevices);
+        Collections.reverse(backwardDevices);
+
+        // a device keeps its old label where the new route still ends a hop on it
+        Map<DeviceId, Integer> oldForwardLabels = nodeLabelsOf(tunnel, true);
+        Map<DeviceId, Integer> oldBackwardLabels = nodeLabelsOf(tunnel, false);
+        Map<DeviceId, List<Integer>> freshLabels = new HashMap<>();
+        Map<DeviceId, Integer> forwardNodeLabels = nodeLabels(ecmpNodes(selected, src), oldForwardLabels, freshLabels);
+        Map<DeviceId, Integer> backwardNodeLabels = forwardNodeLabels == null ? null
+                : nodeLabels(ecmpNodes(selected, dst), oldBackwardLabels, freshLabels);
+        if(backwardNodeLabels == null) {
+            freshLabels.forEach((deviceId, labels) -> labels.forEach(l -> labelSpaces.release(deviceId, l)));
+            bandwidthLedger.release(tunnel.getTunnelId());
+            bandwidthLedger.forceReserve(tunnel.getTunnelId(), oldReservation, bps);
+            return null;
+        }
+
+        addStaleLabels(oldForwardLabels, forwardNodeLabels, staleLabels);
+        addStaleLabels(oldBackwardLabels, backwardNodeLabels, staleLabels);
+
+        // both routes of a protected tunnel are down, it continues unprotected
+        addStaleLabels(tunnel.getBackupForwardDevices(), tunnel.getBackupForwardLabels(), staleLabels);
+        addStaleLabels(tunnel.getBackupBackwardDevices(), tunnel.getBackupBackwardLabels(), staleLabels);
+
+        return SdwanTunnel.builder(tunnel)
+                .forwardDevices(forwardDevices).backwardDevices(backwardDevices)
+                .forwardPath(path).backwardPath(path)
+                .forwardLabels(hopLabels(forwardDevices, forwardNodeLabels))
+                .backwardLabels(hopLabels(backwardDevices, backwardNodeLabels))
+                .backup(null, null, null, null, null)
+                .ecmp(selected, forwardNodeLabels, backwardNodeLabels)
                 .build();
+    }
 
-        tunnelFlows.add(leaveFlow);
+    /**
+     * Merge a tunnel, detached from its tree, into the tree again over the given path.
+     *
+     * @param tunnel tunnel as stored
+     * @param path route to follow until it joins the tree
+     * @param bps bandwidth to reserve on the route taken, zero to leave reservations alone
+     * @param staleLabels filled with backward labels no longer used, per device
+     * @return tunnel over the route taken, or null if labels or bandwidth ran out
+     */
+    private SdwanTunnel remergeTunnel(SdwanTunnel tunnel, Path path, double bps,
+                                      Map<DeviceId, List<Integer>> staleLabels) {
 
+        ConnectPoint dst = tunnel.getDstSite();
+        int ethertypeCode = tunnel.getNetworkProtocol();
+        List<Link> route = mergeTrees.attach(dst, ethertypeCode, path.links());
+        if(route == null) {
+            return null;
+        }
+        Path routePath = routePath(path, route);
+        if(bps > 0 && !bandwidthLedger.reserve(tunnel.getTunnelId(), tunnelLinks(routePath), bps)) {
+            mergeTrees.detach(dst, ethertypeCode, route);
+            return null;
+        }
 
+        List<DeviceId> forwardDevices = pathDevices(routePath);
+        List<DeviceId> backwardDevices = new ArrayList<>(forwardDevices);
+        Collections.reverse(backwardDevices);
+
+        Map<DeviceId, Integer> oldBackwardLabels = nodeLabelsOf(tunnel, false);
+        Map<DeviceId, List<Integer>> freshLabels = new HashMap<>();
+        Map<DeviceId, Integer> backwardNodeLabels = nodeLabels(backwardDevices.subList(1, backwardDevices.size()),
+                oldBackwardLabels, freshLabels);
+        if(backwardNodeLabels == null) {
+            releaseLabels(freshLabels);
+            mergeTrees.detach(dst, ethertypeCode, route);
+            if(bps > 0) {
+                bandwidthLedger.release(tunnel.getTunnelId());
+            }
+            return null;
+        }
+        addStaleLabels(oldBackwardLabels, backwardNodeLabels, staleLabels);
 
-        // ------------
+        return SdwanTunnel.builder(tunnel)
+                .forwardDevices(forwardDevices).backwardDevices(backwardDevices)
+                .forwardPath(routePath).backwardPath(routePath)
+                .forwardLabels(mergedLabels(dst, ethertypeCode, forwardDevices))
+                .backwardLabels(hopLabels(backwardDevices, backwardNodeLabels))
+                .build();
+    }
 
-        FlowRule [] flows = new FlowRule[tunnelFlows.size()];
-        tunnelFlows.toArray(flows);
+    private void addStaleLabels(Map<DeviceId, Integer> oldLabels, Map<DeviceId, Integer> newLabels,
+                                Map<DeviceId, List<Integer>> staleLabels) {
+        oldLabels.forEach((deviceId, label) -> {
+            if(!label.equals(newLabels.get(deviceId))) {
+                staleLabels.computeIfAbsent(deviceId, id -> new ArrayList<>()).add(label);
+            }
+        });
+    }
 
-        flowRuleService.applyFlowRules(flows);
+    /**
+     * Add new groups and update changed ones right away,
+     * collect groups no longer used to remove them once flows moved away.
+     *
+     * @param oldGroups groups of tunnel before reroute
+     * @param newGroups groups of tunnel after reroute
+     * @param staleGroups filled with groups no longer used
+     */
+    private void updateGroups(List<GroupDescription> oldGroups, List<GroupDescription> newGroups,
+                              List<GroupDescription> staleGroups) {
+
+        Map<List<Object>, GroupDescription> oldByKey = new HashMap<>();
+        oldGroups.forEach(group -> oldByKey.put(Arrays.asList(group.deviceId(), group.appCookie()), group));
+
+        for (GroupDescription group : newGroups) {
+            GroupDescription oldGroup = oldByKey.remove(Arrays.asList(group.deviceId(), group.appCookie()));
+            if(oldGroup == null) {
+                groupService.addGroup(group);
+            } else if(!oldGroup.buckets().equals(group.buckets())) {
+                groupService.setBucketsForGroup(group.deviceId(), group.appCookie(), group.buckets(),
+                        group.appCookie(), appId);
+            }
+        }
+        staleGroups.addAll(oldByKey.values());
+    }
 
-        return true;
+    /**
+     * Return shortest paths, constrained to links with enough residual bandwidth if bps is positive.
+     *
+     * @param topology topology snapshot
+     * @param src source device
+     * @param dst destination device
+     * @param bps bandwidth demand, zero for best effort
+     * @return paths, empty if none
+     */
+    private Set<Path> findPaths(Topology topology, DeviceId src, DeviceId dst, double bps) {
+        return metrics.time(ProvisioningMetrics.Stage.PATH, () -> {
+            if(bps <= 0) {
+                return pathCache.getPaths(topology, src, dst);
+            }
+            // residual bandwidth changes with every reservation, CSPF results are not cached
+            return topologyService.getPaths(topology, src, dst, bandwidthWeigher(bps));
+        });
     }
 
+    private BandwidthLinkWeigher bandwidthWeigher(double bps) {
+        return new BandwidthLinkWeigher(bandwidthLedger, bps,
+                link -> linkService.getLink(link.dst(), link.src()));
+    }
 
+    /**
+     * Return links carrying both directions of a tunnel on the path.
+     *
+     * @param path path in forward direction
+     * @return links of path and their reverse links
+     */
+    private List<Link> tunnelLinks(Path path) {
+        List<Link> links = new ArrayList<>(path.links());
+        for (Link link : path.links()) {
+            Link back = linkService.getLink(link.dst(), link.src());
+            if(back != null) {
+                links.add(back);
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Return capacity of link in bps, from its bandwidth annotation in Mbps,
+     * or else from the slower port speed of both ends.
+     *
+     * @param link link
+     * @return capacity, 0 if unknown
+     */
+    private double linkCapacity(Link link) {
+
+        String annotated = link.annotations().value(AnnotationKeys.BANDWIDTH);
+        if(annotated != null) {
+            try {
+                return Double.parseDouble(annotated) * 1_000_000;
+            } catch (NumberFormatException e) {
+                log.debug("Bad bandwidth annotation {} of link {}", annotated, link);
+            }
+        }
+
+        Port srcPort = deviceService.getPort(link.src().deviceId(), link.src().port());
+        Port dstPort = deviceService.getPort(link.dst().deviceId(), link.dst().port());
+        long srcSpeed = srcPort == null ? 0 : srcPort.portSpeed();
+        long dstSpeed = dstPort == null ? 0 : dstPort.portSpeed();
+        long mbps = srcSpeed <= 0 ? dstSpeed : (dstSpeed <= 0 ? srcSpeed : Math.min(srcSpeed, dstSpeed));
+        return mbps * 1_000_000.0;
+    }
+
+    private void addStaleLabels(List<DeviceId> devices, List<Integer> labels,
+                                Map<DeviceId, List<Integer>> staleLabels) {
+        for (int i = 0; i < labels.size() && i + 1 < devices.size(); i++) {
+            staleLabels.computeIfAbsent(devices.get(i + 1), id -> new ArrayList<>()).add(labels.get(i));
+        }
+    }
+
+    /**
+     * Return devices along the path, from source to destination.
+     *
+     * @param path path
+     * @return devices of path
+     */
+    private List<DeviceId> pathDevices(Path path) {
+
+        List<DeviceId> devices = new ArrayList<>();
+        Iterator<Link> links = path.links().iterator();
+        Link firstLink = links.next();
+
+        devices.add(firstLink.src().deviceId());
+        devices.add(firstLink.dst().deviceId());
+        links.forEachRemaining(link -> devices.add(link.dst().deviceId()));
+        return devices;
+    }
 
     /**
      * Return new ConnectPoint object.
@@ -498,53 +2021,653 @@ public class SdwanManager implements SdwanService {
             return null;
         }
 
-        return new ConnectPoint(deviceId(dpidAndPort[0]), portNumber(dpidAndPort[1]));
+        try {
+            return new ConnectPoint(deviceId(dpidAndPort[0]), portNumber(dpidAndPort[1]));
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException of port too, one bad site mustn't fail the whole batch
+            return null;
+        }
     }
 
     /**
-     * Get new available label number.
+     * Return transit and egress flows of one direction of backup route.
      *
-     * Adopt random value and incremental mechanism to avoid conflict.
+     * Ingress of backup route is a bucket of the ingress fast-failover group.
+     *
+     * @param backupPoints egress points of backup hops
+     * @param labels labels of backup hops
+     * @param egressSite site where traffic leaves the tunnel
+     * @param tunnel protected tunnel
+     * @return backup flows
+     */
+    private List<FlowRule> compileBackupFlows(List<ConnectPoint> backupPoints, List<Integer> labels,
+                                              ConnectPoint egressSite, SdwanTunnel tunnel) {
+        return ruleCompiler.compileTransit(egressSite, backupPoints, labels, tunnel.getNetworkProtocol(),
+                Collections.emptyMap(), TunnelCookies.cookie(appId, tunnel.getTunnelId()));
+    }
+
+    /**
+     * Return ingress and egress flows of one direction of a segment routed tunnel.
      *
-     * Default, try to avoid conflict 3 times.
+     * Ingress pushes the service label, then the node SIDs bottom up. The top SID
+     * is left out if its device is the next hop, as the penultimate hop pops it anyway.
+     *
+     * @param ingressSite site where traffic enters the tunnel
+     * @param egressSite site where traffic leaves the tunnel
+     * @param segments node SIDs, top first
+     * @param serviceLabel label of the tunnel at egress device
+     * @param vlan VLAN of traffic at the sites
+     * @param ethertypeCode ethertype of network protocol carried
+     * @param cookie cookie of the tunnel
+     * @return flows, or null if ingress has no route to the first segment
+     */
+    private List<FlowRule> compileSegmentRoutedFlows(ConnectPoint ingressSite, ConnectPoint egressSite,
+                                                     List<Integer> segments, int serviceLabel,
+                                                     VlanId vlan, int ethertypeCode, long cookie) {
+
+        DeviceId ingress = ingressSite.deviceId();
+        DeviceId firstNode = segmentDevice(segments.get(0));
+        Link firstLink = firstNode == null ? null : srFabric.nextHop(ingress, firstNode);
+        if(firstLink == null) {
+            return null;
+        }
+
+        TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder()
+                .immediate()
+                .pushMpls().setMpls(mplsLabel(serviceLabel));
+        int top = firstLink.dst().deviceId().equals(firstNode) ? 1 : 0;
+        for (int i = segments.size() - 1; i >= top; i--) {
+            treatment.pushMpls().setMpls(mplsLabel(segments.get(i)));
+        }
+        treatment.setOutput(firstLink.src().port());
+
+        FlowRule ingressFlow = ruleCompiler.classifierRule(ingress,
+                ruleCompiler.siteSelector(ingressSite.port(), vlan, ethertypeCode), treatment.build(), cookie);
+
+        FlowRule egressFlow = ruleCompiler.labelRule(egressSite.deviceId(), serviceLabel,
+                ruleCompiler.popTreatment(egressSite.port(), ethertypeCode), cookie);
+
+        List<FlowRule> flows = new ArrayList<>();
+        flows.add(ingressFlow);
+        flows.add(egressFlow);
+        return flows;
+    }
+
+    private DeviceId segmentDevice(int sid) {
+        for (Map.Entry<DeviceId, Integer> entry : srFabric.nodeSids().entrySet()) {
+            if(entry.getValue() == sid) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return egress port and next device of each branch leaving each device, in direction of traffic.
      *
-     * @return new label number.
+     * @param paths routes in forward direction
+     * @param reverse true for backward direction
+     * @return device to (egress port to next device)
      */
-    private int newLabel() {
-        return newLabel(3);
+    private Map<DeviceId, Map<PortNumber, DeviceId>> ecmpBranches(List<Path> paths, boolean reverse) {
+        Map<DeviceId, Map<PortNumber, DeviceId>> branches = new HashMap<>();
+        for (Path path : paths) {
+            for (Link link : path.links()) {
+                ConnectPoint out = reverse ? link.dst() : link.src();
+                ConnectPoint in = reverse ? link.src() : link.dst();
+                branches.computeIfAbsent(out.deviceId(), id -> new LinkedHashMap<>())
+                        .put(out.port(), in.deviceId());
+            }
+        }
+        return branches;
     }
 
     /**
-     * Get new available label number.
+     * Return flows of one direction of an ECMP tunnel.
      *
-     * Adopt random value and incremental mechanism to avoid conflict.
+     * Devices with more than one branch send to a select group, the others swap directly.
      *
-     * Used in a recursive way.
+     * @param ingressSite site where traffic enters the tunnel
+     * @param egressSite site where traffic leaves the tunnel
+     * @param branches branches leaving each device
+     * @param nodeLabels label of each device receiving traffic
+     * @param oppositeLabels labels of opposite direction, one of them names the ingress group
+     * @param vlan VLAN of traffic at the sites
+     * @param ethertypeCode ethertype of network protocol carried
+     * @param cookie cookie of the tunnel
+     * @return flows
+     */
+    private List<FlowRule> compileEcmpFlows(ConnectPoint ingressSite, ConnectPoint egressSite,
+                                            Map<DeviceId, Map<PortNumber, DeviceId>> branches,
+                                            Map<DeviceId, Integer> nodeLabels, Map<DeviceId, Integer> oppositeLabels,
+                                            VlanId vlan, int ethertypeCode, long cookie) {
+
+        List<FlowRule> flows = new ArrayList<>();
+
+        DeviceId ingress = ingressSite.deviceId();
+        Map<PortNumber, DeviceId> ingressBranches = branches.get(ingress);
+        TrafficTreatment treatment;
+        if(ingressBranches.size() > 1) {
+            treatment = groupTreatment(ecmpGroupId(oppositeLabels.get(ingress)));
+        } else {
+            Map.Entry<PortNumber, DeviceId> branch = ingressBranches.entrySet().iterator().next();
+            treatment = DefaultTrafficTreatment.builder()
+                    .immediate()
+                    .pushMpls().setMpls(mplsLabel(nodeLabels.get(branch.getValue())))
+                    .setOutput(branch.getKey())
+                    .build();
+        }
+        flows.add(ruleCompiler.classifierRule(ingress,
+                ruleCompiler.siteSelector(ingressSite.port(), vlan, ethertypeCode), treatment, cookie));
+
+        nodeLabels.forEach((deviceId, label) -> {
+            if(deviceId.equals(egressSite.deviceId())) {
+                flows.add(ruleCompiler.labelRule(deviceId, label,
+                        ruleCompiler.popTreatment(egressSite.port(), ethertypeCode), cookie));
+                return;
+            }
+            Map<PortNumber, DeviceId> nodeBranches = branches.get(deviceId);
+            if(nodeBranches.size() > 1) {
+                flows.add(ruleCompiler.labelRule(deviceId, label, groupTreatment(ecmpGroupId(label)), cookie));
+            } else {
+                Map.Entry<PortNumber, DeviceId> branch = nodeBranches.entrySet().iterator().next();
+                flows.add(ruleCompiler.labelRule(deviceId, label,
+                        swapTreatment(label, nodeLabels.get(branch.getValue()), branch.getKey()), cookie));
+            }
+        });
+        return flows;
+    }
+
+    /**
+     * Return select groups of one direction of an ECMP tunnel, one per device where branches diverge.
+     */
+    private void compileEcmpGroups(DeviceId ingress, Map<DeviceId, Map<PortNumber, DeviceId>> branches,
+                                   Map<DeviceId, Integer> nodeLabels, Map<DeviceId, Integer> oppositeLabels,
+                                   List<GroupDescription> groups) {
+
+        branches.forEach((deviceId, nodeBranches) -> {
+            if(nodeBranches.size() < 2) {
+                return;
+            }
+            boolean isIngress = deviceId.equals(ingress);
+            int groupId = ecmpGroupId(isIngress ? oppositeLabels.get(deviceId) : nodeLabels.get(deviceId));
+
+            List<GroupBucket> buckets = new ArrayList<>();
+            nodeBranches.forEach((port, next) -> {
+                TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder();
+                if(isIngress) {
+                    treatment.pushMpls();
+                }
+                treatment.setMpls(mplsLabel(nodeLabels.get(next))).setOutput(port);
+                buckets.add(DefaultGroupBucket.createSelectGroupBucket(treatment.build()));
+            });
+
+            groups.add(new DefaultGroupDescription(deviceId, GroupDescription.Type.SELECT,
+                    new GroupBuckets(buckets), groupKey(groupId), groupId, appId));
+        });
+    }
+
+    /**
+     * Return groups of tunnel, fast-failover groups of protected tunnel
+     * or select groups of ECMP tunnel.
      *
-     * @param tryCount times that we find a new random value and try to avoid conflict again
-     * @return new label number.
+     * @param tunnel tunnel
+     * @return group descriptions, empty if tunnel needs none
      */
-    private int newLabel(int tryCount) {
+    private List<GroupDescription> compileTunnelGroups(SdwanTunnel tunnel) {
+        if(!tunnel.isEcmp()) {
+            return protectionGroups.compile(tunnel);
+        }
+        List<GroupDescription> groups = new ArrayList<>();
+        compileEcmpGroups(tunnel.getSrcSite().deviceId(), ecmpBranches(tunnel.getEcmpPaths(), false),
+                tunnel.getForwardNodeLabels(), tunnel.getBackwardNodeLabels(), groups);
+        compileEcmpGroups(tunnel.getDstSite().deviceId(), ecmpBranches(tunnel.getEcmpPaths(), true),
+                tunnel.getBackwardNodeLabels(), tunnel.getForwardNodeLabels(), groups);
+        return groups;
+    }
 
-        if(tryCount <= 0) {
-            return INVALID_LABEL;
+    private void removeTunnelGroups(SdwanTunnel tunnel) {
+        compileTunnelGroups(tunnel).forEach(group ->
+                groupService.removeGroup(group.deviceId(), group.appCookie(), appId));
+    }
+
+    private int ecmpGroupId(int ownedLabel) {
+        return ECMP_GROUP_ID_BASE | ownedLabel;
+    }
+
+    /**
+     * Return whether every link and device of path is still up.
+     *
+     * @param path path
+     * @return true if path is intact
+     */
+    private boolean isPathIntact(Path path) {
+
+        for (Link link : path.links()) {
+            Link current = linkService.getLink(link.src(), link.dst());
+            if(current == null || current.state() == Link.State.INACTIVE
+                    || !deviceService.isAvailable(link.src().deviceId())
+                    || !deviceService.isAvailable(link.dst().deviceId())) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        int label = labelGenerator.nextInt(MAX_LABEL + 1);
-        int freeLabel = label;
+    /**
+     * Get new available labels for each hop of device list.
+     *
+     * Label of hop i is allocated in label space of devices[i + 1].
+     *
+     * @param devices devices along the direction of traffic
+     * @return labels of each hop, or null if label space of any device is exhausted.
+     */
+    private List<Integer> newLabels(List<DeviceId> devices) {
+
+        return metrics.time(ProvisioningMetrics.Stage.LABEL, () -> {
+            List<Integer> labels = new ArrayList<>();
+            for (int i = 1; i < devices.size(); i++) {
+                int label = labelSpaces.allocate(devices.get(i));
+                if(label == INVALID_LABEL) {
+                    log.warn("Label space of {} is exhausted, {} labels in use.",
+                            devices.get(i), labelSpaces.usedCount(devices.get(i)));
+                    releaseLabels(devices, labels);
+                    return null;
+                }
+                labels.add(label);
+            }
+            return labels;
+        });
+    }
+
+    /**
+     * Return labels owned by the tunnel, per device receiving them.
+     *
+     * @param tunnel tunnel
+     * @return labels of each device
+     */
+    private Map<DeviceId, List<Integer>> ownedLabels(SdwanTunnel tunnel) {
+        Map<DeviceId, List<Integer>> labels = new HashMap<>();
+        // hop labels of an ECMP tunnel are a subset of its node labels
+        if(tunnel.isSegmentRouted()) {
+            addOwnedLabel(labels, tunnel.getDstSite().deviceId(), tunnel.getForwardLabel(0));
+            addOwnedLabel(labels, tunnel.getSrcSite().deviceId(), tunnel.getBackwardLabel(0));
+        } else if(tunnel.isMerged()) {
+            // forward labels belong to the tree nodes
+            addOwnedLabels(labels, tunnel.getBackwardDevices(), tunnel.getBackwardLabels());
+        } else if(tunnel.isEcmp()) {
+            tunnel.getForwardNodeLabels().forEach((deviceId, label) -> addOwnedLabel(labels, deviceId, label));
+            tunnel.getBackwardNodeLabels().forEach((deviceId, label) -> addOwnedLabel(labels, deviceId, label));
+        } else {
+            addOwnedLabels(labels, tunnel.getForwardDevices(), tunnel.getForwardLabels());
+            addOwnedLabels(labels, tunnel.getBackwardDevices(), tunnel.getBackwardLabels());
+        }
+        addOwnedLabels(labels, tunnel.getBackupForwardDevices(), tunnel.getBackupForwardLabels());
+        addOwnedLabels(labels, tunnel.getBackupBackwardDevices(), tunnel.getBackupBackwardLabels());
+        return labels;
+    }
 
-        // try to make sure label is not used and available, 10 times.
-        while(usingLabels.contains(freeLabel)
-                && freeLabel - label < 10
-                && freeLabel + 1 <= MAX_LABEL) {
-            freeLabel++;
+    private void addOwnedLabels(Map<DeviceId, List<Integer>> labels, List<DeviceId> devices,
+                                List<Integer> hopLabels) {
+        for (int i = 0; i < hopLabels.size() && i + 1 < devices.size(); i++) {
+            addOwnedLabel(labels, devices.get(i + 1), hopLabels.get(i));
         }
+    }
 
-        // 10 tries are all failed, find a new random value and try again.
-        if(usingLabels.contains(freeLabel)){
-            return newLabel(tryCount - 1);
+    private void addOwnedLabel(Map<DeviceId, List<Integer>> labels, DeviceId deviceId, int label) {
+        labels.computeIfAbsent(deviceId, id -> new ArrayList<>()).add(label);
+    }
+
+    /**
+     * Return labels of tunnel to the label pool.
+     *
+     * Forward labels of merged tunnels go back with the tree nodes no tunnel crosses any more.
+     * Labels leased to other instances are left to them.
+     *
+     * @param tunnel tunnel being torn down
+     */
+    private void releaseLabels(SdwanTunnel tunnel) {
+        releaseLabels(ownedLabels(tunnel));
+    }
+
+    private void releaseLabels(List<DeviceId> devices, List<Integer> labels) {
+        for (int i = 0; i < labels.size() && i + 1 < devices.size(); i++) {
+            labelSpaces.release(devices.get(i + 1), labels.get(i));
         }
+    }
 
-        return freeLabel;
+    private void releaseLabels(Map<DeviceId, List<Integer>> labels) {
+        labels.forEach((deviceId, deviceLabels) -> deviceLabels.forEach(l -> labelSpaces.release(deviceId, l)));
+    }
+
+    private void releaseSiteVlan(SdwanTunnel tunnel) {
+        siteVlans.release(tunnel.getSrcSite(), tunnel.getDstSite(), tunnel.getNetworkProtocol(),
+                tunnel.getSiteVlan());
+    }
+
+
+
+    private void writeSnapshot() {
+        try {
+            new TunnelSnapshot(tunnelStore.getTunnels(), srFabric.nodeSids()).write(snapshotFile);
+            log.info("Wrote {} tunnels to snapshot {}", tunnelStore.getTunnelCount(), snapshotFile);
+        } catch (IOException e) {
+            log.warn("Fail to write tunnel snapshot {}", snapshotFile, e);
+        }
+    }
+
+    /**
+     * Take back node SIDs of the snapshot, and its tunnels too if the cluster has none, e.g. after it restarted.
+     *
+     * Only tunnels with rules left on devices come back, the cookies of the
+     * rules tell which. The reconciler repairs those missing some rules and
+     * removes rules of tunnels that did not come back.
+     */
+    private void restoreSnapshot() {
+
+        TunnelSnapshot snapshot;
+        try {
+            snapshot = TunnelSnapshot.read(snapshotFile);
+        } catch (IOException | RuntimeException e) {
+            keepOrphans = true;
+            log.warn("Fail to read tunnel snapshot {}, rules no tunnel expects stay until the next sweep",
+                    snapshotFile, e);
+            return;
+        }
+        if(snapshot == null) {
+            return;
+        }
+
+        // tunnels adopted below are routed over these SIDs
+        srFabric.restoreSids(snapshot.nodeSids());
+        if(tunnelStore.getTunnelCount() > 0) {
+            return;
+        }
+
+        Set<Long> installedTunnels = new HashSet<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(appId)) {
+            installedTunnels.add(TunnelCookies.tunnelId(entry));
+        }
+
+        long lastTunnelId = 0;
+        int restored = 0;
+        for (SdwanTunnel tunnel : snapshot.tunnels()) {
+            lastTunnelId = Math.max(lastTunnelId, tunnel.getTunnelId());
+            if(installedTunnels.contains(tunnel.getTunnelId())) {
+                tunnelStore.addTunnel(tunnel);
+                restored++;
+            }
+        }
+        tunnelStore.reserveTunnelIds(lastTunnelId);
+        log.info("Restored {} of {} tunnels of snapshot taken {}", restored, snapshot.tunnels().size(),
+                new Date(snapshot.timestamp()));
+    }
+
+    /**
+     * Take over a stored tunnel whose rules are in place, e.g. one made by another instance.
+     *
+     * Labels, site VLAN, tree nodes and bandwidth of the tunnel are marked as used, so
+     * tunnels made here avoid them.
+     *
+     * @param tunnel stored tunnel
+     */
+    private void adoptTunnel(SdwanTunnel tunnel) {
+
+        ownedLabels(tunnel).forEach((deviceId, labels) -> labels.forEach(l -> labelSpaces.allocate(deviceId, l)));
+        if(!siteVlans.claim(tunnel.getSrcSite(), tunnel.getDstSite(), tunnel.getNetworkProtocol(),
+                tunnel.getSiteVlan())) {
+            log.warn("VLAN {} of tunnel {} is in use by another tunnel of its sites",
+                    tunnel.getSiteVlan(), tunnel.getTunnelId());
+        }
+        if(tunnel.isMerged()) {
+            mergeTrees.restore(tunnel.getDstSite(), tunnel.getNetworkProtocol(),
+                    tunnel.getForwardPath().links(), tunnel.getForwardLabels());
+        }
+
+        double bps = tunnel.getBandwidth().bps();
+        if(bps > 0) {
+            bandwidthLedger.forceReserve(tunnel.getTunnelId(), tunnel.isEcmp()
+                    ? ecmpLinks(tunnel.getEcmpPaths()) : tunnelLinks(tunnel.getForwardPath()), bps);
+        }
+
+        // SID rules carry the tunnel, they must follow the topology here too
+        if(tunnel.isSegmentRouted() && !srFabric.isActive()) {
+            rerouteExecutor.execute(() -> {
+                if(!srFabric.isActive()) {
+                    srFabric.refresh();
+                }
+            });
+        }
+
+        List<FlowRule> flows = compileTunnelFlows(tunnel);
+        if(flows != null) {
+            installedFlows.put(tunnel.getTunnelId(), flows);
+        }
+    }
+
+    /**
+     * Take over label blocks of instances that left the cluster.
+     *
+     * Tunnels they made stay in the store and their labels stay on devices,
+     * so labels of stored tunnels in blocks taken over are marked as used.
+     */
+    private void takeOverLabelLeases() {
+
+        Set<NodeId> members = clusterService.getNodes().stream()
+                .map(ControllerNode::id)
+                .collect(Collectors.toSet());
+        int blocks = labelSpaces.takeOverLeases(members);
+        if(blocks == 0) {
+            return;
+        }
+
+        for (SdwanTunnel tunnel : tunnelStore.getTunnels()) {
+            Map<DeviceId, List<Integer>> labels = ownedLabels(tunnel);
+            if(tunnel.isMerged()) {
+                // forward labels belong to the tree nodes, kept while any tunnel of the tree is
+                addOwnedLabels(labels, tunnel.getForwardDevices(), tunnel.getForwardLabels());
+            }
+            labels.forEach((deviceId, deviceLabels) -> deviceLabels.forEach(l -> labelSpaces.allocate(deviceId, l)));
+        }
+        log.info("Took over {} label blocks of instances that left the cluster", blocks);
+    }
+
+    /**
+     * Drop local state of a tunnel another instance rerouted or removed.
+     *
+     * @param tunnel tunnel as stored before
+     */
+    private void forgetTunnel(SdwanTunnel tunnel) {
+        installedFlows.remove(tunnel.getTunnelId());
+        detachMerged(tunnel);
+        releaseLabels(tunnel);
+        releaseSiteVlan(tunnel);
+        bandwidthLedger.release(tunnel.getTunnelId());
+    }
+
+    /**
+     * Returns rules this application expects on the device: hops of tunnels, tree, SID and jump rules.
+     *
+     * @param deviceId device
+     * @return expected rules
+     */
+    private List<FlowRule> expectedRules(DeviceId deviceId) {
+        List<FlowRule> rules = new ArrayList<>();
+        for (SdwanTunnel tunnel : tunnelStore.getDeviceTunnels(deviceId)) {
+            List<FlowRule> flows = installedFlows.get(tunnel.getTunnelId());
+            if(flows != null) {
+                flows.stream().filter(f -> f.deviceId().equals(deviceId)).forEach(rules::add);
+            }
+        }
+        rules.addAll(mergeTrees.installedRules(deviceId));
+        rules.addAll(srFabric.installedRules(deviceId));
+        FlowRule jump = pipeline.jumpRule(deviceId);
+        if(jump != null) {
+            rules.add(jump);
+        }
+        return rules;
+    }
+
+    /**
+     * Repairs rules on available devices this instance is master of.
+     */
+    private void reconcileDevices() {
+        try {
+            List<DeviceId> devices = new ArrayList<>();
+            for (Device device : deviceService.getAvailableDevices()) {
+                if(mastershipService.isLocalMaster(device.id())) {
+                    devices.add(device.id());
+                }
+            }
+            int changes = reconciler.reconcile(devices, !keepOrphans);
+            keepOrphans = false;
+            if(changes > 0) {
+                log.info("Reconciled {} devices, {} rules repaired", devices.size(), changes);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            log.warn("Fail to reconcile rules", e);
+        }
+    }
+
+    private void refreshSegmentRouting() {
+        if(srFabric.isActive()) {
+            rerouteExecutor.execute(srFabric::refresh);
+        }
+    }
+
+    /**
+     * Reroutes tunnels crossing links or devices that went down.
+     */
+    private class InternalTopologyListener implements TopologyListener {
+
+        @Override
+        public void event(TopologyEvent event) {
+
+            List<Event> reasons = event.reasons();
+            if(reasons == null) {
+                pathCache.bind(event.subject());
+                refreshSegmentRouting();
+                return;
+            }
+
+            Map<Long, SdwanTunnel> affected = new HashMap<>();
+            Set<LinkKey> lostLinks = new HashSet<>();
+            Set<DeviceId> lostDevices = new HashSet<>();
+            boolean onlyLosses = true;
+            for (Event reason : reasons) {
+
+                if(reason instanceof LinkEvent) {
+                    LinkEvent linkEvent = (LinkEvent) reason;
+                    Link link = linkEvent.subject();
+                    if(linkEvent.type() == LinkEvent.Type.LINK_REMOVED
+                            || (linkEvent.type() == LinkEvent.Type.LINK_UPDATED
+                                && link.state() == Link.State.INACTIVE)) {
+                        lostLinks.add(LinkKey.linkKey(link));
+                        tunnelStore.getLinkTunnels(LinkKey.linkKey(link))
+                                .forEach(t -> affected.put(t.getTunnelId(), t));
+                    } else {
+                        onlyLosses = false;
+                    }
+
+                } else if(reason instanceof DeviceEvent) {
+                    DeviceEvent deviceEvent = (DeviceEvent) reason;
+                    DeviceId deviceId = deviceEvent.subject().id();
+                    if(deviceEvent.type() == DeviceEvent.Type.DEVICE_REMOVED
+                            || (deviceEvent.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED
+                                && !deviceService.isAvailable(deviceId))) {
+                        lostDevices.add(deviceId);
+                        tunnelStore.getDeviceTunnels(deviceId)
+                                .forEach(t -> affected.put(t.getTunnelId(), t));
+                    } else {
+                        onlyLosses = false;
+                    }
+
+                } else {
+                    onlyLosses = false;
+                }
+            }
+
+            // something new may give shorter paths anywhere, drop everything then
+            if(onlyLosses) {
+                pathCache.bind(event.subject(), lostLinks, lostDevices);
+            } else {
+                pathCache.bind(event.subject());
+            }
+
+            // node SID rules follow the topology, like an IGP would
+            refreshSegmentRouting();
+
+            // each tunnel is rerouted by the master of its source device only
+            affected.values().removeIf(t -> !mastershipService.isLocalMaster(t.getSrcSite().deviceId()));
+
+            if(!affected.isEmpty()) {
+                log.info("{} tunnels are affected by topology change, rerouting", affected.size());
+                rerouteExecutor.execute(() -> rerouteTunnels(affected.values()));
+            }
+        }
+    }
+
+    /**
+     * Repairs rules of a device coming back, e.g. after a reboot lost them.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public void event(DeviceEvent event) {
+
+            DeviceId deviceId = event.subject().id();
+            boolean back = event.type() == DeviceEvent.Type.DEVICE_ADDED
+                    || (event.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED
+                        && deviceService.isAvailable(deviceId));
+            if(back && mastershipService.isLocalMaster(deviceId)) {
+                rerouteExecutor.execute(() -> reconciler.reconcile(deviceId, !keepOrphans));
+            }
+        }
+    }
+
+    /**
+     * Takes over label blocks of instances leaving the cluster.
+     */
+    private class InternalClusterListener implements ClusterEventListener {
+
+        @Override
+        public void event(ClusterEvent event) {
+            // a deactivated instance comes back with its blocks, a removed one does not
+            if(event.type() == ClusterEvent.Type.INSTANCE_REMOVED) {
+                rerouteExecutor.execute(SdwanManager.this::takeOverLabelLeases);
+            }
+        }
+    }
+
+    /**
+     * Mirrors tunnels made, rerouted or removed by other instances in local state.
+     */
+    private class InternalStoreDelegate implements SdwanTunnelStoreDelegate {
+
+        @Override
+        public void notify(SdwanTunnelEvent event) {
+            // in line with reroutes of this instance
+            rerouteExecutor.execute(() -> {
+                SdwanTunnel prev = event.prevSubject();
+                switch (event.type()) {
+                    case TUNNEL_ADDED:
+                        adoptTunnel(event.subject());
+                        break;
+                    case TUNNEL_UPDATED:
+                        forgetTunnel(prev);
+                        adoptTunnel(event.subject());
+                        break;
+                    case TUNNEL_REMOVED:
+                        forgetTunnel(event.subject());
+                        break;
+                    default:
+                        break;
+                }
+                if(event.subject().isMerged() || (prev != null && prev.isMerged())) {
+                    updateMergeTrees();
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onlab.packet.EthType;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.onlab.packet.MplsLabel.mplsLabel;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
+
+/**
+ * Node segments shared by all segment routed tunnels.
+ *
+ * Every device gets a global node SID out of the SRGB. Every device holds
+ * one rule per other node SID, forwarding along the shortest route to
+ * that node and popping the SID on the penultimate hop, so transit rules
+ * grow with the number of devices, not with the number of tunnels.
+ *
+ * SIDs are numbered locally here; subclasses agree on them with other
+ * instances and limit the rules pushed to devices of this instance.
+ */
+public class SegmentRoutingFabric {
+
+    // batches of SID rules sent per refresh, failed rules are resent until then
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ApplicationId appId;
+    private final int priority;
+    private final FlowRuleService flowRuleService;
+    private final TopologyService topologyService;
+    private final TablePipeline pipeline;
+
+    private final LabelAllocator sids;
+    private final Map<DeviceId, Integer> nodeSids = new ConcurrentHashMap<>();
+
+    // destination -> (device -> first link of its shortest route to destination)
+    private volatile Map<DeviceId, Map<DeviceId, Link>> routes = Collections.emptyMap();
+    // FlowRule equality covers match only
+    private final Map<FlowRule, FlowRule> installed = new HashMap<>();
+    private final Map<DeviceId, List<FlowRule>> deviceRules = new HashMap<>();
+    private volatile boolean active;
+
+
+    /**
+     * Creates fabric over the SRGB [srgbBase, srgbBase + srgbSize - 1].
+     *
+     * The SRGB must be kept out of local label spaces by the caller.
+     *
+     * @param appId application installing the SID rules
+     * @param priority priority of SID rules
+     * @param srgbBase first node SID
+     * @param srgbSize number of node SIDs
+     * @param flowRuleService flow rule service
+     * @param topologyService topology service
+     */
+    public SegmentRoutingFabric(ApplicationId appId, int priority, int srgbBase, int srgbSize,
+                                FlowRuleService flowRuleService, TopologyService topologyService) {
+        this(appId, priority, srgbBase, srgbSize, flowRuleService, topologyService, TablePipeline.singleTable());
+    }
+
+    /**
+     * Creates fabric over the SRGB [srgbBase, srgbBase + srgbSize - 1], with rules in label tables.
+     *
+     * The SRGB must be kept out of local label spaces by the caller.
+     *
+     * @param appId application installing the SID rules
+     * @param priority priority of SID rules
+     * @param srgbBase first node SID
+     * @param srgbSize number of node SIDs
+     * @param flowRuleService flow rule service
+     * @param topologyService topology service
+     * @param pipeline tables of devices
+     */
+    public SegmentRoutingFabric(ApplicationId appId, int priority, int srgbBase, int srgbSize,
+                                FlowRuleService flowRuleService, TopologyService topologyService,
+                                TablePipeline pipeline) {
+        this.appId = appId;
+        this.pipeline = pipeline;
+        this.priority = priority;
+        this.sids = new LabelAllocator(srgbBase, srgbBase + srgbSize - 1);
+        this.flowRuleService = flowRuleService;
+        this.topologyService = topologyService;
+    }
+
+    /**
+     * Returns whether SID rules are installed and kept up to date.
+     *
+     * @return true once refreshed
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Returns node SID of device, allocating one on first use.
+     *
+     * @param deviceId device
+     * @return node SID, or INVALID_LABEL if the SRGB is exhausted
+     */
+    public int nodeSid(DeviceId deviceId) {
+        Integer sid = nodeSids.get(deviceId);
+        if (sid != null) {
+            return sid;
+        }
+        synchronized (nodeSids) {
+            sid = nodeSids.get(deviceId);
+            if (sid != null) {
+                return sid;
+            }
+            if (adoptAgreedSid(deviceId)) {
+                return nodeSids.get(deviceId);
+            }
+            while (true) {
+                int candidate = sids.allocate();
+                if (candidate == INVALID_LABEL) {
+                    log.warn("SRGB is exhausted, {} has no node SID", deviceId);
+                    return INVALID_LABEL;
+                }
+                int agreed = settleSid(deviceId, candidate);
+                if (agreed != INVALID_LABEL) {
+                    return agreed;
+                }
+            }
+        }
+    }
+
+    // under lock of nodeSids
+    private boolean adoptAgreedSid(DeviceId deviceId) {
+        Integer agreed = agreedSid(deviceId);
+        if (agreed == null) {
+            return false;
+        }
+        sids.allocate(agreed);
+        nodeSids.put(deviceId, agreed);
+        return true;
+    }
+
+    // under lock of nodeSids, candidate is allocated locally
+    private int settleSid(DeviceId deviceId, int candidate) {
+        int agreed = agreeSid(deviceId, candidate);
+        if (agreed == INVALID_LABEL) {
+            // held by another device, stays allocated here too
+            return INVALID_LABEL;
+        }
+        if (agreed != candidate) {
+            sids.release(candidate);
+            sids.allocate(agreed);
+        }
+        nodeSids.put(deviceId, agreed);
+        return agreed;
+    }
+
+    /**
+     * Returns node SID the device got from any instance before.
+     *
+     * @param deviceId device
+     * @return node SID, or null if none; always null here
+     */
+    protected Integer agreedSid(DeviceId deviceId) {
+        return null;
+    }
+
+    /**
+     * Agrees with other instances that the device gets the SID.
+     *
+     * @param deviceId device
+     * @param sid SID free locally
+     * @return sid if agreed, SID of the device if it got one meanwhile,
+     *         or INVALID_LABEL if another device holds sid; always sid here
+     */
+    protected int agreeSid(DeviceId deviceId, int sid) {
+        return sid;
+    }
+
+    /**
+     * Returns whether this instance pushes SID rules to the device.
+     *
+     * @param deviceId device
+     * @return true if rules of device are pushed from here; always true here
+     */
+    protected boolean isLocal(DeviceId deviceId) {
+        return true;
+    }
+
+    /**
+     * Takes node SIDs handed out before, e.g. ones of a snapshot.
+     *
+     * Devices with a node SID keep it, SIDs taken by other devices are skipped.
+     *
+     * @param restored node SID of each device
+     */
+    public void restoreSids(Map<DeviceId, Integer> restored) {
+        synchronized (nodeSids) {
+            restored.forEach((deviceId, sid) -> {
+                if (!nodeSids.containsKey(deviceId) && !adoptAgreedSid(deviceId) && sids.allocate(sid)) {
+                    settleSid(deviceId, sid);
+                }
+            });
+        }
+    }
+
+    public Map<DeviceId, Integer> nodeSids() {
+        return Collections.unmodifiableMap(nodeSids);
+    }
+
+    /**
+     * Recomputes shortest routes over current topology and brings SID rules of every device in line.
+     *
+     * Rules of all devices are kept, for the reconciler of whichever instance
+     * masters them, but only those of local devices are pushed. Rules a device
+     * rejects are resent a few times, then left to the reconciler.
+     */
+    public synchronized void refresh() {
+
+        active = true;
+        routes = computeRoutes(topologyService.currentTopology());
+
+        Map<FlowRule, FlowRule> desired = new HashMap<>();
+        routes.forEach((dst, firstLinks) -> {
+            int sid = nodeSid(dst);
+            if (sid == INVALID_LABEL) {
+                return;
+            }
+            firstLinks.forEach((deviceId, link) -> {
+                FlowRule rule = sidRule(deviceId, sid, link, link.dst().deviceId().equals(dst));
+                desired.put(rule, rule);
+            });
+        });
+
+        DeviceBatches<Void> batches = new DeviceBatches<>();
+        for (FlowRule rule : desired.values()) {
+            if (!isLocal(rule.deviceId())) {
+                continue;
+            }
+            FlowRule old = installed.get(rule);
+            if (old == null) {
+                batches.add(rule, null);
+            } else if (!old.treatment().equals(rule.treatment())) {
+                batches.modify(rule, null);
+            }
+        }
+        for (FlowRule old : installed.values()) {
+            if (!desired.containsKey(old) && isLocal(old.deviceId())) {
+                batches.remove(old, null);
+            }
+        }
+        installed.clear();
+        installed.putAll(desired);
+        indexRules();
+
+        if (batches.isEmpty()) {
+            return;
+        }
+        submit(batches, 1);
+    }
+
+    private void submit(DeviceBatches<Void> batches, int attempt) {
+        int count = batches.size();
+        batches.submit(flowRuleService, failed -> {
+            if (failed.isEmpty()) {
+                log.info("{} node SID rules updated", count);
+                return;
+            }
+            DeviceBatches<Void> retry = retryBatches(failed);
+            if (retry.isEmpty()) {
+                return;
+            }
+            if (attempt >= MAX_ATTEMPTS) {
+                log.warn("Fail to update {} node SID rules after {} attempts, the reconciler retries them",
+                        failed.size(), attempt);
+                return;
+            }
+            log.warn("Fail to update {} node SID rules, retry", failed.size());
+            submit(retry, attempt + 1);
+        });
+    }
+
+    // failed rules are brought in line with the rules installed now, a later refresh may have changed them
+    private synchronized DeviceBatches<Void> retryBatches(Set<FlowRule> failed) {
+        DeviceBatches<Void> batches = new DeviceBatches<>();
+        for (FlowRule rule : failed) {
+            if (!isLocal(rule.deviceId())) {
+                continue;
+            }
+            FlowRule current = installed.get(rule);
+            if (current != null) {
+                batches.add(current, null);
+            } else {
+                batches.remove(rule, null);
+            }
+        }
+        return batches;
+    }
+
+    private FlowRule sidRule(DeviceId deviceId, int sid, Link link, boolean penultimate) {
+
+        TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder().immediate();
+        if (penultimate) {
+            // a service label is always below the last node SID
+            treatment.popMpls(EthType.EtherType.MPLS_UNICAST.ethType());
+        }
+        treatment.setOutput(link.src().port());
+
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(pipeline.labelTable(deviceId))
+                .fromApp(appId)
+                .makePermanent()
+                .withPriority(priority)
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthType(EthType.EtherType.MPLS_UNICAST.ethType().toShort())
+                        .matchMplsLabel(mplsLabel(sid))
+                        .build())
+                .withTreatment(treatment.build())
+                .build();
+    }
+
+    // one breadth-first search per destination over reversed links
+    private Map<DeviceId, Map<DeviceId, Link>> computeRoutes(Topology topology) {
+
+        TopologyGraph graph = topologyService.getGraph(topology);
+        Map<DeviceId, List<Link>> incoming = new HashMap<>();
+        for (TopologyEdge edge : graph.getEdges()) {
+            Link link = edge.link();
+            if (link.state() != Link.State.INACTIVE) {
+                incoming.computeIfAbsent(link.dst().deviceId(), id -> new ArrayList<>()).add(link);
+            }
+        }
+        // stable choice among equal-cost routes
+        incoming.values().forEach(links -> links.sort(Comparator.comparing(Link::toString)));
+
+        Map<DeviceId, Map<DeviceId, Link>> result = new HashMap<>();
+        graph.getVertexes().forEach(vertex -> {
+            DeviceId dst = vertex.deviceId();
+            Map<DeviceId, Link> firstLinks = new HashMap<>();
+            Deque<DeviceId> queue = new ArrayDeque<>();
+            queue.add(dst);
+            while (!queue.isEmpty()) {
+                DeviceId node = queue.poll();
+                for (Link link : incoming.getOrDefault(node, Collections.emptyList())) {
+                    DeviceId prev = link.src().deviceId();
+                    if (!prev.equals(dst) && !firstLinks.containsKey(prev)) {
+                        firstLinks.put(prev, link);
+                        queue.add(prev);
+                    }
+                }
+            }
+            result.put(dst, firstLinks);
+        });
+        return result;
+    }
+
+    /**
+     * Returns first link of the SID route from one device to another.
+     *
+     * @param from device forwarding
+     * @param to destination device
+     * @return link, or null if there is no route
+     */
+    public Link nextHop(DeviceId from, DeviceId to) {
+        return routes.getOrDefault(to, Collections.emptyMap()).get(from);
+    }
+
+    /**
+     * Returns devices traffic to a node SID crosses, both ends included.
+     *
+     * @param from device pushing the SID
+     * @param to device of the SID
+     * @return devices, or null if there is no route
+     */
+    public List<DeviceId> route(DeviceId from, DeviceId to) {
+        List<DeviceId> devices = new ArrayList<>();
+        devices.add(from);
+        DeviceId node = from;
+        while (!node.equals(to)) {
+            Link link = nextHop(node, to);
+            if (link == null || devices.size() > routes.size()) {
+                return null;
+            }
+            node = link.dst().deviceId();
+            devices.add(node);
+        }
+        return devices;
+    }
+
+    /**
+     * Returns the shortest list of node SIDs steering traffic along the devices.
+     *
+     * A device becomes a waypoint where the route diverges from the SID route
+     * of the current segment; the egress device is always the last segment.
+     *
+     * @param devices devices of route, ingress first
+     * @return node SIDs top first, or null if a device has no SID or route
+     */
+    public List<Integer> segments(List<DeviceId> devices) {
+
+        List<Integer> segments = new ArrayList<>();
+        int start = 0;
+        for (int j = 1; j < devices.size(); j++) {
+            if (!followsRoute(devices, start, j)) {
+                start = j - 1;
+                if (!followsRoute(devices, start, j)) {
+                    return null;
+                }
+                segments.add(nodeSid(devices.get(start)));
+            }
+        }
+        segments.add(nodeSid(devices.get(devices.size() - 1)));
+        return segments.contains(INVALID_LABEL) ? null : segments;
+    }
+
+    private boolean followsRoute(List<DeviceId> devices, int from, int to) {
+        List<DeviceId> route = route(devices.get(from), devices.get(to));
+        return route != null && route.equals(devices.subList(from, to + 1));
+    }
+
+    private void indexRules() {
+        deviceRules.clear();
+        installed.values().forEach(rule ->
+                deviceRules.computeIfAbsent(rule.deviceId(), id -> new ArrayList<>()).add(rule));
+    }
+
+    /**
+     * Returns SID rules installed on the device.
+     *
+     * @param deviceId device
+     * @return rules, empty if none
+     */
+    public synchronized List<FlowRule> installedRules(DeviceId deviceId) {
+        List<FlowRule> rules = deviceRules.get(deviceId);
+        return rules == null ? new ArrayList<>() : new ArrayList<>(rules);
+    }
+
+    /**
+     * Forgets SID rules and routes, e.g. after the caller removed all rules of the application.
+     */
+    public synchronized void clear() {
+        active = false;
+        installed.clear();
+        deviceRules.clear();
+        routes = Collections.emptyMap();
+        nodeSids.clear();
+        sids.clear();
+    }
+}
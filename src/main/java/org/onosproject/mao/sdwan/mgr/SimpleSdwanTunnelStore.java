@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.api.SdwanTunnelEvent;
+import org.onosproject.mao.sdwan.api.SdwanTunnelStore;
+import org.onosproject.mao.sdwan.api.SdwanTunnelStoreDelegate;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.Path;
+import org.onosproject.store.AbstractStore;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_TUNNEL_ID;
+
+/**
+ * In-memory tunnel store with incrementally maintained secondary indexes.
+ *
+ * Index keys of a tunnel are captured when it is added, so removal clears
+ * exactly what was indexed even if the tunnel object was changed meanwhile.
+ *
+ * Nothing else writes to the store, so its delegate is never notified.
+ */
+public class SimpleSdwanTunnelStore extends AbstractStore<SdwanTunnelEvent, SdwanTunnelStoreDelegate>
+        implements SdwanTunnelStore {
+
+    private final AtomicLong tunnelIdGenerator = new AtomicLong();
+    private final Map<Long, Entry> tunnels = new HashMap<>();
+
+    private final Map<String, Set<Long>> tenantIndex = new HashMap<>();
+    private final Map<DeviceId, Set<Long>> deviceIndex = new HashMap<>();
+    private final Map<LinkKey, Set<Long>> linkIndex = new HashMap<>();
+    private final Map<DeviceId, Map<Integer, Long>> labelIndex = new HashMap<>();
+    private final Map<SitePair, Set<Long>> siteIndex = new HashMap<>();
+
+
+    @Override
+    public long nextTunnelId() {
+        return tunnelIdGenerator.incrementAndGet();
+    }
+
+    @Override
+    public void reserveTunnelIds(long tunnelId) {
+        tunnelIdGenerator.accumulateAndGet(tunnelId, Math::max);
+    }
+
+    @Override
+    public synchronized void addTunnel(SdwanTunnel tunnel) {
+        checkNotNull(tunnel, "tunnel cannot be null");
+        checkArgument(tunnel.getTunnelId() != INVALID_TUNNEL_ID, "Tunnel id must be set");
+
+        removeTunnel(tunnel.getTunnelId());
+
+        Entry entry = new Entry(tunnel);
+        long id = tunnel.getTunnelId();
+        tunnels.put(id, entry);
+
+        tenantIndex.computeIfAbsent(tunnel.getTenantName(), k -> new HashSet<>()).add(id);
+        siteIndex.computeIfAbsent(entry.sites, k -> new HashSet<>()).add(id);
+        entry.devices.forEach(d -> deviceIndex.computeIfAbsent(d, k -> new HashSet<>()).add(id));
+        entry.links.forEach(l -> linkIndex.computeIfAbsent(l, k -> new HashSet<>()).add(id));
+        entry.labels.forEach((d, labels) -> {
+            Map<Integer, Long> deviceLabels = labelIndex.computeIfAbsent(d, k -> new HashMap<>());
+            labels.forEach(label -> deviceLabels.put(label, id));
+        });
+    }
+
+    @Override
+    public synchronized SdwanTunnel removeTunnel(long tunnelId) {
+        Entry entry = tunnels.remove(tunnelId);
+        if (entry == null) {
+            return null;
+        }
+
+        unindex(tenantIndex, entry.tunnel.getTenantName(), tunnelId);
+        unindex(siteIndex, entry.sites, tunnelId);
+        entry.devices.forEach(d -> unindex(deviceIndex, d, tunnelId));
+        entry.links.forEach(l -> unindex(linkIndex, l, tunnelId));
+        entry.labels.forEach((d, labels) -> {
+            Map<Integer, Long> deviceLabels = labelIndex.get(d);
+            if (deviceLabels != null) {
+                labels.forEach(label -> deviceLabels.remove(label, tunnelId));
+                if (deviceLabels.isEmpty()) {
+                    labelIndex.remove(d);
+                }
+            }
+        });
+
+        return entry.tunnel;
+    }
+
+    private static <K> void unindex(Map<K, Set<Long>> index, K key, long tunnelId) {
+        Set<Long> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(tunnelId);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private Collection<SdwanTunnel> lookup(Set<Long> ids) {
+        if (ids == null) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<SdwanTunnel> result = ImmutableList.builder();
+        ids.forEach(id -> result.add(tunnels.get(id).tunnel));
+        return result.build();
+    }
+
+    @Override
+    public synchronized SdwanTunnel getTunnel(long tunnelId) {
+        Entry entry = tunnels.get(tunnelId);
+        return entry == null ? null : entry.tunnel;
+    }
+
+    @Override
+    public synchronized Collection<SdwanTunnel> getTunnels() {
+        ImmutableList.Builder<SdwanTunnel> result = ImmutableList.builder();
+        tunnels.values().forEach(entry -> result.add(entry.tunnel));
+        return result.build();
+    }
+
+    @Override
+    public synchronized int getTunnelCount() {
+        return tunnels.size();
+    }
+
+    @Override
+    public synchronized Set<String> getTenants() {
+        return ImmutableSet.copyOf(tenantIndex.keySet());
+    }
+
+    @Override
+    public synchronized Collection<SdwanTunnel> getTenantTunnels(String tenantName) {
+        return lookup(tenantIndex.get(tenantName));
+    }
+
+    @Override
+    public synchronized Collection<SdwanTunnel> getDeviceTunnels(DeviceId deviceId) {
+        return lookup(deviceIndex.get(deviceId));
+    }
+
+    @Override
+    public synchronized Collection<SdwanTunnel> getLinkTunnels(LinkKey linkKey) {
+        return lookup(linkIndex.get(linkKey));
+    }
+
+    @Override
+    public synchronized SdwanTunnel getLabelTunnel(DeviceId deviceId, int label) {
+        Map<Integer, Long> deviceLabels = labelIndex.get(deviceId);
+        Long id = deviceLabels == null ? null : deviceLabels.get(label);
+        return id == null ? null : tunnels.get(id).tunnel;
+    }
+
+    @Override
+    public synchronized Collection<SdwanTunnel> getSiteTunnels(ConnectPoint srcSite, ConnectPoint dstSite) {
+        return lookup(siteIndex.get(new SitePair(srcSite, dstSite)));
+    }
+
+    @Override
+    public synchronized void clear() {
+        tunnels.clear();
+        tenantIndex.clear();
+        deviceIndex.clear();
+        linkIndex.clear();
+        labelIndex.clear();
+        siteIndex.clear();
+    }
+
+
+
+    /**
+     * Tunnel and the index keys it was stored under.
+     */
+    private static final class Entry {
+
+        private final SdwanTunnel tunnel;
+        private final SitePair sites;
+        private final Set<DeviceId> devices = new HashSet<>();
+        private final Set<LinkKey> links = new HashSet<>();
+        private final Map<DeviceId, Set<Integer>> labels = new HashMap<>();
+
+        private Entry(SdwanTunnel tunnel) {
+            this.tunnel = tunnel;
+            this.sites = new SitePair(tunnel.getSrcSite(), tunnel.getDstSite());
+
+            devices.add(tunnel.getSrcSite().deviceId());
+            devices.add(tunnel.getDstSite().deviceId());
+            devices.addAll(tunnel.getForwardDevices());
+            devices.addAll(tunnel.getBackwardDevices());
+            devices.addAll(tunnel.getBackupForwardDevices());
+
+            // backward traffic crosses the links of its path in reverse
+            addLinks(tunnel.getForwardPath(), false);
+            addLinks(tunnel.getBackwardPath(), true);
+            addLinks(tunnel.getBackupPath(), false);
+            addLinks(tunnel.getBackupPath(), true);
+
+            if (tunnel.isSegmentRouted()) {
+                // node SIDs are global, only service labels belong to the tunnel
+                addLabel(tunnel.getDstSite().deviceId(), tunnel.getForwardLabel(0));
+                addLabel(tunnel.getSrcSite().deviceId(), tunnel.getBackwardLabel(0));
+            } else if (tunnel.isMerged()) {
+                // forward labels are shared by the merge tree, no tunnel owns them
+                addLabels(tunnel.getBackwardDevices(), tunnel.getBackwardLabels());
+            } else {
+                addLabels(tunnel.getForwardDevices(), tunnel.getForwardLabels());
+                addLabels(tunnel.getBackwardDevices(), tunnel.getBackwardLabels());
+            }
+            addLabels(tunnel.getBackupForwardDevices(), tunnel.getBackupForwardLabels());
+            addLabels(tunnel.getBackupBackwardDevices(), tunnel.getBackupBackwardLabels());
+
+            for (Path path : tunnel.getEcmpPaths()) {
+                path.links().forEach(link -> {
+                    devices.add(link.src().deviceId());
+                    devices.add(link.dst().deviceId());
+                });
+                addLinks(path, false);
+                addLinks(path, true);
+            }
+            tunnel.getForwardNodeLabels().forEach(this::addLabel);
+            tunnel.getBackwardNodeLabels().forEach(this::addLabel);
+        }
+
+        private void addLabel(DeviceId deviceId, int label) {
+            labels.computeIfAbsent(deviceId, k -> new HashSet<>()).add(label);
+        }
+
+        private void addLinks(Path path, boolean reverse) {
+            if (path == null) {
+                return;
+            }
+            for (Link link : path.links()) {
+                links.add(reverse ? LinkKey.linkKey(link.dst(), link.src()) : LinkKey.linkKey(link));
+            }
+        }
+
+        // label of hop i lives in label space of devices[i + 1]
+        private void addLabels(List<DeviceId> hopDevices, List<Integer> hopLabels) {
+            for (int i = 0; i + 1 < hopDevices.size(); i++) {
+                int label = hopLabels.get(Math.min(i, hopLabels.size() - 1));
+                labels.computeIfAbsent(hopDevices.get(i + 1), k -> new HashSet<>()).add(label);
+            }
+        }
+    }
+
+    /**
+     * Key of (source site, destination site) index.
+     */
+    private static final class SitePair {
+
+        private final ConnectPoint src;
+        private final ConnectPoint dst;
+
+        private SitePair(ConnectPoint src, ConnectPoint dst) {
+            this.src = src;
+            this.dst = dst;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SitePair)) {
+                return false;
+            }
+            SitePair that = (SitePair) o;
+            return Objects.equals(src, that.src) && Objects.equals(dst, that.dst);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(src, dst);
+        }
+    }
+}
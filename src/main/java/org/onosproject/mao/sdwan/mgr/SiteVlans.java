@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onlab.packet.VlanId;
+import org.onosproject.net.ConnectPoint;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * VLANs telling tunnels apart at their sites.
+ *
+ * Ingress rules match in port, VLAN and ethertype, so a site carries one
+ * tunnel of an ethertype per VLAN, e.g. one per peer of a tenant mesh. A
+ * tunnel takes the same VLAN at both its sites, the tag rides under the
+ * labels and comes out unchanged at the other end. The first tunnel of a
+ * site goes untagged.
+ *
+ * Claims are atomic, two requests never take the same VLAN of a site.
+ */
+public class SiteVlans {
+
+    // slot 0 is untagged traffic, slot n is VLAN n
+    private static final int SLOTS = VlanId.MAX_VLAN;
+
+    private final Map<ConnectPoint, Map<Integer, BitSet>> used = new HashMap<>();
+
+
+    private BitSet slots(ConnectPoint site, int ethertypeCode) {
+        return used.computeIfAbsent(site, s -> new HashMap<>())
+                .computeIfAbsent(ethertypeCode, e -> new BitSet(SLOTS));
+    }
+
+    private static int slot(VlanId vlan) {
+        return vlan.equals(VlanId.NONE) ? 0 : vlan.toShort();
+    }
+
+    private static VlanId vlan(int slot) {
+        return slot == 0 ? VlanId.NONE : VlanId.vlanId((short) slot);
+    }
+
+    /**
+     * Claims the lowest VLAN free at both sites.
+     *
+     * @param src source site
+     * @param dst destination site
+     * @param ethertypeCode ethertype of network protocol carried
+     * @return VLAN, VlanId.NONE for untagged traffic, or null if no VLAN is free at both sites
+     */
+    public synchronized VlanId claim(ConnectPoint src, ConnectPoint dst, int ethertypeCode) {
+        BitSet srcSlots = slots(src, ethertypeCode);
+        BitSet dstSlots = slots(dst, ethertypeCode);
+        BitSet taken = (BitSet) srcSlots.clone();
+        taken.or(dstSlots);
+        int slot = taken.nextClearBit(0);
+        if (slot >= SLOTS) {
+            return null;
+        }
+        srcSlots.set(slot);
+        dstSlots.set(slot);
+        return vlan(slot);
+    }
+
+    /**
+     * Claims the given VLAN at both sites, e.g. of a tunnel made before.
+     *
+     * The VLAN is marked as used even if it is taken already.
+     *
+     * @param src source site
+     * @param dst destination site
+     * @param ethertypeCode ethertype of network protocol carried
+     * @param vlan VLAN of tunnel
+     * @return true if the VLAN was free at both sites
+     */
+    public synchronized boolean claim(ConnectPoint src, ConnectPoint dst, int ethertypeCode, VlanId vlan) {
+        int slot = slot(vlan);
+        BitSet srcSlots = slots(src, ethertypeCode);
+        BitSet dstSlots = slots(dst, ethertypeCode);
+        boolean free = !srcSlots.get(slot) && !dstSlots.get(slot);
+        srcSlots.set(slot);
+        dstSlots.set(slot);
+        return free;
+    }
+
+    /**
+     * Gives back the VLAN at both sites.
+     *
+     * @param src source site
+     * @param dst destination site
+     * @param ethertypeCode ethertype of network protocol carried
+     * @param vlan VLAN of tunnel
+     */
+    public synchronized void release(ConnectPoint src, ConnectPoint dst, int ethertypeCode, VlanId vlan) {
+        release(src, ethertypeCode, slot(vlan));
+        release(dst, ethertypeCode, slot(vlan));
+    }
+
+    private void release(ConnectPoint site, int ethertypeCode, int slot) {
+        Map<Integer, BitSet> siteSlots = used.get(site);
+        BitSet slots = siteSlots == null ? null : siteSlots.get(ethertypeCode);
+        if (slots == null) {
+            return;
+        }
+        slots.clear(slot);
+        if (slots.isEmpty()) {
+            siteSlots.remove(ethertypeCode);
+            if (siteSlots.isEmpty()) {
+                used.remove(site);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the VLAN is in use at the site.
+     *
+     * @param site site
+     * @param ethertypeCode ethertype of network protocol carried
+     * @param vlan VLAN
+     * @return true if a tunnel holds the VLAN at the site
+     */
+    public synchronized boolean isUsed(ConnectPoint site, int ethertypeCode, VlanId vlan) {
+        Map<Integer, BitSet> siteSlots = used.get(site);
+        BitSet slots = siteSlots == null ? null : siteSlots.get(ethertypeCode);
+        return slots != null && slots.get(slot(vlan));
+    }
+
+    /**
+     * Gives back every VLAN of every site.
+     */
+    public synchronized void clear() {
+        used.clear();
+    }
+}
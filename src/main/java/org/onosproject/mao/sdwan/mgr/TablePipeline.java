@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onlab.packet.EthType;
+import org.onlab.util.ItemNotFoundException;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.driver.Driver;
+import org.onosproject.net.driver.DriverService;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Flow tables of tunnel rules on each device.
+ *
+ * Traffic entering a tunnel is classified by in port and ethertype in the
+ * classifier table, labels are switched in the label table, which matches
+ * ethertype and label only so a switch can look it up by exact match.
+ * Labelled traffic goes from the classifier table on to the label table by
+ * one jump rule per device. With both tables the same, all rules share one
+ * table and there is no jump rule.
+ *
+ * Drivers may set the tables of their devices by the properties
+ * sdwan.classifierTable and sdwan.labelTable, other devices use the
+ * configured tables. Driver tables are checked like configured ones, a
+ * device whose driver sets invalid ones uses the configured tables too.
+ * Tables of a device are looked up on first use and kept until cleared.
+ */
+public class TablePipeline {
+
+    public static final String CLASSIFIER_TABLE_PROPERTY = "sdwan.classifierTable";
+    public static final String LABEL_TABLE_PROPERTY = "sdwan.labelTable";
+
+    private static final short MPLS_UNICAST = EthType.EtherType.MPLS_UNICAST.ethType().toShort();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ApplicationId appId;
+    private final int jumpPriority;
+    private final DriverService driverService;
+
+    private volatile int classifierTable;
+    private volatile int labelTable;
+    // classifier and label table of each device seen
+    private final Map<DeviceId, int[]> deviceTables = new ConcurrentHashMap<>();
+
+
+    /**
+     * Creates pipeline with both tables 0 until set otherwise.
+     *
+     * @param appId application installing jump rules
+     * @param jumpPriority priority of jump rules, below the one of tunnel rules
+     * @param driverService driver service, null if no driver sets tables
+     */
+    public TablePipeline(ApplicationId appId, int jumpPriority, DriverService driverService) {
+        this.appId = appId;
+        this.jumpPriority = jumpPriority;
+        this.driverService = driverService;
+    }
+
+    /**
+     * Returns pipeline putting every rule in table 0.
+     *
+     * @return single table pipeline
+     */
+    public static TablePipeline singleTable() {
+        return new TablePipeline(null, 0, null);
+    }
+
+    /**
+     * Sets tables of devices whose driver sets none, and forgets tables of devices seen.
+     *
+     * @param classifierTable table classifying traffic entering tunnels
+     * @param labelTable table switching labels
+     */
+    public void setTables(int classifierTable, int labelTable) {
+        checkTables(classifierTable, labelTable);
+        this.classifierTable = classifierTable;
+        this.labelTable = labelTable;
+        deviceTables.clear();
+    }
+
+    public int classifierTable(DeviceId deviceId) {
+        return tables(deviceId)[0];
+    }
+
+    public int labelTable(DeviceId deviceId) {
+        return tables(deviceId)[1];
+    }
+
+    private static void checkTables(int classifierTable, int labelTable) {
+        checkArgument(classifierTable >= 0 && labelTable >= 0, "Table ids must not be negative");
+        checkArgument(labelTable >= classifierTable, "Label table %s comes before classifier table %s",
+                labelTable, classifierTable);
+    }
+
+    private int[] tables(DeviceId deviceId) {
+        return deviceTables.computeIfAbsent(deviceId, this::driverTables);
+    }
+
+    // tables set by the driver of the device, checked as a pair like configured ones
+    private int[] driverTables(DeviceId deviceId) {
+        int[] defaultTables = {classifierTable, labelTable};
+        if (driverService == null) {
+            return defaultTables;
+        }
+        Driver driver;
+        try {
+            driver = driverService.getDriver(deviceId);
+        } catch (ItemNotFoundException e) {
+            return defaultTables;
+        }
+        if (driver == null) {
+            return defaultTables;
+        }
+        try {
+            int[] tables = {driverTable(driver, CLASSIFIER_TABLE_PROPERTY, defaultTables[0]),
+                    driverTable(driver, LABEL_TABLE_PROPERTY, defaultTables[1])};
+            checkTables(tables[0], tables[1]);
+            return tables;
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid tables of driver of {}, use tables {} and {}: {}", deviceId,
+                    defaultTables[0], defaultTables[1], e.getMessage());
+            return defaultTables;
+        }
+    }
+
+    private static int driverTable(Driver driver, String property, int defaultTable) {
+        String value = driver.getProperty(property);
+        return value == null ? defaultTable : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Returns rule sending labelled traffic from classifier table to label table of the device.
+     *
+     * @param deviceId device
+     * @return jump rule, or null if both tables are the same
+     */
+    public FlowRule jumpRule(DeviceId deviceId) {
+        int[] tables = tables(deviceId);
+        if (tables[0] == tables[1]) {
+            return null;
+        }
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(tables[0])
+                .fromApp(appId)
+                .makePermanent()
+                .withPriority(jumpPriority)
+                .withSelector(DefaultTrafficSelector.builder().matchEthType(MPLS_UNICAST).build())
+                .withTreatment(DefaultTrafficTreatment.builder().transition(tables[1]).build())
+                .build();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.flow.FlowRule;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_TUNNEL_ID;
+
+/**
+ * Cookies of flow rules owned by one tunnel.
+ *
+ * Layout follows FlowId: application id in bits 48-63, group id in bits
+ * 32-47 and tunnel id in bits 0-31. Rules built from an application id
+ * alone, e.g. rules shared by many tunnels, have group id 0, so a tunnel
+ * rule is told apart from its cookie alone.
+ */
+public final class TunnelCookies {
+
+    /**
+     * Group id of every tunnel rule, see FlowRuleService#getFlowRulesByGroupId.
+     */
+    public static final short TUNNEL_GROUP_ID = 0x5D;
+
+    private static final long MAX_TUNNEL_ID = 0xFFFFFFFFL;
+
+    private TunnelCookies() {
+    }
+
+    /**
+     * Returns cookie of the rules of a tunnel.
+     *
+     * @param appId application owning the rules
+     * @param tunnelId id of tunnel, at most 32 bits
+     * @return cookie
+     */
+    public static long cookie(ApplicationId appId, long tunnelId) {
+        checkArgument(tunnelId > 0 && tunnelId <= MAX_TUNNEL_ID, "Tunnel id %s doesn't fit a cookie", tunnelId);
+        return ((long) appId.id()) << 48 | ((long) TUNNEL_GROUP_ID) << 32 | tunnelId;
+    }
+
+    /**
+     * Returns whether the cookie was made by cookie(appId, tunnelId).
+     *
+     * @param cookie cookie of a rule
+     * @return true if rule belongs to one tunnel
+     */
+    public static boolean isTunnelCookie(long cookie) {
+        return ((cookie >>> 32) & 0xFFFF) == TUNNEL_GROUP_ID;
+    }
+
+    /**
+     * Returns id of the tunnel owning a rule.
+     *
+     * @param rule flow rule
+     * @return tunnel id, or INVALID_TUNNEL_ID if rule belongs to no single tunnel
+     */
+    public static long tunnelId(FlowRule rule) {
+        long cookie = rule.id().value();
+        return isTunnelCookie(cookie) ? cookie & MAX_TUNNEL_ID : INVALID_TUNNEL_ID;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onlab.packet.EthType;
+import org.onlab.packet.VlanId;
+import org.onosproject.core.DefaultGroupId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.onlab.packet.MplsLabel.mplsLabel;
+
+/**
+ * Compiles the rules of one direction of a label switched tunnel.
+ *
+ * A direction is given by the port each device along the route sends
+ * traffic out of and the label of each hop, so forward, backward and backup
+ * routes all go through the same code:
+ *
+ *   ingress:  in port + VLAN + ethertype -> push label 0, out hop port 0
+ *   transit:  label i - 1 -> swap to label i, out hop port i
+ *   egress:   label n - 1 -> pop, out egress port
+ *
+ * A route without links stays on one device, which then just connects both sites.
+ *
+ * Ingress rules go to the classifier table of their device, transit and
+ * egress rules to its label table.
+ *
+ * The VLAN of the site tells tunnels entering at the same port apart, it
+ * rides under the labels and leaves the tunnel as it came in.
+ *
+ * Selectors and treatments only depend on labels, ports, VLAN and ethertype, the
+ * ones many tunnels have in common are built once and shared. Compiling has
+ * no other side effect, a compiler may be shared by threads.
+ */
+public class TunnelRuleCompiler {
+
+    // labels are handed out lowest first, so low labels are the ones shared by many rules
+    private static final int CACHED_LABELS = 1 << 16;
+    private static final short MPLS_UNICAST = EthType.EtherType.MPLS_UNICAST.ethType().toShort();
+
+    private final int priority;
+    private final TablePipeline pipeline;
+
+    private final Map<Integer, TrafficSelector> labelSelectors = new ConcurrentHashMap<>();
+    private final Map<Long, TrafficSelector> siteSelectors = new ConcurrentHashMap<>();
+    private final Map<Long, TrafficTreatment> popTreatments = new ConcurrentHashMap<>();
+
+
+    /**
+     * Creates a compiler of rules with the given priority, in table 0.
+     *
+     * @param priority priority of rules
+     */
+    public TunnelRuleCompiler(int priority) {
+        this(priority, TablePipeline.singleTable());
+    }
+
+    /**
+     * Creates a compiler of rules with the given priority, in tables of the pipeline.
+     *
+     * @param priority priority of rules
+     * @param pipeline tables of devices
+     */
+    public TunnelRuleCompiler(int priority, TablePipeline pipeline) {
+        this.priority = priority;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Compiles ingress, transit and egress rules of one direction.
+     *
+     * @param ingress site traffic enters the tunnel at
+     * @param egress site traffic leaves the tunnel at
+     * @param hopPorts port sending traffic into each hop, one per link, in order of traffic
+     * @param labels label of each hop, in label space of the device receiving it
+     * @param vlan VLAN of traffic at the sites, VlanId.NONE for untagged traffic
+     * @param ethertypeCode ethertype of network protocol carried
+     * @param hopGroups group replacing push or swap on the device sending into the hop, by hop index
+     * @param cookie cookie of rules
+     * @return rules in order of traffic, ingress first
+     * @throws IllegalArgumentException if labels don't match the hops, or a route without
+     *                                  links doesn't stay on one device
+     */
+    public List<FlowRule> compile(ConnectPoint ingress, ConnectPoint egress, List<ConnectPoint> hopPorts,
+                                  List<Integer> labels, VlanId vlan, int ethertypeCode,
+                                  Map<Integer, Integer> hopGroups, long cookie) {
+
+        if (hopPorts.isEmpty()) {
+            checkArgument(ingress.deviceId().equals(egress.deviceId()),
+                    "Route from %s to %s has no link", ingress, egress);
+            return Collections.singletonList(classifierRule(ingress.deviceId(),
+                    siteSelector(ingress.port(), vlan, ethertypeCode),
+                    DefaultTrafficTreatment.builder().immediate().setOutput(egress.port()).build(), cookie));
+        }
+        checkArgument(hopPorts.get(0).deviceId().equals(ingress.deviceId()),
+                "Route doesn't start at ingress device %s", ingress.deviceId());
+
+        List<FlowRule> rules = new ArrayList<>(hopPorts.size() + 1);
+        Integer group = hopGroups.get(0);
+        rules.add(classifierRule(ingress.deviceId(), siteSelector(ingress.port(), vlan, ethertypeCode), group != null
+                ? groupTreatment(group)
+                : DefaultTrafficTreatment.builder()
+                        .immediate()
+                        .pushMpls().setMpls(mplsLabel(labels.get(0)))
+                        .setOutput(hopPorts.get(0).port())
+                        .build(), cookie));
+        rules.addAll(compileTransit(egress, hopPorts, labels, ethertypeCode, hopGroups, cookie));
+        return rules;
+    }
+
+    /**
+     * Compiles transit and egress rules of one direction, e.g. of a backup
+     * route whose ingress is a bucket of a group.
+     *
+     * @param egress site traffic leaves the tunnel at
+     * @param hopPorts port sending traffic into each hop, one per link, in order of traffic
+     * @param labels label of each hop, in label space of the device receiving it
+     * @param ethertypeCode ethertype of network protocol carried
+     * @param hopGroups group replacing swap on the device sending into the hop, by hop index
+     * @param cookie cookie of rules
+     * @return rules in order of traffic, egress last
+     * @throws IllegalArgumentException if labels don't match the hops
+     */
+    public List<FlowRule> compileTransit(ConnectPoint egress, List<ConnectPoint> hopPorts, List<Integer> labels,
+                                         int ethertypeCode, Map<Integer, Integer> hopGroups, long cookie) {
+
+        checkArgument(!hopPorts.isEmpty(), "Route to %s has no link", egress);
+        checkArgument(labels.size() == hopPorts.size(), "Route has %s hops but %s labels",
+                hopPorts.size(), labels.size());
+
+        List<FlowRule> rules = new ArrayList<>(hopPorts.size());
+        for (int i = 1; i < hopPorts.size(); i++) {
+            ConnectPoint out = hopPorts.get(i);
+            Integer group = hopGroups.get(i);
+            rules.add(labelRule(out.deviceId(), labelSelector(labels.get(i - 1)), group != null
+                    ? groupTreatment(group)
+                    : swapTreatment(labels.get(i - 1), labels.get(i), out.port()), cookie));
+        }
+        rules.add(labelRule(egress.deviceId(), labelSelector(labels.get(labels.size() - 1)),
+                popTreatment(egress.port(), ethertypeCode), cookie));
+        return rules;
+    }
+
+    /**
+     * Builds a rule of the classifier table, e.g. ingress of a route compiled elsewhere.
+     *
+     * @param deviceId device
+     * @param selector selector of rule
+     * @param treatment treatment of rule
+     * @param cookie cookie of rule
+     * @return rule
+     */
+    public FlowRule classifierRule(DeviceId deviceId, TrafficSelector selector, TrafficTreatment treatment,
+                                   long cookie) {
+        return rule(deviceId, pipeline.classifierTable(deviceId), selector, treatment, cookie);
+    }
+
+    /**
+     * Builds a rule of the label table matching the label.
+     *
+     * @param deviceId device
+     * @param label label matched
+     * @param treatment treatment of rule
+     * @param cookie cookie of rule
+     * @return rule
+     */
+    public FlowRule labelRule(DeviceId deviceId, int label, TrafficTreatment treatment, long cookie) {
+        return labelRule(deviceId, labelSelector(label), treatment, cookie);
+    }
+
+    private FlowRule labelRule(DeviceId deviceId, TrafficSelector selector, TrafficTreatment treatment,
+                               long cookie) {
+        return rule(deviceId, pipeline.labelTable(deviceId), selector, treatment, cookie);
+    }
+
+    private FlowRule rule(DeviceId deviceId, int table, TrafficSelector selector, TrafficTreatment treatment,
+                          long cookie) {
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(table)
+                .withCookie(cookie)
+                .makePermanent()
+                .withPriority(priority)
+                .withSelector(selector)
+                .withTreatment(treatment)
+                .build();
+    }
+
+    private static long siteKey(PortNumber port, int ethertypeCode) {
+        return port.toLong() << 16 | (ethertypeCode & 0xFFFF);
+    }
+
+    // untagged is 0xFFF, a VLAN id no tag carries
+    private static long siteKey(PortNumber port, VlanId vlan, int ethertypeCode) {
+        return port.toLong() << 28 | (vlan.toShort() & 0xFFFL) << 16 | (ethertypeCode & 0xFFFF);
+    }
+
+    /**
+     * Returns selector of traffic entering at a site.
+     *
+     * Untagged traffic is matched as such, so it never overlaps traffic of
+     * another tunnel of the site tagged with its VLAN.
+     *
+     * @param port port of site
+     * @param vlan VLAN of traffic, VlanId.NONE for untagged traffic
+     * @param ethertypeCode ethertype of network protocol carried
+     * @return shared selector
+     */
+    public TrafficSelector siteSelector(PortNumber port, VlanId vlan, int ethertypeCode) {
+        return siteSelectors.computeIfAbsent(siteKey(port, vlan, ethertypeCode), k -> DefaultTrafficSelector.builder()
+                .matchInPort(port)
+                .matchVlanId(vlan)
+                .matchEthType((short) (ethertypeCode & 0xFFFF))
+                .build());
+    }
+
+    /**
+     * Returns selector of MPLS traffic with the label.
+     *
+     * @param label label
+     * @return selector, shared for low labels
+     */
+    public TrafficSelector labelSelector(int label) {
+        if (label >= CACHED_LABELS) {
+            return buildLabelSelector(label);
+        }
+        return labelSelectors.computeIfAbsent(label, TunnelRuleCompiler::buildLabelSelector);
+    }
+
+    private static TrafficSelector buildLabelSelector(int label) {
+        return DefaultTrafficSelector.builder()
+                .matchEthType(MPLS_UNICAST)
+                .matchMplsLabel(mplsLabel(label))
+                .build();
+    }
+
+    /**
+     * Returns treatment of traffic leaving the tunnel at a site.
+     *
+     * @param port port of site
+     * @param ethertypeCode ethertype restored by the pop
+     * @return shared treatment
+     */
+    public TrafficTreatment popTreatment(PortNumber port, int ethertypeCode) {
+        return popTreatments.computeIfAbsent(siteKey(port, ethertypeCode), k -> DefaultTrafficTreatment.builder()
+                .immediate()
+                .popMpls(new EthType(ethertypeCode))
+                .setOutput(port)
+                .build());
+    }
+
+    /**
+     * Returns treatment swapping the label, left out if both labels are the same.
+     *
+     * @param inLabel label received
+     * @param outLabel label sent
+     * @param outPort port sending
+     * @return treatment
+     */
+    public static TrafficTreatment swapTreatment(int inLabel, int outLabel, PortNumber outPort) {
+        TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder().immediate();
+        if (inLabel != outLabel) {
+            treatment.setMpls(mplsLabel(outLabel));
+        }
+        return treatment.setOutput(outPort).build();
+    }
+
+    public static TrafficTreatment groupTreatment(int groupId) {
+        return DefaultTrafficTreatment.builder()
+                .immediate()
+                .group(new DefaultGroupId(groupId))
+                .build();
+    }
+}
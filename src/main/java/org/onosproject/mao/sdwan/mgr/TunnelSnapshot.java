@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.onlab.graph.ScalarWeight;
+import org.onlab.packet.VlanId;
+import org.onlab.util.Bandwidth;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.provider.ProviderId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Tunnels and node SIDs written to a file, to take them back once the
+ * cluster forgot them while their rules stayed on devices.
+ *
+ * The snapshot is gzipped JSON, replaced atomically, so a crash while
+ * writing leaves the previous one. Fields are read by name: fields a later
+ * release adds are skipped and missing optional ones take their defaults,
+ * only a change of format version makes the snapshot unreadable.
+ */
+public final class TunnelSnapshot {
+
+    static final int VERSION = 1;
+
+    private static final String FORMAT_VERSION = "version";
+    private static final String TIMESTAMP = "timestamp";
+    private static final String NODE_SIDS = "nodeSids";
+    private static final String TUNNELS = "tunnels";
+
+    private static final String TUNNEL_ID = "tunnelId";
+    private static final String TENANT = "tenant";
+    private static final String SRC = "src";
+    private static final String DST = "dst";
+    private static final String PROTOCOL = "protocol";
+    private static final String VLAN = "vlan";
+    private static final String BANDWIDTH = "bandwidthBps";
+    private static final String FORWARD_DEVICES = "forwardDevices";
+    private static final String BACKWARD_DEVICES = "backwardDevices";
+    private static final String FORWARD_PATH = "forwardPath";
+    private static final String BACKWARD_PATH = "backwardPath";
+    private static final String FORWARD_LABELS = "forwardLabels";
+    private static final String BACKWARD_LABELS = "backwardLabels";
+    private static final String BACKUP_PATH = "backupPath";
+    private static final String BACKUP_FORWARD_DEVICES = "backupForwardDevices";
+    private static final String BACKUP_BACKWARD_DEVICES = "backupBackwardDevices";
+    private static final String BACKUP_FORWARD_LABELS = "backupForwardLabels";
+    private static final String BACKUP_BACKWARD_LABELS = "backupBackwardLabels";
+    private static final String ECMP_PATHS = "ecmpPaths";
+    private static final String FORWARD_NODE_LABELS = "forwardNodeLabels";
+    private static final String BACKWARD_NODE_LABELS = "backwardNodeLabels";
+    private static final String FORWARD_SEGMENTS = "forwardSegments";
+    private static final String BACKWARD_SEGMENTS = "backwardSegments";
+    private static final String MERGED = "merged";
+
+    private static final String PROVIDER_SCHEME = "providerScheme";
+    private static final String PROVIDER_ID = "providerId";
+    private static final String WEIGHT = "weight";
+    private static final String LINKS = "links";
+    private static final String TYPE = "type";
+    private static final String STATE = "state";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final long timestamp;
+    private final List<SdwanTunnel> tunnels;
+    private final Map<DeviceId, Integer> nodeSids;
+
+
+    /**
+     * Creates snapshot of tunnels and node SIDs as of now.
+     *
+     * @param tunnels tunnels
+     * @param nodeSids node SID of each device
+     */
+    public TunnelSnapshot(Collection<SdwanTunnel> tunnels, Map<DeviceId, Integer> nodeSids) {
+        this(System.currentTimeMillis(), tunnels, nodeSids);
+    }
+
+    private TunnelSnapshot(long timestamp, Collection<SdwanTunnel> tunnels, Map<DeviceId, Integer> nodeSids) {
+        this.timestamp = timestamp;
+        this.tunnels = new ArrayList<>(tunnels);
+        this.nodeSids = new HashMap<>(nodeSids);
+    }
+
+    /**
+     * Returns when the snapshot was taken.
+     *
+     * @return milliseconds since the epoch
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public List<SdwanTunnel> tunnels() {
+        return Collections.unmodifiableList(tunnels);
+    }
+
+    public Map<DeviceId, Integer> nodeSids() {
+        return Collections.unmodifiableMap(nodeSids);
+    }
+
+    /**
+     * Writes the snapshot, replacing the one in the file.
+     *
+     * @param file snapshot file, its directory is made if missing
+     * @throws IOException if the file can't be written
+     */
+    public void write(File file) throws IOException {
+        java.nio.file.Path path = file.toPath();
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        ObjectNode root = MAPPER.createObjectNode()
+                .put(FORMAT_VERSION, VERSION)
+                .put(TIMESTAMP, timestamp);
+        ObjectNode sids = root.putObject(NODE_SIDS);
+        nodeSids.forEach((deviceId, sid) -> sids.put(deviceId.toString(), sid));
+        ArrayNode tunnelArray = root.putArray(TUNNELS);
+        tunnels.forEach(tunnel -> tunnelArray.add(encode(tunnel)));
+
+        java.nio.file.Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+            MAPPER.writeValue(out, root);
+        }
+        Files.move(temp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the snapshot in the file.
+     *
+     * @param file snapshot file
+     * @return snapshot, or null if there is no file
+     * @throws IOException if the file can't be read, isn't a snapshot or has another format version
+     */
+    public static TunnelSnapshot read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        JsonNode root;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            root = MAPPER.readTree(in);
+        }
+        if (root == null || !root.isObject()) {
+            throw new IOException("Not a tunnel snapshot: " + file);
+        }
+        int version = root.path(FORMAT_VERSION).asInt(0);
+        if (version != VERSION) {
+            throw new IOException("Tunnel snapshot has version " + version + ", expect " + VERSION);
+        }
+
+        try {
+            Map<DeviceId, Integer> nodeSids = new HashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> sids = root.path(NODE_SIDS).fields();
+            while (sids.hasNext()) {
+                Map.Entry<String, JsonNode> sid = sids.next();
+                nodeSids.put(DeviceId.deviceId(sid.getKey()), sid.getValue().asInt());
+            }
+            List<SdwanTunnel> tunnels = new ArrayList<>();
+            for (JsonNode tunnel : root.path(TUNNELS)) {
+                tunnels.add(decode(tunnel));
+            }
+            return new TunnelSnapshot(root.path(TIMESTAMP).asLong(0), tunnels, nodeSids);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IOException("Invalid tunnel snapshot " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static ObjectNode encode(SdwanTunnel tunnel) {
+        ObjectNode node = MAPPER.createObjectNode()
+                .put(TUNNEL_ID, tunnel.getTunnelId())
+                .put(TENANT, tunnel.getTenantName())
+                .put(SRC, tunnel.getSrcSite().toString())
+                .put(DST, tunnel.getDstSite().toString())
+                .put(PROTOCOL, tunnel.getNetworkProtocol())
+                .put(BANDWIDTH, tunnel.getBandwidth().bps())
+                .put(MERGED, tunnel.isMerged());
+        if (!tunnel.getSiteVlan().equals(VlanId.NONE)) {
+            node.put(VLAN, tunnel.getSiteVlan().toShort());
+        }
+        node.set(FORWARD_DEVICES, encodeDevices(tunnel.getForwardDevices()));
+        node.set(BACKWARD_DEVICES, encodeDevices(tunnel.getBackwardDevices()));
+        node.set(FORWARD_PATH, encodePath(tunnel.getForwardPath()));
+        node.set(BACKWARD_PATH, encodePath(tunnel.getBackwardPath()));
+        node.set(FORWARD_LABELS, encodeInts(tunnel.getForwardLabels()));
+        node.set(BACKWARD_LABELS, encodeInts(tunnel.getBackwardLabels()));
+
+        if (tunnel.isProtected()) {
+            node.set(BACKUP_PATH, encodePath(tunnel.getBackupPath()));
+            node.set(BACKUP_FORWARD_DEVICES, encodeDevices(tunnel.getBackupForwardDevices()));
+            node.set(BACKUP_BACKWARD_DEVICES, encodeDevices(tunnel.getBackupBackwardDevices()));
+            node.set(BACKUP_FORWARD_LABELS, encodeInts(tunnel.getBackupForwardLabels()));
+            node.set(BACKUP_BACKWARD_LABELS, encodeInts(tunnel.getBackupBackwardLabels()));
+        }
+        if (tunnel.isEcmp()) {
+            ArrayNode paths = node.putArray(ECMP_PATHS);
+            tunnel.getEcmpPaths().forEach(path -> paths.add(encodePath(path)));
+            node.set(FORWARD_NODE_LABELS, encodeNodeLabels(tunnel.getForwardNodeLabels()));
+            node.set(BACKWARD_NODE_LABELS, encodeNodeLabels(tunnel.getBackwardNodeLabels()));
+        }
+        if (tunnel.isSegmentRouted()) {
+            node.set(FORWARD_SEGMENTS, encodeInts(tunnel.getForwardSegments()));
+            node.set(BACKWARD_SEGMENTS, encodeInts(tunnel.getBackwardSegments()));
+        }
+        return node;
+    }
+
+    private static SdwanTunnel decode(JsonNode node) {
+        Path forwardPath = decodePath(node.path(FORWARD_PATH));
+        SdwanTunnel.Builder builder = SdwanTunnel.builder()
+                .tunnelId(node.path(TUNNEL_ID).asLong())
+                .tenant(node.path(TENANT).asText())
+                .src(ConnectPoint.deviceConnectPoint(node.path(SRC).asText()))
+                .dst(ConnectPoint.deviceConnectPoint(node.path(DST).asText()))
+                .networkProtocol(node.path(PROTOCOL).asInt())
+                .siteVlan(node.has(VLAN) ? VlanId.vlanId((short) node.path(VLAN).asInt()) : VlanId.NONE)
+                .bandwidth(Bandwidth.bps(node.path(BANDWIDTH).asDouble(0)))
+                .merged(node.path(MERGED).asBoolean(false))
+                .forwardDevices(decodeDevices(node.path(FORWARD_DEVICES)))
+                .backwardDevices(decodeDevices(node.path(BACKWARD_DEVICES)))
+                .forwardPath(forwardPath)
+                .backwardPath(decodePath(node.path(BACKWARD_PATH)))
+                .forwardLabels(decodeInts(node.path(FORWARD_LABELS)))
+                .backwardLabels(decodeInts(node.path(BACKWARD_LABELS)));
+
+        if (node.has(BACKUP_PATH)) {
+            builder.backup(decodePath(node.path(BACKUP_PATH)),
+                    decodeDevices(node.path(BACKUP_FORWARD_DEVICES)),
+                    decodeDevices(node.path(BACKUP_BACKWARD_DEVICES)),
+                    decodeInts(node.path(BACKUP_FORWARD_LABELS)),
+                    decodeInts(node.path(BACKUP_BACKWARD_LABELS)));
+        }
+        if (node.has(ECMP_PATHS)) {
+            List<Path> paths = new ArrayList<>();
+            node.path(ECMP_PATHS).forEach(path -> paths.add(decodePath(path)));
+            // the first route is the forward path itself
+            paths.set(0, forwardPath);
+            builder.ecmp(paths, decodeNodeLabels(node.path(FORWARD_NODE_LABELS)),
+                    decodeNodeLabels(node.path(BACKWARD_NODE_LABELS)));
+        }
+        if (node.has(FORWARD_SEGMENTS)) {
+            builder.segments(decodeInts(node.path(FORWARD_SEGMENTS)), decodeInts(node.path(BACKWARD_SEGMENTS)));
+        }
+        return builder.build();
+    }
+
+    private static ArrayNode encodeDevices(List<DeviceId> devices) {
+        ArrayNode array = MAPPER.createArrayNode();
+        devices.forEach(deviceId -> array.add(deviceId.toString()));
+        return array;
+    }
+
+    private static List<DeviceId> decodeDevices(JsonNode array) {
+        List<DeviceId> devices = new ArrayList<>();
+        array.forEach(deviceId -> devices.add(DeviceId.deviceId(deviceId.asText())));
+        return devices;
+    }
+
+    private static ArrayNode encodeInts(List<Integer> values) {
+        ArrayNode array = MAPPER.createArrayNode();
+        values.forEach(array::add);
+        return array;
+    }
+
+    private static List<Integer> decodeInts(JsonNode array) {
+        List<Integer> values = new ArrayList<>();
+        array.forEach(value -> values.add(value.asInt()));
+        return values;
+    }
+
+    private static ObjectNode encodeNodeLabels(Map<DeviceId, Integer> labels) {
+        ObjectNode node = MAPPER.createObjectNode();
+        labels.forEach((deviceId, label) -> node.put(deviceId.toString(), label));
+        return node;
+    }
+
+    private static Map<DeviceId, Integer> decodeNodeLabels(JsonNode node) {
+        Map<DeviceId, Integer> labels = new HashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            labels.put(DeviceId.deviceId(field.getKey()), field.getValue().asInt());
+        }
+        return labels;
+    }
+
+    private static ObjectNode encodePath(Path path) {
+        ObjectNode node = MAPPER.createObjectNode()
+                .put(PROVIDER_SCHEME, path.providerId().scheme())
+                .put(PROVIDER_ID, path.providerId().id());
+        if (path.weight() instanceof ScalarWeight) {
+            node.put(WEIGHT, ((ScalarWeight) path.weight()).value());
+        }
+        ArrayNode links = node.putArray(LINKS);
+        for (Link link : path.links()) {
+            links.addObject()
+                    .put(SRC, link.src().toString())
+                    .put(DST, link.dst().toString())
+                    .put(TYPE, link.type().name())
+                    .put(STATE, link.state().name());
+        }
+        return node;
+    }
+
+    private static Path decodePath(JsonNode node) {
+        ProviderId providerId = new ProviderId(node.path(PROVIDER_SCHEME).asText(), node.path(PROVIDER_ID).asText());
+        List<Link> links = new ArrayList<>();
+        for (JsonNode link : node.path(LINKS)) {
+            links.add(DefaultLink.builder()
+                    .providerId(providerId)
+                    .src(ConnectPoint.deviceConnectPoint(link.path(SRC).asText()))
+                    .dst(ConnectPoint.deviceConnectPoint(link.path(DST).asText()))
+                    .type(Link.Type.valueOf(link.path(TYPE).asText(Link.Type.DIRECT.name())))
+                    .state(Link.State.valueOf(link.path(STATE).asText(Link.State.ACTIVE.name())))
+                    .build());
+        }
+        return new DefaultPath(providerId, links, new ScalarWeight(node.path(WEIGHT).asDouble(links.size())));
+    }
+}
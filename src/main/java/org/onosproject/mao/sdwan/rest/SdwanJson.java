@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.api.VpnRequest;
+import org.onosproject.mao.sdwan.api.VpnResult;
+
+/**
+ * JSON of tunnels and results of requests, field names match those of requests.
+ */
+final class SdwanJson {
+
+    static final String TUNNEL_ID = "tunnelId";
+    static final String TENANT = "tenant";
+    static final String SRC = "src";
+    static final String DST = "dst";
+    static final String PROTOCOL = "protocol";
+    static final String BANDWIDTH = "bandwidth";
+    static final String VLAN = "vlan";
+    static final String FORWARD_DEVICES = "forwardDevices";
+    static final String BACKWARD_DEVICES = "backwardDevices";
+    static final String STATUS = "status";
+    static final String ERROR = "error";
+
+    private static final double BPS_PER_MBPS = 1_000_000;
+
+
+    private SdwanJson() {
+    }
+
+    /**
+     * Encodes a tunnel, protocol as hex ethertype and bandwidth in Mbps so it reads back as a request.
+     *
+     * @param tunnel tunnel
+     * @param mapper object mapper
+     * @return JSON of tunnel
+     */
+    static ObjectNode encode(SdwanTunnel tunnel, ObjectMapper mapper) {
+        ObjectNode node = mapper.createObjectNode()
+                .put(TUNNEL_ID, tunnel.getTunnelId())
+                .put(TENANT, tunnel.getTenantName())
+                .put(SRC, tunnel.getSrcSite().toString())
+                .put(DST, tunnel.getDstSite().toString())
+                .put(PROTOCOL, protocol(tunnel.getNetworkProtocol()))
+                .put(BANDWIDTH, tunnel.getBandwidth().bps() / BPS_PER_MBPS)
+                .put(VLAN, tunnel.getSiteVlan().toString());
+
+        ArrayNode forward = node.putArray(FORWARD_DEVICES);
+        tunnel.getForwardDevices().forEach(deviceId -> forward.add(deviceId.toString()));
+        ArrayNode backward = node.putArray(BACKWARD_DEVICES);
+        tunnel.getBackwardDevices().forEach(deviceId -> backward.add(deviceId.toString()));
+        return node;
+    }
+
+    /**
+     * Encodes the result of a request, with tunnel id and site VLAN once the tunnel is created.
+     *
+     * @param result result of request
+     * @param mapper object mapper
+     * @return JSON of result
+     */
+    static ObjectNode encode(VpnResult result, ObjectMapper mapper) {
+        VpnRequest request = result.getRequest();
+        ObjectNode node = mapper.createObjectNode()
+                .put(TENANT, request.getTenantName())
+                .put(SRC, request.getSrcSite())
+                .put(DST, request.getDstSite())
+                .put(STATUS, result.getStatus().name());
+        if (result.isSuccess()) {
+            node.put(TUNNEL_ID, result.getTunnel().getTunnelId())
+                    .put(VLAN, result.getTunnel().getSiteVlan().toString());
+        }
+        return node;
+    }
+
+    /**
+     * Encodes a row that isn't a valid request.
+     *
+     * @param message why the row is invalid, with its line
+     * @param mapper object mapper
+     * @return JSON of error
+     */
+    static ObjectNode error(String message, ObjectMapper mapper) {
+        return mapper.createObjectNode().put(ERROR, message);
+    }
+
+    static String protocol(int ethertypeCode) {
+        return String.format("0x%04x", ethertypeCode & 0xFFFF);
+    }
+}
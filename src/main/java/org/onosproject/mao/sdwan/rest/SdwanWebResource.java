@@ -0,0 +1,322 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.rest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.onlab.util.ItemNotFoundException;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.api.VpnRequest;
+import org.onosproject.mao.sdwan.api.VpnRequestReader;
+import org.onosproject.mao.sdwan.api.VpnResult;
+import org.onosproject.rest.AbstractWebResource;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Manage MPLS/SR VPN tunnels, one by one, in bulk, or streamed as NDJSON.
+ *
+ * Bulk and streamed requests are provisioned a batch at a time, and only a
+ * few of them at once; more are turned away with 503 and Retry-After, so
+ * clients back off instead of queueing up on the provisioning pipeline.
+ * A stream is read no faster than its batches are installed.
+ */
+@Path("tunnels")
+public class SdwanWebResource extends AbstractWebResource {
+
+    static final String NDJSON = "application/x-ndjson";
+
+    static final int MAX_PAGE_SIZE = 1000;
+    static final int MAX_BATCH_SIZE = 10000;
+    static final int MAX_BULK_OPERATIONS = 2;
+
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private static final String TUNNELS = "tunnels";
+    private static final String RESULTS = "results";
+    private static final String DELETED = "deleted";
+    private static final String TOTAL = "total";
+    private static final String OFFSET = "offset";
+    private static final String LIMIT = "limit";
+
+    // resources are created per request, the bound is shared by all of them
+    private static final Semaphore BULK_OPERATIONS = new Semaphore(MAX_BULK_OPERATIONS);
+
+
+    /**
+     * Gets one page of VPN tunnels, ordered by tunnel id.
+     *
+     * @param tenant name of tenant, all tunnels if not set
+     * @param offset number of tunnels skipped
+     * @param limit max number of tunnels returned, up to 1000
+     * @return 200 OK with tunnels of page and total number of tunnels
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getTunnels(@QueryParam("tenant") String tenant,
+                               @DefaultValue("0") @QueryParam("offset") int offset,
+                               @DefaultValue("100") @QueryParam("limit") int limit) {
+        checkArgument(offset >= 0, "offset must not be negative");
+        checkArgument(limit > 0 && limit <= MAX_PAGE_SIZE, "limit must be 1 to %s", MAX_PAGE_SIZE);
+
+        SdwanService sdwanService = get(SdwanService.class);
+        Collection<SdwanTunnel> tunnels = tenant == null ?
+                sdwanService.getTunnels() : sdwanService.getTenantTunnels(tenant);
+
+        ObjectNode root = mapper().createObjectNode();
+        ArrayNode page = root.putArray(TUNNELS);
+        tunnels.stream()
+                .sorted(Comparator.comparingLong(SdwanTunnel::getTunnelId))
+                .skip(offset)
+                .limit(limit)
+                .forEach(tunnel -> page.add(SdwanJson.encode(tunnel, mapper())));
+        root.put(TOTAL, tunnels.size())
+                .put(OFFSET, offset)
+                .put(LIMIT, limit);
+        return Response.ok(root).build();
+    }
+
+    /**
+     * Gets one VPN tunnel.
+     *
+     * @param tunnelId id of tunnel
+     * @return 200 OK with tunnel, 404 if there is no such tunnel
+     */
+    @GET
+    @Path("{tunnelId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getTunnel(@PathParam("tunnelId") long tunnelId) {
+        SdwanTunnel tunnel = get(SdwanService.class).getTunnels().stream()
+                .filter(t -> t.getTunnelId() == tunnelId)
+                .findAny()
+                .orElseThrow(() -> new ItemNotFoundException("Tunnel not found: " + tunnelId));
+        return Response.ok(SdwanJson.encode(tunnel, mapper())).build();
+    }
+
+    /**
+     * Creates VPN tunnels in bulk, their flow rules go to devices as one batch.
+     *
+     * Body is an array of requests with fields tenant, src, dst, protocol and
+     * optionally bandwidth in Mbps. Nothing is created if any request is invalid.
+     *
+     * @param stream array of requests, up to 10000
+     * @return 200 OK with result of each request in order, 503 if too many bulk operations run
+     * @throws IOException if body can't be read
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response createTunnels(InputStream stream) throws IOException {
+        if (!BULK_OPERATIONS.tryAcquire()) {
+            return busy();
+        }
+        try {
+            List<VpnRequest> requests = new ArrayList<>();
+            try (VpnRequestReader reader = VpnRequestReader.json(
+                    new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                VpnRequest request;
+                while ((request = reader.next()) != null) {
+                    checkArgument(requests.size() < MAX_BATCH_SIZE,
+                                  "more than %s requests, stream them as NDJSON instead", MAX_BATCH_SIZE);
+                    requests.add(request);
+                }
+            }
+
+            ObjectNode root = mapper().createObjectNode();
+            ArrayNode results = root.putArray(RESULTS);
+            get(SdwanService.class).createVPNs(requests)
+                    .forEach(result -> results.add(SdwanJson.encode(result, mapper())));
+            return Response.ok(root).build();
+        } finally {
+            BULK_OPERATIONS.release();
+        }
+    }
+
+    /**
+     * Creates VPN tunnels of a stream of requests, one JSON object per line.
+     *
+     * Requests are provisioned a batch at a time and the result of each one,
+     * or the error of each invalid line, is streamed back as a line of JSON
+     * once devices answered for its batch; the next batch is read after that.
+     *
+     * @param batchSize number of requests provisioned together, up to 10000
+     * @param stream requests as NDJSON
+     * @return 200 OK with results as NDJSON, 503 if too many bulk operations run
+     */
+    @POST
+    @Path("stream")
+    @Consumes(NDJSON)
+    @Produces(NDJSON)
+    public Response streamTunnels(@DefaultValue("1000") @QueryParam("batchSize") int batchSize,
+                                  InputStream stream) {
+        checkArgument(batchSize > 0 && batchSize <= MAX_BATCH_SIZE, "batchSize must be 1 to %s", MAX_BATCH_SIZE);
+        // turns most streams away up front, the permit is only taken once the output runs
+        if (BULK_OPERATIONS.availablePermits() == 0) {
+            return busy();
+        }
+
+        SdwanService sdwanService = get(SdwanService.class);
+        ObjectMapper mapper = mapper();
+        StreamingOutput output = out -> {
+            if (!BULK_OPERATIONS.tryAcquire()) {
+                try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                    writeLine(writer, mapper, SdwanJson.error("too many bulk operations, retry in "
+                            + RETRY_AFTER_SECONDS + " seconds", mapper));
+                }
+                return;
+            }
+            try (VpnRequestReader reader = VpnRequestReader.json(
+                    new InputStreamReader(stream, StandardCharsets.UTF_8));
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+
+                List<VpnRequest> batch = new ArrayList<>(batchSize);
+                while (true) {
+                    VpnRequest request;
+                    try {
+                        request = reader.next();
+                    } catch (IllegalArgumentException e) {
+                        writeLine(writer, mapper, SdwanJson.error(e.getMessage(), mapper));
+                        continue;
+                    } catch (JsonProcessingException e) {
+                        // nothing after malformed JSON can be trusted, provision what came before
+                        writeLine(writer, mapper, SdwanJson.error(e.getMessage(), mapper));
+                        request = null;
+                    }
+                    if (request != null) {
+                        batch.add(request);
+                    }
+
+                    if (batch.size() == batchSize || (request == null && !batch.isEmpty())) {
+                        for (VpnResult result : installed(sdwanService.createVPNsAsync(batch))) {
+                            writeLine(writer, mapper, SdwanJson.encode(result, mapper));
+                        }
+                        batch.clear();
+                        writer.flush();
+                    }
+                    if (request == null) {
+                        break;
+                    }
+                }
+            } finally {
+                BULK_OPERATIONS.release();
+            }
+        };
+        return Response.ok(output).build();
+    }
+
+    /**
+     * Deletes one VPN tunnel.
+     *
+     * @param tunnelId id of tunnel
+     * @return 204 NO CONTENT, 404 if there is no such tunnel
+     */
+    @DELETE
+    @Path("{tunnelId}")
+    public Response deleteTunnel(@PathParam("tunnelId") long tunnelId) {
+        if (!get(SdwanService.class).deleteVPN(tunnelId)) {
+            throw new ItemNotFoundException("Tunnel not found: " + tunnelId);
+        }
+        return Response.noContent().build();
+    }
+
+    /**
+     * Deletes VPN tunnels in bulk, their flow rules are removed as one batch.
+     *
+     * Body is {"tunnels": [ids of tunnels]}, unknown ids are ignored.
+     *
+     * @param stream ids of tunnels
+     * @return 200 OK with number of tunnels deleted, 503 if too many bulk operations run
+     * @throws IOException if body can't be read
+     */
+    @DELETE
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response deleteTunnels(InputStream stream) throws IOException {
+        JsonNode ids = mapper().readTree(stream).get(TUNNELS);
+        checkArgument(ids != null && ids.isArray(), "tunnels must be an array of tunnel ids");
+
+        List<Long> tunnelIds = new ArrayList<>();
+        for (JsonNode id : ids) {
+            checkArgument(id.isNumber(), "invalid tunnel id %s", id);
+            tunnelIds.add(id.asLong());
+        }
+
+        if (!BULK_OPERATIONS.tryAcquire()) {
+            return busy();
+        }
+        try {
+            int deleted = get(SdwanService.class).deleteVPNs(tunnelIds);
+            return Response.ok(mapper().createObjectNode().put(DELETED, deleted)).build();
+        } finally {
+            BULK_OPERATIONS.release();
+        }
+    }
+
+    private static List<VpnResult> installed(CompletableFuture<List<VpnResult>> results) throws IOException {
+        try {
+            return results.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while tunnels are installed");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Response busy() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .build();
+    }
+
+    private static void writeLine(Writer writer, ObjectMapper mapper, ObjectNode node) throws IOException {
+        writer.write(mapper.writeValueAsString(node));
+        writer.write('\n');
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.api;
+
+import org.junit.Test;
+import org.onlab.util.Bandwidth;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of reading VPN requests of CSV and JSON files.
+ */
+public class VpnRequestReaderTest {
+
+    private static final String SITE1 = "of:0000000000000001/1";
+    private static final String SITE2 = "of:0000000000000002/1";
+
+    @Test
+    public void csvRowsAreRead() throws IOException {
+        VpnRequestReader reader = VpnRequestReader.csv(new StringReader(
+                "tenant,src,dst,protocol,bandwidth\n" +
+                "# a comment\n" +
+                "\n" +
+                "t1," + SITE1 + "," + SITE2 + ",ipv4,100\n" +
+                "t2," + SITE2 + "," + SITE1 + ",0x88cc\n"));
+
+        VpnRequest first = reader.next();
+        assertEquals("t1", first.getTenantName());
+        assertEquals(SITE1, first.getSrcSite());
+        assertEquals(SITE2, first.getDstSite());
+        assertEquals(0x0800, first.getEthertypeCode());
+        assertEquals(Bandwidth.mbps(100), first.getBandwidth());
+
+        VpnRequest second = reader.next();
+        assertEquals("t2", second.getTenantName());
+        assertEquals(0x88cc, second.getEthertypeCode());
+        assertEquals(Bandwidth.mbps(0), second.getBandwidth());
+
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void invalidCsvRowIsSkipped() throws IOException {
+        VpnRequestReader reader = VpnRequestReader.csv(new StringReader(
+                "t1," + SITE1 + ",of:0000000000000002/x,ipv4\n" +
+                "t2," + SITE1 + "," + SITE2 + ",ipv6\n"));
+
+        try {
+            reader.next();
+            fail("port of site must be a number");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("line 1:"));
+        }
+        assertEquals("t2", reader.next().getTenantName());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void jsonArrayIsRead() throws IOException {
+        VpnRequestReader reader = VpnRequestReader.json(new StringReader(
+                "[{\"tenant\":\"t1\",\"src\":\"" + SITE1 + "\",\"dst\":\"" + SITE2 + "\"," +
+                "\"protocol\":\"mpls\",\"bandwidth\":10},\n" +
+                "{\"tenant\":\"t2\",\"src\":\"" + SITE2 + "\",\"dst\":\"" + SITE1 + "\",\"protocol\":\"ipv6\"}]"));
+
+        VpnRequest first = reader.next();
+        assertEquals("t1", first.getTenantName());
+        assertEquals(0x8847, first.getEthertypeCode());
+        assertEquals(Bandwidth.mbps(10), first.getBandwidth());
+
+        VpnRequest second = reader.next();
+        assertEquals(SITE2, second.getSrcSite());
+        assertEquals(0x86dd, second.getEthertypeCode());
+
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void protocolsAreParsed() {
+        assertEquals(0x0806, VpnRequestReader.parseProtocol("ARP"));
+        assertEquals(0x86dd, VpnRequestReader.parseProtocol("ipv6"));
+        assertEquals(0x0800, VpnRequestReader.parseProtocol("0x0800"));
+        assertEquals(2048, VpnRequestReader.parseProtocol("2048"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ethertypeOutOfRangeIsRejected() {
+        VpnRequestReader.parseProtocol("0x10000");
+    }
+}
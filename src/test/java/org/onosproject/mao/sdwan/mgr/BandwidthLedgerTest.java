@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.link;
+
+/**
+ * Tests of the per-link bandwidth reservation ledger.
+ */
+public class BandwidthLedgerTest {
+
+    private static final double DELTA = 1e-6;
+
+    private final Link ab = link("A", 1, "B", 1);
+    private final Link bc = link("B", 2, "C", 1);
+    private final Link cd = link("C", 2, "D", 1);
+
+    private BandwidthLedger ledger;
+
+    @Before
+    public void setUp() {
+        // C -> D has unknown capacity
+        ledger = new BandwidthLedger(link -> link.equals(cd) ? 0 : 100);
+    }
+
+    @Test
+    public void reservationIsAllOrNothing() {
+        assertTrue(ledger.reserve(1, ImmutableList.of(ab, bc), 60));
+        assertEquals(40, ledger.residual(ab), DELTA);
+
+        assertFalse(ledger.reserve(2, ImmutableList.of(ab, cd), 60));
+        assertEquals(40, ledger.residual(ab), DELTA);
+        assertEquals(0, ledger.reserved(LinkKey.linkKey(cd)), DELTA);
+
+        assertTrue(ledger.reserve(3, ImmutableList.of(bc, cd), 40));
+        assertFalse(ledger.fits(bc, 1));
+    }
+
+    @Test
+    public void releaseGivesBandwidthBack() {
+        ledger.reserve(1, ImmutableList.of(ab, bc), 60);
+        ledger.reserve(2, ImmutableList.of(ab), 30);
+
+        assertEquals(ImmutableList.of(ab, bc), ledger.release(1));
+        assertEquals(70, ledger.residual(ab), DELTA);
+        assertEquals(100, ledger.residual(bc), DELTA);
+        assertTrue(ledger.release(1).isEmpty());
+        assertEquals(1, ledger.reservations().size());
+    }
+
+    @Test
+    public void unknownCapacityIsNeverFull() {
+        assertTrue(ledger.reserve(1, ImmutableList.of(cd), 1e12));
+        assertTrue(ledger.fits(cd, 1e12));
+    }
+}
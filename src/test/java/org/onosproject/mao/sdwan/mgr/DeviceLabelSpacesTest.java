@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
+import static org.onosproject.mao.sdwan.mgr.DeviceLabelSpaces.BLOCK_SIZE;
+import static org.onosproject.mao.sdwan.mgr.DeviceLabelSpaces.MAX_RESERVED_LABEL;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of per-device label spaces split into leased blocks.
+ */
+public class DeviceLabelSpacesTest {
+
+    private static final DeviceId D1 = did("d1");
+
+    /**
+     * Label spaces owning every block whose index is odd, like an instance sharing them with another one.
+     */
+    private static final class OddBlocks extends DeviceLabelSpaces {
+
+        @Override
+        protected boolean leaseBlock(DeviceId deviceId, int block) {
+            return block % 2 == 1;
+        }
+    }
+
+    @Test
+    public void labelsStartAboveReservedRange() {
+        DeviceLabelSpaces spaces = new DeviceLabelSpaces();
+
+        assertEquals(MAX_RESERVED_LABEL + 1, spaces.allocate(D1));
+        assertEquals(MAX_RESERVED_LABEL + 2, spaces.allocate(D1));
+        assertEquals(2, spaces.usedCount(D1));
+        assertEquals(1, spaces.blockCount(D1));
+    }
+
+    @Test
+    public void nextBlockIsTakenWhenBlockIsFull() {
+        DeviceLabelSpaces spaces = new DeviceLabelSpaces();
+        for (int i = MAX_RESERVED_LABEL + 1; i < BLOCK_SIZE; i++) {
+            spaces.allocate(D1);
+        }
+
+        assertEquals(BLOCK_SIZE, spaces.allocate(D1));
+        assertEquals(2, spaces.blockCount(D1));
+        assertEquals(BLOCK_SIZE - MAX_RESERVED_LABEL, spaces.usedCount(D1));
+    }
+
+    @Test
+    public void globallyReservedBlocksAreSkipped() {
+        DeviceLabelSpaces spaces = new DeviceLabelSpaces();
+        spaces.reserveGlobally(0, 3 * BLOCK_SIZE - 1);
+
+        assertEquals(3 * BLOCK_SIZE, spaces.allocate(D1));
+        assertEquals(1, spaces.blockCount(D1));
+        assertFalse(spaces.allocate(D1, BLOCK_SIZE));
+    }
+
+    @Test
+    public void onlyLeasedBlocksAreUsed() {
+        OddBlocks spaces = new OddBlocks();
+
+        assertEquals(BLOCK_SIZE, spaces.allocate(D1));
+        assertFalse(spaces.allocate(D1, 2 * BLOCK_SIZE));
+        assertTrue(spaces.allocate(D1, 3 * BLOCK_SIZE + 7));
+        assertEquals(2, spaces.blockCount(D1));
+
+        // labels of blocks leased to others are theirs to release
+        spaces.release(D1, 2 * BLOCK_SIZE);
+        spaces.release(D1, 3 * BLOCK_SIZE + 7);
+        assertFalse(spaces.isAllocated(D1, 3 * BLOCK_SIZE + 7));
+        assertEquals(1, spaces.usedCount(D1));
+    }
+
+    @Test
+    public void exhaustedWhenNoBlockCanBeLeased() {
+        DeviceLabelSpaces spaces = new DeviceLabelSpaces() {
+            @Override
+            protected boolean leaseBlock(DeviceId deviceId, int block) {
+                return false;
+            }
+        };
+
+        assertEquals(INVALID_LABEL, spaces.allocate(D1));
+        assertEquals(0, spaces.usedCount(D1));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.junit.Test;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.createPath;
+import static org.onosproject.net.NetTestTools.link;
+
+/**
+ * Tests of the weigher used to find backup routes.
+ */
+public class DisjointLinkWeigherTest {
+
+    // primary route A - B - C
+    private final Path primary = createPath("A", "B", "C");
+
+    private static TopologyEdge edge(Link link) {
+        return new DefaultTopologyEdge(new DefaultTopologyVertex(link.src().deviceId()),
+                new DefaultTopologyVertex(link.dst().deviceId()), link);
+    }
+
+    private static boolean viable(DisjointLinkWeigher weigher, Link link) {
+        return !weigher.weight(edge(link)).equals(weigher.getNonViableWeight());
+    }
+
+    @Test
+    public void linkDisjointAvoidsPrimaryLinksBothWays() {
+        DisjointLinkWeigher weigher = new DisjointLinkWeigher(primary, false);
+
+        assertFalse(viable(weigher, primary.links().get(0)));
+        assertFalse(viable(weigher, link("B", 1, "A", 2)));
+        assertTrue(viable(weigher, link("A", 3, "D", 1)));
+        assertTrue(viable(weigher, link("D", 2, "B", 3)));
+    }
+
+    @Test
+    public void nodeDisjointAvoidsPrimaryTransitDevices() {
+        DisjointLinkWeigher weigher = new DisjointLinkWeigher(primary, true);
+
+        assertFalse(viable(weigher, link("D", 2, "B", 3)));
+        assertTrue(viable(weigher, link("A", 3, "D", 1)));
+        assertTrue(viable(weigher, link("D", 2, "C", 3)));
+    }
+}
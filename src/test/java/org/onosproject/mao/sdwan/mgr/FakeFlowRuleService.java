@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableMap;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory flow rule service recording the rules of each device.
+ *
+ * A rule replaces the rule of its device with the same match, as on a switch.
+ * Batches are applied stage by stage, right away or after an injected latency;
+ * operations can be made to fail on given devices or at random. As in ONOS,
+ * failed operations go to onError once per failing device and stage, later
+ * stages still run, and onSuccess is only called if nothing failed.
+ */
+public class FakeFlowRuleService extends FlowRuleServiceAdapter {
+
+    private final Map<DeviceId, Map<FlowRule, FlowRule>> deviceRules = new ConcurrentHashMap<>();
+    private final Set<DeviceId> failingDevices = ConcurrentHashMap.newKeySet();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+    private long latencyMillis;
+    private double failureRate;
+    private Random random = new Random();
+
+
+    /**
+     * Delays every batch, contexts are called back on another thread then.
+     *
+     * @param millis latency of a batch, 0 to apply batches in the calling thread
+     */
+    public synchronized void setLatency(long millis) {
+        latencyMillis = millis;
+        if (millis > 0 && scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+    }
+
+    /**
+     * Makes each operation fail with the given probability.
+     *
+     * @param rate probability of failure, 0 for none
+     * @param seed seed of failures
+     */
+    public synchronized void setFailureRate(double rate, long seed) {
+        failureRate = rate;
+        random = new Random(seed);
+    }
+
+    /**
+     * Makes every operation on the device fail, or succeed again.
+     *
+     * @param deviceId device
+     * @param failing true to fail operations
+     */
+    public void setFailing(DeviceId deviceId, boolean failing) {
+        if (failing) {
+            failingDevices.add(deviceId);
+        } else {
+            failingDevices.remove(deviceId);
+        }
+    }
+
+    /**
+     * Stops the scheduler of delayed batches, pending batches are dropped.
+     */
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public void apply(FlowRuleOperations ops) {
+        batches.incrementAndGet();
+        synchronized (this) {
+            if (latencyMillis > 0) {
+                scheduler.schedule(() -> execute(ops), latencyMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        execute(ops);
+    }
+
+    // as FlowRuleManager: stages in order, onError per failing device and stage, onSuccess only without failures
+    private void execute(FlowRuleOperations ops) {
+        FlowRuleOperationsContext context = ops.callback();
+        boolean anyFailed = false;
+        for (Set<FlowRuleOperation> stage : ops.stages()) {
+            Map<DeviceId, FlowRuleOperations.Builder> failed = new LinkedHashMap<>();
+            for (FlowRuleOperation op : stage) {
+                operations.incrementAndGet();
+                if (fails(op.rule())) {
+                    failed.computeIfAbsent(op.rule().deviceId(), id -> FlowRuleOperations.builder()).operation(op);
+                } else {
+                    record(op);
+                }
+            }
+            anyFailed |= !failed.isEmpty();
+            if (context != null) {
+                failed.values().forEach(deviceOps -> context.onError(deviceOps.build()));
+            }
+        }
+
+        if (context != null && !anyFailed) {
+            context.onSuccess(ops);
+        }
+    }
+
+    private boolean fails(FlowRule rule) {
+        if (failingDevices.contains(rule.deviceId())) {
+            return true;
+        }
+        synchronized (this) {
+            return failureRate > 0 && random.nextDouble() < failureRate;
+        }
+    }
+
+    private void record(FlowRuleOperation op) {
+        FlowRule rule = op.rule();
+        if (op.type() == FlowRuleOperation.Type.REMOVE) {
+            Map<FlowRule, FlowRule> rules = deviceRules.get(rule.deviceId());
+            if (rules != null) {
+                rules.remove(rule);
+            }
+        } else {
+            deviceRules.computeIfAbsent(rule.deviceId(), id -> new ConcurrentHashMap<>()).put(rule, rule);
+        }
+    }
+
+    @Override
+    public void applyFlowRules(FlowRule... flowRules) {
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        for (FlowRule rule : flowRules) {
+            ops.add(rule);
+        }
+        apply(ops.build());
+    }
+
+    @Override
+    public void removeFlowRules(FlowRule... flowRules) {
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        for (FlowRule rule : flowRules) {
+            ops.remove(rule);
+        }
+        apply(ops.build());
+    }
+
+    @Override
+    public void removeFlowRulesById(ApplicationId appId) {
+        deviceRules.values().forEach(rules -> rules.keySet().removeIf(rule -> rule.appId() == appId.id()));
+    }
+
+    @Override
+    public void purgeFlowRules(DeviceId deviceId) {
+        deviceRules.remove(deviceId);
+    }
+
+    @Override
+    public int getFlowRuleCount() {
+        return deviceRules.values().stream().mapToInt(Map::size).sum();
+    }
+
+    @Override
+    public Iterable<FlowEntry> getFlowEntries(DeviceId deviceId) {
+        Map<FlowRule, FlowRule> rules = deviceRules.get(deviceId);
+        if (rules == null) {
+            return Collections.emptyList();
+        }
+        return rules.values().stream().map(this::entry).collect(Collectors.toList());
+    }
+
+    @Override
+    public Iterable<FlowEntry> getFlowEntriesById(ApplicationId appId) {
+        List<FlowEntry> entries = new ArrayList<>();
+        deviceRules.values().forEach(rules -> rules.values().stream()
+                .filter(rule -> rule.appId() == appId.id())
+                .forEach(rule -> entries.add(entry(rule))));
+        return entries;
+    }
+
+    private FlowEntry entry(FlowRule rule) {
+        return new DefaultFlowEntry(rule, FlowEntry.FlowEntryState.ADDED, 0, 0, 0);
+    }
+
+    /**
+     * Returns number of rules on each device holding any.
+     *
+     * @return number of rules by device
+     */
+    public Map<DeviceId, Integer> ruleCounts() {
+        Map<DeviceId, Integer> counts = new HashMap<>();
+        deviceRules.forEach((id, rules) -> {
+            if (!rules.isEmpty()) {
+                counts.put(id, rules.size());
+            }
+        });
+        return ImmutableMap.copyOf(counts);
+    }
+
+    /**
+     * Returns number of batches submitted.
+     *
+     * @return number of batches
+     */
+    public long batchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Returns number of operations executed, failed ones included.
+     *
+     * @return number of operations
+     */
+    public long operationCount() {
+        return operations.get();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.EthType;
+import org.onosproject.TestApplicationId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.onlab.junit.TestTools.assertAfter;
+import static org.onlab.packet.MplsLabel.mplsLabel;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.PortNumber.portNumber;
+
+/**
+ * Tests of reconciling rules on devices with the rules expected there.
+ */
+public class FlowReconcilerTest {
+
+    private final ApplicationId appId = new TestApplicationId((short) 7, "sdwan");
+    private final ApplicationId otherAppId = new TestApplicationId((short) 8, "other");
+
+    private final Map<DeviceId, List<FlowRule>> expected = new HashMap<>();
+    private FakeFlowRuleService flowRuleService;
+    private FlowReconciler reconciler;
+    private SdwanHarness harness;
+
+    @Before
+    public void setUp() {
+        flowRuleService = new FakeFlowRuleService();
+        reconciler = new FlowReconciler(appId, flowRuleService,
+                deviceId -> expected.getOrDefault(deviceId, new ArrayList<>()));
+    }
+
+    @After
+    public void tearDown() {
+        if (harness != null) {
+            harness.stop();
+        }
+    }
+
+    private FlowRule rule(ApplicationId app, String device, int label, int outPort) {
+        return DefaultFlowRule.builder()
+                .forDevice(did(device))
+                .forTable(0)
+                .fromApp(app)
+                .makePermanent()
+                .withPriority(100)
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthType(EthType.EtherType.MPLS_UNICAST.ethType().toShort())
+                        .matchMplsLabel(mplsLabel(label))
+                        .build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .setOutput(portNumber(outPort))
+                        .build())
+                .build();
+    }
+
+    private void expect(FlowRule... rules) {
+        for (FlowRule rule : rules) {
+            expected.computeIfAbsent(rule.deviceId(), id -> new ArrayList<>()).add(rule);
+        }
+    }
+
+    private List<FlowEntry> entries(String device) {
+        List<FlowEntry> entries = new ArrayList<>();
+        flowRuleService.getFlowEntries(did(device)).forEach(entries::add);
+        return entries;
+    }
+
+    @Test
+    public void missingRuleIsPushedAgain() {
+        FlowRule kept = rule(appId, "A", 100, 1);
+        FlowRule evicted = rule(appId, "A", 101, 2);
+        expect(kept, evicted);
+        flowRuleService.applyFlowRules(kept);
+
+        assertEquals(1, reconciler.reconcile(did("A")));
+        assertEquals(2, entries("A").size());
+        assertEquals(0, reconciler.reconcile(did("A")));
+    }
+
+    @Test
+    public void orphanIsRemoved() {
+        FlowRule kept = rule(appId, "A", 100, 1);
+        FlowRule orphan = rule(appId, "A", 101, 2);
+        FlowRule foreign = rule(otherAppId, "A", 102, 3);
+        expect(kept);
+        flowRuleService.applyFlowRules(kept, orphan, foreign);
+
+        assertEquals(1, reconciler.reconcile(did("A")));
+        List<FlowEntry> entries = entries("A");
+        assertEquals(2, entries.size());
+        assertTrue(entries.contains(kept));
+        assertTrue(entries.contains(foreign));
+    }
+
+    @Test
+    public void orphanIsKeptWhenAsked() {
+        FlowRule orphan = rule(appId, "A", 101, 2);
+        expect(rule(appId, "A", 100, 1));
+        flowRuleService.applyFlowRules(orphan);
+
+        assertEquals(1, reconciler.reconcile(Arrays.asList(did("A")), false));
+        assertEquals(2, entries("A").size());
+        assertTrue(entries("A").contains(orphan));
+    }
+
+    @Test
+    public void changedTreatmentIsModified() {
+        FlowRule wanted = rule(appId, "A", 100, 1);
+        expect(wanted);
+        flowRuleService.applyFlowRules(rule(appId, "A", 100, 9));
+
+        assertEquals(1, reconciler.reconcile(did("A")));
+        assertEquals(wanted.treatment(), entries("A").get(0).treatment());
+    }
+
+    @Test
+    public void onlyTheGivenDeviceIsRepaired() {
+        expect(rule(appId, "A", 100, 1), rule(appId, "B", 100, 1));
+
+        assertEquals(1, reconciler.reconcile(did("A")));
+        assertEquals(1, entries("A").size());
+        assertTrue(entries("B").isEmpty());
+    }
+
+    @Test
+    public void sweepRepairsEveryDevice() {
+        FlowRule orphan = rule(appId, "C", 100, 1);
+        expect(rule(appId, "A", 100, 1), rule(appId, "B", 100, 1));
+        flowRuleService.applyFlowRules(orphan);
+
+        Collection<DeviceId> devices = Arrays.asList(did("A"), did("B"), did("C"));
+        assertEquals(3, reconciler.reconcile(devices));
+        assertEquals(1, entries("A").size());
+        assertEquals(1, entries("B").size());
+        assertTrue(entries("C").isEmpty());
+    }
+
+    @Test
+    public void rebootedDeviceIsRepairedWhenBack() {
+        harness = new SdwanHarness(SyntheticTopology.ring(10));
+        new ProvisioningLoad(harness, harness.start()).seed(17).run(50, 60_000);
+        FakeFlowRuleService rules = harness.flowRuleService();
+        Map<DeviceId, Integer> before = rules.ruleCounts();
+
+        DeviceId rebooted = before.keySet().iterator().next();
+        harness.deviceService().setAvailable(rebooted, false);
+        rules.purgeFlowRules(rebooted);
+        harness.deviceService().setAvailable(rebooted, true);
+
+        assertAfter(5000, () -> assertEquals(before, rules.ruleCounts()));
+    }
+}
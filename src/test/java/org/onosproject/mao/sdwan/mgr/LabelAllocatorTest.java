@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.MAX_LABEL;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.MIN_LABEL;
+
+/**
+ * Tests of the bitmap label allocator.
+ */
+public class LabelAllocatorTest {
+
+    @Test
+    public void allocatesWholeRangeWithoutConflict() {
+        LabelAllocator allocator = new LabelAllocator(16, 16 + 10000);
+        Set<Integer> labels = new HashSet<>();
+
+        for (int i = 0; i < allocator.capacity(); i++) {
+            int label = allocator.allocate();
+            assertTrue(label >= 16 && label <= 16 + 10000);
+            assertTrue(labels.add(label));
+        }
+
+        assertEquals(INVALID_LABEL, allocator.allocate());
+        assertEquals(allocator.capacity(), allocator.usedCount());
+    }
+
+    @Test
+    public void releasedLabelIsReused() {
+        LabelAllocator allocator = new LabelAllocator(MIN_LABEL, MAX_LABEL);
+        for (int i = 0; i < 5000; i++) {
+            allocator.allocate();
+        }
+
+        allocator.release(1234);
+        assertFalse(allocator.isAllocated(1234));
+        assertEquals(1234, allocator.allocate());
+    }
+
+    @Test
+    public void reservedRangeIsSkipped() {
+        LabelAllocator allocator = new LabelAllocator(MIN_LABEL, MAX_LABEL);
+        allocator.reserve(MIN_LABEL, 15);
+
+        assertEquals(16, allocator.allocate());
+        assertFalse(allocator.allocate(3));
+        assertTrue(allocator.allocate(100));
+        assertFalse(allocator.allocate(100));
+    }
+
+    @Test
+    public void fullLabelSpace() {
+        LabelAllocator allocator = new LabelAllocator(MIN_LABEL, MAX_LABEL);
+        for (int i = MIN_LABEL; i <= MAX_LABEL; i++) {
+            assertEquals(i, allocator.allocate());
+        }
+        assertEquals(INVALID_LABEL, allocator.allocate());
+
+        allocator.release(MAX_LABEL);
+        assertEquals(MAX_LABEL, allocator.allocate());
+
+        allocator.clear();
+        assertEquals(0, allocator.usedCount());
+        assertEquals(MIN_LABEL, allocator.allocate());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.onosproject.cluster.NodeId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.Serializer;
+import org.onosproject.store.service.TestStorageService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of label blocks leased to the instances of a cluster.
+ */
+public class LeasedLabelSpacesTest {
+
+    private static final DeviceId D1 = did("d1");
+    private static final NodeId FIRST = new NodeId("first");
+    private static final NodeId SECOND = new NodeId("second");
+    private static final NodeId THIRD = new NodeId("third");
+
+    private final ConsistentMap<String, NodeId> leases = new TestStorageService()
+            .<String, NodeId>consistentMapBuilder()
+            .withName("leases")
+            .withSerializer(Serializer.using(KryoNamespaces.API))
+            .build();
+
+    @Test
+    public void blockOfAnotherInstanceIsNotHandedOut() {
+        LeasedLabelSpaces first = new LeasedLabelSpaces(leases, FIRST);
+        LeasedLabelSpaces second = new LeasedLabelSpaces(leases, SECOND);
+        int label = first.allocate(D1);
+
+        assertFalse(second.allocate(D1, label));
+        assertEquals(0, second.takeOverLeases(ImmutableSet.of(FIRST, SECOND)));
+        assertFalse(second.allocate(D1, label));
+    }
+
+    @Test
+    public void blocksOfDepartedInstanceAreTakenOver() {
+        LeasedLabelSpaces first = new LeasedLabelSpaces(leases, FIRST);
+        LeasedLabelSpaces second = new LeasedLabelSpaces(leases, SECOND);
+        int label = first.allocate(D1);
+
+        assertEquals(1, second.takeOverLeases(ImmutableSet.of(SECOND)));
+
+        // free until tunnels carrying them mark them in use
+        assertEquals(1, second.blockCount(D1));
+        assertEquals(0, second.usedCount(D1));
+        assertTrue(second.allocate(D1, label));
+        assertEquals(1, leases.size());
+        assertEquals(SECOND, leases.values().iterator().next().value());
+        // the departed instance coming back finds none of its blocks
+        assertEquals(0, new LeasedLabelSpaces(leases, FIRST).blockCount(D1));
+    }
+
+    @Test
+    public void eachBlockIsTakenOverOnce() {
+        LeasedLabelSpaces first = new LeasedLabelSpaces(leases, FIRST);
+        first.allocate(D1);
+        first.allocate(did("d2"));
+        LeasedLabelSpaces second = new LeasedLabelSpaces(leases, SECOND);
+        LeasedLabelSpaces third = new LeasedLabelSpaces(leases, THIRD);
+
+        int taken = second.takeOverLeases(ImmutableSet.of(SECOND, THIRD))
+                + third.takeOverLeases(ImmutableSet.of(SECOND, THIRD));
+
+        assertEquals(2, taken);
+        assertEquals(2, second.blockCount(D1) + third.blockCount(D1) + second.blockCount(did("d2"))
+                + third.blockCount(did("d2")));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.TestApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_LABEL;
+import static org.onosproject.net.NetTestTools.connectPoint;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.NetTestTools.link;
+
+/**
+ * Tests of multipoint-to-point merge trees.
+ */
+public class MergeTreesTest {
+
+    private static final int IPV4 = 0x0800;
+
+    private final ConnectPoint hub = connectPoint("D", 9);
+    private final Link ab = link("A", 1, "B", 1);
+    private final Link cb = link("C", 1, "B", 2);
+    private final Link bd = link("B", 3, "D", 1);
+    private final Link xa = link("X", 1, "A", 2);
+    private final Link af = link("A", 3, "F", 1);
+    private final Link fd = link("F", 2, "D", 2);
+
+    private DeviceLabelSpaces labelSpaces;
+    private MergeTrees trees;
+
+    private List<FlowRule> staleFlows;
+    private Map<DeviceId, List<Integer>> staleLabels;
+
+    @Before
+    public void setUp() {
+        labelSpaces = new DeviceLabelSpaces();
+        trees = new MergeTrees(new TestApplicationId("merge"), 100, labelSpaces);
+        staleFlows = new ArrayList<>();
+        staleLabels = new HashMap<>();
+    }
+
+    private int diff() {
+        staleFlows.clear();
+        staleLabels.clear();
+        return trees.diff(FlowRuleOperations.builder(), staleFlows, staleLabels);
+    }
+
+    @Test
+    public void spokesShareTransitAndEgress() {
+        assertEquals(ImmutableList.of(ab, bd), trees.attach(hub, IPV4, ImmutableList.of(ab, bd)));
+        assertEquals(2, diff());
+
+        assertEquals(ImmutableList.of(cb, bd), trees.attach(hub, IPV4, ImmutableList.of(cb, bd)));
+        // the second spoke only adds its ingress, B and D keep one rule each
+        assertEquals(0, diff());
+        assertEquals(1, labelSpaces.usedCount(did("B")));
+        assertEquals(1, labelSpaces.usedCount(did("D")));
+        assertEquals(1, trees.size());
+    }
+
+    @Test
+    public void routeFollowsTreeOnceJoined() {
+        trees.attach(hub, IPV4, ImmutableList.of(ab, bd));
+        diff();
+
+        // shortest route of X leaves over F, but A is already in the tree
+        assertEquals(ImmutableList.of(xa, ab, bd), trees.attach(hub, IPV4, ImmutableList.of(xa, af, fd)));
+        assertEquals(1, diff());
+        assertNotEquals(INVALID_LABEL, trees.label(hub, IPV4, did("A")));
+        assertEquals(INVALID_LABEL, trees.label(hub, IPV4, did("F")));
+    }
+
+    @Test
+    public void otherEthertypeIsOtherTree() {
+        trees.attach(hub, IPV4, ImmutableList.of(ab, bd));
+        trees.attach(hub, 0x86dd, ImmutableList.of(cb, bd));
+        assertEquals(4, diff());
+        assertNotEquals(trees.label(hub, IPV4, did("D")), trees.label(hub, 0x86dd, did("D")));
+        assertEquals(2, trees.size());
+    }
+
+    @Test
+    public void lastTunnelLeavingPrunesTree() {
+        List<Link> first = trees.attach(hub, IPV4, ImmutableList.of(ab, bd));
+        List<Link> second = trees.attach(hub, IPV4, ImmutableList.of(cb, bd));
+        diff();
+
+        trees.detach(hub, IPV4, first);
+        assertEquals(0, diff());
+        assertTrue(staleLabels.isEmpty());
+
+        trees.detach(hub, IPV4, second);
+        assertEquals(2, diff());
+        assertEquals(2, staleFlows.size());
+        assertEquals(2, staleLabels.size());
+        assertEquals(0, trees.size());
+    }
+
+    @Test
+    public void rejoiningKeepsLabels() {
+        List<Link> route = trees.attach(hub, IPV4, ImmutableList.of(ab, bd));
+        diff();
+        int label = trees.label(hub, IPV4, did("B"));
+
+        trees.detach(hub, IPV4, route);
+        trees.attach(hub, IPV4, ImmutableList.of(cb, bd));
+        assertEquals(label, trees.label(hub, IPV4, did("B")));
+
+        // B still forwards to D with the same labels, no rule changes
+        assertEquals(0, diff());
+        assertTrue(staleLabels.isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.Path;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.easymock.EasyMock.createMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.onosproject.net.NetTestTools.createPath;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of the topology-bound path cache.
+ */
+public class PathCacheTest {
+
+    private final Path pathAC = createPath("A", "B", "C");
+    private final Path pathAD = createPath("A", "E", "D");
+
+    private final Topology topology = createMock(Topology.class);
+    private final Topology nextTopology = createMock(Topology.class);
+
+    private int searches;
+    private PathCache cache;
+
+    @Before
+    public void setUp() {
+        searches = 0;
+        cache = new PathCache(new TopologyServiceAdapter() {
+            @Override
+            public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst) {
+                searches++;
+                return ImmutableSet.of(dst.equals(did("C")) ? pathAC : pathAD);
+            }
+        }, 2);
+        cache.bind(topology);
+    }
+
+    @Test
+    public void repeatedLookupIsHit() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(ImmutableSet.of(pathAC), cache.getPaths(topology, did("A"), did("C")));
+        }
+        assertEquals(1, searches);
+        assertEquals(9L, (long) cache.statistics().get("hits"));
+        assertEquals(1L, (long) cache.statistics().get("misses"));
+    }
+
+    @Test
+    public void otherTopologyBypassesCache() {
+        cache.getPaths(topology, did("A"), did("C"));
+        cache.getPaths(nextTopology, did("A"), did("C"));
+        cache.getPaths(nextTopology, did("A"), did("C"));
+        assertEquals(3, searches);
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        cache.getPaths(topology, did("A"), did("C"));
+        cache.getPaths(topology, did("A"), did("D"));
+        cache.getPaths(topology, did("A"), did("C"));
+        cache.getPaths(topology, did("A"), did("F"));
+
+        assertEquals(2, cache.size());
+        assertEquals(1L, (long) cache.statistics().get("evictions"));
+
+        // A -> C was used last, so A -> D went away
+        cache.getPaths(topology, did("A"), did("C"));
+        assertEquals(3, searches);
+        cache.getPaths(topology, did("A"), did("D"));
+        assertEquals(4, searches);
+    }
+
+    @Test
+    public void lossDropsOnlyCrossingEntries() {
+        cache.getPaths(topology, did("A"), did("C"));
+        cache.getPaths(topology, did("A"), did("D"));
+
+        cache.bind(nextTopology, ImmutableSet.of(LinkKey.linkKey(pathAC.links().get(1))),
+                Collections.emptySet());
+        assertEquals(1, cache.size());
+
+        assertSame(cache.getPaths(nextTopology, did("A"), did("D")).iterator().next(), pathAD);
+        assertEquals(2, searches);
+
+        cache.bind(topology, Collections.emptySet(), ImmutableSet.of(did("E")));
+        assertEquals(0, cache.size());
+    }
+}
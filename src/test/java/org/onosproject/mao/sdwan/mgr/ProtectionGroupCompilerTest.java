@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.junit.Test;
+import org.onlab.graph.ScalarWeight;
+import org.onosproject.TestApplicationId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.provider.ProviderId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.onlab.packet.MplsLabel.mplsLabel;
+import static org.onosproject.mao.sdwan.mgr.TunnelRuleCompiler.swapTreatment;
+import static org.onosproject.net.PortNumber.portNumber;
+
+/**
+ * Tests of fast-failover groups of protected tunnels.
+ */
+public class ProtectionGroupCompilerTest {
+
+    private static final ProviderId PID = new ProviderId("test", "org.onosproject.mao.sdwan");
+
+    private final ApplicationId appId = new TestApplicationId((short) 7, "sdwan");
+    private final ProtectionGroupCompiler compiler = new ProtectionGroupCompiler(appId);
+
+    // k = 4: cores 0-3, pod 0 of aggregation 4, 5 and edge 6, 7, pod 1 of aggregation 8, 9 and edge 10, 11
+    private final SyntheticTopology fatTree = SyntheticTopology.fatTree(20);
+
+    private Path path(int... devices) {
+        List<Link> links = new ArrayList<>();
+        for (int i = 0; i + 1 < devices.length; i++) {
+            links.add(fatTree.link(devices[i], devices[i + 1]));
+        }
+        return new DefaultPath(PID, links, new ScalarWeight(links.size()));
+    }
+
+    private List<DeviceId> devices(int... indexes) {
+        List<DeviceId> devices = new ArrayList<>();
+        for (int index : indexes) {
+            devices.add(fatTree.devices().get(index));
+        }
+        return devices;
+    }
+
+    // port of one device toward another
+    private PortNumber port(int device, int peer) {
+        return fatTree.link(device, peer).src().port();
+    }
+
+    private static List<Integer> labels(int first, int count) {
+        List<Integer> labels = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            labels.add(first + i);
+        }
+        return labels;
+    }
+
+    private SdwanTunnel tunnel(int[] primary, int[] backup) {
+        int[] reversePrimary = new int[primary.length];
+        int[] reverseBackup = new int[backup.length];
+        for (int i = 0; i < primary.length; i++) {
+            reversePrimary[i] = primary[primary.length - 1 - i];
+        }
+        for (int i = 0; i < backup.length; i++) {
+            reverseBackup[i] = backup[backup.length - 1 - i];
+        }
+        Path primaryPath = path(primary);
+        SdwanTunnel.Builder builder = SdwanTunnel.builder()
+                .tunnelId(1)
+                .tenant("tenant")
+                .src(new ConnectPoint(fatTree.devices().get(primary[0]), portNumber(1000)))
+                .dst(new ConnectPoint(fatTree.devices().get(primary[primary.length - 1]), portNumber(1000)))
+                .networkProtocol(0x0800)
+                .forwardDevices(devices(primary))
+                .backwardDevices(devices(reversePrimary))
+                .forwardPath(primaryPath)
+                .backwardPath(primaryPath)
+                // hop labels: primary 101.. forward and 201.. backward, backup 301.. and 401..
+                .forwardLabels(labels(101, primary.length - 1))
+                .backwardLabels(labels(201, primary.length - 1));
+        if (backup.length > 0) {
+            builder.backup(path(backup), devices(backup), devices(reverseBackup),
+                    labels(301, backup.length - 1), labels(401, backup.length - 1));
+        }
+        return builder.build();
+    }
+
+    private static TrafficTreatment push(int label, PortNumber port) {
+        return DefaultTrafficTreatment.builder().pushMpls().setMpls(mplsLabel(label)).setOutput(port).build();
+    }
+
+    private static List<GroupBucket> buckets(TrafficTreatment primary, PortNumber primaryPort,
+                                             TrafficTreatment backup, PortNumber backupPort) {
+        return Arrays.asList(DefaultGroupBucket.createFailoverGroupBucket(primary, primaryPort, null),
+                DefaultGroupBucket.createFailoverGroupBucket(backup, backupPort, null));
+    }
+
+    // buckets of each group, by device and group id
+    private Map<List<Object>, List<GroupBucket>> compile(SdwanTunnel tunnel) {
+        Map<List<Object>, List<GroupBucket>> groups = new HashMap<>();
+        for (GroupDescription group : compiler.compile(tunnel)) {
+            assertEquals(GroupDescription.Type.FAILOVER, group.type());
+            assertEquals(ProtectionGroupCompiler.groupKey(group.givenGroupId()), group.appCookie());
+            assertEquals(appId, group.appId());
+            groups.put(Arrays.asList(group.deviceId(), group.givenGroupId()), group.buckets().buckets());
+        }
+        return groups;
+    }
+
+    private List<Object> key(int device, int ownedLabel) {
+        return Arrays.asList(fatTree.devices().get(device), ProtectionGroupCompiler.groupId(ownedLabel));
+    }
+
+    @Test
+    public void unprotectedTunnelHasNoGroup() {
+        assertTrue(compiler.compile(tunnel(new int[]{6, 4, 0, 8, 10}, new int[0])).isEmpty());
+    }
+
+    @Test
+    public void ingressSwitchesBetweenPrimaryAndBackup() {
+        // node-disjoint, only ingress devices are on both routes
+        Map<List<Object>, List<GroupBucket>> groups = compile(
+                tunnel(new int[]{6, 4, 0, 8, 10}, new int[]{6, 5, 2, 9, 10}));
+
+        Map<List<Object>, List<GroupBucket>> expected = new HashMap<>();
+        // numbered after the label the opposite direction ends with on the device
+        expected.put(key(6, 204), buckets(push(101, port(6, 4)), port(6, 4), push(301, port(6, 5)), port(6, 5)));
+        expected.put(key(10, 104),
+                buckets(push(201, port(10, 8)), port(10, 8), push(401, port(10, 9)), port(10, 9)));
+        assertEquals(expected, groups);
+    }
+
+    @Test
+    public void sharedTransitContinuesOnBackup() {
+        // link-disjoint, the backup route crosses primary transit devices 4 and 8
+        Map<List<Object>, List<GroupBucket>> groups = compile(
+                tunnel(new int[]{6, 4, 0, 8, 10}, new int[]{6, 5, 7, 4, 1, 8, 11, 9, 10}));
+
+        Map<List<Object>, List<GroupBucket>> expected = new HashMap<>();
+        expected.put(key(6, 204), buckets(push(101, port(6, 4)), port(6, 4), push(301, port(6, 5)), port(6, 5)));
+        // a transit group is numbered after the label the device receives, and swaps it for the backup hop label
+        expected.put(key(4, 101), buckets(swapTreatment(101, 102, port(4, 0)), port(4, 0),
+                swapTreatment(101, 304, port(4, 1)), port(4, 1)));
+        expected.put(key(8, 103), buckets(swapTreatment(103, 104, port(8, 10)), port(8, 10),
+                swapTreatment(103, 306, port(8, 11)), port(8, 11)));
+        expected.put(key(10, 104),
+                buckets(push(201, port(10, 8)), port(10, 8), push(401, port(10, 9)), port(10, 9)));
+        expected.put(key(8, 201), buckets(swapTreatment(201, 202, port(8, 0)), port(8, 0),
+                swapTreatment(201, 404, port(8, 1)), port(8, 1)));
+        expected.put(key(4, 203), buckets(swapTreatment(203, 204, port(4, 6)), port(4, 6),
+                swapTreatment(203, 406, port(4, 7)), port(4, 7)));
+        assertEquals(expected, groups);
+    }
+
+    @Test
+    public void bucketsWatchThePortTheySendOutOf() {
+        SdwanTunnel tunnel = tunnel(new int[]{6, 4, 0, 8, 10}, new int[]{6, 5, 7, 4, 1, 8, 11, 9, 10});
+
+        for (GroupDescription group : compiler.compile(tunnel)) {
+            for (GroupBucket bucket : group.buckets().buckets()) {
+                assertEquals(outPort(bucket.treatment()), bucket.watchPort());
+            }
+        }
+    }
+
+    private static PortNumber outPort(TrafficTreatment treatment) {
+        return treatment.allInstructions().stream()
+                .filter(instruction -> instruction instanceof Instructions.OutputInstruction)
+                .map(instruction -> ((Instructions.OutputInstruction) instruction).port())
+                .findFirst().orElse(null);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableMap;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.api.VpnException;
+import org.onosproject.mao.sdwan.api.VpnResult;
+import org.onosproject.net.DeviceId;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Load driver creating tunnels between random sites of a harness one after
+ * another, and measuring how fast they are installed.
+ *
+ * Latency of a tunnel runs from its request to the confirmation of its rules,
+ * throughput counts every request, failed ones included.
+ */
+public final class ProvisioningLoad {
+
+    private static final int IPV4 = 0x0800;
+    // ports of sites start above any port of a link, each tunnel gets its own
+    private static final long FIRST_SITE_PORT = 1000;
+
+    private final SdwanHarness harness;
+    private final SdwanService service;
+    private int tenants = 100;
+    private long seed = 17;
+
+
+    public ProvisioningLoad(SdwanHarness harness, SdwanService service) {
+        this.harness = harness;
+        this.service = service;
+    }
+
+    public ProvisioningLoad tenants(int tenants) {
+        this.tenants = tenants;
+        return this;
+    }
+
+    public ProvisioningLoad seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Creates tunnels and waits for the last of them to be installed or rejected.
+     *
+     * @param tunnels number of tunnels to create
+     * @param timeoutMillis time given to the last installs once every request is made
+     * @return report of run
+     * @throws IllegalStateException if installs aren't done in time
+     */
+    public Report run(int tunnels, long timeoutMillis) {
+        int[][] pairs = harness.topology().pairs(tunnels, seed);
+        long[] latencies = new long[tunnels];
+        VpnResult.Status[] failures = new VpnResult.Status[tunnels];
+        CompletableFuture<?>[] done = new CompletableFuture<?>[tunnels];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < tunnels; i++) {
+            int index = i;
+            long requested = System.nanoTime();
+            long port = FIRST_SITE_PORT + i;
+            CompletableFuture<SdwanTunnel> future = service.createVPNAsync("tenant" + (i % tenants),
+                    harness.site(pairs[i][0], port), harness.site(pairs[i][1], port), IPV4);
+            done[i] = future.handle((tunnel, error) -> {
+                latencies[index] = System.nanoTime() - requested;
+                if (error != null) {
+                    failures[index] = status(error);
+                }
+                return null;
+            });
+        }
+        try {
+            CompletableFuture.allOf(done).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for installs", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException("Installs not done within " + timeoutMillis + " ms", e);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Map<VpnResult.Status, Integer> failureCounts = new EnumMap<>(VpnResult.Status.class);
+        for (VpnResult.Status status : failures) {
+            if (status != null) {
+                failureCounts.merge(status, 1, Integer::sum);
+            }
+        }
+        return new Report(tunnels, elapsed, latencies, failureCounts, harness.flowRuleService().ruleCounts());
+    }
+
+    private static VpnResult.Status status(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof VpnException ? ((VpnException) cause).getStatus() : VpnResult.Status.INSTALL_FAILED;
+    }
+
+
+
+    /**
+     * Outcome of a run.
+     */
+    public static final class Report {
+
+        private final int tunnels;
+        private final long elapsedNanos;
+        private final long[] sortedLatencies;
+        private final Map<VpnResult.Status, Integer> failures;
+        private final Map<DeviceId, Integer> ruleCounts;
+
+        private Report(int tunnels, long elapsedNanos, long[] latencies,
+                       Map<VpnResult.Status, Integer> failures, Map<DeviceId, Integer> ruleCounts) {
+            this.tunnels = tunnels;
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencies = latencies.clone();
+            Arrays.sort(sortedLatencies);
+            this.failures = ImmutableMap.copyOf(failures);
+            this.ruleCounts = ruleCounts;
+        }
+
+        public int tunnels() {
+            return tunnels;
+        }
+
+        public int succeeded() {
+            return tunnels - failures.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        public Map<VpnResult.Status, Integer> failures() {
+            return failures;
+        }
+
+        /**
+         * Returns requests handled per second.
+         *
+         * @return throughput
+         */
+        public double throughput() {
+            return elapsedNanos == 0 ? 0 : tunnels * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Returns latency at a percentile, nearest rank.
+         *
+         * @param percentile percentile, e.g. 99.9
+         * @return latency in microseconds
+         */
+        public double latencyMicros(double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * sortedLatencies.length);
+            int index = Math.min(sortedLatencies.length - 1, Math.max(0, rank - 1));
+            return sortedLatencies[index] / 1e3;
+        }
+
+        public Map<DeviceId, Integer> ruleCounts() {
+            return ruleCounts;
+        }
+
+        public int totalRules() {
+            return ruleCounts.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        public int maxDeviceRules() {
+            return ruleCounts.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+        }
+
+        public double meanDeviceRules() {
+            return ruleCounts.values().stream().mapToInt(Integer::intValue).average().orElse(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d tunnels, %d failed %s, %.0f tunnels/s, "
+                            + "latency us p50 %.0f p90 %.0f p99 %.0f p99.9 %.0f max %.0f, "
+                            + "rules %d on %d devices, max %d mean %.1f per device",
+                    tunnels, tunnels - succeeded(), failures, throughput(),
+                    latencyMicros(50), latencyMicros(90), latencyMicros(99), latencyMicros(99.9),
+                    latencyMicros(100), totalRules(), ruleCounts.size(), maxDeviceRules(), meanDeviceRules());
+        }
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onlab.graph.DijkstraGraphSearch;
+import org.onlab.graph.GraphPathSearch;
+import org.onlab.graph.ScalarWeight;
+import org.onlab.graph.Weight;
+import org.onlab.metrics.MetricsManager;
+import org.onlab.packet.ChassisId;
+import org.onlab.packet.IpAddress;
+import org.onosproject.app.ApplicationServiceAdapter;
+import org.onosproject.app.ApplicationState;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.cluster.ClusterServiceAdapter;
+import org.onosproject.cluster.ControllerNode;
+import org.onosproject.cluster.DefaultControllerNode;
+import org.onosproject.cluster.NodeId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.event.Event;
+import org.onosproject.mastership.MastershipServiceAdapter;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DefaultPort;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.DisjointPath;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.Path;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.driver.DriverServiceAdapter;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupServiceAdapter;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.LinkWeigher;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.onosproject.net.topology.TopologyVertex;
+import org.onosproject.store.service.TestStorageService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * SDWAN manager wired to in-memory services over a synthetic topology, for
+ * tests running without a cluster or switches.
+ *
+ * Paths are computed on the topology as given, less links and devices made
+ * to fail, which the manager is told of as ONOS would. Flow rule batches can
+ * be delayed or made to fail through the flow rule service, groups are kept
+ * as installed. Disjoint paths aren't computed, protected tunnels come out
+ * unprotected.
+ */
+public class SdwanHarness {
+
+    public static final long PORT_SPEED_MBPS = 10_000;
+    public static final String APP_NAME = "Mao.SDWAN";
+
+    private static final ProviderId PID = new ProviderId("harness", "org.onosproject.mao.sdwan");
+
+    private final SyntheticTopology topology;
+    private final FakeFlowRuleService flowRuleService = new FakeFlowRuleService();
+    private final FakeDeviceService deviceService;
+    private final FakeTopologyService topologyService;
+    private final FakeGroupService groupService = new FakeGroupService();
+    private final Set<LinkKey> failedLinks = ConcurrentHashMap.newKeySet();
+    private final MetricsManager metricsService = new MetricsManager();
+    private final SdwanManager manager = new SdwanManager();
+
+
+    public SdwanHarness(SyntheticTopology topology) {
+        this.topology = topology;
+        this.deviceService = new FakeDeviceService(topology.devices());
+        this.topologyService = new FakeTopologyService(topology, this::isUp);
+
+        manager.flowRuleService = flowRuleService;
+        manager.deviceService = deviceService;
+        manager.topologyService = topologyService;
+        manager.linkService = new FakeLinkService(topology.links(), failedLinks);
+        manager.coreService = new FakeCoreService();
+        manager.groupService = groupService;
+        manager.cfgService = new ComponentConfigAdapter();
+        manager.tunnelStore = new SimpleSdwanTunnelStore();
+        manager.storageService = new TestStorageService();
+        manager.clusterService = new FakeClusterService();
+        manager.mastershipService = new FakeMastershipService();
+        manager.applicationService = new FakeApplicationService();
+        manager.metricsService = metricsService;
+        manager.driverService = new DriverServiceAdapter();
+    }
+
+    /**
+     * Activates the manager.
+     *
+     * @return manager
+     */
+    public SdwanManager start() {
+        manager.activate(null);
+        return manager;
+    }
+
+    /**
+     * Deactivates the manager as on uninstall of the app, rules and tunnels are removed.
+     */
+    public void stop() {
+        manager.deactivate();
+        flowRuleService.shutdown();
+    }
+
+    public SdwanManager manager() {
+        return manager;
+    }
+
+    public SyntheticTopology topology() {
+        return topology;
+    }
+
+    public FakeFlowRuleService flowRuleService() {
+        return flowRuleService;
+    }
+
+    public FakeDeviceService deviceService() {
+        return deviceService;
+    }
+
+    public FakeGroupService groupService() {
+        return groupService;
+    }
+
+    public MetricsManager metricsService() {
+        return metricsService;
+    }
+
+    /**
+     * Returns a site of the form the manager takes, e.g. of:0000000000000001/1000.
+     *
+     * @param device index of device in topology
+     * @param port port of site, beyond the ports of links
+     * @return site
+     */
+    public String site(int device, long port) {
+        return topology.devices().get(device) + "/" + port;
+    }
+
+    /**
+     * Takes down the link between two devices in both directions, as a cut
+     * cable, and tells the manager the topology changed.
+     *
+     * @param src index of one device
+     * @param dst index of the other device
+     */
+    public void failLink(int src, int dst) {
+        Link link = topology.link(src, dst);
+        Link reverse = topology.reverse(link);
+        failedLinks.add(LinkKey.linkKey(link));
+        failedLinks.add(LinkKey.linkKey(reverse));
+        topologyService.change(Arrays.asList(new LinkEvent(LinkEvent.Type.LINK_REMOVED, link),
+                new LinkEvent(LinkEvent.Type.LINK_REMOVED, reverse)));
+    }
+
+    /**
+     * Makes a device unavailable and tells the manager the topology changed.
+     *
+     * @param device index of device
+     */
+    public void failDevice(int device) {
+        DeviceId deviceId = topology.devices().get(device);
+        deviceService.setAvailable(deviceId, false);
+        topologyService.change(Collections.singletonList(new DeviceEvent(
+                DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED, deviceService.getDevice(deviceId))));
+    }
+
+    /**
+     * Waits until the manager handled every topology change told so far.
+     *
+     * Reroutes run on a thread of the manager; deletes run in line with them,
+     * so an empty one returns once the reroutes queued before it are done.
+     */
+    public void awaitReroutes() {
+        manager.deleteVPNs(Collections.emptyList());
+    }
+
+    private boolean isUp(Link link) {
+        return !failedLinks.contains(LinkKey.linkKey(link))
+                && deviceService.isAvailable(link.src().deviceId())
+                && deviceService.isAvailable(link.dst().deviceId());
+    }
+
+
+
+    /**
+     * Topology service computing shortest paths on the links up, a new topology after each change.
+     */
+    static final class FakeTopologyService extends TopologyServiceAdapter {
+
+        private static final LinkWeigher HOP_COUNT = new LinkWeigher() {
+            @Override
+            public Weight weight(TopologyEdge edge) {
+                return edge.link().state() == Link.State.ACTIVE ? new ScalarWeight(1) : getNonViableWeight();
+            }
+
+            @Override
+            public Weight getInitialWeight() {
+                return new ScalarWeight(0);
+            }
+
+            @Override
+            public Weight getNonViableWeight() {
+                return ScalarWeight.NON_VIABLE_WEIGHT;
+            }
+        };
+
+        private final DijkstraGraphSearch<TopologyVertex, TopologyEdge> search = new DijkstraGraphSearch<>();
+        private final Set<TopologyListener> listeners = new CopyOnWriteArraySet<>();
+        private final TopologyGraph fullGraph;
+        private final Predicate<Link> isUp;
+        private volatile TopologyGraph graph;
+        private volatile Topology topology;
+
+        FakeTopologyService(SyntheticTopology synthetic, Predicate<Link> isUp) {
+            this.fullGraph = synthetic.graph();
+            this.isUp = isUp;
+            this.graph = fullGraph;
+            this.topology = new FakeTopology(synthetic.devices().size(), synthetic.links().size());
+        }
+
+        /**
+         * Takes a new topology without the links or devices down, telling listeners why.
+         *
+         * @param reasons events which changed the topology
+         */
+        void change(List<Event> reasons) {
+            // devices down stay in the graph without their links, as a search needs its ends
+            Set<TopologyEdge> edges = fullGraph.getEdges().stream()
+                    .filter(edge -> isUp.test(edge.link()))
+                    .collect(Collectors.toSet());
+            graph = new DefaultTopologyGraph(fullGraph.getVertexes(), edges);
+            topology = new FakeTopology(fullGraph.getVertexes().size(), edges.size());
+            TopologyEvent event = new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, topology, reasons);
+            listeners.forEach(listener -> listener.event(event));
+        }
+
+        @Override
+        public void addListener(TopologyListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(TopologyListener listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public Topology currentTopology() {
+            return topology;
+        }
+
+        @Override
+        public boolean isLatest(Topology topology) {
+            return topology == this.topology;
+        }
+
+        @Override
+        public TopologyGraph getGraph(Topology topology) {
+            return graph;
+        }
+
+        @Override
+        public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst) {
+            return getPaths(topology, src, dst, HOP_COUNT);
+        }
+
+        @Override
+        public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst, LinkWeigher weigher) {
+            GraphPathSearch.Result<TopologyVertex, TopologyEdge> result = search.search(graph,
+                    new DefaultTopologyVertex(src), new DefaultTopologyVertex(dst), weigher,
+                    GraphPathSearch.ALL_PATHS);
+            Set<Path> paths = new HashSet<>();
+            result.paths().forEach(path -> paths.add(new DefaultPath(PID,
+                    path.edges().stream().map(TopologyEdge::link).collect(Collectors.toList()),
+                    path.cost())));
+            return paths;
+        }
+
+        @Override
+        public Set<DisjointPath> getDisjointPaths(Topology topology, DeviceId src, DeviceId dst) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<DisjointPath> getDisjointPaths(Topology topology, DeviceId src, DeviceId dst,
+                                                  LinkWeigher weigher) {
+            return Collections.emptySet();
+        }
+    }
+
+    private static final class FakeTopology implements Topology {
+
+        private final long time = System.nanoTime();
+        private final int deviceCount;
+        private final int linkCount;
+
+        private FakeTopology(int deviceCount, int linkCount) {
+            this.deviceCount = deviceCount;
+            this.linkCount = linkCount;
+        }
+
+        @Override
+        public long time() {
+            return time;
+        }
+
+        @Override
+        public long creationTime() {
+            return time;
+        }
+
+        @Override
+        public long computeCost() {
+            return 0;
+        }
+
+        @Override
+        public int clusterCount() {
+            return 1;
+        }
+
+        @Override
+        public int deviceCount() {
+            return deviceCount;
+        }
+
+        @Override
+        public int linkCount() {
+            return linkCount;
+        }
+
+        @Override
+        public ProviderId providerId() {
+            return PID;
+        }
+    }
+
+    /**
+     * Device service of the devices of the topology, every port at the same speed.
+     */
+    public static final class FakeDeviceService extends DeviceServiceAdapter {
+
+        private final Map<DeviceId, Device> devices = new HashMap<>();
+        private final Set<DeviceId> unavailable = ConcurrentHashMap.newKeySet();
+        private final Set<DeviceListener> listeners = new CopyOnWriteArraySet<>();
+
+        FakeDeviceService(List<DeviceId> deviceIds) {
+            deviceIds.forEach(id -> devices.put(id, new DefaultDevice(PID, id, Device.Type.SWITCH,
+                    "harness", "1.0", "1.0", id.toString(), new ChassisId())));
+        }
+
+        /**
+         * Makes the device unavailable, or available again, telling listeners.
+         *
+         * @param deviceId device
+         * @param available true if available
+         */
+        public void setAvailable(DeviceId deviceId, boolean available) {
+            if (available) {
+                unavailable.remove(deviceId);
+            } else {
+                unavailable.add(deviceId);
+            }
+            DeviceEvent event = new DeviceEvent(DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED,
+                    devices.get(deviceId));
+            listeners.forEach(listener -> listener.event(event));
+        }
+
+        @Override
+        public void addListener(DeviceListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(DeviceListener listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public int getDeviceCount() {
+            return devices.size();
+        }
+
+        @Override
+        public Iterable<Device> getDevices() {
+            return new ArrayList<>(devices.values());
+        }
+
+        @Override
+        public Iterable<Device> getAvailableDevices() {
+            return devices.values().stream()
+                    .filter(device -> isAvailable(device.id()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public Device getDevice(DeviceId deviceId) {
+            return devices.get(deviceId);
+        }
+
+        @Override
+        public boolean isAvailable(DeviceId deviceId) {
+            return devices.containsKey(deviceId) && !unavailable.contains(deviceId);
+        }
+
+        @Override
+        public Port getPort(DeviceId deviceId, PortNumber portNumber) {
+            Device device = devices.get(deviceId);
+            return device == null ? null
+                    : new DefaultPort(device, portNumber, true, Port.Type.FIBER, PORT_SPEED_MBPS);
+        }
+    }
+
+    /**
+     * Group service recording the groups of each device, as added, modified or removed.
+     */
+    public static final class FakeGroupService extends GroupServiceAdapter {
+
+        private final Map<DeviceId, Map<GroupKey, GroupDescription>> deviceGroups = new ConcurrentHashMap<>();
+
+        /**
+         * Returns groups of a device.
+         *
+         * @param deviceId device
+         * @return groups, empty if none
+         */
+        public List<GroupDescription> groups(DeviceId deviceId) {
+            Map<GroupKey, GroupDescription> groups = deviceGroups.get(deviceId);
+            return groups == null ? Collections.emptyList() : new ArrayList<>(groups.values());
+        }
+
+        @Override
+        public void addGroup(GroupDescription groupDesc) {
+            deviceGroups.computeIfAbsent(groupDesc.deviceId(), id -> new ConcurrentHashMap<>())
+                    .put(groupDesc.appCookie(), groupDesc);
+        }
+
+        @Override
+        public void setBucketsForGroup(DeviceId deviceId, GroupKey oldCookie, GroupBuckets buckets,
+                                       GroupKey newCookie, ApplicationId appId) {
+            Map<GroupKey, GroupDescription> groups = deviceGroups.get(deviceId);
+            GroupDescription group = groups == null ? null : groups.remove(oldCookie);
+            if (group != null) {
+                groups.put(newCookie, new DefaultGroupDescription(deviceId, group.type(), buckets, newCookie,
+                        group.givenGroupId(), appId));
+            }
+        }
+
+        @Override
+        public void removeGroup(DeviceId deviceId, GroupKey appCookie, ApplicationId appId) {
+            Map<GroupKey, GroupDescription> groups = deviceGroups.get(deviceId);
+            if (groups != null) {
+                groups.remove(appCookie);
+            }
+        }
+    }
+
+    private static final class FakeLinkService extends LinkServiceAdapter {
+
+        private final Map<LinkKey, Link> links = new HashMap<>();
+        private final Set<LinkKey> failedLinks;
+
+        private FakeLinkService(List<Link> links, Set<LinkKey> failedLinks) {
+            links.forEach(link -> this.links.put(LinkKey.linkKey(link), link));
+            this.failedLinks = failedLinks;
+        }
+
+        @Override
+        public int getLinkCount() {
+            return links.size() - failedLinks.size();
+        }
+
+        @Override
+        public Iterable<Link> getLinks() {
+            return links.values().stream()
+                    .filter(link -> !failedLinks.contains(LinkKey.linkKey(link)))
+                    .collect(Collectors.toList());
+        }
+
+        // a failed link is gone, as removed by its provider
+        @Override
+        public Link getLink(ConnectPoint src, ConnectPoint dst) {
+            LinkKey key = LinkKey.linkKey(src, dst);
+            return failedLinks.contains(key) ? null : links.get(key);
+        }
+    }
+
+    private static final class FakeCoreService extends CoreServiceAdapter {
+
+        private final Map<String, ApplicationId> appIds = new ConcurrentHashMap<>();
+
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return appIds.computeIfAbsent(name, n -> new DefaultApplicationId(appIds.size() + 1, n));
+        }
+
+        @Override
+        public ApplicationId getAppId(String name) {
+            return appIds.get(name);
+        }
+    }
+
+    private static final class FakeClusterService extends ClusterServiceAdapter {
+
+        private final ControllerNode local = new DefaultControllerNode(new NodeId("harness"),
+                IpAddress.valueOf("127.0.0.1"));
+
+        @Override
+        public ControllerNode getLocalNode() {
+            return local;
+        }
+
+        @Override
+        public Set<ControllerNode> getNodes() {
+            return Collections.singleton(local);
+        }
+    }
+
+    // a single instance masters every device
+    private static final class FakeMastershipService extends MastershipServiceAdapter {
+
+        @Override
+        public boolean isLocalMaster(DeviceId deviceId) {
+            return true;
+        }
+    }
+
+    // the app is being uninstalled whenever the manager goes down
+    private static final class FakeApplicationService extends ApplicationServiceAdapter {
+
+        @Override
+        public ApplicationState getState(ApplicationId appId) {
+            return ApplicationState.INSTALLED;
+        }
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MplsLabel;
+import org.onlab.util.Bandwidth;
+import org.onosproject.mao.sdwan.api.ProtectionType;
+import org.onosproject.mao.sdwan.api.RoutingMode;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.api.VpnRequest;
+import org.onosproject.mao.sdwan.api.VpnResult;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupDescription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the manager on the in-memory harness, a few tunnels at a time.
+ */
+public class SdwanManagerTest {
+
+    private static final String TENANT = "tenant";
+    private static final Bandwidth BANDWIDTH = Bandwidth.mbps(100);
+    private static final long TIMEOUT_MS = 10_000;
+
+    private SdwanHarness harness;
+    private SdwanManager manager;
+
+    @Before
+    public void setUp() {
+        harness = new SdwanHarness(SyntheticTopology.ring(8));
+        manager = harness.start();
+    }
+
+    @After
+    public void tearDown() {
+        harness.stop();
+    }
+
+    private SdwanTunnel create(int src, int dst, long port) {
+        return create(new VpnRequest(TENANT, harness.site(src, port), harness.site(dst, port), 0x0800));
+    }
+
+    private SdwanTunnel create(VpnRequest request) {
+        VpnResult result = manager.createVPNs(Collections.singletonList(request)).get(0);
+        assertTrue(result.isSuccess());
+        return result.getTunnel();
+    }
+
+    private VpnRequest request(String tenant, int src, int dst, long port) {
+        return new VpnRequest(tenant, harness.site(src, port), harness.site(dst, port), 0x0800, BANDWIDTH);
+    }
+
+    private SdwanTunnel tunnel(long tunnelId) {
+        return manager.getTunnels().stream()
+                .filter(tunnel -> tunnel.getTunnelId() == tunnelId)
+                .findFirst().orElse(null);
+    }
+
+    // device, match and treatment of each rule, by tunnel
+    private Map<Long, Set<List<Object>>> rulesByTunnel() {
+        Map<Long, Set<List<Object>>> rules = new HashMap<>();
+        for (DeviceId deviceId : harness.topology().devices()) {
+            for (FlowEntry entry : harness.flowRuleService().getFlowEntries(deviceId)) {
+                rules.computeIfAbsent(TunnelCookies.tunnelId(entry), id -> new HashSet<>())
+                        .add(Arrays.asList(deviceId, entry.selector(), entry.treatment()));
+            }
+        }
+        return rules;
+    }
+
+    private Set<DeviceId> ruleDevices(long tunnelId) {
+        return rulesByTunnel().getOrDefault(tunnelId, Collections.emptySet()).stream()
+                .map(rule -> (DeviceId) rule.get(0))
+                .collect(Collectors.toSet());
+    }
+
+    // label each device takes one direction of the tunnel in with
+    private static Map<DeviceId, Integer> nodeLabels(SdwanTunnel tunnel, boolean forward) {
+        List<DeviceId> devices = forward ? tunnel.getForwardDevices() : tunnel.getBackwardDevices();
+        List<Integer> labels = forward ? tunnel.getForwardLabels() : tunnel.getBackwardLabels();
+        Map<DeviceId, Integer> nodeLabels = new HashMap<>();
+        for (int i = 0; i + 1 < devices.size(); i++) {
+            nodeLabels.put(devices.get(i + 1), labels.get(i));
+        }
+        return nodeLabels;
+    }
+
+    private static Set<LinkKey> linkKeys(SdwanTunnel tunnel) {
+        return tunnel.getForwardPath().links().stream().map(LinkKey::linkKey).collect(Collectors.toSet());
+    }
+
+    private DeviceId device(int index) {
+        return harness.topology().devices().get(index);
+    }
+
+    private static void assertUntouched(SdwanTunnel before, SdwanTunnel after,
+                                        Set<List<Object>> rulesBefore, Set<List<Object>> rulesAfter) {
+        assertEquals(before.getForwardPath().links(), after.getForwardPath().links());
+        assertEquals(before.getForwardLabels(), after.getForwardLabels());
+        assertEquals(before.getBackwardLabels(), after.getBackwardLabels());
+        assertEquals(rulesBefore, rulesAfter);
+    }
+
+    // labels stay where the new route still takes a direction in
+    private static void assertLabelsKept(SdwanTunnel before, SdwanTunnel after) {
+        int kept = 0;
+        for (boolean forward : new boolean[]{true, false}) {
+            Map<DeviceId, Integer> oldLabels = nodeLabels(before, forward);
+            Map<DeviceId, Integer> newLabels = nodeLabels(after, forward);
+            for (Map.Entry<DeviceId, Integer> entry : newLabels.entrySet()) {
+                if (oldLabels.containsKey(entry.getKey())) {
+                    assertEquals(oldLabels.get(entry.getKey()), entry.getValue());
+                    kept++;
+                }
+            }
+        }
+        // both site devices at least
+        assertTrue(kept >= 2);
+    }
+
+
+
+    @Test
+    public void linkFailureReroutesTunnelsCrossingIt() {
+        // on a ring of 8, shortest routes are unique up to 3 hops
+        SdwanTunnel crossing = create(0, 3, 1000);
+        SdwanTunnel reverse = create(3, 0, 1001);
+        SdwanTunnel onLink = create(1, 2, 1002);
+        SdwanTunnel apart = create(4, 6, 1003);
+        Map<Long, Set<List<Object>>> rulesBefore = rulesByTunnel();
+
+        harness.failLink(1, 2);
+        harness.awaitReroutes();
+
+        Map<Long, Set<List<Object>>> rulesAfter = rulesByTunnel();
+        Link failed = harness.topology().link(1, 2);
+        Set<LinkKey> failedKeys = new HashSet<>(Arrays.asList(LinkKey.linkKey(failed),
+                LinkKey.linkKey(harness.topology().reverse(failed))));
+        for (SdwanTunnel before : Arrays.asList(crossing, reverse, onLink)) {
+            SdwanTunnel after = tunnel(before.getTunnelId());
+            assertTrue(Collections.disjoint(failedKeys, linkKeys(after)));
+            assertNotEquals(rulesBefore.get(before.getTunnelId()), rulesAfter.get(before.getTunnelId()));
+            assertLabelsKept(before, after);
+            // rules follow the new route, none is left on devices it left
+            Set<DeviceId> routeDevices = new HashSet<>(after.getForwardDevices());
+            assertEquals(routeDevices, ruleDevices(before.getTunnelId()));
+        }
+        assertFalse(ruleDevices(crossing.getTunnelId()).contains(device(1)));
+        assertUntouched(apart, tunnel(apart.getTunnelId()),
+                rulesBefore.get(apart.getTunnelId()), rulesAfter.get(apart.getTunnelId()));
+        assertEquals(4, manager.getTunnels().size());
+    }
+
+    @Test
+    public void deviceFailureReroutesTunnelsCrossingIt() {
+        SdwanTunnel crossing = create(4, 6, 1000);
+        SdwanTunnel reverse = create(7, 4, 1001);
+        SdwanTunnel apart = create(0, 3, 1002);
+        SdwanTunnel beside = create(5, 6, 1003);
+        Map<Long, Set<List<Object>>> rulesBefore = rulesByTunnel();
+
+        harness.failDevice(5);
+        harness.awaitReroutes();
+
+        Map<Long, Set<List<Object>>> rulesAfter = rulesByTunnel();
+        for (SdwanTunnel before : Arrays.asList(crossing, reverse)) {
+            SdwanTunnel after = tunnel(before.getTunnelId());
+            assertFalse(after.getForwardDevices().contains(device(5)));
+            assertFalse(ruleDevices(before.getTunnelId()).contains(device(5)));
+            assertNotEquals(rulesBefore.get(before.getTunnelId()), rulesAfter.get(before.getTunnelId()));
+            assertLabelsKept(before, after);
+        }
+        assertUntouched(apart, tunnel(apart.getTunnelId()),
+                rulesBefore.get(apart.getTunnelId()), rulesAfter.get(apart.getTunnelId()));
+        // a tunnel with a site on the failed device has nowhere to go, it is left as is
+        assertUntouched(beside, tunnel(beside.getTunnelId()),
+                rulesBefore.get(beside.getTunnelId()), rulesAfter.get(beside.getTunnelId()));
+    }
+
+    @Test
+    public void rerouteGivesBackLabelsOfDevicesLeft() {
+        SdwanTunnel crossing = create(0, 3, 1000);
+        int labelsBefore = labelsInUse();
+
+        harness.failLink(1, 2);
+        harness.awaitReroutes();
+
+        // 0-1-2-3 becomes 0-7-6-5-4-3: 1 and 2 give back their label of each way, 7, 6, 5 and 4 take one
+        SdwanTunnel after = tunnel(crossing.getTunnelId());
+        assertEquals(Arrays.asList(device(0), device(7), device(6), device(5), device(4), device(3)),
+                after.getForwardDevices());
+        assertEquals(labelsBefore + 2 * 2, labelsInUse());
+    }
+
+    @Test
+    public void deleteRemovesRulesLabelsAndBandwidth() {
+        SdwanTunnel kept = create(request(TENANT, 4, 6, 1000));
+        Set<List<Object>> keptRules = rulesByTunnel().get(kept.getTunnelId());
+        Map<LinkKey, Double> reservations = manager.getLinkReservations();
+        int labels = labelsInUse();
+        SdwanTunnel deleted = create(request(TENANT, 0, 3, 1001));
+        assertNotEquals(reservations, manager.getLinkReservations());
+
+        assertTrue(manager.deleteVPN(deleted.getTunnelId()));
+
+        assertNull(tunnel(deleted.getTunnelId()));
+        assertFalse(rulesByTunnel().containsKey(deleted.getTunnelId()));
+        assertEquals(labels, labelsInUse());
+        assertEquals(reservations, manager.getLinkReservations());
+        assertEquals(keptRules, rulesByTunnel().get(kept.getTunnelId()));
+        assertFalse(manager.deleteVPN(deleted.getTunnelId()));
+    }
+
+    @Test
+    public void deleteTenantRemovesItsTunnelsOnly() {
+        SdwanTunnel kept = create(request("other", 4, 6, 1000));
+        Map<LinkKey, Double> reservations = manager.getLinkReservations();
+        int labels = labelsInUse();
+        SdwanTunnel first = create(request(TENANT, 0, 3, 1001));
+        create(request(TENANT, 1, 5, 1002));
+        create(request(TENANT, 7, 2, 1003));
+
+        assertEquals(1, manager.deleteVPNs(Arrays.asList(first.getTunnelId(), first.getTunnelId() + 100)));
+        assertEquals(2, manager.deleteTenant(TENANT));
+
+        assertTrue(manager.getTenantTunnels(TENANT).isEmpty());
+        assertEquals(Collections.singleton(kept.getTunnelId()), rulesByTunnel().keySet());
+        assertEquals(labels, labelsInUse());
+        assertEquals(reservations, manager.getLinkReservations());
+        assertEquals(0, manager.deleteTenant(TENANT));
+    }
+
+    @Test
+    public void devicesFailingRemovalKeepLabelsOfTunnelOnce() {
+        int labels = labelsInUse();
+        SdwanTunnel tunnel = create(request(TENANT, 0, 3, 1000));
+        int tunnelLabels = labelsInUse() - labels;
+        harness.flowRuleService().setFailing(device(1), true);
+        harness.flowRuleService().setFailing(device(2), true);
+
+        assertTrue(manager.deleteVPN(tunnel.getTunnelId()));
+
+        // the tunnel and its bandwidth are gone at once, labels stay as long as rules carrying them do
+        assertNull(tunnel(tunnel.getTunnelId()));
+        assertTrue(manager.getLinkReservations().isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(device(1), device(2))), ruleDevices(tunnel.getTunnelId()));
+        assertEquals(labels + tunnelLabels, labelsInUse());
+        assertFalse(manager.deleteVPN(tunnel.getTunnelId()));
+
+        // no new tunnel takes a label rules left behind still carry
+        harness.flowRuleService().setFailing(device(1), false);
+        harness.flowRuleService().setFailing(device(2), false);
+        SdwanTunnel next = create(request(TENANT, 0, 3, 1001));
+        for (boolean forward : new boolean[]{true, false}) {
+            for (DeviceId deviceId : Arrays.asList(device(1), device(2))) {
+                assertNotEquals(nodeLabels(tunnel, forward).get(deviceId), nodeLabels(next, forward).get(deviceId));
+            }
+        }
+        assertEquals(labels + 2 * tunnelLabels, labelsInUse());
+    }
+
+    @Test
+    public void rejectedTunnelIsWithdrawnWithItsLabelsAndBandwidth() throws Exception {
+        int labels = labelsInUse();
+        harness.flowRuleService().setFailing(device(2), true);
+
+        List<VpnResult> results = manager.createVPNsAsync(Collections.singletonList(request(TENANT, 0, 3, 1000)))
+                .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertEquals(VpnResult.Status.INSTALL_FAILED, results.get(0).getStatus());
+        assertTrue(manager.getTunnels().isEmpty());
+        assertTrue(rulesByTunnel().isEmpty());
+        assertEquals(labels, labelsInUse());
+        assertTrue(manager.getLinkReservations().isEmpty());
+    }
+
+    @Test
+    public void deleteQueuedBehindRerouteStaysDeleted() {
+        int labels = labelsInUse();
+        SdwanTunnel tunnel = create(request(TENANT, 0, 3, 1000));
+
+        // the reroute is queued first, the delete runs once it wrote the new route
+        harness.failLink(1, 2);
+        assertTrue(manager.deleteVPN(tunnel.getTunnelId()));
+        harness.awaitReroutes();
+
+        assertNull(tunnel(tunnel.getTunnelId()));
+        assertTrue(rulesByTunnel().isEmpty());
+        assertEquals(labels, labelsInUse());
+        assertTrue(manager.getLinkReservations().isEmpty());
+    }
+
+    @Test
+    public void ecmpTunnelSpreadsOverSelectGroups() {
+        manager.setTenantRoutingMode(TENANT, RoutingMode.ECMP);
+        // two routes of 4 hops each way round the ring
+        SdwanTunnel tunnel = create(0, 4, 1000);
+
+        assertTrue(tunnel.isEcmp());
+        assertEquals(2, tunnel.getEcmpPaths().size());
+        assertEcmpGroup(tunnel, true, 1, 7);
+        assertEcmpGroup(tunnel, false, 3, 5);
+        // branches join again without groups
+        for (int i : new int[]{1, 2, 3, 5, 6, 7}) {
+            assertTrue(harness.groupService().groups(device(i)).isEmpty());
+        }
+
+        assertTrue(manager.deleteVPN(tunnel.getTunnelId()));
+
+        assertTrue(harness.groupService().groups(device(0)).isEmpty());
+        assertTrue(harness.groupService().groups(device(4)).isEmpty());
+        assertTrue(rulesByTunnel().isEmpty());
+    }
+
+    @Test
+    public void protectedTunnelSwitchesOverInFailoverGroups() {
+        manager.setTenantProtection(TENANT, ProtectionType.NODE_DISJOINT);
+        int labels = labelsInUse();
+
+        SdwanTunnel tunnel = create(0, 2, 1000);
+
+        // 0-1-2 backed up the other way round the ring, 0-7-6-5-4-3-2
+        assertTrue(tunnel.isProtected());
+        assertEquals(Arrays.asList(device(0), device(7), device(6), device(5), device(4), device(3), device(2)),
+                tunnel.getBackupForwardDevices());
+        assertEquals(6, tunnel.getBackupForwardLabels().size());
+        assertEquals(6, tunnel.getBackupBackwardLabels().size());
+        assertEquals(labels + 2 * 2 + 2 * 6, labelsInUse());
+        assertEquals(new HashSet<>(harness.topology().devices()), ruleDevices(tunnel.getTunnelId()));
+
+        assertFailoverGroup(tunnel, true, 1, 7);
+        assertFailoverGroup(tunnel, false, 1, 3);
+        // routes share no transit device, nothing to switch over there
+        for (int i = 3; i < 8; i++) {
+            assertTrue(harness.groupService().groups(device(i)).isEmpty());
+        }
+        assertTrue(harness.groupService().groups(device(1)).isEmpty());
+
+        assertTrue(manager.deleteVPN(tunnel.getTunnelId()));
+
+        assertTrue(groupsByDevice().isEmpty());
+        assertTrue(rulesByTunnel().isEmpty());
+        assertEquals(labels, labelsInUse());
+    }
+
+    @Test
+    public void primaryFailureIsLeftToFailover() {
+        manager.setTenantProtection(TENANT, ProtectionType.NODE_DISJOINT);
+        SdwanTunnel tunnel = create(0, 2, 1000);
+        Map<Long, Set<List<Object>>> rulesBefore = rulesByTunnel();
+        Map<DeviceId, Set<List<Object>>> groupsBefore = groupsByDevice();
+        int labels = labelsInUse();
+
+        harness.failLink(1, 2);
+        harness.awaitReroutes();
+
+        SdwanTunnel after = tunnel(tunnel.getTunnelId());
+        assertUntouched(tunnel, after, rulesBefore.get(tunnel.getTunnelId()),
+                rulesByTunnel().get(tunnel.getTunnelId()));
+        assertEquals(tunnel.getBackupForwardLabels(), after.getBackupForwardLabels());
+        assertEquals(groupsBefore, groupsByDevice());
+        assertEquals(labels, labelsInUse());
+    }
+
+    @Test
+    public void backupFailureLeavesTunnelAlone() {
+        manager.setTenantProtection(TENANT, ProtectionType.NODE_DISJOINT);
+        SdwanTunnel tunnel = create(0, 2, 1000);
+        Map<Long, Set<List<Object>>> rulesBefore = rulesByTunnel();
+        Map<DeviceId, Set<List<Object>>> groupsBefore = groupsByDevice();
+        int labels = labelsInUse();
+
+        harness.failLink(5, 4);
+        harness.awaitReroutes();
+
+        SdwanTunnel after = tunnel(tunnel.getTunnelId());
+        assertUntouched(tunnel, after, rulesBefore.get(tunnel.getTunnelId()),
+                rulesByTunnel().get(tunnel.getTunnelId()));
+        assertEquals(tunnel.getBackupPath().links(), after.getBackupPath().links());
+        assertEquals(groupsBefore, groupsByDevice());
+        assertEquals(labels, labelsInUse());
+    }
+
+    @Test
+    public void tunnelLosingBothRoutesIsReroutedUnprotected() {
+        harness.stop();
+        harness = new SdwanHarness(SyntheticTopology.fatTree(20));
+        manager = harness.start();
+        manager.setTenantProtection(TENANT, ProtectionType.NODE_DISJOINT);
+        int labels = labelsInUse();
+        // edge devices of different pods, 4 hops apart over any of the 4 cores
+        SdwanTunnel tunnel = create(6, 10, 1000);
+        assertTrue(tunnel.isProtected());
+
+        Link backupLink = tunnel.getBackupPath().links().get(1);
+        Link primaryLink = tunnel.getForwardPath().links().get(1);
+
+        // backup first, the tunnel stays on its primary route meanwhile
+        failLink(backupLink);
+        harness.awaitReroutes();
+        assertEquals(tunnel.getForwardPath().links(), tunnel(tunnel.getTunnelId()).getForwardPath().links());
+        failLink(primaryLink);
+        harness.awaitReroutes();
+
+        SdwanTunnel after = tunnel(tunnel.getTunnelId());
+        assertFalse(after.isProtected());
+        assertFalse(linkKeys(after).contains(LinkKey.linkKey(primaryLink)));
+        assertFalse(linkKeys(after).contains(LinkKey.linkKey(backupLink)));
+        // groups and backup labels go, the new route holds one label per hop each way
+        assertTrue(groupsByDevice().isEmpty());
+        assertEquals(labels + 2 * after.getForwardPath().links().size(), labelsInUse());
+        assertEquals(new HashSet<>(after.getForwardDevices()), ruleDevices(tunnel.getTunnelId()));
+    }
+
+    /**
+     * Asserts the site device of a direction spreads it over one bucket per route,
+     * in a select group numbered after the label the device takes the other direction in.
+     */
+    private void assertEcmpGroup(SdwanTunnel tunnel, boolean forward, int... nextHops) {
+        ConnectPoint site = forward ? tunnel.getSrcSite() : tunnel.getDstSite();
+        Map<DeviceId, Integer> nodeLabels = forward ? tunnel.getForwardNodeLabels() : tunnel.getBackwardNodeLabels();
+        Map<DeviceId, Integer> ownedLabels = forward ? tunnel.getBackwardNodeLabels() : tunnel.getForwardNodeLabels();
+        int groupId = 0x5E000000 | ownedLabels.get(site.deviceId());
+
+        List<GroupDescription> groups = harness.groupService().groups(site.deviceId());
+        assertEquals(1, groups.size());
+        GroupDescription group = groups.get(0);
+        assertEquals(GroupDescription.Type.SELECT, group.type());
+        assertEquals(Integer.valueOf(groupId), group.givenGroupId());
+        Set<GroupBucket> buckets = new HashSet<>();
+        int ingress = harness.topology().devices().indexOf(site.deviceId());
+        for (int next : nextHops) {
+            buckets.add(DefaultGroupBucket.createSelectGroupBucket(DefaultTrafficTreatment.builder()
+                    .pushMpls().setMpls(MplsLabel.mplsLabel(nodeLabels.get(device(next))))
+                    .setOutput(harness.topology().link(ingress, next).src().port())
+                    .build()));
+        }
+        assertEquals(buckets, new HashSet<>(group.buckets().buckets()));
+
+        assertEquals(TunnelRuleCompiler.groupTreatment(groupId), siteTreatment(tunnel, site));
+    }
+
+    /**
+     * Asserts the site device of a direction switches it between primary and backup route,
+     * in a fast-failover group numbered after the label the device takes the other direction in.
+     */
+    private void assertFailoverGroup(SdwanTunnel tunnel, boolean forward, int primaryNext, int backupNext) {
+        ConnectPoint site = forward ? tunnel.getSrcSite() : tunnel.getDstSite();
+        List<Integer> ownedLabels = forward ? tunnel.getBackwardLabels() : tunnel.getForwardLabels();
+        int primaryLabel = forward ? tunnel.getForwardLabel(0) : tunnel.getBackwardLabel(0);
+        int backupLabel = (forward ? tunnel.getBackupForwardLabels() : tunnel.getBackupBackwardLabels()).get(0);
+        int groupId = ProtectionGroupCompiler.groupId(ownedLabels.get(ownedLabels.size() - 1));
+
+        List<GroupDescription> groups = harness.groupService().groups(site.deviceId());
+        assertEquals(1, groups.size());
+        GroupDescription group = groups.get(0);
+        assertEquals(GroupDescription.Type.FAILOVER, group.type());
+        assertEquals(Integer.valueOf(groupId), group.givenGroupId());
+        int ingress = harness.topology().devices().indexOf(site.deviceId());
+        PortNumber primaryPort = harness.topology().link(ingress, primaryNext).src().port();
+        PortNumber backupPort = harness.topology().link(ingress, backupNext).src().port();
+        assertEquals(Arrays.asList(
+                DefaultGroupBucket.createFailoverGroupBucket(pushTreatment(primaryLabel, primaryPort),
+                        primaryPort, null),
+                DefaultGroupBucket.createFailoverGroupBucket(pushTreatment(backupLabel, backupPort),
+                        backupPort, null)),
+                group.buckets().buckets());
+
+        assertEquals(TunnelRuleCompiler.groupTreatment(groupId), siteTreatment(tunnel, site));
+    }
+
+    private static TrafficTreatment pushTreatment(int label, PortNumber port) {
+        return DefaultTrafficTreatment.builder().pushMpls().setMpls(MplsLabel.mplsLabel(label)).setOutput(port).build();
+    }
+
+    // treatment of the rule classifying traffic of a site into the tunnel
+    private TrafficTreatment siteTreatment(SdwanTunnel tunnel, ConnectPoint site) {
+        TrafficSelector classifier = DefaultTrafficSelector.builder()
+                .matchInPort(site.port())
+                .matchVlanId(tunnel.getSiteVlan())
+                .matchEthType((short) tunnel.getNetworkProtocol())
+                .build();
+        List<FlowEntry> ingressRules = new ArrayList<>();
+        harness.flowRuleService().getFlowEntries(site.deviceId()).forEach(entry -> {
+            if (entry.selector().equals(classifier)) {
+                ingressRules.add(entry);
+            }
+        });
+        assertEquals(1, ingressRules.size());
+        return ingressRules.get(0).treatment();
+    }
+
+    // id and buckets of each group, by device
+    private Map<DeviceId, Set<List<Object>>> groupsByDevice() {
+        Map<DeviceId, Set<List<Object>>> groups = new HashMap<>();
+        for (DeviceId deviceId : harness.topology().devices()) {
+            for (GroupDescription group : harness.groupService().groups(deviceId)) {
+                groups.computeIfAbsent(deviceId, id -> new HashSet<>())
+                        .add(Arrays.asList(group.givenGroupId(), group.buckets().buckets()));
+            }
+        }
+        return groups;
+    }
+
+    private void failLink(Link link) {
+        List<DeviceId> devices = harness.topology().devices();
+        harness.failLink(devices.indexOf(link.src().deviceId()), devices.indexOf(link.dst().deviceId()));
+    }
+
+    private int labelsInUse() {
+        String name = SdwanService.METRICS_COMPONENT + ".state.labelsInUse";
+        return (Integer) harness.metricsService().getGauges((metricName, metric) -> metricName.equals(name))
+                .values().iterator().next().getValue();
+    }
+}
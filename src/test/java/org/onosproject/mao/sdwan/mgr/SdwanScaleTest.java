@@ -0,0 +1,328 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.Timer;
+import org.junit.After;
+import org.junit.Test;
+import org.onlab.metrics.MetricsManager;
+import org.onlab.packet.VlanId;
+import org.onosproject.mao.sdwan.api.SdwanService;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.mao.sdwan.api.VpnRequest;
+import org.onosproject.mao.sdwan.api.VpnResult;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.TrafficSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Scale tests of the manager on the in-memory harness.
+ *
+ * The run at 100k tunnels is skipped unless asked for:
+ * mvn test -Dtest=SdwanScaleTest -Dsdwan.scale=true
+ */
+public class SdwanScaleTest {
+
+    private static final long SEED = 17;
+    private static final long TIMEOUT_MS = 60_000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private SdwanHarness harness;
+
+    @After
+    public void tearDown() {
+        if (harness != null) {
+            harness.stop();
+        }
+    }
+
+    private ProvisioningLoad.Report run(SyntheticTopology topology, int tunnels) {
+        harness = new SdwanHarness(topology);
+        return new ProvisioningLoad(harness, harness.start()).seed(SEED).run(tunnels, TIMEOUT_MS);
+    }
+
+    @Test
+    public void everyTunnelIsInstalled() {
+        ProvisioningLoad.Report report = run(SyntheticTopology.wanMesh(100, SEED), 1000);
+        log.info("{}", report);
+
+        assertEquals(1000, report.succeeded());
+        assertEquals(1000, harness.manager().getTunnels().size());
+        assertEquals(harness.flowRuleService().getFlowRuleCount(), report.totalRules());
+        // ingress and egress rule at least, in each direction
+        assertTrue(report.totalRules() >= 4 * 1000);
+    }
+
+    @Test
+    public void stagesAreMeasured() {
+        run(SyntheticTopology.ring(10), 50);
+        MetricsManager metrics = harness.metricsService();
+
+        for (String stage : new String[]{"pathComputation", "labelAllocation", "ruleCompilation"}) {
+            assertTrue(stage, timer(metrics, stage).getCount() >= 50);
+        }
+        assertTrue(timer(metrics, "flowInstall").getCount() > 0);
+        assertEquals(50, metrics.getCounters(metric("provisioning.tunnelsCreated"))
+                .values().iterator().next().getCount());
+        assertEquals(50, metrics.getGauges(metric("state.tunnels")).values().iterator().next().getValue());
+    }
+
+    private static MetricFilter metric(String name) {
+        String fullName = SdwanService.METRICS_COMPONENT + "." + name;
+        return (metricName, metric) -> metricName.equals(fullName);
+    }
+
+    private static Timer timer(MetricsManager metrics, String stage) {
+        return metrics.getTimers(metric("provisioning." + stage)).values().iterator().next();
+    }
+
+    @Test
+    public void rejectedTunnelsAreWithdrawn() {
+        harness = new SdwanHarness(SyntheticTopology.wanMesh(100, SEED));
+        assertRejectedAreWithdrawn(harness.topology().devices().get(0));
+    }
+
+    @Test
+    public void tunnelsRejectedOnTwoDevicesAreWithdrawnOnce() {
+        harness = new SdwanHarness(SyntheticTopology.ring(10));
+        // tunnels crossing both devices are rejected twice, each one is withdrawn once
+        assertRejectedAreWithdrawn(harness.topology().devices().get(2), harness.topology().devices().get(7));
+    }
+
+    private void assertRejectedAreWithdrawn(DeviceId... failingDevices) {
+        for (DeviceId deviceId : failingDevices) {
+            harness.flowRuleService().setFailing(deviceId, true);
+        }
+        ProvisioningLoad.Report report = new ProvisioningLoad(harness, harness.start())
+                .seed(SEED).run(1000, TIMEOUT_MS);
+
+        int rejected = report.failures().getOrDefault(VpnResult.Status.INSTALL_FAILED, 0);
+        assertTrue(rejected > 0);
+        assertEquals(1000, report.succeeded() + rejected);
+        assertEquals(report.succeeded(), harness.manager().getTunnels().size());
+        assertEquals(rejected, harness.metricsService().getCounters(metric("failures.INSTALL_FAILED"))
+                .values().iterator().next().getCount());
+
+        // rules of withdrawn tunnels are gone from devices that had accepted them
+        Set<Long> tunnelIds = harness.manager().getTunnels().stream()
+                .map(SdwanTunnel::getTunnelId)
+                .collect(Collectors.toSet());
+        for (DeviceId deviceId : harness.topology().devices()) {
+            for (FlowEntry entry : harness.flowRuleService().getFlowEntries(deviceId)) {
+                assertTrue(tunnelIds.contains(TunnelCookies.tunnelId(entry)));
+            }
+        }
+    }
+
+    @Test
+    public void latencyRunsUntilRulesAreInstalled() {
+        harness = new SdwanHarness(SyntheticTopology.ring(10));
+        harness.flowRuleService().setLatency(5);
+        ProvisioningLoad.Report report = new ProvisioningLoad(harness, harness.start())
+                .seed(SEED).run(20, TIMEOUT_MS);
+
+        assertEquals(20, report.succeeded());
+        assertTrue(report.latencyMicros(50) >= 5000);
+
+        assertTrue(report.totalRules() > 0);
+    }
+
+    @Test
+    public void bulkFutureReportsWithdrawnTunnels() throws Exception {
+        harness = new SdwanHarness(SyntheticTopology.ring(10));
+        SdwanManager manager = harness.start();
+        harness.flowRuleService().setFailing(harness.topology().devices().get(5), true);
+        List<VpnRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            requests.add(new VpnRequest("bulk", harness.site(i, 1000), harness.site(i + 1, 1001), 0x0800));
+        }
+
+        List<VpnResult> results = manager.createVPNsAsync(requests).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // only tunnels ending on the failing device cross it
+        assertEquals(9, results.size());
+        assertEquals(VpnResult.Status.INSTALL_FAILED, results.get(4).getStatus());
+        assertEquals(VpnResult.Status.INSTALL_FAILED, results.get(5).getStatus());
+        assertEquals(7, results.stream().filter(VpnResult::isSuccess).count());
+        assertEquals(7, manager.getTenantTunnels("bulk").size());
+    }
+
+    @Test
+    public void uninstallRemovesEveryRule() {
+        run(SyntheticTopology.fatTree(20), 200);
+        FakeFlowRuleService flowRuleService = harness.flowRuleService();
+
+        harness.stop();
+        harness = null;
+        assertEquals(0, flowRuleService.getFlowRuleCount());
+    }
+
+    @Test
+    public void tenantMeshProvisionsEveryPair() {
+        harness = new SdwanHarness(SyntheticTopology.wanMesh(100, SEED));
+        SdwanManager manager = harness.start();
+        List<String> sites = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            sites.add(harness.site(i * 5, 1000));
+        }
+
+        List<VpnResult> results = manager.createTenantMesh("mesh", sites, 0x0800);
+
+        assertEquals(20 * 19 / 2, results.size());
+        assertTrue(results.stream().allMatch(VpnResult::isSuccess));
+        assertEquals(sites.get(0), results.get(0).getRequest().getSrcSite());
+        assertEquals(sites.get(1), results.get(0).getRequest().getDstSite());
+        assertEquals(20 * 19 / 2, manager.getTenantTunnels("mesh").size());
+        // each site holds one tunnel per peer, each on a VLAN of its own
+        for (String site : sites) {
+            ConnectPoint point = ConnectPoint.deviceConnectPoint(site);
+            List<SdwanTunnel> siteTunnels = manager.getTunnels().stream()
+                    .filter(t -> t.getSrcSite().equals(point) || t.getDstSite().equals(point))
+                    .collect(Collectors.toList());
+            assertEquals(19, siteTunnels.size());
+            assertEquals(19, siteTunnels.stream().map(SdwanTunnel::getSiteVlan).distinct().count());
+        }
+        assertIngressRulesAreDistinct(manager.getTunnels());
+    }
+
+    @Test
+    public void hubAndSpokeProvisionsEverySpoke() {
+        harness = new SdwanHarness(SyntheticTopology.ring(10));
+        SdwanManager manager = harness.start();
+        assertTrue(manager.createVPN("other", harness.site(2, 1000), harness.site(3, 2000), 0x0800));
+        List<String> spokes = new ArrayList<>();
+        for (int i = 1; i < 10; i++) {
+            spokes.add(harness.site(i, 1000));
+        }
+
+        List<VpnResult> results = manager.createTenantHubAndSpoke("hub", harness.site(0, 1000), spokes, 0x0800);
+        List<VpnResult> ipv6Results = manager.createTenantHubAndSpoke("hub", harness.site(0, 1000),
+                spokes.subList(1, 2), 0x86DD);
+
+        assertEquals(9, results.size());
+        assertTrue(results.stream().allMatch(VpnResult::isSuccess));
+        assertEquals(9, results.stream().map(result -> result.getTunnel().getSiteVlan()).distinct().count());
+        // the spoke site the other tenant holds untagged takes a VLAN, IPv6 isn't classified with IPv4
+        assertNotEquals(VlanId.NONE, results.get(1).getTunnel().getSiteVlan());
+        assertEquals(VlanId.NONE, ipv6Results.get(0).getTunnel().getSiteVlan());
+        assertEquals(10, manager.getTenantTunnels("hub").size());
+        assertIngressRulesAreDistinct(manager.getTunnels());
+    }
+
+    @Test
+    public void everyEntryPointTellsTunnelsOfSiteApart() throws Exception {
+        harness = new SdwanHarness(SyntheticTopology.ring(10));
+        SdwanManager manager = harness.start();
+        String site = harness.site(0, 1000);
+
+        assertTrue(manager.createVPN("a", site, harness.site(5, 1000), 0x0800));
+        assertTrue(manager.createVPN("a", site, harness.site(5, 1000), 0x0800));
+        List<VpnResult> bulk = manager.createVPNs(Arrays.asList(
+                new VpnRequest("a", site, harness.site(3, 1000), 0x0800),
+                new VpnRequest("a", harness.site(7, 1000), site, 0x0800)));
+        SdwanTunnel async = manager.createVPNAsync("a", site, harness.site(8, 1000), 0x0800)
+                .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertTrue(bulk.stream().allMatch(VpnResult::isSuccess));
+        assertEquals(5, manager.getTenantTunnels("a").size());
+        assertEquals(5, manager.getTunnels().stream().map(SdwanTunnel::getSiteVlan).distinct().count());
+        assertIngressRulesAreDistinct(manager.getTunnels());
+
+        // the VLAN is free again once the rules of its tunnel are gone
+        assertTrue(manager.deleteVPN(async.getTunnelId()));
+        SdwanTunnel again = manager.createVPNAsync("a", site, harness.site(8, 1000), 0x0800)
+                .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(async.getSiteVlan(), again.getSiteVlan());
+    }
+
+    @Test
+    public void concurrentRequestsOfSiteTakeDistinctVlans() throws Exception {
+        harness = new SdwanHarness(SyntheticTopology.ring(10));
+        SdwanManager manager = harness.start();
+        String site = harness.site(0, 1000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> created = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                String peer = harness.site(1 + i % 9, 1000 + i);
+                created.add(executor.submit(() -> manager.createVPN("a", site, peer, 0x0800)));
+            }
+            for (Future<Boolean> future : created) {
+                assertTrue(future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(64, manager.getTunnels().stream().map(SdwanTunnel::getSiteVlan).distinct().count());
+        assertIngressRulesAreDistinct(manager.getTunnels());
+    }
+
+    /**
+     * Asserts each site of each tunnel classifies its VLAN into that tunnel, no tunnel replaced another's ingress rule.
+     */
+    private void assertIngressRulesAreDistinct(Collection<SdwanTunnel> tunnels) {
+        for (SdwanTunnel tunnel : tunnels) {
+            for (ConnectPoint site : Arrays.asList(tunnel.getSrcSite(), tunnel.getDstSite())) {
+                TrafficSelector ingress = DefaultTrafficSelector.builder()
+                        .matchInPort(site.port())
+                        .matchVlanId(tunnel.getSiteVlan())
+                        .matchEthType((short) tunnel.getNetworkProtocol())
+                        .build();
+                List<FlowEntry> entries = new ArrayList<>();
+                harness.flowRuleService().getFlowEntries(site.deviceId()).forEach(entries::add);
+                assertEquals(Collections.singletonList(tunnel.getTunnelId()), entries.stream()
+                        .filter(entry -> entry.selector().equals(ingress))
+                        .map(TunnelCookies::tunnelId)
+                        .collect(Collectors.toList()));
+            }
+        }
+    }
+
+    @Test
+    public void hundredThousandTunnels() {
+        assumeTrue(Boolean.getBoolean("sdwan.scale"));
+
+        ProvisioningLoad.Report report = run(SyntheticTopology.wanMesh(1000, SEED), 100_000);
+        log.info("{}", report);
+
+        assertEquals(100_000, report.succeeded());
+        assertEquals(100_000, harness.manager().getTunnels().size());
+    }
+}
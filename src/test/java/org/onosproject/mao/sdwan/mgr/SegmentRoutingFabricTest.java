@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.TestApplicationId;
+import org.onosproject.mastership.MastershipServiceAdapter;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.onosproject.net.topology.TopologyVertex;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.Serializer;
+import org.onosproject.store.service.TestStorageService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.NetTestTools.link;
+
+/**
+ * Tests of node SID routes, rules and label stack compression.
+ */
+public class SegmentRoutingFabricTest {
+
+    private final Set<TopologyEdge> edges = new HashSet<>();
+    private int appliedOps;
+    private SegmentRoutingFabric fabric;
+
+    @Before
+    public void setUp() {
+        appliedOps = 0;
+        fabric = new SegmentRoutingFabric(new TestApplicationId("sr"), 100, 16000, 8,
+                new FlowRuleServiceAdapter() {
+                    @Override
+                    public void apply(FlowRuleOperations ops) {
+                        ops.stages().forEach(stage -> appliedOps += stage.size());
+                    }
+                },
+                topologyService());
+    }
+
+    private TopologyServiceAdapter topologyService() {
+        return new TopologyServiceAdapter() {
+            @Override
+            public TopologyGraph getGraph(Topology topology) {
+                return new TestGraph(edges);
+            }
+        };
+    }
+
+    private void connect(String a, String b) {
+        edges.add(edge(a, b));
+        edges.add(edge(b, a));
+    }
+
+    private TopologyEdge edge(String src, String dst) {
+        return new DefaultTopologyEdge(new DefaultTopologyVertex(did(src)), new DefaultTopologyVertex(did(dst)),
+                link(src, 1, dst, 1));
+    }
+
+    private List<DeviceId> devices(String... ids) {
+        return ImmutableList.copyOf(ids).stream().map(id -> did(id)).collect(Collectors.toList());
+    }
+
+    @Test
+    public void oneRulePerDeviceAndDestination() {
+        connect("A", "B");
+        connect("B", "C");
+        fabric.refresh();
+
+        assertTrue(fabric.isActive());
+        assertEquals(6, appliedOps);
+        assertEquals(devices("A", "B", "C"), fabric.route(did("A"), did("C")));
+
+        // nothing changed, nothing applied
+        fabric.refresh();
+        assertEquals(6, appliedOps);
+    }
+
+    @Test
+    public void restoredSidsAreKept() {
+        fabric.restoreSids(ImmutableMap.of(did("A"), 16005, did("B"), 16001));
+
+        assertEquals(16005, fabric.nodeSid(did("A")));
+        assertEquals(16001, fabric.nodeSid(did("B")));
+        int sid = fabric.nodeSid(did("C"));
+        assertNotEquals(16005, sid);
+        assertNotEquals(16001, sid);
+
+        // a device keeps its SID, a taken SID is not handed out twice
+        fabric.restoreSids(ImmutableMap.of(did("A"), 16002, did("D"), 16001));
+        assertEquals(16005, fabric.nodeSid(did("A")));
+        assertNotEquals(16001, fabric.nodeSid(did("D")));
+    }
+
+    @Test
+    public void shortestRouteNeedsOnlyEgressSid() {
+        connect("A", "B");
+        connect("B", "C");
+        fabric.refresh();
+
+        assertEquals(ImmutableList.of(fabric.nodeSid(did("C"))), fabric.segments(devices("A", "B", "C")));
+    }
+
+    @Test
+    public void divergingRouteGetsWaypoint() {
+        connect("A", "B");
+        connect("B", "D");
+        connect("A", "C");
+        connect("C", "D");
+        fabric.refresh();
+
+        List<Integer> viaB = fabric.segments(devices("A", "B", "D"));
+        List<Integer> viaC = fabric.segments(devices("A", "C", "D"));
+        assertNotEquals(viaB.size(), viaC.size());
+        List<Integer> steered = viaB.size() == 2 ? viaB : viaC;
+        assertEquals(fabric.nodeSid(did("D")), (int) steered.get(1));
+    }
+
+    @Test
+    public void unreachableDeviceHasNoSegments() {
+        connect("A", "B");
+        edges.add(edge("C", "A"));
+        fabric.refresh();
+
+        assertNull(fabric.route(did("A"), did("C")));
+        assertNull(fabric.segments(devices("A", "C")));
+    }
+
+    /**
+     * Rejects the first batches of device A, counts batches and rules sent to each device.
+     */
+    private static final class RejectingFlowRuleService extends FlowRuleServiceAdapter {
+
+        private final int rejected;
+        private final Map<DeviceId, Integer> batches = new HashMap<>();
+        private final Map<DeviceId, List<FlowRule>> rules = new HashMap<>();
+
+        RejectingFlowRuleService(int rejected) {
+            this.rejected = rejected;
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            DeviceId deviceId = ops.stages().get(0).iterator().next().rule().deviceId();
+            int batch = batches.merge(deviceId, 1, Integer::sum);
+            ops.stages().forEach(stage -> stage.forEach(op -> rules.computeIfAbsent(deviceId, id -> new ArrayList<>())
+                    .add(op.rule())));
+            if (deviceId.equals(did("A")) && batch <= rejected) {
+                ops.callback().onError(ops);
+            } else {
+                ops.callback().onSuccess(ops);
+            }
+        }
+    }
+
+    @Test
+    public void rejectedRulesAreResent() {
+        connect("A", "B");
+        RejectingFlowRuleService flowRuleService = new RejectingFlowRuleService(1);
+        fabric = new SegmentRoutingFabric(new TestApplicationId("sr"), 100, 16000, 8, flowRuleService,
+                topologyService());
+
+        fabric.refresh();
+
+        assertEquals(Integer.valueOf(2), flowRuleService.batches.get(did("A")));
+        assertEquals(Integer.valueOf(1), flowRuleService.batches.get(did("B")));
+        List<FlowRule> sentToA = flowRuleService.rules.get(did("A"));
+        assertEquals(2, sentToA.size());
+        assertEquals(sentToA.get(0), sentToA.get(1));
+        assertEquals(sentToA.get(0).treatment(), sentToA.get(1).treatment());
+    }
+
+    @Test
+    public void rulesStillRejectedAreLeftToReconciler() {
+        connect("A", "B");
+        RejectingFlowRuleService flowRuleService = new RejectingFlowRuleService(Integer.MAX_VALUE);
+        fabric = new SegmentRoutingFabric(new TestApplicationId("sr"), 100, 16000, 8, flowRuleService,
+                topologyService());
+
+        fabric.refresh();
+
+        assertEquals(Integer.valueOf(3), flowRuleService.batches.get(did("A")));
+        assertEquals(1, fabric.installedRules(did("A")).size());
+    }
+
+    @Test
+    public void instancesAgreeOnSidsAndPushRulesOfTheirDevices() {
+        connect("A", "B");
+        connect("B", "C");
+        TestStorageService storage = new TestStorageService();
+        ConsistentMap<DeviceId, Integer> deviceSids = storage.<DeviceId, Integer>consistentMapBuilder()
+                .withName("sids")
+                .withSerializer(Serializer.using(KryoNamespaces.API))
+                .build();
+        ConsistentMap<Integer, DeviceId> sidDevices = storage.<Integer, DeviceId>consistentMapBuilder()
+                .withName("sid-devices")
+                .withSerializer(Serializer.using(KryoNamespaces.API))
+                .build();
+        Set<DeviceId> pushedByFirst = new HashSet<>();
+        SegmentRoutingFabric first = distributedFabric(deviceSids, sidDevices, did("A"), pushedByFirst);
+        SegmentRoutingFabric second = distributedFabric(deviceSids, sidDevices, did("C"), new HashSet<>());
+
+        // each instance asks for devices in its own order
+        second.nodeSid(did("C"));
+        first.refresh();
+        second.refresh();
+
+        for (String id : new String[]{"A", "B", "C"}) {
+            assertEquals(first.nodeSid(did(id)), second.nodeSid(did(id)));
+        }
+        assertEquals(3, new HashSet<>(first.nodeSids().values()).size());
+        assertEquals(ImmutableSet.of(did("A")), pushedByFirst);
+        // rules of other devices are kept for the reconciler of their master
+        assertEquals(2, first.installedRules(did("C")).size());
+    }
+
+    private SegmentRoutingFabric distributedFabric(ConsistentMap<DeviceId, Integer> deviceSids,
+                                                   ConsistentMap<Integer, DeviceId> sidDevices,
+                                                   DeviceId mastered, Set<DeviceId> pushedTo) {
+        return new DistributedSegmentRoutingFabric(new TestApplicationId("sr"), 100, 16000, 8,
+                new FlowRuleServiceAdapter() {
+                    @Override
+                    public void apply(FlowRuleOperations ops) {
+                        ops.stages().forEach(stage -> stage.forEach(op -> pushedTo.add(op.rule().deviceId())));
+                    }
+                },
+                topologyService(), TablePipeline.singleTable(), deviceSids, sidDevices,
+                new MastershipServiceAdapter() {
+                    @Override
+                    public boolean isLocalMaster(DeviceId deviceId) {
+                        return mastered.equals(deviceId);
+                    }
+                });
+    }
+
+    private static final class TestGraph implements TopologyGraph {
+
+        private final Set<TopologyEdge> edges;
+
+        private TestGraph(Set<TopologyEdge> edges) {
+            this.edges = edges;
+        }
+
+        @Override
+        public Set<TopologyVertex> getVertexes() {
+            Set<TopologyVertex> vertexes = new HashSet<>();
+            edges.forEach(edge -> {
+                vertexes.add(edge.src());
+                vertexes.add(edge.dst());
+            });
+            return vertexes;
+        }
+
+        @Override
+        public Set<TopologyEdge> getEdges() {
+            return edges;
+        }
+
+        @Override
+        public Set<TopologyEdge> getEdgesFrom(TopologyVertex vertex) {
+            return edges.stream().filter(edge -> edge.src().equals(vertex)).collect(Collectors.toSet());
+        }
+
+        @Override
+        public Set<TopologyEdge> getEdgesTo(TopologyVertex vertex) {
+            return edges.stream().filter(edge -> edge.dst().equals(vertex)).collect(Collectors.toSet());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.createPath;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.PortNumber.portNumber;
+
+/**
+ * Tests of the indexed in-memory tunnel store.
+ */
+public class SimpleSdwanTunnelStoreTest {
+
+    private SimpleSdwanTunnelStore store;
+
+    @Before
+    public void setUp() {
+        store = new SimpleSdwanTunnelStore();
+    }
+
+    private static SdwanTunnel tunnel(long id, String tenant, Path path, int label) {
+        ImmutableList.Builder<DeviceId> devices = ImmutableList.builder();
+        devices.add(path.links().get(0).src().deviceId());
+        path.links().forEach(link -> devices.add(link.dst().deviceId()));
+        ImmutableList<DeviceId> forwardDevices = devices.build();
+
+        return SdwanTunnel.builder()
+                .tunnelId(id)
+                .tenant(tenant)
+                .src(new ConnectPoint(forwardDevices.get(0), portNumber(1)))
+                .dst(new ConnectPoint(forwardDevices.get(forwardDevices.size() - 1), portNumber(1)))
+                .networkProtocol(0x0800)
+                .forwardDevices(forwardDevices)
+                .backwardDevices(Lists.reverse(forwardDevices))
+                .forwardPath(path)
+                .backwardPath(path)
+                .forwardLabel(label)
+                .backwardLabel(label + 1)
+                .build();
+    }
+
+    @Test
+    public void tunnelIdsAreNeverReused() {
+        long first = store.nextTunnelId();
+        store.clear();
+
+        assertTrue(first > 0);
+        assertTrue(store.nextTunnelId() > first);
+    }
+
+    @Test
+    public void reservedTunnelIdsAreSkipped() {
+        store.reserveTunnelIds(100);
+        assertEquals(101, store.nextTunnelId());
+
+        // lower reservations change nothing
+        store.reserveTunnelIds(5);
+        assertEquals(102, store.nextTunnelId());
+    }
+
+    @Test
+    public void indexesAreMaintained() {
+        Path p1 = createPath("s1", "s2", "s3");
+        Path p2 = createPath("s4", "s2", "s5");
+
+        SdwanTunnel t1 = tunnel(1, "tenantA", p1, 100);
+        SdwanTunnel t2 = tunnel(2, "tenantB", p2, 200);
+        store.addTunnel(t1);
+        store.addTunnel(t2);
+
+        assertEquals(2, store.getTunnelCount());
+        assertEquals(1, store.getTenantTunnels("tenantA").size());
+        assertEquals(2, store.getDeviceTunnels(did("s2")).size());
+        assertEquals(1, store.getDeviceTunnels(did("s3")).size());
+
+        Link link = p1.links().get(1);
+        assertEquals(ImmutableList.of(t1), store.getLinkTunnels(LinkKey.linkKey(link)));
+        assertEquals(ImmutableList.of(t1), store.getLinkTunnels(LinkKey.linkKey(link.dst(), link.src())));
+
+        assertSame(t1, store.getLabelTunnel(did("s3"), 100));
+        assertSame(t2, store.getLabelTunnel(did("s4"), 201));
+        assertEquals(1, store.getSiteTunnels(t2.getSrcSite(), t2.getDstSite()).size());
+    }
+
+    @Test
+    public void removeClearsIndexes() {
+        Path p1 = createPath("s1", "s2", "s3");
+        SdwanTunnel t1 = tunnel(1, "tenantA", p1, 100);
+        store.addTunnel(t1);
+
+        // changing the tunnel in place must not confuse removal
+        t1.updateForwardLabel(300);
+
+        assertSame(t1, store.removeTunnel(1));
+        assertNull(store.getTunnel(1));
+        assertTrue(store.getTenants().isEmpty());
+        assertTrue(store.getDeviceTunnels(did("s2")).isEmpty());
+        assertTrue(store.getLinkTunnels(LinkKey.linkKey(p1.links().get(0))).isEmpty());
+        assertNull(store.getLabelTunnel(did("s2"), 100));
+    }
+
+    @Test
+    public void addReplacesTunnelWithSameId() {
+        store.addTunnel(tunnel(1, "tenantA", createPath("s1", "s2"), 100));
+        store.addTunnel(tunnel(1, "tenantA", createPath("s1", "s3"), 100));
+
+        assertEquals(1, store.getTunnelCount());
+        assertTrue(store.getDeviceTunnels(did("s2")).isEmpty());
+        assertEquals(1, store.getDeviceTunnels(did("s3")).size());
+    }
+
+    @Test
+    public void ecmpRoutesAreIndexed() {
+        Path p1 = createPath("s1", "s2", "s4");
+        Path p2 = createPath("s1", "s3", "s4");
+        SdwanTunnel base = tunnel(1, "tenantA", p1, 100);
+
+        SdwanTunnel ecmp = SdwanTunnel.builder(base)
+                .ecmp(ImmutableList.of(p1, p2),
+                      ImmutableMap.of(did("s2"), 100, did("s3"), 110, did("s4"), 120),
+                      ImmutableMap.of(did("s2"), 101, did("s3"), 111, did("s1"), 121))
+                .build();
+        assertTrue(ecmp.isEcmp());
+        store.addTunnel(ecmp);
+
+        assertEquals(ImmutableList.of(ecmp), store.getDeviceTunnels(did("s3")));
+        assertEquals(ImmutableList.of(ecmp), store.getLinkTunnels(LinkKey.linkKey(p2.links().get(1))));
+        assertSame(ecmp, store.getLabelTunnel(did("s3"), 111));
+        assertSame(ecmp, store.getLabelTunnel(did("s1"), 121));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.junit.Test;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.ConnectPoint;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.net.NetTestTools.connectPoint;
+
+/**
+ * Tests of the VLANs telling tunnels of a site apart.
+ */
+public class SiteVlansTest {
+
+    private static final int IPV4 = 0x0800;
+    private static final int IPV6 = 0x86DD;
+
+    private final SiteVlans vlans = new SiteVlans();
+
+    private final ConnectPoint siteA = connectPoint("A", 1);
+    private final ConnectPoint siteB = connectPoint("B", 1);
+    private final ConnectPoint siteC = connectPoint("C", 1);
+
+    private static VlanId vlan(int id) {
+        return VlanId.vlanId((short) id);
+    }
+
+    @Test
+    public void firstTunnelOfSiteIsUntagged() {
+        assertEquals(VlanId.NONE, vlans.claim(siteA, siteB, IPV4));
+        assertEquals(vlan(1), vlans.claim(siteA, siteC, IPV4));
+        // C holds 1 already, A holds none and 1
+        assertEquals(vlan(2), vlans.claim(siteC, siteA, IPV4));
+        assertTrue(vlans.isUsed(siteB, IPV4, VlanId.NONE));
+        assertFalse(vlans.isUsed(siteB, IPV4, vlan(1)));
+    }
+
+    @Test
+    public void ethertypesAreApart() {
+        assertEquals(VlanId.NONE, vlans.claim(siteA, siteB, IPV4));
+        assertEquals(VlanId.NONE, vlans.claim(siteA, siteB, IPV6));
+    }
+
+    @Test
+    public void releasedVlanIsReused() {
+        vlans.claim(siteA, siteB, IPV4);
+        VlanId second = vlans.claim(siteA, siteB, IPV4);
+        vlans.claim(siteA, siteB, IPV4);
+
+        vlans.release(siteA, siteB, IPV4, second);
+        assertFalse(vlans.isUsed(siteA, IPV4, second));
+        assertEquals(second, vlans.claim(siteA, siteC, IPV4));
+    }
+
+    @Test
+    public void everyVlanOfSiteIsUsedOnce() {
+        Set<VlanId> taken = new HashSet<>();
+        for (int i = 0; i < VlanId.MAX_VLAN; i++) {
+            assertTrue(taken.add(vlans.claim(siteA, connectPoint("B", 2 + i), IPV4)));
+        }
+        assertNull(vlans.claim(siteA, siteC, IPV4));
+        assertEquals(VlanId.NONE, vlans.claim(siteB, siteC, IPV4));
+    }
+
+    @Test
+    public void claimOfGivenVlanReportsConflict() {
+        assertTrue(vlans.claim(siteA, siteB, IPV4, vlan(7)));
+        assertFalse(vlans.claim(siteC, siteA, IPV4, vlan(7)));
+        assertEquals(VlanId.NONE, vlans.claim(siteA, siteB, IPV4));
+    }
+
+    @Test
+    public void concurrentClaimsTakeDistinctVlans() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<VlanId>> claims = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                ConnectPoint peer = connectPoint("B", 2 + i);
+                claims.add(executor.submit(() -> vlans.claim(siteA, peer, IPV4)));
+            }
+            Set<VlanId> taken = new HashSet<>();
+            for (Future<VlanId> claim : claims) {
+                assertTrue(taken.add(claim.get()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.LinkKey;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.onosproject.net.PortNumber.portNumber;
+
+/**
+ * Synthetic topologies of a given size, the same for the same arguments,
+ * shared by the scale tests and the benchmarks.
+ *
+ * Every link is created with its reverse, ports of a device are numbered
+ * in order of creation of its links.
+ */
+public final class SyntheticTopology {
+
+    private static final ProviderId PID = new ProviderId("synthetic", "org.onosproject.mao.sdwan");
+
+    /**
+     * Shape of a synthetic topology.
+     */
+    public enum Shape {
+        /** Each node linked to the next one, the last one to the first one. */
+        RING,
+        /** k-ary fat-tree of core, aggregation and edge nodes, k as small as the size allows. */
+        FAT_TREE,
+        /** Ring with random chords, four links per node on average. */
+        WAN_MESH
+    }
+
+    private final List<DeviceId> devices = new ArrayList<>();
+    private final List<Link> links = new ArrayList<>();
+    private final Map<LinkKey, Link> reverse = new HashMap<>();
+    private final Map<Long, Link> byEnds = new HashMap<>();
+    private final Set<Long> linked = new HashSet<>();
+    private final int[] nextPort;
+
+
+    private SyntheticTopology(int nodes) {
+        for (int i = 0; i < nodes; i++) {
+            devices.add(DeviceId.deviceId(String.format("of:%016x", i + 1)));
+        }
+        nextPort = new int[nodes];
+    }
+
+    /**
+     * Creates a topology.
+     *
+     * @param shape shape of topology
+     * @param nodes number of nodes, at least 3
+     * @param seed seed of the random parts of the shape
+     * @return topology
+     */
+    public static SyntheticTopology create(Shape shape, int nodes, long seed) {
+        switch (shape) {
+            case RING:
+                return ring(nodes);
+            case FAT_TREE:
+                return fatTree(nodes);
+            case WAN_MESH:
+                return wanMesh(nodes, seed);
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    public static SyntheticTopology ring(int nodes) {
+        SyntheticTopology topology = new SyntheticTopology(nodes);
+        for (int i = 0; i < nodes; i++) {
+            topology.connect(i, (i + 1) % nodes);
+        }
+        return topology;
+    }
+
+    /**
+     * Creates the smallest k-ary fat-tree of at least the given number of nodes,
+     * (k/2)^2 core nodes and k pods of k/2 aggregation and k/2 edge nodes.
+     *
+     * @param nodes number of nodes wanted
+     * @return fat-tree, possibly a bit larger than asked for
+     */
+    public static SyntheticTopology fatTree(int nodes) {
+        int k = 2;
+        while (5 * k * k / 4 < nodes) {
+            k += 2;
+        }
+        int half = k / 2;
+        int cores = half * half;
+        SyntheticTopology topology = new SyntheticTopology(cores + k * k);
+        for (int pod = 0; pod < k; pod++) {
+            int aggs = cores + pod * k;
+            int edges = aggs + half;
+            for (int a = 0; a < half; a++) {
+                for (int c = 0; c < half; c++) {
+                    topology.connect(aggs + a, a * half + c);
+                }
+                for (int e = 0; e < half; e++) {
+                    topology.connect(edges + e, aggs + a);
+                }
+            }
+        }
+        return topology;
+    }
+
+    /**
+     * Creates a ring with one random chord per node, no node linked to itself or twice to another.
+     *
+     * @param nodes number of nodes
+     * @param seed seed of chords
+     * @return mesh
+     */
+    public static SyntheticTopology wanMesh(int nodes, long seed) {
+        SyntheticTopology topology = ring(nodes);
+        Random random = new Random(seed);
+        for (int i = 0; i < nodes; i++) {
+            for (int attempt = 0; attempt < 8; attempt++) {
+                int peer = random.nextInt(nodes);
+                if (peer != i && !topology.isLinked(i, peer)) {
+                    topology.connect(i, peer);
+                    break;
+                }
+            }
+        }
+        return topology;
+    }
+
+    private boolean isLinked(int a, int b) {
+        return linked.contains(pairKey(a, b));
+    }
+
+    private long endsKey(int a, int b) {
+        return (long) a * devices.size() + b;
+    }
+
+    private long pairKey(int a, int b) {
+        return (long) Math.min(a, b) * devices.size() + Math.max(a, b);
+    }
+
+    private void connect(int a, int b) {
+        ConnectPoint pa = new ConnectPoint(devices.get(a), portNumber(++nextPort[a]));
+        ConnectPoint pb = new ConnectPoint(devices.get(b), portNumber(++nextPort[b]));
+        Link ab = link(pa, pb);
+        Link ba = link(pb, pa);
+        linked.add(pairKey(a, b));
+        links.add(ab);
+        links.add(ba);
+        byEnds.put(endsKey(a, b), ab);
+        byEnds.put(endsKey(b, a), ba);
+        reverse.put(LinkKey.linkKey(ab), ba);
+        reverse.put(LinkKey.linkKey(ba), ab);
+    }
+
+    private static Link link(ConnectPoint src, ConnectPoint dst) {
+        return DefaultLink.builder()
+                .providerId(PID)
+                .src(src)
+                .dst(dst)
+                .type(Link.Type.DIRECT)
+                .state(Link.State.ACTIVE)
+                .build();
+    }
+
+    public List<DeviceId> devices() {
+        return devices;
+    }
+
+    public List<Link> links() {
+        return links;
+    }
+
+    /**
+     * Returns the link between two devices.
+     *
+     * @param src index of source device
+     * @param dst index of destination device
+     * @return link, or null if the devices aren't linked
+     */
+    public Link link(int src, int dst) {
+        return byEnds.get(endsKey(src, dst));
+    }
+
+    /**
+     * Returns the reverse of a link of this topology.
+     *
+     * @param link link
+     * @return reverse link, or null if the link isn't of this topology
+     */
+    public Link reverse(Link link) {
+        return reverse.get(LinkKey.linkKey(link));
+    }
+
+    /**
+     * Returns the graph path computation runs on.
+     *
+     * @return graph of topology
+     */
+    public TopologyGraph graph() {
+        Map<DeviceId, TopologyVertex> vertexes = new HashMap<>();
+        devices.forEach(id -> vertexes.put(id, new DefaultTopologyVertex(id)));
+        Set<TopologyEdge> edges = new HashSet<>();
+        links.forEach(link -> edges.add(new DefaultTopologyEdge(vertexes.get(link.src().deviceId()),
+                vertexes.get(link.dst().deviceId()), link)));
+        return new DefaultTopologyGraph(new HashSet<>(vertexes.values()), edges);
+    }
+
+    /**
+     * Picks distinct source and destination devices.
+     *
+     * @param count number of pairs
+     * @param seed seed of picks
+     * @return pairs of device indexes, source first
+     */
+    public int[][] pairs(int count, long seed) {
+        Random random = new Random(seed);
+        int[][] pairs = new int[count][];
+        for (int i = 0; i < count; i++) {
+            int src = random.nextInt(devices.size());
+            int dst = (src + 1 + random.nextInt(devices.size() - 1)) % devices.size();
+            pairs[i] = new int[]{src, dst};
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.onosproject.TestApplicationId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.driver.DefaultDriver;
+import org.onosproject.net.driver.Driver;
+import org.onosproject.net.driver.DriverServiceAdapter;
+import org.onosproject.net.flow.FlowRule;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of classifier and label tables of devices.
+ */
+public class TablePipelineTest {
+
+    private final ApplicationId appId = new TestApplicationId((short) 7, "sdwan");
+
+    @Test
+    public void singleTableHasNoJumpRule() {
+        TablePipeline pipeline = new TablePipeline(appId, 99, null);
+
+        assertEquals(0, pipeline.classifierTable(did("A")));
+        assertEquals(0, pipeline.labelTable(did("A")));
+        assertNull(pipeline.jumpRule(did("A")));
+    }
+
+    @Test
+    public void labelledTrafficJumpsToLabelTable() {
+        TablePipeline pipeline = new TablePipeline(appId, 99, null);
+        pipeline.setTables(0, 2);
+
+        FlowRule jump = pipeline.jumpRule(did("A"));
+        assertEquals(0, jump.tableId());
+        assertEquals(99, jump.priority());
+        assertEquals(appId.id(), jump.appId());
+        assertEquals(Integer.valueOf(2), jump.treatment().tableTransition().tableId());
+    }
+
+    // pipeline with tables 0 and 1, device A has a driver of the properties
+    private TablePipeline driverPipeline(Map<String, String> properties) {
+        TablePipeline pipeline = new TablePipeline(appId, 99, new DriverServiceAdapter() {
+            @Override
+            public Driver getDriver(DeviceId deviceId) {
+                return deviceId.equals(did("A"))
+                        ? new DefaultDriver("hashing", Collections.emptyList(), "maker", "1.0", "1.0",
+                                            Collections.emptyMap(), properties)
+                        : null;
+            }
+        });
+        pipeline.setTables(0, 1);
+        return pipeline;
+    }
+
+    @Test
+    public void driverTablesComeFirst() {
+        TablePipeline pipeline = driverPipeline(ImmutableMap.of(TablePipeline.LABEL_TABLE_PROPERTY, "5"));
+
+        assertEquals(0, pipeline.classifierTable(did("A")));
+        assertEquals(5, pipeline.labelTable(did("A")));
+        assertEquals(1, pipeline.labelTable(did("B")));
+    }
+
+    @Test
+    public void nonNumericDriverTableFallsBack() {
+        TablePipeline pipeline = driverPipeline(ImmutableMap.of(TablePipeline.CLASSIFIER_TABLE_PROPERTY, "0",
+                TablePipeline.LABEL_TABLE_PROPERTY, "mpls"));
+
+        assertEquals(0, pipeline.classifierTable(did("A")));
+        assertEquals(1, pipeline.labelTable(did("A")));
+    }
+
+    @Test
+    public void negativeDriverTableFallsBack() {
+        TablePipeline pipeline = driverPipeline(ImmutableMap.of(TablePipeline.CLASSIFIER_TABLE_PROPERTY, "-1",
+                TablePipeline.LABEL_TABLE_PROPERTY, "3"));
+
+        assertEquals(0, pipeline.classifierTable(did("A")));
+        assertEquals(1, pipeline.labelTable(did("A")));
+    }
+
+    @Test
+    public void driverLabelTableBeforeClassifierTableFallsBack() {
+        // each table alone is fine, the pair is not
+        TablePipeline pipeline = driverPipeline(ImmutableMap.of(TablePipeline.CLASSIFIER_TABLE_PROPERTY, "4"));
+
+        assertEquals(0, pipeline.classifierTable(did("A")));
+        assertEquals(1, pipeline.labelTable(did("A")));
+        assertEquals(1, pipeline.jumpRule(did("A")).treatment().tableTransition().tableId().intValue());
+    }
+
+    @Test
+    public void newTablesApplyToDevicesSeenBefore() {
+        TablePipeline pipeline = new TablePipeline(appId, 99, null);
+        assertEquals(0, pipeline.labelTable(did("A")));
+
+        pipeline.setTables(1, 4);
+        assertEquals(1, pipeline.classifierTable(did("A")));
+        assertEquals(4, pipeline.labelTable(did("A")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void labelTableBeforeClassifierTableIsRejected() {
+        new TablePipeline(appId, 99, null).setTables(2, 1);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import org.junit.Test;
+import org.onosproject.TestApplicationId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.onosproject.mao.sdwan.api.SdwanTunnel.INVALID_TUNNEL_ID;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of tunnel cookies of flow rules.
+ */
+public class TunnelCookiesTest {
+
+    private final ApplicationId appId = new TestApplicationId((short) 7, "sdwan");
+
+    private FlowRule.Builder rule() {
+        return DefaultFlowRule.builder()
+                .forDevice(did("A"))
+                .forTable(0)
+                .makePermanent()
+                .withPriority(100)
+                .withSelector(DefaultTrafficSelector.emptySelector())
+                .withTreatment(DefaultTrafficTreatment.emptyTreatment());
+    }
+
+    @Test
+    public void cookieCarriesAppAndTunnel() {
+        FlowRule rule = rule().withCookie(TunnelCookies.cookie(appId, 0xCAFEL)).build();
+
+        assertEquals(appId.id(), rule.appId());
+        assertEquals(TunnelCookies.TUNNEL_GROUP_ID, rule.groupId().id());
+        assertEquals(0xCAFEL, TunnelCookies.tunnelId(rule));
+    }
+
+    @Test
+    public void largestTunnelIdFits() {
+        long cookie = TunnelCookies.cookie(appId, 0xFFFFFFFFL);
+        assertTrue(TunnelCookies.isTunnelCookie(cookie));
+        assertEquals(7, cookie >>> 48);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLargeTunnelIdIsRejected() {
+        TunnelCookies.cookie(appId, 0x100000000L);
+    }
+
+    @Test
+    public void appRuleBelongsToNoTunnel() {
+        FlowRule rule = rule().fromApp(appId).build();
+
+        assertFalse(TunnelCookies.isTunnelCookie(rule.id().value()));
+        assertEquals(INVALID_TUNNEL_ID, TunnelCookies.tunnelId(rule));
+    }
+}
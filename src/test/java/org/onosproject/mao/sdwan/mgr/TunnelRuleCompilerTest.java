@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.onlab.packet.VlanId;
+import org.onosproject.TestApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthTypeCriterion;
+import org.onosproject.net.flow.criteria.MplsCriterion;
+import org.onosproject.net.flow.criteria.VlanIdCriterion;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.onosproject.net.NetTestTools.connectPoint;
+import static org.onosproject.net.NetTestTools.did;
+
+/**
+ * Tests of the direction-agnostic tunnel rule compiler.
+ */
+public class TunnelRuleCompilerTest {
+
+    private static final int IPV4 = 0x0800;
+    private static final long COOKIE = 0x7B005D00000001L;
+
+    private final TunnelRuleCompiler compiler = new TunnelRuleCompiler(100);
+
+    private final ConnectPoint siteA = connectPoint("A", 9);
+    private final ConnectPoint siteC = connectPoint("C", 9);
+
+    // A -1-> B -2-> C, ports sending into each hop
+    private final List<ConnectPoint> forwardHops = ImmutableList.of(connectPoint("A", 1), connectPoint("B", 2));
+    // C -> B -> A, the same links run from the end
+    private final List<ConnectPoint> backwardHops = ImmutableList.of(connectPoint("C", 2), connectPoint("B", 1));
+
+    private static int label(FlowRule rule) {
+        return ((MplsCriterion) rule.selector().getCriterion(Criterion.Type.MPLS_LABEL)).label().toInt();
+    }
+
+    private static short ethType(FlowRule rule) {
+        return ((EthTypeCriterion) rule.selector().getCriterion(Criterion.Type.ETH_TYPE)).ethType().toShort();
+    }
+
+    @Test
+    public void rulesFollowTheRoute() {
+        List<FlowRule> rules = compiler.compile(siteA, siteC, forwardHops, ImmutableList.of(20, 21),
+                VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE);
+
+        assertEquals(3, rules.size());
+        assertEquals(did("A"), rules.get(0).deviceId());
+        assertEquals(IPV4, ethType(rules.get(0)));
+        assertEquals(did("B"), rules.get(1).deviceId());
+        assertEquals(20, label(rules.get(1)));
+        assertEquals(did("C"), rules.get(2).deviceId());
+        assertEquals(21, label(rules.get(2)));
+        rules.forEach(rule -> assertEquals(COOKIE, rule.id().value()));
+    }
+
+    @Test
+    public void ingressAndLabelRulesGoToTheirTables() {
+        TablePipeline pipeline = new TablePipeline(new TestApplicationId("sdwan"), 99, null);
+        pipeline.setTables(0, 3);
+        List<FlowRule> rules = new TunnelRuleCompiler(100, pipeline).compile(siteA, siteC, forwardHops,
+                ImmutableList.of(20, 21), VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE);
+
+        assertEquals(0, rules.get(0).tableId());
+        assertEquals(3, rules.get(1).tableId());
+        assertEquals(3, rules.get(2).tableId());
+    }
+
+    @Test
+    public void singleRulesCarryTheCookie() {
+        TablePipeline pipeline = new TablePipeline(new TestApplicationId("sdwan"), 99, null);
+        pipeline.setTables(0, 3);
+        TunnelRuleCompiler tabled = new TunnelRuleCompiler(100, pipeline);
+
+        FlowRule ingress = tabled.classifierRule(did("A"), tabled.siteSelector(siteA.port(), VlanId.NONE, IPV4),
+                TunnelRuleCompiler.groupTreatment(0x5D000010), COOKIE);
+        FlowRule egress = tabled.labelRule(did("C"), 21, tabled.popTreatment(siteC.port(), IPV4), COOKIE);
+
+        assertEquals(0, ingress.tableId());
+        assertEquals(COOKIE, ingress.id().value());
+        assertEquals(3, egress.tableId());
+        assertEquals(21, label(egress));
+        assertEquals(COOKIE, egress.id().value());
+    }
+
+    private static VlanId vlan(FlowRule rule) {
+        return ((VlanIdCriterion) rule.selector().getCriterion(Criterion.Type.VLAN_VID)).vlanId();
+    }
+
+    @Test
+    public void tunnelsOfOnePortAreToldApartByVlan() {
+        VlanId tagged = VlanId.vlanId((short) 10);
+        FlowRule untaggedIngress = compiler.compile(siteA, siteC, forwardHops, ImmutableList.of(20, 21),
+                VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE).get(0);
+        FlowRule taggedIngress = compiler.compile(siteA, siteC, forwardHops, ImmutableList.of(22, 23),
+                tagged, IPV4, Collections.emptyMap(), COOKIE + 1).get(0);
+
+        // untagged traffic is matched as such, not as any VLAN
+        assertEquals(VlanId.NONE, vlan(untaggedIngress));
+        assertEquals(tagged, vlan(taggedIngress));
+        assertNotEquals(untaggedIngress, taggedIngress);
+        assertNotEquals(untaggedIngress.selector(), taggedIngress.selector());
+    }
+
+    @Test
+    public void bothDirectionsAreCompiledAlike() {
+        List<FlowRule> rules = compiler.compile(siteC, siteA, backwardHops, ImmutableList.of(30, 31),
+                VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE);
+
+        assertEquals(3, rules.size());
+        assertEquals(did("C"), rules.get(0).deviceId());
+        assertEquals(IPV4, ethType(rules.get(0)));
+        assertEquals(did("B"), rules.get(1).deviceId());
+        assertEquals(did("A"), rules.get(2).deviceId());
+    }
+
+    @Test
+    public void oneHopRouteMatchesEthertype() {
+        List<FlowRule> rules = compiler.compile(connectPoint("B", 9), siteC, forwardHops.subList(1, 2),
+                ImmutableList.of(40), VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE);
+
+        assertEquals(2, rules.size());
+        assertEquals(IPV4, ethType(rules.get(0)));
+        assertEquals(40, label(rules.get(1)));
+    }
+
+    @Test
+    public void routeWithoutLinkConnectsSitesOnOneDevice() {
+        List<FlowRule> rules = compiler.compile(siteA, connectPoint("A", 8), ImmutableList.of(),
+                ImmutableList.of(), VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE);
+
+        assertEquals(1, rules.size());
+        assertEquals(did("A"), rules.get(0).deviceId());
+        assertEquals(IPV4, ethType(rules.get(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void routeWithoutLinkBetweenDevicesIsRejected() {
+        compiler.compile(siteA, siteC, ImmutableList.of(), ImmutableList.of(), VlanId.NONE, IPV4,
+                Collections.emptyMap(), COOKIE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void labelsMustMatchHops() {
+        compiler.compile(siteA, siteC, forwardHops, ImmutableList.of(20), VlanId.NONE, IPV4,
+                Collections.emptyMap(), COOKIE);
+    }
+
+    @Test
+    public void groupsReplacePushAndSwap() {
+        List<FlowRule> rules = compiler.compile(siteA, siteC, forwardHops, ImmutableList.of(20, 21),
+                VlanId.NONE, IPV4, ImmutableMap.of(0, 0x5D000010, 1, 0x5D000014), COOKIE);
+
+        assertEquals(TunnelRuleCompiler.groupTreatment(0x5D000010), rules.get(0).treatment());
+        assertEquals(TunnelRuleCompiler.groupTreatment(0x5D000014), rules.get(1).treatment());
+    }
+
+    @Test
+    public void selectorsAndTreatmentsAreShared() {
+        List<FlowRule> first = compiler.compile(siteA, siteC, forwardHops, ImmutableList.of(20, 21),
+                VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE);
+        List<FlowRule> second = compiler.compile(siteA, siteC, forwardHops, ImmutableList.of(20, 21),
+                VlanId.NONE, IPV4, Collections.emptyMap(), COOKIE + 1);
+
+        for (int i = 0; i < first.size(); i++) {
+            assertSame(first.get(i).selector(), second.get(i).selector());
+        }
+        assertSame(first.get(2).treatment(), second.get(2).treatment());
+        assertSame(compiler.labelSelector(21), first.get(2).selector());
+    }
+}
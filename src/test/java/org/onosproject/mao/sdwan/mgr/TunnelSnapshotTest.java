@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.mgr;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onlab.packet.VlanId;
+import org.onosproject.mao.sdwan.api.SdwanTunnel;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Path;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.onosproject.net.NetTestTools.createPath;
+import static org.onosproject.net.NetTestTools.did;
+import static org.onosproject.net.PortNumber.portNumber;
+
+/**
+ * Tests of tunnel snapshots written to and read from files.
+ */
+public class TunnelSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SdwanTunnel tunnel(long id, String tenant, int label, String... devices) {
+        Path path = createPath(devices);
+        ImmutableList.Builder<DeviceId> forwardDevices = ImmutableList.builder();
+        for (String device : devices) {
+            forwardDevices.add(did(device));
+        }
+
+        return SdwanTunnel.builder()
+                .tunnelId(id)
+                .tenant(tenant)
+                .src(new ConnectPoint(did(devices[0]), portNumber(1)))
+                .dst(new ConnectPoint(did(devices[devices.length - 1]), portNumber(1)))
+                .networkProtocol(0x0800)
+                .forwardDevices(forwardDevices.build())
+                .backwardDevices(Lists.reverse(forwardDevices.build()))
+                .forwardPath(path)
+                .backwardPath(path)
+                .forwardLabel(label)
+                .backwardLabel(label + 1)
+                .build();
+    }
+
+    @Test
+    public void tunnelsAndSidsSurviveRoundTrip() throws IOException {
+        File file = new File(folder.getRoot(), "sdwan/tunnels.snapshot");
+        SdwanTunnel tagged = SdwanTunnel.builder(tunnel(9, "tenantB", 200, "s4", "s2"))
+                .siteVlan(VlanId.vlanId((short) 12))
+                .build();
+        new TunnelSnapshot(ImmutableList.of(tunnel(7, "tenantA", 100, "s1", "s2", "s3"), tagged),
+                ImmutableMap.of(did("s2"), 16002)).write(file);
+
+        TunnelSnapshot snapshot = TunnelSnapshot.read(file);
+        assertEquals(2, snapshot.tunnels().size());
+        SdwanTunnel first = snapshot.tunnels().get(0);
+        assertEquals(7, first.getTunnelId());
+        assertEquals("tenantA", first.getTenantName());
+        assertEquals(100, first.getForwardLabel());
+        assertEquals(2, first.getForwardPath().links().size());
+        assertEquals(VlanId.NONE, first.getSiteVlan());
+        assertEquals(VlanId.vlanId((short) 12), snapshot.tunnels().get(1).getSiteVlan());
+        assertEquals(ImmutableMap.of(did("s2"), 16002), snapshot.nodeSids());
+    }
+
+    @Test
+    public void newSnapshotReplacesOld() throws IOException {
+        File file = folder.newFile("tunnels.snapshot");
+        new TunnelSnapshot(ImmutableList.of(tunnel(1, "tenantA", 100, "s1", "s2")), ImmutableMap.of()).write(file);
+        new TunnelSnapshot(ImmutableList.of(), ImmutableMap.of()).write(file);
+
+        assertEquals(0, TunnelSnapshot.read(file).tunnels().size());
+    }
+
+    @Test
+    public void missingFileHasNoSnapshot() throws IOException {
+        assertNull(TunnelSnapshot.read(new File(folder.getRoot(), "none")));
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws IOException {
+        File file = folder.newFile("tunnels.snapshot");
+        writeJson(file, "{\"version\":1,\"timestamp\":5,\"addedLater\":[1,2],"
+                + "\"nodeSids\":{\"of:0000000000000002\":16002},"
+                + "\"tunnels\":[{\"tunnelId\":3,\"tenant\":\"tenantA\",\"src\":\"of:0000000000000001/1\","
+                + "\"dst\":\"of:0000000000000002/1\",\"protocol\":2048,\"color\":\"blue\","
+                + "\"forwardDevices\":[\"of:0000000000000001\",\"of:0000000000000002\"],"
+                + "\"backwardDevices\":[\"of:0000000000000002\",\"of:0000000000000001\"],"
+                + "\"forwardPath\":{\"providerScheme\":\"of\",\"providerId\":\"foo\",\"links\":"
+                + "[{\"src\":\"of:0000000000000001/2\",\"dst\":\"of:0000000000000002/2\"}]},"
+                + "\"backwardPath\":{\"providerScheme\":\"of\",\"providerId\":\"foo\",\"links\":"
+                + "[{\"src\":\"of:0000000000000002/2\",\"dst\":\"of:0000000000000001/2\"}]},"
+                + "\"forwardLabels\":[100],\"backwardLabels\":[101]}]}");
+
+        TunnelSnapshot snapshot = TunnelSnapshot.read(file);
+        assertEquals(5, snapshot.timestamp());
+        assertEquals(ImmutableMap.of(DeviceId.deviceId("of:0000000000000002"), 16002), snapshot.nodeSids());
+        SdwanTunnel tunnel = snapshot.tunnels().get(0);
+        assertEquals(3, tunnel.getTunnelId());
+        assertEquals(101, tunnel.getBackwardLabel());
+        assertEquals(1, tunnel.getForwardPath().links().size());
+        assertEquals(0, tunnel.getBandwidth().bps(), 0);
+        assertEquals(VlanId.NONE, tunnel.getSiteVlan());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherVersionIsNotRead() throws IOException {
+        File file = folder.newFile("tunnels.snapshot");
+        writeJson(file, "{\"version\":2,\"tunnels\":[]}");
+        TunnelSnapshot.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void garbageIsNotRead() throws IOException {
+        File file = folder.newFile("tunnels.snapshot");
+        writeJson(file, "not a snapshot");
+        TunnelSnapshot.read(file);
+    }
+
+    private static void writeJson(File file, String json) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.mao.sdwan.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+import org.onosproject.mao.sdwan.api.VpnRequest;
+import org.onosproject.mao.sdwan.api.VpnRequestReader;
+import org.onosproject.mao.sdwan.api.VpnResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests of JSON of the REST API.
+ */
+public class SdwanJsonTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void failedResultHasNoTunnelId() {
+        VpnRequest request = new VpnRequest("t1", "of:0000000000000001/1", "of:0000000000000002/1", 0x0800);
+        ObjectNode node = SdwanJson.encode(VpnResult.failure(request, VpnResult.Status.NO_PATH), mapper);
+
+        assertEquals("t1", node.get(SdwanJson.TENANT).asText());
+        assertEquals("of:0000000000000001/1", node.get(SdwanJson.SRC).asText());
+        assertEquals("NO_PATH", node.get(SdwanJson.STATUS).asText());
+        assertFalse(node.has(SdwanJson.TUNNEL_ID));
+    }
+
+    @Test
+    public void protocolReadsBackAsRequest() {
+        assertEquals("0x86dd", SdwanJson.protocol(VpnRequestReader.parseProtocol("ipv6")));
+        assertEquals(0x86dd, VpnRequestReader.parseProtocol(SdwanJson.protocol((short) 0x86dd)));
+    }
+}